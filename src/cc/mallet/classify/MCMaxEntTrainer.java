@@ -493,8 +493,9 @@ public class MCMaxEntTrainer extends ClassifierTrainer<MCMaxEnt> implements Boos
 
 			// Initialize the constraints
 			logger.fine("Number of instances in training list = " + trainingList.size());
-			for (Instance inst : trainingList) {
-				double instanceWeight = trainingList.getInstanceWeight(inst);
+			for (int ii = 0; ii < trainingList.size(); ii++) {
+				Instance inst = trainingList.get(ii);
+				double instanceWeight = trainingList.getInstanceWeight(ii);
 				Labeling labeling = inst.getLabeling ();
 				//logger.fine ("Instance "+ii+" labeling="+labeling);
 				FeatureVector fv = (FeatureVector) inst.getData ();
@@ -567,7 +568,7 @@ public class MCMaxEntTrainer extends ClassifierTrainer<MCMaxEnt> implements Boos
 				double value = 0.0;
 				//System.out.println("I Now "+inputAlphabet.size()+" regular features.");
 				Iterator<Instance> iter = trainingList.iterator();
-				//int ii = 0;
+				int ii = 0;
 
 				// Normalize the parameters to be per-class multinomials
 				double probs[][] = new double[scores.length][numFeatures];
@@ -590,7 +591,7 @@ public class MCMaxEntTrainer extends ClassifierTrainer<MCMaxEnt> implements Boos
 
 				while (iter.hasNext()) {
 					Instance instance = iter.next();
-					double instanceWeight = trainingList.getInstanceWeight(instance);
+					double instanceWeight = trainingList.getInstanceWeight(ii++);
 					Labeling labeling = instance.getLabeling ();
 					//System.out.println("L Now "+inputAlphabet.size()+" regular features.");
 
@@ -147,7 +147,7 @@ public class MaxEntOptimizableByGE implements Optimizable.ByGradientValue {
     // pass 1: calculate model distribution
     for (int ii = 0; ii < trainingList.size(); ii++) {
       Instance instance = trainingList.get(ii);
-      double instanceWeight = trainingList.getInstanceWeight(instance);
+      double instanceWeight = trainingList.getInstanceWeight(ii);
       
       // skip if labeled
       if (instance.getTarget() != null) {
@@ -179,7 +179,7 @@ public class MaxEntOptimizableByGE implements Optimizable.ByGradientValue {
       
       Arrays.fill(constraintValue,0);
       double instanceExpectation = 0;
-      double instanceWeight = trainingList.getInstanceWeight(instance);
+      double instanceWeight = trainingList.getInstanceWeight(ii);
       FeatureVector fv = (FeatureVector) instance.getData();
 
       for (MaxEntGEConstraint constraint : constraints) {
@@ -100,8 +100,9 @@ public class MaxEntOptimizableByLabelLikelihood implements Optimizable.ByGradien
 
 		// Initialize the constraints
 		logger.fine("Number of instances in training list = " + trainingList.size());
-		for (Instance inst : trainingList) {
-			double instanceWeight = trainingList.getInstanceWeight(inst);
+		for (int ii = 0; ii < trainingList.size(); ii++) {
+			Instance inst = trainingList.get(ii);
+			double instanceWeight = trainingList.getInstanceWeight(ii);
 			Labeling labeling = inst.getLabeling ();
 			if (labeling == null)
 				continue;
@@ -176,9 +177,8 @@ public class MaxEntOptimizableByLabelLikelihood implements Optimizable.ByGradien
 			Iterator<Instance> iter = trainingList.iterator();
 			int ii=0;
 			while (iter.hasNext()) {
-				ii++;
 				Instance instance = iter.next();
-				double instanceWeight = trainingList.getInstanceWeight(instance);
+				double instanceWeight = trainingList.getInstanceWeight(ii++);
 				Labeling labeling = instance.getLabeling ();
 				if (labeling == null)
 					continue;
@@ -200,8 +200,8 @@ implements ClassifierTrainer.ByInstanceIncrements<NaiveBayes>, Boostable, Alphab
   	setup(trainingInstancesToAdd, null);
 
   	// Incrementally add the counts of this new training data
-  	for (Instance instance : trainingInstancesToAdd)
-    	incorporateOneInstance(instance, trainingInstancesToAdd.getInstanceWeight(instance));
+  	for (int ii = 0; ii < trainingInstancesToAdd.size(); ii++)
+    	incorporateOneInstance(trainingInstancesToAdd.get(ii), trainingInstancesToAdd.getInstanceWeight(ii));
     
     // Estimate multinomials, and return a new naive Bayes classifier.  
     // Note that, unlike MaxEnt, NaiveBayes is immutable, so we create a new one each time.
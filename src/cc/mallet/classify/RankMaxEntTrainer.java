@@ -353,11 +353,10 @@ public class RankMaxEntTrainer extends MaxEntTrainer
 
 			// Initialize the constraints, using only the constraints from
 			// the "positive" instance
-			Iterator<Instance> iter = trainingList.iterator ();
 			logger.fine("Number of instances in training list = " + trainingList.size());
-			while (iter.hasNext()) {
-				Instance instance = iter.next();
-				double instanceWeight = trainingList.getInstanceWeight(instance);
+			for (int ii = 0; ii < trainingList.size(); ii++) {
+				Instance instance = trainingList.get(ii);
+				double instanceWeight = trainingList.getInstanceWeight(ii);
 				FeatureVectorSequence fvs = (FeatureVectorSequence) instance.getData();
 				// label of best instance in subList
 				Object target = instance.getTarget();
@@ -443,12 +442,11 @@ public class RankMaxEntTrainer extends MaxEntTrainer
 				Iterator<Instance> iter = trainingList.iterator();
 				int ii=0;				
 				while (iter.hasNext()) {
-					ii++;
 					Instance instance = iter.next();
 					FeatureVectorSequence fvs = (FeatureVectorSequence) instance.getData();
 					// scores stores Pr of subList[i] being positive instance
 					double[] scores = new double[fvs.size()];
-					double instanceWeight = trainingList.getInstanceWeight(instance);
+					double instanceWeight = trainingList.getInstanceWeight(ii++);
 
 					// labeling is a String representation of an int, indicating which FeatureVector from
 					// the subList is the positive example					
@@ -75,7 +75,7 @@ public abstract class MaxEntFLPRConstraints implements MaxEntPRConstraint {
     FeatureVector fv;
     BitSet bitSet = new BitSet(data.size());
     for (Instance instance : data) {
-      double weight = data.getInstanceWeight(instance);
+      double weight = data.getInstanceWeight(ii);
       fv = (FeatureVector)instance.getData();
       for (int loc = 0; loc < fv.numLocations(); loc++) {
         fi = fv.indexAtLocation(loc);
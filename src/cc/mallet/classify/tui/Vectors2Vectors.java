@@ -83,6 +83,16 @@ public class Vectors2Vectors {
    (Vectors2Vectors.class, "reveal-targets", "[TRUE|FALSE]", false, false,
     "Reveal targets.", null);
 
+	static CommandOption.Boolean columnar = new CommandOption.Boolean
+		(Vectors2Vectors.class, "columnar", "[TRUE|FALSE]", false, false,
+		 "Write output in the memory-mapped columnar format of MappedInstanceList, which loads without deserialization. "+
+		 "Without any other processing option, converts --input to this format in --output.", null);
+
+	static CommandOption.Boolean compress = new CommandOption.Boolean
+		(Vectors2Vectors.class, "compress", "[TRUE|FALSE]", false, false,
+		 "Store feature sequences bit-packed, and feature vectors whose values are all 1.0 as binary vectors. "+
+		 "Without any other processing option, compresses --input into --output.", null);
+
 
 	public static void main (String[] args) throws FileNotFoundException, IOException {
 
@@ -109,8 +119,15 @@ public class Vectors2Vectors {
 		// Read the InstanceList
 		InstanceList instances = InstanceList.load (inputFile.value);
 
+		if (compress.value)
+			instances = compressInstances (instances);
+
 		if (t == 1.0 && !vectorToSequence.value && ! (pruneInfogain.wasInvoked() || pruneCount.wasInvoked())
 		    && ! (hideTargets.wasInvoked() || revealTargets.wasInvoked())) {
+			if (columnar.value || compress.value) {
+				writeInstanceList(instances, outputFile.value());
+				System.exit(0);
+			}
 			logger.warning("Vectors2Vectors was invoked, but did not change anything");
 			instances.save(trainingFile.value());
 			System.exit(0);
@@ -346,10 +363,30 @@ public class Vectors2Vectors {
     }
 	}
 
+	/** Returns a copy of the list with each FeatureSequence replaced by a
+	 * CompressedFeatureSequence and each FeatureVector by its compact form. */
+	private static InstanceList compressInstances (InstanceList instances) {
+		InstanceList compressed = new InstanceList (instances.getPipe());
+		for (int ii = 0; ii < instances.size(); ii++) {
+			Instance instance = instances.get(ii);
+			Object data = instance.getData();
+			if (data.getClass() == FeatureSequence.class)
+				data = new CompressedFeatureSequence ((FeatureSequence) data);
+			else if (data instanceof FeatureVector)
+				data = ((FeatureVector) data).compact();
+			compressed.add (new Instance (data, instance.getTarget(), instance.getName(), instance.getSource()),
+			                instances.getInstanceWeight(ii));
+		}
+		return compressed;
+	}
+
 	private static void writeInstanceList(InstanceList instances, File file)
 		throws FileNotFoundException, IOException {
 
 		logger.info ("Writing instance list to "+file);
-		instances.save(file);
+		if (columnar.value)
+			MappedInstanceList.save(instances, file);
+		else
+			instances.save(file);
 	}
 }
@@ -57,6 +57,8 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 	protected List<CRF.Factors> expectations;
 	// constraints over whole training set
 	protected CRF.Factors constraints;
+	// creates the lattices for constraints and expectations
+	protected SumLatticeFactory sumLatticeFactory;
 
 	// value and gradient for each batch, to avoid sharing
 	protected double[] cachedValue;
@@ -68,8 +70,18 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 	double hyperbolicPriorSharpness = DEFAULT_HYPERBOLIC_PRIOR_SHARPNESS;
 
 	public CRFOptimizableByBatchLabelLikelihood(CRF crf, InstanceList ilist, int numBatches) {
+		this(crf, ilist, numBatches, new SumLatticeDefault.Factory());
+	}
+
+	/**
+	 * Computes constraints and expectations with lattices from
+	 * <tt>sumLatticeFactory</tt>, for example a {@link SumLatticeScaling.Factory}.
+	 */
+	public CRFOptimizableByBatchLabelLikelihood(CRF crf, InstanceList ilist, int numBatches,
+			SumLatticeFactory sumLatticeFactory) {
 		// set up
 		this.crf = crf;
+		this.sumLatticeFactory = sumLatticeFactory;
 		this.trainingSet = ilist;
 		this.numBatches = numBatches;
 
@@ -96,14 +108,15 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 		assert (constraints.structureMatches(crf.parameters));
 		constraints.zero();
 
-		for (Instance instance : ilist) {
+		for (int ii = 0; ii < ilist.size(); ii++) {
+			Instance instance = ilist.get(ii);
 			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
 			FeatureSequence output = (FeatureSequence) instance.getTarget();
-			double instanceWeight = ilist.getInstanceWeight(instance);
+			double instanceWeight = ilist.getInstanceWeight(ii);
 			Transducer.Incrementor incrementor =
 				instanceWeight == 1.0 ? constraints.new Incrementor()
 			: constraints.new WeightedIncrementor(instanceWeight);
-				new SumLatticeDefault (this.crf, input, output, incrementor); 
+				sumLatticeFactory.newSumLattice (this.crf, input, output, incrementor);
 		}
 		constraints.assertNotNaNOrInfinite();
 	}
@@ -126,18 +139,18 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 		double unlabeledWeight, labeledWeight, weight;
 		for (int ii = batchAssignments[0]; ii < batchAssignments[1]; ii++) {
 			Instance instance = trainingSet.get(ii);
-			double instanceWeight = trainingSet.getInstanceWeight(instance);
+			double instanceWeight = trainingSet.getInstanceWeight(ii);
 			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
 			FeatureSequence output = (FeatureSequence) instance.getTarget();
 
-			labeledWeight = new SumLatticeDefault (this.crf, input, output, null).getTotalWeight();
+			labeledWeight = sumLatticeFactory.newSumLattice (this.crf, input, output, (Transducer.Incrementor)null).getTotalWeight();
 			if (Double.isInfinite (labeledWeight)) {
 				++numInfLabeledWeight;
 			}
 
 			Transducer.Incrementor incrementor = instanceWeight == 1.0 ? batchExpectations.new Incrementor()
 				: batchExpectations.new WeightedIncrementor (instanceWeight);
-			unlabeledWeight = new SumLatticeDefault (this.crf, input, null, incrementor).getTotalWeight();
+			unlabeledWeight = sumLatticeFactory.newSumLattice (this.crf, input, null, incrementor).getTotalWeight();
 			if (Double.isInfinite (unlabeledWeight)) {
 				++numInfUnlabeledWeight;
 			}
@@ -265,7 +278,7 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 	}
 
 	private static final long serialVersionUID = 1;
-	private static final int CURRENT_SERIAL_VERSION = 0;
+	private static final int CURRENT_SERIAL_VERSION = 1;
 
 	private void writeObject (ObjectOutputStream out) throws IOException {
 		out.writeInt (CURRENT_SERIAL_VERSION);
@@ -275,10 +288,11 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 		out.writeObject(cachedValue);
 		for (double[] gradient : cachedGradient)
 			out.writeObject(gradient);
+		out.writeObject(sumLatticeFactory);
 	}
 
 	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
-		in.readInt ();
+		int version = in.readInt ();
 		trainingSet = (InstanceList) in.readObject();
 		crf = (CRF)in.readObject();
 		numBatches = in.readInt();
@@ -286,6 +300,10 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 		cachedGradient = new ArrayList<double[]>(numBatches);
 		for (int i = 0; i < numBatches; ++i)
 			cachedGradient.set(i, (double[]) in.readObject());
+		if (version >= 1)
+			sumLatticeFactory = (SumLatticeFactory) in.readObject();
+		else
+			sumLatticeFactory = new SumLatticeDefault.Factory();
 	}
 
 	public static class Factory {
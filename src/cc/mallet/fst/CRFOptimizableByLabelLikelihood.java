@@ -33,6 +33,8 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 	protected BitSet infiniteValues = null;
 	protected CRF crf;
 	protected CRF.Factors constraints, expectations;
+	// Creates the lattices for constraints and expectations
+	protected SumLatticeFactory sumLatticeFactory;
 	// Various values from CRF acting as indicators of when we need to ...
 	private int cachedValueWeightsStamp = -1;  // ... re-calculate expectations and values to getValue() because weights' values changed
 	private int cachedGradientWeightsStamp = -1; // ... re-calculate to getValueGradient() because weights' values changed
@@ -43,9 +45,19 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 	double hyperbolicPriorSharpness = DEFAULT_HYPERBOLIC_PRIOR_SHARPNESS;
 
 	public CRFOptimizableByLabelLikelihood (CRF crf, InstanceList ilist)
+	{
+		this (crf, ilist, new SumLatticeDefault.Factory());
+	}
+
+	/**
+	 * Computes constraints and expectations with lattices from SUMLATTICEFACTORY,
+	 * for example a {@link SumLatticeScaling.Factory}.
+	 */
+	public CRFOptimizableByLabelLikelihood (CRF crf, InstanceList ilist, SumLatticeFactory sumLatticeFactory)
 	{
 		// Set up
 		this.crf = crf;
+		this.sumLatticeFactory = sumLatticeFactory;
 		this.trainingSet = ilist;
 		//cachedGradient = new DenseVector (numParameters);
 		cachedGradient = new double[crf.parameters.getNumFactors()];
@@ -73,13 +85,14 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 		assert (constraints.structureMatches(crf.parameters));
 		constraints.zero();
 
-		for (Instance instance : ilist) {
+		for (int ii = 0; ii < ilist.size(); ii++) {
+			Instance instance = ilist.get(ii);
 			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
 			FeatureSequence output = (FeatureSequence) instance.getTarget();
-			double instanceWeight = ilist.getInstanceWeight(instance);
+			double instanceWeight = ilist.getInstanceWeight(ii);
 			//System.out.println ("Constraint-gathering on instance "+i+" of "+ilist.size());
 			Transducer.Incrementor incrementor = instanceWeight == 1.0 ? constraints.new Incrementor() : constraints.new WeightedIncrementor(instanceWeight);
-			new SumLatticeDefault (this.crf, input, output, incrementor); 
+			sumLatticeFactory.newSumLattice (this.crf, input, output, incrementor);
 		}
 //		System.out.println ("testing Value and Gradient");
 //		TestOptimizable.testValueAndGradientCurrentParameters (this);
@@ -134,10 +147,10 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 		double unlabeledWeight, labeledWeight, weight;
 		for (int ii = 0; ii < trainingSet.size(); ii++) {
 			Instance instance = trainingSet.get(ii);
-			double instanceWeight = trainingSet.getInstanceWeight(instance);
+			double instanceWeight = trainingSet.getInstanceWeight(ii);
 			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
 			FeatureSequence output = (FeatureSequence) instance.getTarget();
-			labeledWeight = new SumLatticeDefault (this.crf, input, output, (Transducer.Incrementor)null).getTotalWeight();
+			labeledWeight = sumLatticeFactory.newSumLattice (this.crf, input, output, (Transducer.Incrementor)null).getTotalWeight();
 			String instanceName = instance.getName() == null ? "instance#"+ii : instance.getName().toString();
 			//System.out.println ("labeledWeight = "+labeledWeight);
 			if (Double.isInfinite (labeledWeight)) {
@@ -146,7 +159,7 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 			}
 			
 			Transducer.Incrementor incrementor = instanceWeight == 1.0 ? expectations.new Incrementor() : expectations.new WeightedIncrementor (instanceWeight);
-			unlabeledWeight = new SumLatticeDefault (this.crf, input, null, incrementor).getTotalWeight();
+			unlabeledWeight = sumLatticeFactory.newSumLattice (this.crf, input, null, incrementor).getTotalWeight();
 			//System.out.println ("unlabeledWeight = "+unlabeledWeight);
 			if (Double.isInfinite (unlabeledWeight)) {
 				++numInfUnlabeledWeight;
@@ -264,7 +277,7 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 	//Serialization of MaximizableCRF
 
 	private static final long serialVersionUID = 1;
-	private static final int CURRENT_SERIAL_VERSION = 0;
+	private static final int CURRENT_SERIAL_VERSION = 1;
 
 	private void writeObject (ObjectOutputStream out) throws IOException {
 		out.writeInt (CURRENT_SERIAL_VERSION);
@@ -273,6 +286,7 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 		out.writeObject(cachedGradient);
 		out.writeObject(infiniteValues);
 		out.writeObject(crf);
+		out.writeObject(sumLatticeFactory);
 	}
 
 	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
@@ -282,6 +296,10 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 		cachedGradient = (double[]) in.readObject();
 		infiniteValues = (BitSet) in.readObject();
 		crf = (CRF)in.readObject();
+		if (version >= 1)
+			sumLatticeFactory = (SumLatticeFactory) in.readObject();
+		else
+			sumLatticeFactory = new SumLatticeDefault.Factory();
 	}
 	
 	public static class Factory {
@@ -58,6 +58,7 @@ public class CRFTrainerByLabelLikelihood extends TransducerTrainer implements Tr
 	boolean useSparseWeights = true;
 	boolean useNoWeights = false; // TODO remove this; it is just for debugging
 	private transient boolean useSomeUnsupportedTrick = true;
+	SumLatticeFactory sumLatticeFactory = new SumLatticeDefault.Factory();
 
 	// Various values from CRF acting as indicators of when we need to ...
 	private int cachedValueWeightsStamp = -1;  // ... re-calculate expectations and values to getValue() because weights' values changed
@@ -108,7 +109,7 @@ public class CRFTrainerByLabelLikelihood extends TransducerTrainer implements Tr
 		}
 		if (ocrf == null || ocrf.trainingSet != trainingSet) {
 			//ocrf = new OptimizableCRF (crf, trainingSet);
-			ocrf = new CRFOptimizableByLabelLikelihood(crf, trainingSet);
+			ocrf = new CRFOptimizableByLabelLikelihood(crf, trainingSet, sumLatticeFactory);
 			ocrf.setGaussianPriorVariance(gaussianPriorVariance);
 			ocrf.setHyperbolicPriorSharpness(hyperbolicPriorSharpness);
 			ocrf.setHyperbolicPriorSlope(hyperbolicPriorSlope);
@@ -459,6 +460,18 @@ public class CRFTrainerByLabelLikelihood extends TransducerTrainer implements Tr
 	 * @param b Whether to use the trick
 	 */
 	public void setUseSomeUnsupportedTrick (boolean b) { useSomeUnsupportedTrick = b; }
+
+	/**
+	 * Sets the lattices used to compute the likelihood and its gradient.  The
+	 * default is SumLatticeDefault; {@link SumLatticeScaling.Factory} works in
+	 * probability space, which is faster, and falls back to log space on
+	 * underflow.
+	 */
+	public void setSumLatticeFactory (SumLatticeFactory factory) {
+		sumLatticeFactory = factory;
+		ocrf = null;
+	}
+	public SumLatticeFactory getSumLatticeFactory () { return sumLatticeFactory; }
 	
 
 	
@@ -31,6 +31,7 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 	private ThreadedOptimizable threadedOptimizable;
 	private Optimizer optimizer;
 	private int cachedWeightsStructureStamp; 
+	private SumLatticeFactory sumLatticeFactory;
 
 	public CRFTrainerByThreadedLabelLikelihood (CRF crf, int numThreads) {
 		this.crf = crf;
@@ -42,6 +43,7 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 		this.iterationCount = 0;
 		this.gaussianPriorVariance = DEFAULT_GAUSSIAN_PRIOR_VARIANCE;
 		this.cachedWeightsStructureStamp = -1;
+		this.sumLatticeFactory = new SumLatticeDefault.Factory();
 	}
 	
 	public Transducer getTransducer() { return crf; }
@@ -55,6 +57,20 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 	public void setUseSparseWeights (boolean b) { useSparseWeights = b; }
 	public boolean getUseSparseWeights () { return useSparseWeights; }
 
+	/**
+	 * Sets the lattices used to compute the likelihood and its gradient.  The
+	 * default is SumLatticeDefault; {@link SumLatticeScaling.Factory} works in
+	 * probability space, which is faster, and falls back to log space on
+	 * underflow.
+	 */
+	public void setSumLatticeFactory (SumLatticeFactory factory) {
+		sumLatticeFactory = factory;
+		if (threadedOptimizable != null)
+			threadedOptimizable.shutdown();
+		optimizable = null;
+	}
+	public SumLatticeFactory getSumLatticeFactory () { return sumLatticeFactory; }
+
 	/** Sets whether to use the 'some unsupported trick.' This trick is, if training a CRF
 	 * where some training has been done and sparse weights are used, to add a few weights
 	 * for feaures that do not occur in the tainig data.
@@ -95,7 +111,7 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 			cachedWeightsStructureStamp = crf.weightsStructureChangeStamp;
 		}
 		if (optimizable == null || optimizable.trainingSet != trainingSet) {
-			optimizable = new CRFOptimizableByBatchLabelLikelihood(crf, trainingSet, numThreads);
+			optimizable = new CRFOptimizableByBatchLabelLikelihood(crf, trainingSet, numThreads, sumLatticeFactory);
 			optimizable.setGaussianPriorVariance(gaussianPriorVariance);
 			threadedOptimizable = new ThreadedOptimizable(optimizable, trainingSet, crf.getParameters().getNumFactors(),
 	      new CRFCacheStaleIndicator(crf));
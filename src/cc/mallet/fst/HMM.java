@@ -683,8 +683,8 @@ public class HMM extends Transducer implements Serializable {
 			State src = (HMM.State) ((TransitionIterator) ti).getSourceState();
 			State dest = (HMM.State) ((TransitionIterator) ti)
 					.getDestinationState();
-			int index = ti.getIndex();
-			emissionEstimator[index].increment(inputFtr, count);
+			// Emissions are scored by the destination state
+			emissionEstimator[dest.getIndex()].increment(inputFtr, count);
 			transitionEstimator[src.getIndex()]
 					.increment(dest.getName(), count);
 		}
@@ -710,8 +710,7 @@ public class HMM extends Transducer implements Serializable {
 			State src = (HMM.State) ((TransitionIterator) ti).getSourceState();
 			State dest = (HMM.State) ((TransitionIterator) ti)
 					.getDestinationState();
-			int index = ti.getIndex();
-			emissionEstimator[index].increment(inputFtr, weight * count);
+			emissionEstimator[dest.getIndex()].increment(inputFtr, weight * count);
 			transitionEstimator[src.getIndex()].increment(dest.getName(),
 					weight * count);
 		}
@@ -1,5 +1,14 @@
 package cc.mallet.fst;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import cc.mallet.types.FeatureSequence;
@@ -7,6 +16,19 @@ import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
 import cc.mallet.util.MalletLogger;
 
+/**
+ * Trains an HMM by expectation maximization (Baum-Welch).
+ * <p>
+ * The E-step can run on several threads ({@link #setNumThreads}); each
+ * thread collects expected counts for its share of the instances, and the
+ * counts are added to the HMM's estimators when all threads are done.
+ * <p>
+ * With {@link #setStepwiseBatchSize} set, training uses stepwise (online)
+ * EM instead: the parameters are re-estimated after every mini-batch, from
+ * a running average of expected counts in which the counts of batch
+ * <i>k</i> have weight <tt>(k+2)^-exponent</tt>.  {@link #trainStepwise}
+ * does the same over a stream of instances that need not fit in memory.
+ */
 public class HMMTrainerByLikelihood extends TransducerTrainer {
 	private static Logger logger = MalletLogger
 			.getLogger(HMMTrainerByLikelihood.class.getName());
@@ -15,6 +37,14 @@ public class HMMTrainerByLikelihood extends TransducerTrainer {
 	InstanceList trainingSet, unlabeledSet;
 	int iterationCount = 0;
 	boolean converged = false;
+	int numThreads = 1;
+
+	// Stepwise EM: batch size (0 for batch EM), step size exponent, number of
+	// steps taken, and the running average of expected counts per instance
+	int stepwiseBatchSize = 0;
+	double stepwiseExponent = 0.7;
+	int stepwiseUpdates = 0;
+	ExpectedCounts stepwiseCounts;
 
 	public HMMTrainerByLikelihood(HMM hmm) {
 		this.hmm = hmm;
@@ -35,6 +65,42 @@ public class HMMTrainerByLikelihood extends TransducerTrainer {
 		return converged;
 	}
 
+	/** Sets the number of threads that compute expected counts.  The default is 1. */
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+		this.numThreads = numThreads;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Makes {@link #train} use stepwise EM with mini-batches of BATCHSIZE
+	 * instances, or batch EM if BATCHSIZE is 0 (the default).
+	 */
+	public void setStepwiseBatchSize(int batchSize) {
+		stepwiseBatchSize = batchSize;
+	}
+
+	public int getStepwiseBatchSize() {
+		return stepwiseBatchSize;
+	}
+
+	/**
+	 * Sets the exponent of the stepwise EM step size <tt>(k+2)^-exponent</tt>.
+	 * It should be in (0.5, 1]; smaller values forget old batches faster.  The
+	 * default is 0.7.
+	 */
+	public void setStepwiseExponent(double exponent) {
+		stepwiseExponent = exponent;
+	}
+
+	public double getStepwiseExponent() {
+		return stepwiseExponent;
+	}
+
 	@Override
 	public boolean train(InstanceList trainingSet, int numIterations) {
 		return train(trainingSet, null, numIterations);
@@ -48,49 +114,266 @@ public class HMMTrainerByLikelihood extends TransducerTrainer {
 		converged = false;
 		double threshold = 0.001;
 		double logLikelihood = Double.NEGATIVE_INFINITY, prevLogLikelihood;
-		for (int iter = 0; iter < numIterations; iter++) {
-			prevLogLikelihood = logLikelihood;
-			logLikelihood = 0;
-			for (Instance inst : trainingSet) {
-				FeatureSequence input = (FeatureSequence) inst.getData();
-				FeatureSequence output = (FeatureSequence) inst.getTarget();
-				double obsLikelihood = new SumLatticeDefault(hmm, input,
-						output, hmm.new Incrementor()).getTotalWeight();
-				logLikelihood += obsLikelihood;
-			}
-			logger.info("getValue() (observed log-likelihood) = "
-					+ logLikelihood);
-
-			if (unlabeledSet != null) {
-				int numEx = 0;
-				for (Instance inst : unlabeledSet) {
-					numEx++;
-					if (numEx % 100 == 0) {
-						System.err.print(numEx + ". ");
-						System.err.flush();
+		ExecutorService executor = newExecutor();
+		try {
+			for (int iter = 0; iter < numIterations; iter++) {
+				long start = System.currentTimeMillis();
+				prevLogLikelihood = logLikelihood;
+				if (stepwiseBatchSize > 0) {
+					// The labeled instances come first, so that the pass
+					// knows which set each instance came from
+					List<Instance> all = new ArrayList<Instance>(trainingSet);
+					if (unlabeledSet != null)
+						all.addAll(unlabeledSet);
+					logLikelihood = stepwisePass(all.iterator(), trainingSet.size(),
+							all.size(), executor);
+					logger.info("getValue() (log-likelihood during the pass) = " + logLikelihood);
+				} else {
+					ExpectedCounts counts = collectCounts(trainingSet, true, executor);
+					logLikelihood = counts.logLikelihood;
+					logger.info("getValue() (observed log-likelihood) = "
+							+ logLikelihood);
+					if (unlabeledSet != null) {
+						ExpectedCounts hidden = collectCounts(unlabeledSet, false, executor);
+						counts.add(hidden, 1.0);
+						logLikelihood += hidden.logLikelihood;
 					}
-					FeatureSequence input = (FeatureSequence) inst.getData();
-					double hiddenLikelihood = new SumLatticeDefault(hmm, input,
-							null, hmm.new Incrementor()).getTotalWeight();
-					logLikelihood += hiddenLikelihood;
+					logger.info("getValue() (log-likelihood) = " + logLikelihood);
+					counts.incrementEstimators(hmm, 1.0);
+					hmm.estimate();
+				}
+				iterationCount++;
+				logger.info("HMM finished one iteration of maximizer, i=" + iter
+						+ " (" + (System.currentTimeMillis() - start) + " ms)");
+
+				runEvaluators();
+
+				if (Math.abs(logLikelihood - prevLogLikelihood) < threshold) {
+					converged = true;
+					logger.info("HMM training has converged, i=" + iter);
+					break;
 				}
-				System.err.println();
 			}
-			logger.info("getValue() (log-likelihood) = " + logLikelihood);
+		} finally {
+			if (executor != null)
+				executor.shutdown();
+		}
+
+		return converged;
+	}
+
+	/**
+	 * Makes one pass of stepwise EM over INSTANCES, re-estimating the HMM
+	 * after every mini-batch.  Instances with a target are treated as
+	 * labeled, and others as unlabeled.  The expected counts are scaled to
+	 * the number of instances read so far, which is used for smoothing, so
+	 * the effective data size grows with the stream.  Returns the sum of the
+	 * log-likelihoods of the instances, each under the parameters current
+	 * when it was read.
+	 *
+	 * @param batchSize Number of instances in each mini-batch
+	 */
+	public double trainStepwise(Iterator<Instance> instances, int batchSize) {
+		if (hmm.emissionEstimator == null)
+			hmm.reset();
+		int saved = stepwiseBatchSize;
+		stepwiseBatchSize = batchSize;
+		ExecutorService executor = newExecutor();
+		try {
+			long start = System.currentTimeMillis();
+			double logLikelihood = stepwisePass(instances, Integer.MAX_VALUE, -1, executor);
+			logger.info("Stepwise EM pass: log-likelihood " + logLikelihood
+					+ " (" + (System.currentTimeMillis() - start) + " ms)");
+			return logLikelihood;
+		} finally {
+			stepwiseBatchSize = saved;
+			if (executor != null)
+				executor.shutdown();
+		}
+	}
+
+	/** Returns the number of stepwise EM updates made so far. */
+	public int getNumStepwiseUpdates() {
+		return stepwiseUpdates;
+	}
+
+	private ExecutorService newExecutor() {
+		return (numThreads > 1) ? Executors.newFixedThreadPool(numThreads) : null;
+	}
+
+	// The first NUMLABELED instances are trained with their targets, if they
+	// have them, and the rest as unlabeled.  DATASIZE is the number of
+	// instances in the whole pass, or -1 if unknown.
+	private double stepwisePass(Iterator<Instance> instances, int numLabeled,
+			int dataSize, ExecutorService executor) {
+		double logLikelihood = 0;
+		int numRead = 0;
+		List<Instance> labeled = new ArrayList<Instance>(stepwiseBatchSize);
+		List<Instance> unlabeled = new ArrayList<Instance>();
+		while (instances.hasNext()) {
+			labeled.clear();
+			unlabeled.clear();
+			int batchSize = 0;
+			while (batchSize < stepwiseBatchSize && instances.hasNext()) {
+				if (numRead + batchSize < numLabeled)
+					labeled.add(instances.next());
+				else
+					unlabeled.add(instances.next());
+				batchSize++;
+			}
+			numRead += batchSize;
 
+			ExpectedCounts counts = collectCounts(labeled, true, executor);
+			if (!unlabeled.isEmpty())
+				counts.add(collectCounts(unlabeled, false, executor), 1.0);
+			logLikelihood += counts.logLikelihood;
+
+			double eta = Math.pow(stepwiseUpdates + 2, -stepwiseExponent);
+			if (stepwiseCounts == null || !stepwiseCounts.fits(hmm)) {
+				stepwiseCounts = new ExpectedCounts(hmm);
+				eta = 1.0;
+			}
+			stepwiseCounts.scale(1 - eta);
+			stepwiseCounts.add(counts, eta / batchSize);
+			stepwiseUpdates++;
+
+			stepwiseCounts.incrementEstimators(hmm, dataSize > 0 ? dataSize : numRead);
 			hmm.estimate();
-			iterationCount++;
-			logger.info("HMM finished one iteration of maximizer, i=" + iter);
+		}
+		return logLikelihood;
+	}
 
-			runEvaluators();
+	/**
+	 * Runs forward-backward on every instance, on the executor's threads if
+	 * there is one, and returns the total expected counts.
+	 */
+	private ExpectedCounts collectCounts(final List<Instance> instances,
+			final boolean useTargets, ExecutorService executor) {
+		int n = instances.size();
+		if (executor == null || n < 2)
+			return collectCounts(instances, 0, n, useTargets);
 
-			if (Math.abs(logLikelihood - prevLogLikelihood) < threshold) {
-				converged = true;
-				logger.info("HMM training has converged, i=" + iter);
-				break;
+		int numTasks = Math.min(numThreads, n);
+		List<Callable<ExpectedCounts>> tasks = new ArrayList<Callable<ExpectedCounts>>(numTasks);
+		for (int t = 0; t < numTasks; t++) {
+			final int from = (int) ((long) n * t / numTasks);
+			final int to = (int) ((long) n * (t + 1) / numTasks);
+			tasks.add(new Callable<ExpectedCounts>() {
+				public ExpectedCounts call() {
+					return collectCounts(instances, from, to, useTargets);
+				}
+			});
+		}
+		try {
+			// Merged in order, so the result does not depend on thread timing
+			ExpectedCounts total = null;
+			for (Future<ExpectedCounts> f : executor.invokeAll(tasks)) {
+				if (total == null)
+					total = f.get();
+				else
+					total.add(f.get(), 1.0);
 			}
+			return total;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing expected counts", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Computing expected counts failed", e.getCause());
+		}
+	}
+
+	private ExpectedCounts collectCounts(List<Instance> instances, int from,
+			int to, boolean useTargets) {
+		ExpectedCounts counts = new ExpectedCounts(hmm);
+		for (int i = from; i < to; i++) {
+			Instance inst = instances.get(i);
+			FeatureSequence input = (FeatureSequence) inst.getData();
+			FeatureSequence output = useTargets ? (FeatureSequence) inst.getTarget() : null;
+			counts.logLikelihood += new SumLatticeDefault(hmm, input, output,
+					counts).getTotalWeight();
 		}
+		return counts;
+	}
 
-		return converged;
+	/**
+	 * Expected initial, transition and emission counts of an HMM, gathered
+	 * as an incrementor so that each thread can have its own.
+	 */
+	static class ExpectedCounts implements Transducer.Incrementor {
+		final double[] initial;
+		final double[][] transition; // indexed by source, destination
+		final double[][] emission; // indexed by state, input feature
+		double logLikelihood = 0;
+
+		ExpectedCounts(HMM hmm) {
+			int numStates = hmm.numStates();
+			initial = new double[numStates];
+			transition = new double[numStates][numStates];
+			emission = new double[numStates][hmm.inputAlphabet.size()];
+		}
+
+		boolean fits(HMM hmm) {
+			return initial.length == hmm.numStates();
+		}
+
+		public void incrementFinalState(Transducer.State s, double count) {
+		}
+
+		public void incrementInitialState(Transducer.State s, double count) {
+			initial[s.getIndex()] += count;
+		}
+
+		public void incrementTransition(Transducer.TransitionIterator ti,
+				double count) {
+			int inputFtr = (Integer) ti.getInput();
+			int dest = ti.getDestinationState().getIndex();
+			if (inputFtr >= emission[dest].length)
+				emission[dest] = Arrays.copyOf(emission[dest],
+						Math.max(inputFtr + 1, 2 * emission[dest].length));
+			emission[dest][inputFtr] += count;
+			transition[ti.getSourceState().getIndex()][dest] += count;
+		}
+
+		/** Adds SCALE times the counts of OTHER to these. */
+		void add(ExpectedCounts other, double scale) {
+			for (int i = 0; i < initial.length; i++) {
+				initial[i] += scale * other.initial[i];
+				for (int j = 0; j < initial.length; j++)
+					transition[i][j] += scale * other.transition[i][j];
+				double[] e = other.emission[i];
+				if (e.length > emission[i].length)
+					emission[i] = Arrays.copyOf(emission[i], e.length);
+				for (int f = 0; f < e.length; f++)
+					emission[i][f] += scale * e[f];
+			}
+			logLikelihood += scale * other.logLikelihood;
+		}
+
+		void scale(double factor) {
+			for (int i = 0; i < initial.length; i++) {
+				initial[i] *= factor;
+				for (int j = 0; j < initial.length; j++)
+					transition[i][j] *= factor;
+				for (int f = 0; f < emission[i].length; f++)
+					emission[i][f] *= factor;
+			}
+			logLikelihood *= factor;
+		}
+
+		/** Adds SCALE times these counts to the HMM's estimators. */
+		void incrementEstimators(HMM hmm, double scale) {
+			for (int i = 0; i < initial.length; i++) {
+				String name = hmm.getState(i).getName();
+				if (initial[i] != 0)
+					hmm.initialEstimator.increment(name, scale * initial[i]);
+				for (int j = 0; j < initial.length; j++)
+					if (transition[i][j] != 0)
+						hmm.transitionEstimator[i].increment(hmm.getState(j).getName(),
+								scale * transition[i][j]);
+				for (int f = 0; f < emission[i].length; f++)
+					if (emission[i][f] != 0)
+						hmm.emissionEstimator[i].increment(f, scale * emission[i][f]);
+			}
+		}
 	}
 }
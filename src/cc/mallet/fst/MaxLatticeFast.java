@@ -0,0 +1,333 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.Sequence;
+
+import cc.mallet.fst.Transducer.State;
+import cc.mallet.fst.Transducer.TransitionIterator;
+
+/**
+ * Viterbi decoding into flat primitive arrays, with the n best paths found
+ * in the forward pass ("list Viterbi").  Each node of the lattice keeps the
+ * n best partial paths that reach it, in a bounded list sorted by weight,
+ * together with the state and rank they came from; the n best full paths
+ * are then read off by following those back-pointers.  Unlike
+ * {@link MaxLatticeDefault}, no node objects or search graph are created,
+ * and the arrays can be reused from one sequence to the next through a
+ * {@link Workspace}.
+ * <p>
+ * The best path is the same as that of {@link MaxLatticeDefault},
+ * including how ties are broken.
+ */
+public class MaxLatticeFast implements MaxLattice
+{
+	/**
+	 * Lattice arrays that can be shared by successive lattices on one thread.
+	 * A lattice built in a workspace is only valid until the workspace is
+	 * used for another one.
+	 */
+	public static class Workspace
+	{
+		// Indexed by (ip * numStates + state) * n + rank
+		double[] delta = new double[0];
+		int[] backState = new int[0];
+		int[] backRank = new int[0];
+		Object[] output = new Object[0];
+		// Indexed by ip * numStates + state: the number of ranks filled
+		int[] count = new int[0];
+
+		void ensureCapacity (int numNodes, int n)
+		{
+			if (count.length < numNodes)
+				count = new int[numNodes];
+			int numEntries = numNodes * n;
+			if (delta.length < numEntries) {
+				delta = new double[numEntries];
+				backState = new int[numEntries];
+				backRank = new int[numEntries];
+				output = new Object[numEntries];
+			}
+		}
+	}
+
+	private Transducer t;
+	private Sequence input, providedOutput;
+	private int latticeLength, numStates, n;
+	private Workspace ws;
+	// The n best final entries, as (state, rank) pairs in order of weight
+	private int[] bestState, bestRank;
+	private int numBest;
+
+	public MaxLatticeFast (Transducer t, Sequence inputSequence)
+	{
+		this (t, inputSequence, null, 1);
+	}
+
+	public MaxLatticeFast (Transducer t, Sequence inputSequence, Sequence outputSequence, int n)
+	{
+		this (t, inputSequence, outputSequence, n, new Workspace ());
+	}
+
+	/** Decodes the inputSequence, constrained to match non-null parts of the outputSequence,
+	 * keeping the n best paths, in the arrays of the given workspace. */
+	public MaxLatticeFast (Transducer t, Sequence inputSequence, Sequence outputSequence, int n, Workspace ws)
+	{
+		assert (inputSequence != null);
+		this.t = t;
+		this.input = inputSequence;
+		this.providedOutput = outputSequence;
+		this.ws = ws;
+		forward (Math.max (n, 1));
+	}
+
+	private void forward (int n)
+	{
+		this.n = n;
+		latticeLength = input.size () + 1;
+		numStates = t.numStates ();
+		ws.ensureCapacity (latticeLength * numStates, n);
+		double[] delta = ws.delta;
+		int[] backState = ws.backState, count = ws.count;
+		Arrays.fill (count, 0, latticeLength * numStates, 0);
+
+		for (int i = 0; i < numStates; i++) {
+			double initialWeight = t.getState (i).getInitialWeight ();
+			if (initialWeight > Transducer.IMPOSSIBLE_WEIGHT) {
+				delta[i * n] = initialWeight;
+				backState[i * n] = -1;
+				count[i] = 1;
+			}
+		}
+
+		for (int ip = 0; ip < latticeLength - 1; ip++) {
+			boolean last = (ip == latticeLength - 2);
+			for (int i = 0; i < numStates; i++) {
+				int src = ip * numStates + i;
+				if (count[src] == 0)
+					continue;
+				State s = t.getState (i);
+				TransitionIterator iter = s.transitionIterator (input, ip, providedOutput, ip);
+				while (iter.hasNext ()) {
+					State destination = iter.next ();
+					double weight = iter.getWeight ();
+					if (last)
+						weight += destination.getFinalWeight ();
+					int dest = (ip + 1) * numStates + destination.getIndex ();
+					Object out = iter.getOutput ();
+					// Source entries are in decreasing order, so stop at the first that does not fit
+					for (int r = 0; r < count[src]; r++)
+						if (!insert (dest, delta[src * n + r] + weight, i, r, out))
+							break;
+				}
+			}
+		}
+
+		// Merge the final entries of all states
+		bestState = new int[n];
+		bestRank = new int[n];
+		double[] bestDelta = new double[n];
+		numBest = 0;
+		int end = (latticeLength - 1) * numStates;
+		for (int i = 0; i < numStates; i++)
+			for (int r = 0; r < count[end + i]; r++) {
+				double d = delta[(end + i) * n + r];
+				int pos = numBest;
+				while (pos > 0 && d > bestDelta[pos - 1])
+					pos--;
+				if (pos == n)
+					break;
+				int stop = Math.min (numBest, n - 1);
+				for (int q = stop; q > pos; q--) {
+					bestDelta[q] = bestDelta[q - 1];
+					bestState[q] = bestState[q - 1];
+					bestRank[q] = bestRank[q - 1];
+				}
+				bestDelta[pos] = d;
+				bestState[pos] = i;
+				bestRank[pos] = r;
+				if (numBest < n)
+					numBest++;
+			}
+	}
+
+	// Puts a partial path into the bounded, decreasing list of NODE, after any
+	// of equal weight.  Returns false if it does not fit.
+	private boolean insert (int node, double weight, int prevState, int prevRank, Object out)
+	{
+		if (!(weight > Transducer.IMPOSSIBLE_WEIGHT))
+			return false;
+		double[] delta = ws.delta;
+		int c = ws.count[node];
+		int base = node * n;
+		int pos = c;
+		while (pos > 0 && weight > delta[base + pos - 1])
+			pos--;
+		if (pos == n)
+			return false;
+		int stop = Math.min (c, n - 1);
+		for (int q = stop; q > pos; q--) {
+			delta[base + q] = delta[base + q - 1];
+			ws.backState[base + q] = ws.backState[base + q - 1];
+			ws.backRank[base + q] = ws.backRank[base + q - 1];
+			ws.output[base + q] = ws.output[base + q - 1];
+		}
+		delta[base + pos] = weight;
+		ws.backState[base + pos] = prevState;
+		ws.backRank[base + pos] = prevRank;
+		ws.output[base + pos] = out;
+		if (c < n)
+			ws.count[node] = c + 1;
+		return true;
+	}
+
+	private void ensureBest (int k)
+	{
+		if (k > n)
+			forward (k);
+	}
+
+	/** Returns the number of complete paths found, at most the number requested. */
+	public int numPaths (int k)
+	{
+		ensureBest (k);
+		return Math.min (k, numBest);
+	}
+
+	public Transducer getTransducer () { return t; }
+	public Sequence getInput () { return input; }
+	public Sequence getProvidedOutput () { return providedOutput; }
+
+	public double getDelta (int ip, int stateIndex)
+	{
+		int node = ip * numStates + stateIndex;
+		return ws.count[node] == 0 ? Transducer.IMPOSSIBLE_WEIGHT : ws.delta[node * n];
+	}
+
+	/** Returns the weight of the k-th best path, counting from 0. */
+	public double bestWeight (int k)
+	{
+		ensureBest (k + 1);
+		return ws.delta[((latticeLength - 1) * numStates + bestState[k]) * n + bestRank[k]];
+	}
+
+	public double bestWeight ()
+	{
+		return bestWeight (0);
+	}
+
+	/** Copies the outputs of the k-th best path into OUTPUTS, and its
+	 * states, starting with the initial state, into STATES, when not null. */
+	private void backtrack (int k, Object[] outputs, State[] states)
+	{
+		int state = bestState[k], rank = bestRank[k];
+		for (int ip = latticeLength - 1; ip > 0; ip--) {
+			int e = (ip * numStates + state) * n + rank;
+			if (outputs != null)
+				outputs[ip - 1] = ws.output[e];
+			if (states != null)
+				states[ip] = t.getState (state);
+			state = ws.backState[e];
+			rank = ws.backRank[e];
+		}
+		if (states != null)
+			states[0] = t.getState (state);
+	}
+
+	public Sequence<Object> bestOutputSequence ()
+	{
+		if (numBest == 0)
+			throw new IllegalStateException ("No path through the lattice");
+		Object[] outputs = new Object[latticeLength - 1];
+		backtrack (0, outputs, null);
+		return new ArraySequence<Object> (outputs, false);
+	}
+
+	/** Returns the n best output sequences, or fewer if there are not that many paths. */
+	public List<Sequence<Object>> bestOutputSequences (int k)
+	{
+		int m = numPaths (k);
+		List<Sequence<Object>> ret = new ArrayList<Sequence<Object>> (m);
+		for (int i = 0; i < m; i++) {
+			Object[] outputs = new Object[latticeLength - 1];
+			backtrack (i, outputs, null);
+			ret.add (new ArraySequence<Object> (outputs, false));
+		}
+		return ret;
+	}
+
+	public Sequence<State> bestStateSequence ()
+	{
+		if (numBest == 0)
+			throw new IllegalStateException ("No path through the lattice");
+		State[] states = new State[latticeLength];
+		backtrack (0, null, states);
+		return new ArraySequence<State> (states, false);
+	}
+
+	public List<Sequence<State>> bestStateSequences (int k)
+	{
+		int m = numPaths (k);
+		List<Sequence<State>> ret = new ArrayList<Sequence<State>> (m);
+		for (int i = 0; i < m; i++) {
+			State[] states = new State[latticeLength];
+			backtrack (i, null, states);
+			ret.add (new ArraySequence<State> (states, false));
+		}
+		return ret;
+	}
+
+	public double elementwiseAccuracy (Sequence referenceOutput)
+	{
+		int accuracy = 0;
+		Sequence output = bestOutputSequence ();
+		assert (referenceOutput.size () == output.size ());
+		for (int i = 0; i < output.size (); i++)
+			if (referenceOutput.get (i).toString ().equals (output.get (i).toString ()))
+				accuracy++;
+		return ((double)accuracy)/output.size ();
+	}
+
+
+	public static class Factory extends MaxLatticeFactory implements Serializable
+	{
+		int n;
+
+		public Factory () { this (1); }
+
+		/** Makes lattices that find the n best paths in their forward pass. */
+		public Factory (int n) { this.n = n; }
+
+		public MaxLattice newMaxLattice (Transducer trans, Sequence inputSequence, Sequence outputSequence)
+		{
+			return new MaxLatticeFast (trans, inputSequence, outputSequence, n);
+		}
+
+		private static final long serialVersionUID = 1;
+		private static final int CURRENT_SERIAL_VERSION = 0;
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.writeInt(CURRENT_SERIAL_VERSION);
+			out.writeInt(n);
+		}
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.readInt();
+			n = in.readInt();
+		}
+	}
+
+}
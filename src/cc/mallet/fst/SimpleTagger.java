@@ -16,6 +16,7 @@ import java.io.ObjectOutputStream;
 import java.io.Reader;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -28,6 +29,7 @@ import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
 import cc.mallet.types.LabelAlphabet;
 import cc.mallet.types.LabelSequence;
+import cc.mallet.types.MappedInstanceList;
 import cc.mallet.types.Sequence;
 
 import cc.mallet.pipe.Pipe;
@@ -246,7 +248,12 @@ public class SimpleTagger
   
   private static final CommandOption.Integer numThreads = new CommandOption.Integer(
       SimpleTagger.class, "threads", "INTEGER", true, 1,
-      "Number of threads to use for CRF training.", null);
+      "Number of threads to use for CRF training, and for decoding when applying a model.", null);
+
+  private static final CommandOption.File writeVectorsOption = new CommandOption.File(
+      SimpleTagger.class, "write-vectors", "FILENAME", true, null,
+      "Write the training data, after piping, to this file in the memory-mapped format of "+
+      "MappedInstanceList.  Data files in that format are mapped instead of being read as text.", null);
 
   private static final CommandOption.List commandOptions =
     new CommandOption.List (
@@ -271,7 +278,8 @@ public class SimpleTagger
           cacheSizeOption,
           includeInputOption,
           featureInductionOption,
-          numThreads
+          numThreads,
+          writeVectorsOption
         });
 
   /**
@@ -433,6 +441,95 @@ public class SimpleTagger
     return answers;
   }
 
+  /**
+   * Prints the answers for one input sequence, one token per line.
+   */
+  private static void printOutputs(int index, Sequence input, Sequence[] outputs,
+      boolean includeInput)
+  {
+    int k = outputs.length;
+    boolean error = false;
+    if (k == 0) {
+      logger.info("Failed to decode input sequence " + index);
+      error = true;
+    }
+    for (int a = 0; a < k; a++) {
+      if (outputs[a].size() != input.size()) {
+        logger.info("Failed to decode input sequence " + index + ", answer " + a);
+        error = true;
+      }
+    }
+    if (!error) {
+      for (int j = 0; j < input.size(); j++)
+      {
+        StringBuffer buf = new StringBuffer();
+        for (int a = 0; a < k; a++)
+          buf.append(outputs[a].get(j).toString()).append(" ");
+        if (includeInput) {
+          FeatureVector fv = (FeatureVector)input.get(j);
+          buf.append(fv.toString(true));
+        }
+        System.out.println(buf.toString());
+      }
+      System.out.println();
+    }
+  }
+
+  /**
+   * Reads tagger input from a file, either as text through the given
+   * pipe, or by mapping it if it was written with <code>--write-vectors</code>.
+   *
+   * @param p the pipe for text input, whose alphabets a mapped file must agree with
+   * @param keepMappedPipe if true, a mapped file is returned with the pipe and
+   *   alphabets it was written with, without comparing them to <code>p</code>.
+   *   Use this only when <code>p</code> is a new pipe that will be replaced.
+   * @exception IllegalArgumentException if a mapped file indexes its features
+   *   or labels differently from <code>p</code>
+   */
+  public static InstanceList readData (Pipe p, File file, boolean keepMappedPipe)
+    throws java.io.IOException
+  {
+    if (MappedInstanceList.isMappedFile(file)) {
+      InstanceList data = MappedInstanceList.load(file);
+      if (!keepMappedPipe) {
+        checkAlphabet("feature", file, data.getDataAlphabet(), p.getDataAlphabet());
+        checkAlphabet("label", file, data.getTargetAlphabet(), p.getTargetAlphabet());
+      }
+      return data;
+    }
+    InstanceList data = new InstanceList(p);
+    Reader reader = new FileReader(file);
+    data.addThruPipe(
+        new LineGroupIterator(reader,
+          Pattern.compile("^\\s*$"), true));
+    reader.close();
+    return data;
+  }
+
+  /**
+   * A mapped file may be used with a pipe whose alphabet has grown since the
+   * file was written, but every entry of the file's alphabet must have the
+   * same index in the pipe's.
+   */
+  private static void checkAlphabet (String what, File file, Alphabet mapped, Alphabet current)
+  {
+    if (mapped == current)
+      return;
+    if (mapped == null || current == null)
+      throw new IllegalArgumentException("Mapped file " + file + " has " +
+          (mapped == null ? "no " : "a ") + what + " alphabet, but the pipe " +
+          (current == null ? "does not" : "does"));
+    if (mapped.size() > current.size())
+      throw new IllegalArgumentException("Mapped file " + file + " has " + mapped.size() +
+          " " + what + "s, but the pipe has only " + current.size());
+    for (int i = 0; i < mapped.size(); i++) {
+      if (!mapped.lookupObject(i).equals(current.lookupObject(i)))
+        throw new IllegalArgumentException("Mapped file " + file + " has " + what + " " + i +
+            " \"" + mapped.lookupObject(i) + "\", but in the pipe it is \"" +
+            current.lookupObject(i) + "\"");
+    }
+  }
+
   /**
    * Command-line wrapper to train, test, or run a generic CRF-based tagger.
    *
@@ -475,7 +572,9 @@ public class SimpleTagger
    *<dt><code>--include-input</code> <em>boolean</em></dt>
    *<dd>Whether to include input features when printing decoding output. Default is <code>false</code>.</dd>
    *<dt><code>--threads</code> <em>positive-integer</em></dt>
-   *<dd>Number of threads for CRF training. Default is 1.</dd>
+   *<dd>Number of threads for CRF training, and for decoding when applying a model. Default is 1.</dd>
+   *<dt><code>--write-vectors</code> <em>filename</em></dt>
+   *<dd>Write the training data, after piping, to this file in the memory-mapped format of <code>MappedInstanceList</code>. Data files in that format are mapped instead of being read as text. Default is null.</dd>
    *</dl>
    * Remaining arguments:
    *<ul>
@@ -489,7 +588,7 @@ public class SimpleTagger
    */
   public static void main (String[] args) throws Exception
   {
-    Reader trainingFile = null, testFile = null;
+    File trainingFile = null, testFile = null;
     InstanceList trainingData = null, testData = null;
     int numEvaluations = 0;
     int iterationsBetweenEvals = 16;
@@ -501,11 +600,11 @@ public class SimpleTagger
     }
     if (trainOption.value)
     {
-      trainingFile = new FileReader(new File(args[restArgs]));
+      trainingFile = new File(args[restArgs]);
       if (testOption.value != null && restArgs < args.length - 1)
-        testFile = new FileReader(new File(args[restArgs+1]));
+        testFile = new File(args[restArgs+1]);
     } else 
-      testFile = new FileReader(new File(args[restArgs]));
+      testFile = new File(args[restArgs]);
 
     Pipe p = null;
     CRF crf = null;
@@ -531,20 +630,21 @@ public class SimpleTagger
     if (trainOption.value)
     {
       p.setTargetProcessing(true);
-      trainingData = new InstanceList(p);
-      trainingData.addThruPipe(
-          new LineGroupIterator(trainingFile,
-            Pattern.compile("^\\s*$"), true));
+      trainingData = readData(p, trainingFile, crf == null);
+      if (trainingData instanceof MappedInstanceList && crf == null) {
+        // The mapped file carries the pipe and alphabets it was written with
+        p = trainingData.getPipe();
+        p.getTargetAlphabet().lookupIndex(defaultOption.value);
+      }
+      if (writeVectorsOption.value != null)
+        MappedInstanceList.save(trainingData, writeVectorsOption.value);
       logger.info
         ("Number of features in training data: "+p.getDataAlphabet().size());
       if (testOption.value != null)
       {
         if (testFile != null)
         {
-          testData = new InstanceList(p);
-          testData.addThruPipe(
-              new LineGroupIterator(testFile,
-                Pattern.compile("^\\s*$"), true));
+          testData = readData(p, testFile, false);
         } else
         {
           Random r = new Random (randomSeedOption.value);
@@ -559,17 +659,11 @@ public class SimpleTagger
     } else if (testOption.value != null)
     {
       p.setTargetProcessing(true);
-      testData = new InstanceList(p);
-      testData.addThruPipe(
-          new LineGroupIterator(testFile,
-            Pattern.compile("^\\s*$"), true));
+      testData = readData(p, testFile, false);
     } else
     {
       p.setTargetProcessing(false);
-      testData = new InstanceList(p);
-      testData.addThruPipe(
-          new LineGroupIterator(testFile,
-            Pattern.compile("^\\s*$"), true));
+      testData = readData(p, testFile, false);
     }
     logger.info ("Number of predicates: "+p.getDataAlphabet().size());
     
@@ -658,31 +752,28 @@ public class SimpleTagger
       else
       {
         boolean includeInput = includeInputOption.value();
-        for (int i = 0; i < testData.size(); i++)
+        if (numThreads.value > 1)
         {
-          Sequence input = (Sequence)testData.get(i).getData();
-          Sequence[] outputs = apply(crf, input, nBestOption.value);
-          int k = outputs.length;
-          boolean error = false;
-          for (int a = 0; a < k; a++) {
-            if (outputs[a].size() != input.size()) {
-              logger.info("Failed to decode input sequence " + i + ", answer " + a);
-              error = true;
-            }
+          // Decode in blocks, so that output starts before all input is decoded
+          int blockSize = 1000 * numThreads.value;
+          for (int start = 0; start < testData.size(); start += blockSize)
+          {
+            int end = Math.min(start + blockSize, testData.size());
+            List<Sequence> inputs = new ArrayList<Sequence>(end - start);
+            for (int i = start; i < end; i++)
+              inputs.add((Sequence)testData.get(i).getData());
+            List<Sequence[]> outputs =
+              crf.transduce(inputs, nBestOption.value, numThreads.value);
+            for (int i = start; i < end; i++)
+              printOutputs(i, inputs.get(i - start), outputs.get(i - start), includeInput);
           }
-          if (!error) {
-            for (int j = 0; j < input.size(); j++)
-            {
-               StringBuffer buf = new StringBuffer();
-              for (int a = 0; a < k; a++)
-                 buf.append(outputs[a].get(j).toString()).append(" ");
-              if (includeInput) {
-                FeatureVector fv = (FeatureVector)input.get(j);
-                buf.append(fv.toString(true));                
-              }
-              System.out.println(buf.toString());
-            }
-            System.out.println();
+        }
+        else
+        {
+          for (int i = 0; i < testData.size(); i++)
+          {
+            Sequence input = (Sequence)testData.get(i).getData();
+            printOutputs(i, input, apply(crf, input, nBestOption.value), includeInput);
           }
         }
       }
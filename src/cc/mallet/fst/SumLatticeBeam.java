@@ -12,6 +12,7 @@ import cc.mallet.types.LabelVector;
 import cc.mallet.types.MatrixOps;
 import cc.mallet.types.Sequence;
 import cc.mallet.types.SequencePair;
+import cc.mallet.util.LogSumExp;
 import cc.mallet.util.MalletLogger;
 
 
@@ -211,6 +212,10 @@ public class SumLatticeBeam implements SumLattice  // CPAL - like Lattice but us
 			curBeamWidth = beamWidth;
 		}
 
+		// Incoming weights of each column, summed once all sources are done
+		LogSumExp.Accumulator terms = new LogSumExp.Accumulator (numStates);
+		double[] column = new double[numStates];
+
 		// ************************************************************
 		for (int ip = 0; ip < latticeLength-1; ip++) {
 
@@ -288,6 +293,7 @@ public class SumLatticeBeam implements SumLattice  // CPAL - like Lattice but us
 			// - done contemplation
 
 			//for (int i = 0; i < numStates; i++) {
+			terms.clear();
 			for(int jj=0 ; jj< nstatesExpl[ip]; jj++) {
 
 				int i = slists[ip].getPosByIndex(jj);
@@ -319,29 +325,32 @@ public class SumLatticeBeam implements SumLattice  // CPAL - like Lattice but us
 					double transitionWeight = iter.getWeight();
 					if (logger.isLoggable (Level.FINE))
 						logger.fine ("transitionWeight="+transitionWeight
-								+" nodes["+ip+"]["+i+"].alpha="+nodes[ip][i].alpha
-								+" destinationNode.alpha="+destinationNode.alpha);
-					destinationNode.alpha = Transducer.sumLogProb (destinationNode.alpha,
-							nodes[ip][i].alpha + transitionWeight);
-					//System.out.println ("destinationNode.alpha <- "+destinationNode.alpha);
+								+" nodes["+ip+"]["+i+"].alpha="+nodes[ip][i].alpha);
+					terms.add (destination.getIndex(), nodes[ip][i].alpha + transitionWeight);
 				}
 			}
+			for (int j = 0; j < numStates; j++)
+				column[j] = Transducer.IMPOSSIBLE_WEIGHT;
+			terms.sumInto (column);
+			for (int j = 0; j < numStates; j++)
+				if (nodes[ip+1][j] != null)
+					nodes[ip+1][j].alpha = column[j];
 		}
 
 		//System.out.println("Mean Nodes Explored: " + MatrixOps.mean(nstatesExpl));
 		curAvgNstatesExpl = MatrixOps.mean(nstatesExpl);
 
 		// Calculate total cost of Lattice.  This is the normalizer
-		weight = Transducer.IMPOSSIBLE_WEIGHT;
+		terms.clear();
 		for (int i = 0; i < numStates; i++)
 			if (nodes[latticeLength-1][i] != null) {
 				// Note: actually we could sum at any ip index,
 				// the choice of latticeLength-1 is arbitrary
 				//System.out.println ("Ending alpha, state["+i+"] = "+nodes[latticeLength-1][i].alpha);
 				//System.out.println ("Ending beta,  state["+i+"] = "+t.getState(i).finalWeight);
-				weight = Transducer.sumLogProb (weight,
-						(nodes[latticeLength-1][i].alpha + t.getState(i).getFinalWeight()));
+				terms.add (nodes[latticeLength-1][i].alpha + t.getState(i).getFinalWeight());
 			}
+		weight = terms.sum();
 		// Weight is now an "unnormalized weight" of the entire Lattice
 		//assert (weight >= 0) : "weight = "+weight;
 
@@ -376,6 +385,7 @@ public class SumLatticeBeam implements SumLattice  // CPAL - like Lattice but us
 					continue;
 				State s = t.getState(i);
 				TransitionIterator iter = s.transitionIterator (input, ip, output, ip);
+				terms.clear();
 				while (iter.hasNext()) {
 					State destination = iter.nextState();
 					if (logger.isLoggable (Level.FINE))
@@ -388,13 +398,9 @@ public class SumLatticeBeam implements SumLattice  // CPAL - like Lattice but us
 						double transitionWeight = iter.getWeight();
 						assert (!Double.isNaN(transitionWeight));
 						//							assert (transitionWeight >= 0);  Not necessarily
-						double oldBeta = nodes[ip][i].beta;
-						assert (!Double.isNaN(nodes[ip][i].beta));
-						nodes[ip][i].beta = Transducer.sumLogProb (nodes[ip][i].beta,
-								destinationNode.beta + transitionWeight);
-						assert (!Double.isNaN(nodes[ip][i].beta))
-						: "dest.beta="+destinationNode.beta+" trans="+transitionWeight+" sum="+(destinationNode.beta+transitionWeight)
-						+ " oldBeta="+oldBeta;
+						assert (!Double.isNaN(destinationNode.beta + transitionWeight))
+						: "dest.beta="+destinationNode.beta+" trans="+transitionWeight;
+						terms.add (destinationNode.beta + transitionWeight);
 						double xi = nodes[ip][i].alpha + transitionWeight + nodes[ip+1][j].beta - weight;
 						if (saveXis) xis[ip][i][j] = xi;
 						assert (!Double.isNaN(nodes[ip][i].alpha));
@@ -416,20 +422,23 @@ public class SumLatticeBeam implements SumLattice  // CPAL - like Lattice but us
 						}
 					}
 				}
+				nodes[ip][i].beta = terms.sum();
+				assert (!Double.isNaN(nodes[ip][i].beta));
 				gammas[ip][i] = nodes[ip][i].alpha + nodes[ip][i].beta - weight;
 			}
 
 			if(true){
 				// CPAL - check the normalization
-				double checknorm = Transducer.IMPOSSIBLE_WEIGHT;
+				terms.clear();
 				for (int i = 0; i < numStates; i++)
 					if (nodes[ip][i] != null) {
 						// Note: actually we could sum at any ip index,
 						// the choice of latticeLength-1 is arbitrary
 						//System.out.println ("Ending alpha, state["+i+"] = "+nodes[latticeLength-1][i].alpha);
 						//System.out.println ("Ending beta,  state["+i+"] = "+t.getState(i).finalWeight);
-						checknorm = Transducer.sumLogProb (checknorm, gammas[ip][i]);
+						terms.add (gammas[ip][i]);
 					}
+				double checknorm = terms.sum();
 				// System.out.println ("Check Gamma, sum="+checknorm);
 				// CPAL - done check of normalization
 
@@ -0,0 +1,144 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.util.Random;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.util.LogSumExp;
+import cc.mallet.util.Maths;
+
+/**
+ * Times log-space sums, alone and in forward-backward over a fully
+ * connected CRF with random weights, with the exact and the approximate
+ * exponential of {@link LogSumExp}, and compares forward-backward in
+ * probability space by {@link SumLatticeScaling}.
+ * <p>
+ * Usage: SumLatticeBenchmark [numLabels [sequenceLength [numSequences]]]
+ */
+public class SumLatticeBenchmark
+{
+	public static void main (String[] args)
+	{
+		int numLabels = (args.length > 0) ? Integer.parseInt (args[0]) : 45;
+		int length = (args.length > 1) ? Integer.parseInt (args[1]) : 30;
+		int numSequences = (args.length > 2) ? Integer.parseInt (args[2]) : 200;
+		int numFeatures = 1000, featuresPerToken = 20;
+		Random r = new Random (1);
+
+		// Column sums: pairwise against the kernel
+		double[] vals = new double[numLabels];
+		for (int i = 0; i < vals.length; i++)
+			vals[i] = r.nextGaussian () * 5;
+		int reps = 20000000 / numLabels;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime ();
+			double check = 0;
+			for (int rep = 0; rep < reps; rep++) {
+				double sum = Transducer.IMPOSSIBLE_WEIGHT;
+				for (int i = 0; i < vals.length; i++)
+					sum = Transducer.sumLogProb (sum, vals[i]);
+				check += sum;
+			}
+			report (pass, "pairwise sumLogProb", start, reps * (long) numLabels, check);
+			for (int mode = 0; mode < 2; mode++) {
+				start = System.nanoTime ();
+				check = 0;
+				for (int rep = 0; rep < reps; rep++)
+					check += LogSumExp.sum (vals, vals.length, mode == 1);
+				report (pass, "LogSumExp.sum, " + (mode == 1 ? "approximate" : "exact"), start, reps * (long) numLabels, check);
+			}
+			start = System.nanoTime ();
+			check = 0;
+			for (int rep = 0; rep < reps; rep++)
+				check += Maths.sumLogProb (vals);
+			report (pass, "Maths.sumLogProb(double[])", start, reps * (long) numLabels, check);
+		}
+
+		// Forward-backward on a fully connected CRF
+		Alphabet inputs = new Alphabet ();
+		for (int f = 0; f < numFeatures; f++)
+			inputs.lookupIndex ("f" + f);
+		Alphabet outputs = new Alphabet ();
+		for (int l = 0; l < numLabels; l++)
+			outputs.lookupIndex ("L" + l);
+		CRF crf = new CRF (inputs, outputs);
+		crf.addFullyConnectedStatesForLabels ();
+		crf.setWeightsDimensionDensely ();
+		double[] params = new double[crf.getParameters ().getNumFactors ()];
+		for (int i = 0; i < params.length; i++)
+			params[i] = r.nextGaussian ();
+		crf.getParameters ().setParameters (params);
+
+		FeatureVectorSequence[] seqs = new FeatureVectorSequence[numSequences];
+		for (int s = 0; s < numSequences; s++) {
+			FeatureVector[] fvs = new FeatureVector[length];
+			for (int ip = 0; ip < length; ip++) {
+				int[] feats = new int[featuresPerToken];
+				for (int k = 0; k < featuresPerToken; k++)
+					feats[k] = r.nextInt (numFeatures);
+				java.util.Arrays.sort (feats);
+				fvs[ip] = new FeatureVector (inputs, feats);
+			}
+			seqs[s] = new FeatureVectorSequence (fvs);
+		}
+
+		// Expectations as in training, so that every lattice runs its backward pass
+		CRF.Factors expectations = new CRF.Factors (crf.getParameters ());
+		for (int pass = 0; pass < 2; pass++) {
+			for (int mode = 0; mode < 3; mode++) {
+				SumLatticeFactory factory = (mode == 2) ? (SumLatticeFactory) new SumLatticeScaling.Factory ()
+						: new SumLatticeDefault.Factory (mode == 1);
+				expectations.zero ();
+				long start = System.nanoTime ();
+				double check = 0;
+				for (int s = 0; s < numSequences; s++)
+					check += factory.newSumLattice (crf, seqs[s], expectations.new Incrementor ()).getTotalWeight ();
+				long ns = System.nanoTime () - start;
+				if (pass > 0)
+					System.out.println (modeName (mode) + ": "
+							+ (ns / 1e6 / numSequences) + " ms per sequence of " + length
+							+ " with " + numLabels + " states  (checksum " + check
+							+ ", expectations norm " + expectations.getParametersAbsNorm () + ")");
+			}
+		}
+
+		// Largest differences from the log-space lattice
+		double maxWeightDiff = 0, maxGammaDiff = 0;
+		for (int s = 0; s < numSequences; s++) {
+			SumLattice exact = new SumLatticeDefault (crf, seqs[s]);
+			SumLattice scaled = new SumLatticeScaling (crf, seqs[s]);
+			maxWeightDiff = Math.max (maxWeightDiff, Math.abs (exact.getTotalWeight () - scaled.getTotalWeight ()));
+			double[][] g1 = exact.getGammas (), g2 = scaled.getGammas ();
+			for (int ip = 0; ip < g1.length; ip++)
+				for (int i = 0; i < g1[ip].length; i++)
+					maxGammaDiff = Math.max (maxGammaDiff, Math.abs (Math.exp (g1[ip][i]) - Math.exp (g2[ip][i])));
+		}
+		System.out.println ("SumLatticeScaling vs SumLatticeDefault: largest total weight difference "
+				+ maxWeightDiff + ", largest gamma probability difference " + maxGammaDiff);
+	}
+
+	private static String modeName (int mode)
+	{
+		switch (mode) {
+		case 0: return "SumLatticeDefault, exact";
+		case 1: return "SumLatticeDefault, approximate";
+		default: return "SumLatticeScaling";
+		}
+	}
+
+	private static void report (int pass, String name, long start, long terms, double check)
+	{
+		// The first pass only warms up the JIT
+		if (pass == 0) return;
+		double ns = System.nanoTime () - start;
+		System.out.println (name + ": " + (ns / terms) + " ns per term  (checksum " + check + ")");
+	}
+}
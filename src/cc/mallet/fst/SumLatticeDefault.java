@@ -14,6 +14,7 @@ import cc.mallet.types.LabelAlphabet;
 import cc.mallet.types.LabelVector;
 import cc.mallet.types.MatrixOps;
 import cc.mallet.types.Sequence;
+import cc.mallet.util.LogSumExp;
 import cc.mallet.util.MalletLogger;
 
 /** Default, full dynamic programming implementation of the Forward-Backward "Sum-(Product)-Lattice" algorithm */
@@ -93,6 +94,13 @@ public class SumLatticeDefault implements SumLattice
 	// probability distribution over possible outputs at that time
 	// index
 	public SumLatticeDefault (Transducer trans, Sequence input, Sequence output, Transducer.Incrementor incrementor, boolean saveXis, LabelAlphabet outputAlphabet)
+	{
+		this (trans, input, output, incrementor, saveXis, outputAlphabet, false);
+	}
+
+	// If approximateExp is true, the log-space sums of this lattice use the
+	// approximate exponential of LogSumExp, whose relative error is below 1e-13
+	public SumLatticeDefault (Transducer trans, Sequence input, Sequence output, Transducer.Incrementor incrementor, boolean saveXis, LabelAlphabet outputAlphabet, boolean approximateExp)
 	{
 		assert (output == null || input.size() == output.size());
 		if (false && logger.isLoggable (Level.FINE)) {
@@ -151,7 +159,12 @@ public class SumLatticeDefault implements SumLattice
 		if (atLeastOneInitialState == false)
 			logger.warning ("There are no starting states!");
 
-		for (int ip = 0; ip < latticeLength-1; ip++)
+		// The incoming weights of each column are collected, and each destination's
+		// alpha is then computed with a single log-sum-exp
+		LogSumExp.Accumulator terms = new LogSumExp.Accumulator (numStates, approximateExp);
+		double[] column = new double[numStates];
+		for (int ip = 0; ip < latticeLength-1; ip++) {
+			terms.clear();
 			for (int i = 0; i < numStates; i++) {
 				if (nodes[ip][i] == null || nodes[ip][i].alpha == Transducer.IMPOSSIBLE_WEIGHT)
 					// xxx if we end up doing this a lot,
@@ -171,15 +184,18 @@ public class SumLatticeDefault implements SumLattice
 					LatticeNode destinationNode = getLatticeNode (ip+1, destination.getIndex());
 					destinationNode.output = iter.getOutput();
 					double transitionWeight = iter.getWeight();
+					terms.add (destination.getIndex(), nodes[ip][i].alpha + transitionWeight);
 					if (logger.isLoggable (Level.FINE))
-						logger.fine ("BEFORE update: destinationNode.alpha="+destinationNode.alpha);
-					destinationNode.alpha = Transducer.sumLogProb (destinationNode.alpha,	nodes[ip][i].alpha + transitionWeight);
-					if (logger.isLoggable (Level.FINE))
-						logger.fine ("transitionWeight="+transitionWeight+" nodes["+ip+"]["+i+"].alpha="+nodes[ip][i].alpha
-								+" destinationNode.alpha="+destinationNode.alpha);
-					//System.out.println ("destinationNode.alpha <- "+destinationNode.alpha);
+						logger.fine ("transitionWeight="+transitionWeight+" nodes["+ip+"]["+i+"].alpha="+nodes[ip][i].alpha);
 				}
 			}
+			for (int j = 0; j < numStates; j++)
+				column[j] = Transducer.IMPOSSIBLE_WEIGHT;
+			terms.sumInto (column);
+			for (int j = 0; j < numStates; j++)
+				if (nodes[ip+1][j] != null)
+					nodes[ip+1][j].alpha = column[j];
+		}
 		
 		if (logger.isLoggable (Level.FINE)) {
 			logger.fine("Forward Lattice:");
@@ -193,13 +209,14 @@ public class SumLatticeDefault implements SumLattice
 
 		
 		// Calculate total weight of Lattice.  This is the normalizer
-		totalWeight = Transducer.IMPOSSIBLE_WEIGHT;
+		terms.clear();
 		for (int i = 0; i < numStates; i++)
 			if (nodes[latticeLength-1][i] != null) {
 				//System.out.println ("Ending alpha, state["+i+"] = "+nodes[latticeLength-1][i].alpha);
 				//System.out.println ("Ending beta,  state["+i+"] = "+t.getState(i).getFinalWeight());
-				totalWeight = Transducer.sumLogProb (totalWeight,	(nodes[latticeLength-1][i].alpha + t.getState(i).getFinalWeight()));
+				terms.add (nodes[latticeLength-1][i].alpha + t.getState(i).getFinalWeight());
 			}
+		totalWeight = terms.sum();
 		logger.fine ("totalWeight="+totalWeight);
 		// totalWeight is now an "unnormalized weight" of the entire Lattice
 
@@ -235,6 +252,7 @@ public class SumLatticeDefault implements SumLattice
 					continue;
 				State s = t.getState(i);
 				TransitionIterator iter = s.transitionIterator (input, ip, output, ip);
+				terms.clear();
 				while (iter.hasNext()) {
 					State destination = iter.nextState();
 					if (logger.isLoggable (Level.FINE))
@@ -244,11 +262,9 @@ public class SumLatticeDefault implements SumLattice
 					if (destinationNode != null) {
 						double transitionWeight = iter.getWeight();
 						assert (!Double.isNaN(transitionWeight));
-						double oldBeta = nodes[ip][i].beta;
-						assert (!Double.isNaN(nodes[ip][i].beta));
-						nodes[ip][i].beta = Transducer.sumLogProb (nodes[ip][i].beta,	destinationNode.beta + transitionWeight);
-						assert (!Double.isNaN(nodes[ip][i].beta))
-						: "dest.beta="+destinationNode.beta+" trans="+transitionWeight+" sum="+(destinationNode.beta+transitionWeight)	+ " oldBeta="+oldBeta;
+						assert (!Double.isNaN(destinationNode.beta + transitionWeight))
+						: "dest.beta="+destinationNode.beta+" trans="+transitionWeight;
+						terms.add (destinationNode.beta + transitionWeight);
 						double xi = nodes[ip][i].alpha + transitionWeight + nodes[ip+1][j].beta - totalWeight;
 						if (saveXis) xis[ip][i][j] = xi;
 						assert (!Double.isNaN(nodes[ip][i].alpha));
@@ -273,6 +289,8 @@ public class SumLatticeDefault implements SumLattice
 						}
 					}
 				}
+				nodes[ip][i].beta = terms.sum();
+				assert (!Double.isNaN(nodes[ip][i].beta));
 				gammas[ip][i] = nodes[ip][i].alpha + nodes[ip][i].beta - totalWeight;
 			}
 		}
@@ -394,20 +412,37 @@ public class SumLatticeDefault implements SumLattice
 	
 	public static class Factory extends SumLatticeFactory implements Serializable
 	{
+		boolean approximateExp;
+
+		public Factory ()
+		{
+			this (false);
+		}
+
+		// If approximateExp is true, the lattices this factory creates use the
+		// approximate exponential of LogSumExp
+		public Factory (boolean approximateExp)
+		{
+			this.approximateExp = approximateExp;
+		}
+
 		public SumLattice newSumLattice (Transducer trans, Sequence input, Sequence output, 
 				Transducer.Incrementor incrementor, boolean saveXis, LabelAlphabet outputAlphabet)
 		{
-			return new SumLatticeDefault (trans, input, output, incrementor, saveXis, outputAlphabet);
+			return new SumLatticeDefault (trans, input, output, incrementor, saveXis, outputAlphabet, approximateExp);
 		}
 
 		private static final long serialVersionUID = 1;
-		private static final int CURRENT_SERIAL_VERSION = 1;
+		private static final int CURRENT_SERIAL_VERSION = 2;
 
 		private void writeObject(ObjectOutputStream out) throws IOException {
 			out.writeInt(CURRENT_SERIAL_VERSION);
+			out.writeBoolean(approximateExp);
 		}
 		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 			int version = in.readInt();
+			if (version >= 2)
+				approximateExp = in.readBoolean();
 		}
 
 	}
@@ -5,16 +5,36 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.logging.Level;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import cc.mallet.fst.Transducer.State;
 import cc.mallet.fst.Transducer.TransitionIterator;
 import cc.mallet.types.LabelAlphabet;
 import cc.mallet.types.LabelVector;
+import cc.mallet.types.MatrixOps;
 import cc.mallet.types.Sequence;
 import cc.mallet.util.MalletLogger;
 
+/**
+ * Forward-backward in probability space rather than log space.
+ * <p>
+ * Alphas and betas are kept as ordinary probabilities, normalized to sum to
+ * one at every input position, with the log of each normalizer kept
+ * separately.  Transition weights at a position are shifted by their maximum
+ * before they are exponentiated, so each transition costs one
+ * <tt>Math.exp</tt> and a multiply-add, instead of the exp and log of
+ * {@link Transducer#sumLogProb}.  The transition probabilities found in the
+ * forward pass are kept for the backward pass.
+ * <p>
+ * If a position has no finite, positive total (because the sequence is
+ * impossible, a weight is infinite or NaN, or every term underflowed), the
+ * lattice is computed by {@link SumLatticeDefault} instead.  This is decided
+ * before any incrementor is called, and {@link #isScaled} tells which
+ * happened.  Alphas and betas of states more than about 700 nats less likely
+ * than the best state at their position underflow to zero; their gammas and
+ * xis are then <tt>IMPOSSIBLE_WEIGHT</tt> rather than a very small weight.
+ */
 public class SumLatticeScaling implements SumLattice {
 	private static Logger logger = MalletLogger
 			.getLogger(SumLatticeScaling.class.getName());
@@ -31,6 +51,9 @@ public class SumLatticeScaling implements SumLattice {
 	int latticeLength;
 	double[][] gammas; // indexed by ip,i
 	double[][][] xis; // indexed by ip,i,j; saved only if saveXis is true;
+	LabelVector labelings[]; // indexed by op, created only if "outputAlphabet" is non-null in constructor
+	// Non-null if the scaled computation failed and log space was used instead
+	SumLatticeDefault fallback;
 
 	// Ensure that instances cannot easily be created by a zero arg constructor.
 	protected SumLatticeScaling() {
@@ -100,119 +123,176 @@ public class SumLatticeScaling implements SumLattice {
 		nodes = new LatticeNode[latticeLength][numStates];
 		alphaLogScaling = new double[latticeLength];
 		betaLogScaling = new double[latticeLength];
-		gammas = new double[latticeLength][numStates];
-		if (saveXis)
-			xis = new double[latticeLength][numStates][numStates];
 
-		double outputCounts[][] = null;
-		if (outputAlphabet != null)
-			outputCounts = new double[latticeLength][outputAlphabet.size()];
-
-		for (int ip = 0; ip < latticeLength; ip++) {
-			alphaLogScaling[ip] = 0.0;
-			betaLogScaling[ip] = 0.0;
-			for (int i = 0; i < numStates; i++) {
-				gammas[ip][i] = Transducer.IMPOSSIBLE_WEIGHT;
-				if (saveXis)
-					for (int j = 0; j < numStates; j++)
-						xis[ip][i][j] = Transducer.IMPOSSIBLE_WEIGHT;
-			}
-		}
+		// Transition probabilities from each source, shifted by the column
+		// maximum transitionShift[ip], and their destination states
+		double[][][] transitionProbs = new double[latticeLength - 1][numStates][];
+		int[][][] destinations = new int[latticeLength - 1][numStates][];
+		double[] transitionShift = new double[latticeLength - 1];
+		double[] weightBuf = new double[numStates];
+		int[] destBuf = new int[numStates];
 
 		// Forward pass
 		logger.fine("Starting Foward pass");
-		boolean atLeastOneInitialState = false;
+		double maxWeight = Transducer.IMPOSSIBLE_WEIGHT;
+		for (int i = 0; i < numStates; i++)
+			maxWeight = Math.max(maxWeight, t.getState(i).getInitialWeight());
+		if (maxWeight == Transducer.IMPOSSIBLE_WEIGHT)
+			logger.warning("There are no starting states!");
 		for (int i = 0; i < numStates; i++) {
 			double initialWeight = t.getState(i).getInitialWeight();
-			if (initialWeight > Transducer.IMPOSSIBLE_WEIGHT) {
-				getLatticeNode(0, i).alpha = Math.exp(initialWeight);
-				atLeastOneInitialState = true;
-			}
+			if (initialWeight > Transducer.IMPOSSIBLE_WEIGHT)
+				getLatticeNode(0, i).alpha = Math.exp(initialWeight - maxWeight);
+		}
+		if (!rescaleAlphas(0, maxWeight, 0)) {
+			fallBack(incrementor, saveXis, outputAlphabet);
+			return;
 		}
-		rescaleAlphas(0);
-		if (atLeastOneInitialState == false)
-			logger.warning("There are no starting states!");
 
 		for (int ip = 0; ip < latticeLength - 1; ip++) {
+			// Gather the weights of the column and find their maximum
+			maxWeight = Transducer.IMPOSSIBLE_WEIGHT;
 			for (int i = 0; i < numStates; i++) {
 				if (isInvalidNode(ip, i))
 					continue;
 				State s = t.getState(i);
 				TransitionIterator iter = s.transitionIterator(input, ip,
 						output, ip);
+				int n = 0;
 				while (iter.hasNext()) {
-					State destination = iter.next();
+					State destination = iter.nextState();
 					LatticeNode destinationNode = getLatticeNode(ip + 1,
 							destination.getIndex());
-					if (Double.isNaN(destinationNode.alpha))
-						destinationNode.alpha = 0;
 					destinationNode.output = iter.getOutput();
-					double transitionWeight = iter.getWeight();
-					destinationNode.alpha += nodes[ip][i].alpha
-							* Math.exp(transitionWeight);
+					if (n == weightBuf.length) {
+						weightBuf = Arrays.copyOf(weightBuf, 2 * n);
+						destBuf = Arrays.copyOf(destBuf, 2 * n);
+					}
+					weightBuf[n] = iter.getWeight();
+					destBuf[n] = destination.getIndex();
+					if (weightBuf[n] > maxWeight)
+						maxWeight = weightBuf[n];
+					n++;
+				}
+				transitionProbs[ip][i] = Arrays.copyOf(weightBuf, n);
+				destinations[ip][i] = Arrays.copyOf(destBuf, n);
+			}
+			transitionShift[ip] = maxWeight;
+
+			for (int i = 0; i < numStates; i++) {
+				if (isInvalidNode(ip, i))
+					continue;
+				double alpha = nodes[ip][i].alpha;
+				double[] probs = transitionProbs[ip][i];
+				int[] dests = destinations[ip][i];
+				for (int k = 0; k < probs.length; k++) {
+					probs[k] = Math.exp(probs[k] - maxWeight);
+					nodes[ip + 1][dests[k]].alpha += alpha * probs[k];
 				}
 			}
 			// re-scale alphas to so that \sum_i \alpha[ip][i] = 1
-			rescaleAlphas(ip + 1);
+			if (!rescaleAlphas(ip + 1, maxWeight, alphaLogScaling[ip])) {
+				fallBack(incrementor, saveXis, outputAlphabet);
+				return;
+			}
 		}
 
-		// Calculate total weight of Lattice. This is the normalizer
-		double Z = Double.NaN;
+		// Calculate total weight of Lattice. This is the normalizer.  The final
+		// weights are the betas of the last position.
+		int last = latticeLength - 1;
+		maxWeight = Transducer.IMPOSSIBLE_WEIGHT;
 		for (int i = 0; i < numStates; i++)
-			if (nodes[latticeLength - 1][i] != null) {
-				if (Double.isNaN(Z))
-					Z = 0;
-				Z += nodes[latticeLength - 1][i].alpha
-						* Math.exp(t.getState(i).getFinalWeight());
-			}
-		zLogScaling = alphaLogScaling[latticeLength - 1];
-
-		if (Double.isNaN(Z)) {
-			totalWeight = Transducer.IMPOSSIBLE_WEIGHT;
+			if (!isInvalidNode(last, i))
+				maxWeight = Math.max(maxWeight, t.getState(i).getFinalWeight());
+		for (int i = 0; i < numStates; i++)
+			if (!isInvalidNode(last, i))
+				nodes[last][i].beta = Math.exp(t.getState(i).getFinalWeight() - maxWeight);
+		if (!rescaleBetas(last, maxWeight, 0)) {
+			fallBack(incrementor, saveXis, outputAlphabet);
 			return;
-		} else
-			totalWeight = Math.log(Z) + zLogScaling;
-
-		// Backward pass
+		}
+		double Z = 0;
 		for (int i = 0; i < numStates; i++)
-			if (nodes[latticeLength - 1][i] != null) {
-				State s = t.getState(i);
-				nodes[latticeLength - 1][i].beta = Math.exp(s.getFinalWeight());
-				double gamma = nodes[latticeLength - 1][i].alpha
-						* nodes[latticeLength - 1][i].beta / Z;
-				gammas[latticeLength - 1][i] = Math.log(gamma);
-				if (incrementor != null) {
-					double p = gamma;
-					assert (p >= 0.0 && p <= 1.0 + 1e-6) : "p=" + p
-							+ ", gamma=" + gammas[latticeLength - 1][i];
-					incrementor.incrementFinalState(s, p);
-				}
-			}
-		rescaleBetas(latticeLength - 1);
+			if (!isInvalidNode(last, i))
+				Z += nodes[last][i].alpha * nodes[last][i].beta;
+		if (!(Z > 0) || Double.isInfinite(Z)) {
+			fallBack(incrementor, saveXis, outputAlphabet);
+			return;
+		}
+		zLogScaling = alphaLogScaling[last] + betaLogScaling[last];
+		totalWeight = Math.log(Z) + zLogScaling;
 
+		// Backward pass, from the saved transition probabilities
 		for (int ip = latticeLength - 2; ip >= 0; ip--) {
 			for (int i = 0; i < numStates; i++) {
 				if (isInvalidNode(ip, i))
 					continue;
-				State s = t.getState(i);
-				TransitionIterator iter = s.transitionIterator(input, ip,
-						output, ip);
-				double logScaling = alphaLogScaling[ip]
-						+ betaLogScaling[ip + 1] - zLogScaling;
+				double[] probs = transitionProbs[ip][i];
+				int[] dests = destinations[ip][i];
+				double beta = 0;
+				for (int k = 0; k < probs.length; k++)
+					beta += probs[k] * nodes[ip + 1][dests[k]].beta;
+				nodes[ip][i].beta = beta;
+			}
+			// re-scale betas so that they are normalized
+			if (!rescaleBetas(ip, transitionShift[ip], betaLogScaling[ip + 1])) {
+				fallBack(incrementor, saveXis, outputAlphabet);
+				return;
+			}
+		}
+
+		// Nothing can underflow from here on: compute gammas and xis, and
+		// call the incrementor
+		gammas = new double[latticeLength][numStates];
+		if (saveXis)
+			xis = new double[latticeLength][numStates][numStates];
+		for (int ip = 0; ip < latticeLength; ip++) {
+			for (int i = 0; i < numStates; i++) {
+				gammas[ip][i] = Transducer.IMPOSSIBLE_WEIGHT;
+				if (saveXis)
+					for (int j = 0; j < numStates; j++)
+						xis[ip][i][j] = Transducer.IMPOSSIBLE_WEIGHT;
+			}
+		}
+		double outputCounts[][] = null;
+		if (outputAlphabet != null)
+			outputCounts = new double[latticeLength][outputAlphabet.size()];
+
+		for (int ip = 0; ip < latticeLength; ip++) {
+			double logScaling = alphaLogScaling[ip] + betaLogScaling[ip] - totalWeight;
+			for (int i = 0; i < numStates; i++)
+				if (!isInvalidNode(ip, i))
+					gammas[ip][i] = Math.log(nodes[ip][i].alpha * nodes[ip][i].beta) + logScaling;
+		}
+
+		if (incrementor != null)
+			for (int i = 0; i < numStates; i++)
+				if (nodes[last][i] != null) {
+					double p = Math.exp(gammas[last][i]);
+					assert (p >= 0.0 && p <= 1.0 + 1e-6) : "p=" + p
+							+ ", gamma=" + gammas[last][i];
+					incrementor.incrementFinalState(t.getState(i), p);
+				}
+
+		if (incrementor != null || outputAlphabet != null || saveXis) {
+			for (int ip = latticeLength - 2; ip >= 0; ip--) {
+				double logScaling = alphaLogScaling[ip] + transitionShift[ip]
+						+ betaLogScaling[ip + 1] - totalWeight;
 				double pscaling = Math.exp(logScaling);
-				while (iter.hasNext()) {
-					State destination = iter.next();
-					int j = destination.getIndex();
-					LatticeNode destinationNode = nodes[ip + 1][j];
-					if (destinationNode != null) {
-						double transitionWeight = iter.getWeight();
-						if (Double.isNaN(nodes[ip][i].beta))
-							nodes[ip][i].beta = 0;
-						double transitionProb = Math.exp(transitionWeight);
-						nodes[ip][i].beta += destinationNode.beta
-								* transitionProb;
-						double xi = nodes[ip][i].alpha * transitionProb
-								* nodes[ip + 1][j].beta / Z;
+				for (int i = 0; i < numStates; i++) {
+					if (isInvalidNode(ip, i))
+						continue;
+					State s = t.getState(i);
+					// Visits the same transitions, in the same order, as the forward pass
+					TransitionIterator iter = s.transitionIterator(input, ip,
+							output, ip);
+					double[] probs = transitionProbs[ip][i];
+					int[] dests = destinations[ip][i];
+					for (int k = 0; k < probs.length; k++) {
+						State destination = iter.nextState();
+						int j = dests[k];
+						assert (destination.getIndex() == j);
+						double xi = nodes[ip][i].alpha * probs[k] * nodes[ip + 1][j].beta;
 						if (saveXis)
 							xis[ip][i][j] = Math.log(xi) + logScaling;
 						if (incrementor != null || outputAlphabet != null) {
@@ -226,58 +306,89 @@ public class SumLatticeScaling implements SumLattice {
 								int outputIndex = outputAlphabet.lookupIndex(
 										iter.getOutput(), false);
 								assert (outputIndex >= 0);
+								// xxx This assumes that "ip" == "op"!
 								outputCounts[ip][outputIndex] += p;
 							}
 						}
 					}
 				}
-				gammas[ip][i] = Math.log(nodes[ip][i].alpha * nodes[ip][i].beta
-						/ Z)
-						+ logScaling;
 			}
-			// re-scale betas so that they are normalized
-			rescaleBetas(ip);
 		}
+
 		if (incrementor != null)
 			for (int i = 0; i < numStates; i++) {
 				double p = Math.exp(gammas[0][i]);
 				assert (p >= 0.0 && p <= 1.0 + 1e-6) : "p=" + p;
 				incrementor.incrementInitialState(t.getState(i), p);
 			}
+		if (outputAlphabet != null) {
+			labelings = new LabelVector[latticeLength];
+			for (int ip = latticeLength - 2; ip >= 0; ip--) {
+				assert (Math.abs(1.0 - MatrixOps.sum(outputCounts[ip])) < 0.000001);
+				labelings[ip] = new LabelVector(outputAlphabet, outputCounts[ip]);
+			}
+		}
+	}
+
+	/** Computes the whole lattice in log space with SumLatticeDefault. */
+	private void fallBack(Transducer.Incrementor incrementor, boolean saveXis,
+			LabelAlphabet outputAlphabet) {
+		logger.fine("Scaled forward-backward underflowed; using log space");
+		fallback = new SumLatticeDefault(t, input, output, incrementor, saveXis, outputAlphabet);
+		nodes = null;
+		totalWeight = fallback.getTotalWeight();
+		gammas = fallback.getGammas();
+		xis = fallback.getXis();
+	}
+
+	/**
+	 * Returns false if the lattice was computed in log space by
+	 * SumLatticeDefault, because the scaled computation underflowed.
+	 */
+	public boolean isScaled() {
+		return fallback == null;
 	}
 
 	private boolean isInvalidNode(int ip, int i) {
-		return nodes[ip][i] == null || Double.isNaN(nodes[ip][i].alpha);
+		return nodes[ip][i] == null || nodes[ip][i].alpha == 0;
 	}
 
-	private void rescaleAlphas(int ip) {
+	/**
+	 * Normalizes the alphas at IP, which are scaled by <tt>exp(shift)</tt>
+	 * times the scale of the previous position, PREVLOGSCALING.  Returns false
+	 * if they cannot be normalized.
+	 */
+	private boolean rescaleAlphas(int ip, double shift, double prevLogScaling) {
 		double sumAlpha = 0;
 		for (int i = 0; i < t.numStates(); i++) {
-			if (!isInvalidNode(ip, i))
+			if (nodes[ip][i] != null)
 				sumAlpha += nodes[ip][i].alpha;
 		}
-		assert sumAlpha > 0 : "Invalid sum over alphas for ip=" + ip;
-		alphaLogScaling[ip] = Math.log(sumAlpha)
-				+ (ip == 0 ? 0 : alphaLogScaling[ip - 1]);
+		if (!(sumAlpha > 0) || Double.isInfinite(sumAlpha) || Double.isInfinite(shift))
+			return false;
+		alphaLogScaling[ip] = Math.log(sumAlpha) + shift + prevLogScaling;
 		for (int i = 0; i < t.numStates(); i++) {
-			if (!isInvalidNode(ip, i))
+			if (nodes[ip][i] != null)
 				nodes[ip][i].alpha /= sumAlpha;
 		}
+		return true;
 	}
 
-	private void rescaleBetas(int ip) {
+	/** Like {@link #rescaleAlphas}, for the betas at IP. */
+	private boolean rescaleBetas(int ip, double shift, double nextLogScaling) {
 		double sumBeta = 0;
 		for (int i = 0; i < t.numStates(); i++) {
 			if (!isInvalidNode(ip, i))
 				sumBeta += nodes[ip][i].beta;
 		}
-		assert sumBeta > 0 : "Invalid sum over betas for ip=" + ip;
-		betaLogScaling[ip] = Math.log(sumBeta)
-				+ (ip == latticeLength - 1 ? 0 : betaLogScaling[ip + 1]);
+		if (!(sumBeta > 0) || Double.isInfinite(sumBeta) || Double.isInfinite(shift))
+			return false;
+		betaLogScaling[ip] = Math.log(sumBeta) + shift + nextLogScaling;
 		for (int i = 0; i < t.numStates(); i++) {
 			if (!isInvalidNode(ip, i))
 				nodes[ip][i].beta /= sumBeta;
 		}
+		return true;
 	}
 
 	public double[][][] getXis() {
@@ -324,21 +435,31 @@ public class SumLatticeScaling implements SumLattice {
 		return latticeLength;
 	}
 
+	/** Returns the log-space alpha, as SumLatticeDefault does. */
 	public double getAlpha(int ip, State s) {
+		if (fallback != null)
+			return fallback.getAlpha(ip, s);
 		LatticeNode node = getLatticeNode(ip, s.getIndex());
-		return node.alpha * Math.exp(alphaLogScaling[ip]);
+		return Math.log(node.alpha) + alphaLogScaling[ip];
 	}
 
+	/** Returns the log-space beta, as SumLatticeDefault does. */
 	public double getBeta(int ip, State s) {
+		if (fallback != null)
+			return fallback.getBeta(ip, s);
 		LatticeNode node = getLatticeNode(ip, s.getIndex());
-		return node.beta * Math.exp(betaLogScaling[ip]);
+		return Math.log(node.beta) + betaLogScaling[ip];
 	}
 
 	public LabelVector getLabelingAtPosition(int outputPosition) {
-		throw new RuntimeException("Not implemented for SumLatticeScaling!");
+		if (fallback != null)
+			return fallback.getLabelingAtPosition(outputPosition);
+		if (labelings != null)
+			return labelings[outputPosition];
+		return null;
 	}
-	
-	public Sequence getInput() { 
+
+	public Sequence getInput() {
 	  return input;
 	}
 
@@ -350,8 +471,8 @@ public class SumLatticeScaling implements SumLattice {
 		int inputPosition;
 		State state;
 		Object output;
-		double alpha = Double.NaN;
-		double beta = Double.NaN;
+		double alpha = 0;
+		double beta = 0;
 
 		LatticeNode(int inputPosition, State state) {
 			this.inputPosition = inputPosition;
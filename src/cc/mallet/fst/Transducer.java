@@ -20,7 +20,14 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import cc.mallet.types.Instance;
@@ -124,6 +131,60 @@ public abstract class Transducer implements Serializable
 		return maxLatticeFactory.newMaxLattice(this, (Sequence)input).bestOutputSequence();
 	}
 
+	/**
+	 * Decodes each of the input sequences on numThreads threads, returning the
+	 * n best output sequences of each, in the order of the inputs.  An entry has
+	 * fewer than n sequences if there are fewer paths for that input.
+	 * <p>
+	 * With the default {@link MaxLatticeDefault} (or {@link MaxLatticeFast})
+	 * factory, decoding uses {@link MaxLatticeFast}, and each thread keeps one
+	 * set of lattice arrays for all its sequences; other factories are used
+	 * as they are.  The transducer must not be modified while decoding.
+	 */
+	public List<Sequence[]> transduce (final List<? extends Sequence> inputs, final int n, int numThreads)
+	{
+		final Sequence[][] results = new Sequence[inputs.size()][];
+		final AtomicInteger next = new AtomicInteger ();
+		Runnable worker = new Runnable () {
+			public void run () {
+				MaxLatticeFast.Workspace ws = new MaxLatticeFast.Workspace ();
+				for (int i = next.getAndIncrement (); i < results.length; i = next.getAndIncrement ())
+					results[i] = bestOutputSequences (inputs.get(i), n, ws);
+			}
+		};
+		numThreads = Math.min (numThreads, inputs.size());
+		if (numThreads <= 1)
+			worker.run ();
+		else {
+			ExecutorService executor = Executors.newFixedThreadPool (numThreads);
+			try {
+				List<Future<?>> futures = new ArrayList<Future<?>> (numThreads);
+				for (int t = 0; t < numThreads; t++)
+					futures.add (executor.submit (worker));
+				for (Future<?> f : futures)
+					f.get ();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException ("Interrupted while decoding", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException ("Decoding failed", e.getCause());
+			} finally {
+				executor.shutdown ();
+			}
+		}
+		return Arrays.asList (results);
+	}
+
+	private Sequence[] bestOutputSequences (Sequence input, int n, MaxLatticeFast.Workspace ws)
+	{
+		List<Sequence<Object>> outputs;
+		if (maxLatticeFactory instanceof MaxLatticeDefault.Factory || maxLatticeFactory instanceof MaxLatticeFast.Factory)
+			outputs = new MaxLatticeFast (this, input, null, n, ws).bestOutputSequences (n);
+		else
+			outputs = maxLatticeFactory.newMaxLattice (this, input).bestOutputSequences (n);
+		return outputs.toArray (new Sequence[outputs.size()]);
+	}
+
 	public abstract int numStates ();
 	public abstract State getState (int index);
 
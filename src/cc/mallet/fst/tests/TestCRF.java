@@ -22,6 +22,8 @@ import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.regex.Pattern;
 
@@ -58,10 +60,12 @@ import cc.mallet.pipe.tsf.OffsetConjunctions;
 import cc.mallet.pipe.tsf.TokenText;
 
 import cc.mallet.fst.CRF;
+import cc.mallet.fst.CRFOptimizableByLabelLikelihood;
 import cc.mallet.fst.CRFTrainerByLabelLikelihood;
 import cc.mallet.fst.CRFTrainerByStochasticGradient;
 import cc.mallet.fst.MaxLattice;
 import cc.mallet.fst.MaxLatticeDefault;
+import cc.mallet.fst.MaxLatticeFast;
 import cc.mallet.fst.SumLattice;
 import cc.mallet.fst.SumLatticeDefault;
 import cc.mallet.fst.SumLatticeScaling;
@@ -827,6 +831,17 @@ public class TestCRF extends TestCase {
 							}
 						}
 					}
+					// check that the approximate exponential changes nothing visible
+					SumLattice approxLattice = new SumLatticeDefault(crf, input,
+							null, null, true, null, true);
+					assertEquals(defaultLattice.getTotalWeight(),
+							approxLattice.getTotalWeight(), 1e-10);
+					double[][] g3 = approxLattice.getGammas();
+					for (int i = 0; i < g1.length; i++) {
+						for (int j = 0; j < g1[i].length; j++) {
+							assertEquals(g1[i][j], g3[i][j], 1e-10);
+						}
+					}
 				}
 			}
 			if ((iter + 1) % 100 == 0) {
@@ -847,6 +862,95 @@ public class TestCRF extends TestCase {
 					+ (totalTimeDefault - totalTimeScaling) + " ms)");
 	}
 
+	public void testScalingLatticeGradient() {
+		Pipe p = makeSpacePredictionPipe();
+		InstanceList instances = new InstanceList(p);
+		instances.addThruPipe(new ArrayIterator(data));
+
+		CRF crf = new CRF(p, null);
+		crf.addFullyConnectedStatesForLabels();
+		CRFTrainerByLabelLikelihood crft = new CRFTrainerByLabelLikelihood(crf);
+		crft.train(instances, 5); // Let's get some parameters
+
+		CRFOptimizableByLabelLikelihood logSpace = new CRFOptimizableByLabelLikelihood(
+				crf, instances);
+		CRFOptimizableByLabelLikelihood scaled = new CRFOptimizableByLabelLikelihood(
+				crf, instances, new SumLatticeScaling.Factory());
+		assertEquals(logSpace.getValue(), scaled.getValue(), 1e-8);
+		double[] g1 = new double[logSpace.getNumParameters()];
+		double[] g2 = new double[scaled.getNumParameters()];
+		logSpace.getValueGradient(g1);
+		scaled.getValueGradient(g2);
+		for (int i = 0; i < g1.length; i++)
+			assertEquals(g1[i], g2[i], 1e-8);
+
+		// Training can use the scaled lattice too
+		crft.setSumLatticeFactory(new SumLatticeScaling.Factory());
+		double before = crft.getOptimizableCRF(instances).getValue();
+		crft.train(instances, 5);
+		assertTrue(crft.getOptimizableCRF(instances).getValue() >= before);
+
+		// Without a start state the scaled lattice falls back to log space
+		for (int i = 0; i < crf.numStates(); i++)
+			crf.getState(i).setInitialWeight(Transducer.IMPOSSIBLE_WEIGHT);
+		Sequence input = (Sequence) instances.get(0).getData();
+		SumLatticeScaling lattice = new SumLatticeScaling(crf, input);
+		assertFalse(lattice.isScaled());
+		assertEquals(Transducer.IMPOSSIBLE_WEIGHT, lattice.getTotalWeight(), 0);
+	}
+
+	public void testMaxLatticeFast() {
+		Pipe p = makeSpacePredictionPipe();
+		InstanceList instances = new InstanceList(p);
+		instances.addThruPipe(new ArrayIterator(data));
+
+		CRF crf = new CRF(p, null);
+		crf.addFullyConnectedStatesForLabels();
+		new CRFTrainerByLabelLikelihood(crf).train(instances, 5);
+
+		List<Sequence> inputs = new ArrayList<Sequence>();
+		for (Instance inst : instances) {
+			Sequence input = (Sequence) inst.getData();
+			inputs.add(input);
+			MaxLatticeDefault expected = new MaxLatticeDefault(crf, input);
+			MaxLatticeFast lattice = new MaxLatticeFast(crf, input);
+			assertSameSequence(expected.bestOutputSequence(), lattice.bestOutputSequence());
+			assertSameSequence(expected.bestStateSequence(), lattice.bestStateSequence());
+			// Asking for more paths than the lattice was built for redoes the
+			// forward pass.  Path weights include the initial and final weights.
+			List<Sequence<Object>> nbest = lattice.bestOutputSequences(5);
+			assertEquals(5, nbest.size());
+			for (int k = 0; k < 5; k++) {
+				// MaxLatticeDefault leaves the initial and final weights out of path weights
+				Sequence<Transducer.State> states = expected.bestStateAlignments(5).get(k).output();
+				assertEquals(expected.bestStateAlignments(5).get(k).getWeight()
+						+ states.get(0).getInitialWeight()
+						+ states.get(states.size() - 1).getFinalWeight(),
+						lattice.bestWeight(k), 1e-8);
+				MaxLattice constrained = new MaxLatticeDefault(crf, input, nbest.get(k));
+				double weight = Transducer.IMPOSSIBLE_WEIGHT;
+				for (int i = 0; i < crf.numStates(); i++)
+					weight = Math.max(weight, constrained.getDelta(input.size(), i));
+				assertEquals(weight, lattice.bestWeight(k), 1e-8);
+			}
+		}
+
+		List<Sequence[]> serial = crf.transduce(inputs, 3, 1);
+		List<Sequence[]> threaded = crf.transduce(inputs, 3, 3);
+		for (int i = 0; i < inputs.size(); i++) {
+			assertSameSequence(crf.transduce(inputs.get(i)), serial.get(i)[0]);
+			assertEquals(3, threaded.get(i).length);
+			for (int k = 0; k < 3; k++)
+				assertSameSequence(serial.get(i)[k], threaded.get(i)[k]);
+		}
+	}
+
+	private static void assertSameSequence(Sequence expected, Sequence actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals(expected.get(i), actual.get(i));
+	}
+
 	public void testSerialization() {
 		doTestSpacePrediction(false, true, true);
 	}
@@ -0,0 +1,187 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst.tests;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.mallet.fst.HMM;
+import cc.mallet.fst.HMMTrainerByLikelihood;
+import cc.mallet.fst.SumLatticeDefault;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+
+/**
+ * Tests for HMM training by EM.
+ */
+public class TestHMM extends TestCase {
+
+	static final String[] labels = { "A", "B", "C" };
+
+	public TestHMM(String name) {
+		super(name);
+	}
+
+	private Alphabet inputs, outputs;
+
+	protected void setUp() {
+		inputs = new Alphabet();
+		for (int i = 0; i < 9; i++)
+			inputs.lookupIndex("w" + i);
+		outputs = new Alphabet();
+		for (int i = 0; i < labels.length; i++)
+			outputs.lookupIndex(labels[i]);
+	}
+
+	// Labels cycle A, B, C, staying with probability 0.5; label l mostly
+	// emits words 3l to 3l+2.
+	private InstanceList generate(int numInstances, boolean labeled, Random r) {
+		InstanceList ilist = new InstanceList(null);
+		for (int n = 0; n < numInstances; n++) {
+			int length = 5 + r.nextInt(10);
+			FeatureSequence input = new FeatureSequence(inputs, length);
+			FeatureSequence output = new FeatureSequence(outputs, length);
+			int label = r.nextInt(labels.length);
+			for (int ip = 0; ip < length; ip++) {
+				if (ip > 0 && r.nextBoolean())
+					label = (label + 1) % labels.length;
+				int word = (r.nextDouble() < 0.9) ? 3 * label + r.nextInt(3)
+						: r.nextInt(inputs.size());
+				input.add(word);
+				output.add(label);
+			}
+			ilist.add(new Instance(input, labeled ? output : null, null, null));
+		}
+		return ilist;
+	}
+
+	private HMM newHMM(InstanceList labeled) {
+		HMM hmm = new HMM(inputs, outputs);
+		if (labeled == null)
+			hmm.addFullyConnectedStatesForLabels();
+		else
+			hmm.addStatesForLabelsConnectedAsIn(labeled);
+		Random r = new Random(3);
+		hmm.initTransitions(r, 1);
+		hmm.initEmissions(r, 1);
+		return hmm;
+	}
+
+	private static double logLikelihood(HMM hmm, InstanceList ilist) {
+		double ll = 0;
+		for (Instance inst : ilist)
+			ll += new SumLatticeDefault(hmm, (Sequence) inst.getData())
+					.getTotalWeight();
+		return ll;
+	}
+
+	public void testThreadedTraining() {
+		Random r = new Random(1);
+		InstanceList labeled = generate(20, true, r);
+		InstanceList unlabeled = generate(50, false, r);
+
+		HMM serial = newHMM(null);
+		new HMMTrainerByLikelihood(serial).train(labeled, unlabeled, 5);
+		HMM threaded = newHMM(null);
+		HMMTrainerByLikelihood trainer = new HMMTrainerByLikelihood(threaded);
+		trainer.setNumThreads(3);
+		trainer.train(labeled, unlabeled, 5);
+
+		assertEquals(5, trainer.getIteration());
+		for (Instance inst : unlabeled) {
+			Sequence input = (Sequence) inst.getData();
+			assertEquals(new SumLatticeDefault(serial, input).getTotalWeight(),
+					new SumLatticeDefault(threaded, input).getTotalWeight(), 1e-8);
+		}
+	}
+
+	public void testStepwiseTraining() {
+		Random r = new Random(2);
+		InstanceList unlabeled = generate(200, false, r);
+		HMM hmm = newHMM(null);
+		double before = logLikelihood(hmm, unlabeled);
+
+		HMMTrainerByLikelihood trainer = new HMMTrainerByLikelihood(hmm);
+		trainer.trainStepwise(unlabeled.iterator(), 20);
+		assertEquals(10, trainer.getNumStepwiseUpdates());
+		double afterStream = logLikelihood(hmm, unlabeled);
+		assertTrue(afterStream + " > " + before, afterStream > before);
+
+		trainer.setStepwiseBatchSize(20);
+		trainer.setNumThreads(2);
+		trainer.train(unlabeled, 3);
+		assertEquals(40, trainer.getNumStepwiseUpdates());
+		double after = logLikelihood(hmm, unlabeled);
+		assertTrue(after + " > " + afterStream, after > afterStream);
+	}
+
+	// With one batch as large as the data, a stepwise pass is one batch EM
+	// iteration, so instances from the unlabeled set must be trained as
+	// unlabeled even when they carry targets.
+	public void testStepwiseMatchesBatchWithUnlabeledTargets() {
+		Random r = new Random(5);
+		InstanceList labeled = generate(20, true, r);
+		InstanceList unlabeled = generate(40, true, r);
+
+		HMM batch = newHMM(null);
+		new HMMTrainerByLikelihood(batch).train(labeled, unlabeled, 1);
+		HMM stepwise = newHMM(null);
+		HMMTrainerByLikelihood trainer = new HMMTrainerByLikelihood(stepwise);
+		trainer.setStepwiseBatchSize(labeled.size() + unlabeled.size());
+		trainer.train(labeled, unlabeled, 1);
+
+		assertEquals(1, trainer.getNumStepwiseUpdates());
+		for (Instance inst : unlabeled) {
+			Sequence input = (Sequence) inst.getData();
+			assertEquals(new SumLatticeDefault(batch, input).getTotalWeight(),
+					new SumLatticeDefault(stepwise, input).getTotalWeight(), 1e-8);
+		}
+	}
+
+	// States with fewer destinations than there are states must still be
+	// credited with the emissions of their own observations.
+	public void testSparselyConnectedStates() {
+		Random r = new Random(4);
+		InstanceList labeled = generate(100, true, r);
+		HMM hmm = newHMM(labeled);
+		new HMMTrainerByLikelihood(hmm).train(labeled, 1);
+
+		InstanceList test = generate(50, true, r);
+		int correct = 0, total = 0;
+		for (Instance inst : test) {
+			Sequence output = hmm.transduce((Sequence) inst.getData());
+			Sequence target = (Sequence) inst.getTarget();
+			for (int ip = 0; ip < target.size(); ip++, total++)
+				if (output.get(ip).equals(target.get(ip)))
+					correct++;
+		}
+		assertTrue("accuracy " + correct + "/" + total, correct > 0.8 * total);
+	}
+
+	public static Test suite() {
+		return new TestSuite(TestHMM.class);
+	}
+
+	public static void main(String[] args) {
+		TestSuite theSuite;
+		if (args.length > 0) {
+			theSuite = new TestSuite();
+			for (int i = 0; i < args.length; i++)
+				theSuite.addTest(new TestHMM(args[i]));
+		} else {
+			theSuite = (TestSuite) suite();
+		}
+		junit.textui.TestRunner.run(theSuite);
+	}
+}
@@ -0,0 +1,131 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst.tests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.mallet.fst.SimpleTagger;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.MappedInstanceList;
+
+/**
+ * Tests for reading SimpleTagger input.
+ */
+public class TestSimpleTagger extends TestCase
+{
+	private static final String DATA =
+		"CAPITAL a b O\nlower c B-X\n\nCAPITAL b I-X\n";
+
+	public TestSimpleTagger (String name)
+	{
+		super (name);
+	}
+
+	private static File writeText (String text) throws IOException
+	{
+		File file = File.createTempFile ("tagger", ".txt");
+		file.deleteOnExit ();
+		FileWriter out = new FileWriter (file);
+		out.write (text);
+		out.close ();
+		return file;
+	}
+
+	private static File writeMapped (InstanceList data) throws IOException
+	{
+		File file = File.createTempFile ("tagger", ".vectors");
+		file.deleteOnExit ();
+		MappedInstanceList.save (data, file);
+		return file;
+	}
+
+	private static Pipe newPipe ()
+	{
+		Pipe p = new SimpleTagger.SimpleTaggerSentence2FeatureVectorSequence ();
+		p.getTargetAlphabet ().lookupIndex ("O");
+		p.setTargetProcessing (true);
+		return p;
+	}
+
+	public void testMappedFileWithSamePipe () throws IOException
+	{
+		Pipe p = newPipe ();
+		InstanceList text = SimpleTagger.readData (p, writeText (DATA), false);
+		File mapped = writeMapped (text);
+
+		InstanceList data = SimpleTagger.readData (p, mapped, false);
+		assertTrue (data instanceof MappedInstanceList);
+		assertEquals (2, data.size ());
+
+		// A pipe that has grown since the file was written still agrees with it
+		p.getDataAlphabet ().lookupIndex ("later");
+		assertEquals (2, SimpleTagger.readData (p, mapped, false).size ());
+	}
+
+	public void testMappedFileWithDifferentFeatures () throws IOException
+	{
+		File mapped = writeMapped (SimpleTagger.readData (newPipe (), writeText (DATA), false));
+
+		// Same features, seen in a different order
+		Pipe other = newPipe ();
+		SimpleTagger.readData (other, writeText ("lower c O\nCAPITAL a b O\n"), false);
+		try {
+			SimpleTagger.readData (other, mapped, false);
+			fail ("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertTrue (e.getMessage (), e.getMessage ().indexOf ("feature") >= 0);
+		}
+
+		// A new pipe is replaced by the mapped file's own, so it is not checked
+		InstanceList kept = SimpleTagger.readData (newPipe (), mapped, true);
+		assertEquals (2, kept.size ());
+	}
+
+	public void testMappedFileWithDifferentLabels () throws IOException
+	{
+		File mapped = writeMapped (SimpleTagger.readData (newPipe (), writeText (DATA), false));
+
+		Pipe other = newPipe ();
+		SimpleTagger.readData (other, writeText (DATA), false);
+		other.getTargetAlphabet ().lookupIndex ("B-Y");
+		// Same label set size as the file requires, but a different label at index 1
+		Pipe relabelled = newPipe ();
+		relabelled.getDataAlphabet ().lookupIndex ("CAPITAL");
+		relabelled.getDataAlphabet ().lookupIndex ("a");
+		relabelled.getDataAlphabet ().lookupIndex ("b");
+		relabelled.getDataAlphabet ().lookupIndex ("lower");
+		relabelled.getDataAlphabet ().lookupIndex ("c");
+		relabelled.getTargetAlphabet ().lookupIndex ("I-X");
+		relabelled.getTargetAlphabet ().lookupIndex ("B-X");
+
+		assertEquals (2, SimpleTagger.readData (other, mapped, false).size ());
+		try {
+			SimpleTagger.readData (relabelled, mapped, false);
+			fail ("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertTrue (e.getMessage (), e.getMessage ().indexOf ("label") >= 0);
+		}
+	}
+
+	public static Test suite ()
+	{
+		return new TestSuite (TestSimpleTagger.class);
+	}
+
+	public static void main (String[] args)
+	{
+		junit.textui.TestRunner.run (suite ());
+	}
+}
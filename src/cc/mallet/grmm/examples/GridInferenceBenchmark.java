@@ -0,0 +1,70 @@
+/* Copyright (C) 2003 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.grmm.examples;
+
+import java.util.Random;
+
+import cc.mallet.grmm.inference.Inferencer;
+import cc.mallet.grmm.inference.JunctionTreeInferencer;
+import cc.mallet.grmm.inference.LoopyBP;
+import cc.mallet.grmm.inference.ParallelResidualBP;
+import cc.mallet.grmm.inference.RandomGraphs;
+import cc.mallet.grmm.inference.TRP;
+import cc.mallet.grmm.types.Assignment;
+import cc.mallet.grmm.types.FactorGraph;
+import cc.mallet.grmm.types.Variable;
+
+/**
+ * Times marginal inference on random attractive grids from RandomGraphs,
+ *  for measuring changes to the factor operations.
+ * <p>
+ * Usage: GridInferenceBenchmark [gridSize [numRepetitions]]
+ */
+public class GridInferenceBenchmark {
+
+  public static void main (String[] args)
+  {
+    int size = (args.length > 0) ? Integer.parseInt (args[0]) : 10;
+    int reps = (args.length > 1) ? Integer.parseInt (args[1]) : 20;
+
+    Random r = new Random (1729);
+    FactorGraph[] grids = new FactorGraph [reps];
+    for (int i = 0; i < reps; i++) {
+      grids[i] = RandomGraphs.randomAttractiveGrid (size, 1.0, r);
+    }
+
+    time ("LoopyBP", new LoopyBP (), grids);
+    time ("TRP", new TRP (), grids);
+    ParallelResidualBP prbp = new ParallelResidualBP ();
+    time ("ParallelResidualBP ("+prbp.getNumThreads ()+" threads)", prbp, grids);
+    System.out.println ("  "+prbp.getUpdatesUsedLastTime ()+" updates, "
+            +(int) prbp.getMessagesPerSecond ()+" messages/sec on the last grid");
+    prbp.shutdown ();
+    if (size <= 8) {
+      time ("JunctionTree", new JunctionTreeInferencer (), grids);
+    }
+  }
+
+  private static void time (String name, Inferencer inf, FactorGraph[] grids)
+  {
+    // Warm up on the first grid
+    inf.computeMarginals (grids[0]);
+
+    long start = System.currentTimeMillis ();
+    double checksum = 0;
+    for (int i = 0; i < grids.length; i++) {
+      inf.computeMarginals (grids[i]);
+      Variable var = grids[i].get (0);
+      checksum += inf.lookupMarginal (var).value (new Assignment (var, 0));
+    }
+    long end = System.currentTimeMillis ();
+
+    System.out.println (name + ": " + grids[0].numVariables () + " variables, "
+            + ((end - start) / (double) grids.length) + " ms per grid  (checksum " + checksum + ")");
+  }
+
+}
@@ -3,6 +3,7 @@ package cc.mallet.grmm.inference;
 
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Iterator;
 import java.io.*;
@@ -59,6 +60,17 @@ public abstract class AbstractBeliefPropagation extends AbstractInferencer {
     return this;
   }
 
+  // The message strategy holds the message arrays of the current graph,
+  //  so each duplicate needs its own.
+  protected Object clone () throws CloneNotSupportedException
+  {
+    AbstractBeliefPropagation dup = (AbstractBeliefPropagation) super.clone ();
+    if (messager instanceof AbstractMessageStrategy) {
+      dup.messager = ((AbstractMessageStrategy) messager).duplicate ();
+    }
+    return dup;
+  }
+
   /**
    * Returns the total number of messages all BP inferencers have sent in the current Java image.
    */
@@ -82,6 +94,13 @@ public abstract class AbstractBeliefPropagation extends AbstractInferencer {
     messagesSentAtStart = myMessagesSent;
   }
 
+  /** Counts messages that a subclass sent without going through sendMessage. */
+  protected void addMessagesSent (int numMessages)
+  {
+    totalMessagesSent += numMessages;
+    myMessagesSent += numMessages;
+  }
+
 
   /**
    * Array that maps (to, from) to the lambda message sent from node
@@ -93,6 +112,12 @@ public abstract class AbstractBeliefPropagation extends AbstractInferencer {
 
   protected transient FactorGraph mdlCurrent;
 
+  /** Returns the messages of the current graph. */
+  protected MessageArray getMessageArray ()
+  {
+    return messages;
+  }
+
   private void retrieveCachedMessages (FactorGraph m)
   {
     messages = (MessageArray) m.getInferenceCache (getClass ());
@@ -252,11 +277,24 @@ public abstract class AbstractBeliefPropagation extends AbstractInferencer {
   }
 
 
-  public abstract static class AbstractMessageStrategy implements MessageStrategy {
+  public abstract static class AbstractMessageStrategy implements MessageStrategy, Cloneable {
 
     protected MessageArray messages;
     protected MessageArray oldMessages;
 
+    /** Returns a copy of this strategy that is not attached to any message array. */
+    public AbstractMessageStrategy duplicate ()
+    {
+      try {
+        AbstractMessageStrategy dup = (AbstractMessageStrategy) clone ();
+        dup.messages = null;
+        dup.oldMessages = null;
+        return dup;
+      } catch (CloneNotSupportedException e) {
+        throw new RuntimeException (e);
+      }
+    }
+
     public void setMessageArray (MessageArray msgs, MessageArray oldMsgs)
     {
       messages = msgs;
@@ -281,6 +319,31 @@ public abstract class AbstractBeliefPropagation extends AbstractInferencer {
       return product;
     }
 
+    /**
+     * Returns the marginal onto TO of the product of FROM with the messages it
+     *  has received, except the one from EXCLUDEMSGFROM.  Table factors do this
+     *  without copying FROM; the result is the same as msgProduct() on a
+     *  duplicate followed by marginalize().
+     */
+    protected Factor msgProductMarginal (Factor from, int idx, int excludeMsgFrom, Variable to)
+    {
+      if (from instanceof AbstractTableFactor) {
+        List msgs = new ArrayList ();
+        for (MessageArray.ToMsgsIterator it = messages.toMessagesIterator (idx); it.hasNext ();) {
+          it.next ();
+          if (it.currentFromIdx () != excludeMsgFrom) {
+            msgs.add (it.currentMessage ());
+          }
+        }
+        Factor[] msgArr = (Factor[]) msgs.toArray (new Factor [msgs.size ()]);
+        return ((AbstractTableFactor) from).multiplyAndMarginalize (msgArr, to);
+      }
+
+      Factor product = from.duplicate ();
+      msgProduct (product, idx, excludeMsgFrom);
+      return product.marginalize (to);
+    }
+
     private Factor createEmptyFactorForVar (int idx)
     {
       Factor product;
@@ -313,10 +376,7 @@ public abstract class AbstractBeliefPropagation extends AbstractInferencer {
       int fromIdx = messages.getIndex (from);
       int toIdx = messages.getIndex (to);
 
-      Factor product = from.duplicate ();
-      msgProduct (product, fromIdx, toIdx);
-
-      Factor msg = product.marginalize (to);
+      Factor msg = msgProductMarginal (from, fromIdx, toIdx, to);
       msg.normalize ();
 
       if (logger.isLoggable (Level.FINEST)) {
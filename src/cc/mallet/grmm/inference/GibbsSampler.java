@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Iterator;
 
 import cc.mallet.grmm.types.*;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
 import cc.mallet.util.Timing;
 
@@ -29,7 +30,7 @@ public class GibbsSampler implements Sampler {
 
   private Factor[] allCpts;
 
-  private Randoms r = new Randoms (324231);
+  private Randoms r = new FastRandoms (324231);
 
   public GibbsSampler () {}
 
@@ -77,7 +78,7 @@ public class GibbsSampler implements Sampler {
     return ret;
   }
 
-  private Assignment initialAssignment (FactorGraph mdl)
+  static Assignment initialAssignment (FactorGraph mdl)
   {
 		Assignment assn = new Assignment (mdl, new int [mdl.numVariables()]);
 		if (mdl.logValue (assn) > Double.NEGATIVE_INFINITY)
@@ -88,7 +89,7 @@ public class GibbsSampler implements Sampler {
   }
 
   // backtracking search for a feasible assignment
-  private Assignment initialAssignmentRec (FactorGraph mdl, Assignment assn, int fi)
+  private static Assignment initialAssignmentRec (FactorGraph mdl, Assignment assn, int fi)
   {
     if (fi >= mdl.factors ().size ()) return assn;
     Factor f = mdl.getFactor (fi);
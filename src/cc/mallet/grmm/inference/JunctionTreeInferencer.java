@@ -42,6 +42,14 @@ public class JunctionTreeInferencer extends AbstractInferencer {
   private boolean inLogSpace;
   private JunctionTreePropagation propagator;
 
+  public static final int DEFAULT_PLAN_CACHE_SIZE = 1000;
+
+  // Not serialized; a deserialized inferencer has the default cache size
+  transient private int planCacheSize = DEFAULT_PLAN_CACHE_SIZE;
+  transient private Map planCache = createPlanCache (planCacheSize);
+  transient private int planHits;
+  transient private int planMisses;
+
   public JunctionTreeInferencer()
   {
     this (JunctionTreePropagation.createSumProductInferencer ());
@@ -52,6 +60,14 @@ public class JunctionTreeInferencer extends AbstractInferencer {
     this.propagator = propagator;
   }
 
+  // The propagator counts the messages it sends, so each duplicate needs its own.
+  protected Object clone () throws CloneNotSupportedException
+  {
+    JunctionTreeInferencer dup = (JunctionTreeInferencer) super.clone ();
+    dup.propagator = propagator.duplicate ();
+    return dup;
+  }
+
   public static JunctionTreeInferencer createForMaxProduct ()
   {
     return new JunctionTreeInferencer (JunctionTreePropagation.createMaxProductInferencer ());
@@ -449,16 +465,61 @@ public class JunctionTreeInferencer extends AbstractInferencer {
        *  (I already had a version of triangulate() for MRFs, not bipartite factor graphs.)
        * Note that the call to mdlToGraph() is perfectly valid for FactorGraphs that are also DirectedModels,
        *  and has the effect of moralizing in that case.  */
+      JunctionTreePlan.Key key = (planCacheSize > 0) ? JunctionTreePlan.keyOf (mdl) : null;
+      JunctionTreePlan plan = (key != null) ? (JunctionTreePlan) planCache.get (key) : null;
+      if (plan != null) {
+        planHits++;
+        jtCurrent = plan.createJunctionTree (mdl);
+        plan.initCpts (mdl, jtCurrent);
+        mdl.setInferenceCache (JunctionTreeInferencer.class, jtCurrent);
+        return jtCurrent;
+      }
+
       UndirectedGraph g = Graphs.mdlToGraph (mdl);
       triangulate (g);
       jtCurrent = buildJtStructure();
       mdl.setInferenceCache(JunctionTreeInferencer.class, jtCurrent);
+      if (key != null) {
+        planMisses++;
+        planCache.put (key, JunctionTreePlan.create (mdl, jtCurrent));
+      }
     }
 
     initJtCpts(mdl, jtCurrent);
     return jtCurrent;
   }
 
+  /**
+   * Sets how many junction tree structures to remember.  A factor graph with
+   *  the same structure as one seen before, such as an ACRF unrolled for
+   *  another sequence of the same length, reuses its clusters and tree
+   *  instead of being triangulated again.  The cache is shared with
+   *  duplicates of this inferencer.  The default size is 1000; 0 disables it.
+   */
+  public void setPlanCacheSize (int size)
+  {
+    planCacheSize = size;
+    planCache = createPlanCache (size);
+  }
+
+  public int getPlanCacheSize () { return planCacheSize; }
+
+  /** Returns how many junction trees were built from a cached structure. */
+  public int getPlanCacheHits () { return planHits; }
+
+  /** Returns how many junction trees were triangulated and then cached. */
+  public int getPlanCacheMisses () { return planMisses; }
+
+  private static Map createPlanCache (final int maxSize)
+  {
+    return Collections.synchronizedMap (new LinkedHashMap (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry eldest)
+      {
+        return size () > maxSize;
+      }
+    });
+  }
+
   private UndirectedGraph dupGraph (UndirectedGraph original)
   {
     UndirectedGraph copy = new SimpleGraph ();
@@ -534,6 +595,8 @@ public class JunctionTreeInferencer extends AbstractInferencer {
 
   private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
      in.defaultReadObject ();
+     planCacheSize = DEFAULT_PLAN_CACHE_SIZE;
+     planCache = createPlanCache (planCacheSize);
   }
 
 } // JunctionTreeInferencer
@@ -0,0 +1,169 @@
+/* Copyright (C) 2003 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.grmm.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import cc.mallet.grmm.types.*;
+
+/**
+ * The compiled structure of a junction tree, in terms of variable and factor
+ *  positions in a FactorGraph rather than the objects themselves.  This is
+ *  the clusters found by triangulation, the tree over them (which fixes the
+ *  order in which propagation sends messages), and the cluster that each
+ *  factor is multiplied into.
+ * <p>
+ * Any factor graph with the same {@link #keyOf structure key} (the same
+ *  number of variables, with the same numbers of outcomes, and the same
+ *  factors over the same variable positions, in the same order) can use the
+ *  plan to get a junction tree without triangulating again.
+ *
+ * @see JunctionTreeInferencer#setPlanCacheSize(int)
+ */
+class JunctionTreePlan {
+
+  /** Variables of cluster i are clusterVars[i]; cluster 0 is the root */
+  private final int[][] clusterVars;
+  /** Parent of each cluster, which always precedes it; -1 for the root */
+  private final int[] parents;
+  /** Cluster that each factor of the graph is multiplied into */
+  private final int[] factorClusters;
+
+  private JunctionTreePlan (int[][] clusterVars, int[] parents, int[] factorClusters)
+  {
+    this.clusterVars = clusterVars;
+    this.parents = parents;
+    this.factorClusters = factorClusters;
+  }
+
+  /** Records the structure of JT, which was built for the graph MDL. */
+  static JunctionTreePlan create (FactorGraph mdl, JunctionTree jt)
+  {
+    List clusters = new ArrayList ();
+    for (Iterator it = jt.getVerticesIterator (); it.hasNext ();) {
+      clusters.add (it.next ());
+    }
+
+    int n = clusters.size ();
+    int[][] clusterVars = new int [n][];
+    int[] parents = new int [n];
+    for (int i = 0; i < n; i++) {
+      VarSet c = (VarSet) clusters.get (i);
+      assert jt.getId (c) == i;
+      clusterVars [i] = new int [c.size ()];
+      for (int vi = 0; vi < c.size (); vi++) {
+        clusterVars [i][vi] = mdl.getIndex (c.get (vi));
+      }
+      Object parent = jt.getParent (c);
+      parents [i] = (parent == null) ? -1 : jt.getId ((VarSet) parent);
+      assert parents [i] < i;
+    }
+
+    int[] factorClusters = new int [mdl.factors ().size ()];
+    int fi = 0;
+    for (Iterator it = mdl.factorsIterator (); it.hasNext ();) {
+      Factor ptl = (Factor) it.next ();
+      factorClusters [fi++] = jt.getId (jt.findParentCluster (ptl.varSet ()));
+    }
+
+    return new JunctionTreePlan (clusterVars, parents, factorClusters);
+  }
+
+  /** Returns an empty junction tree for MDL, which must have the structure key of this plan. */
+  JunctionTree createJunctionTree (FactorGraph mdl)
+  {
+    int n = clusterVars.length;
+    VarSet[] clusters = new VarSet [n];
+    for (int i = 0; i < n; i++) {
+      List vars = new ArrayList (clusterVars [i].length);
+      for (int vi = 0; vi < clusterVars [i].length; vi++) {
+        vars.add (mdl.get (clusterVars [i][vi]));
+      }
+      clusters [i] = new BitVarSet (((Variable) vars.get (0)).getUniverse (), vars);
+    }
+
+    JunctionTree jt = new JunctionTree (n);
+    jt.add (clusters [0]);
+    for (int i = 1; i < n; i++) {
+      jt.addNode (clusters [parents [i]], clusters [i]);
+    }
+    return jt;
+  }
+
+  /**
+   * Multiplies the factors of MDL into the clusters of JT, which this plan
+   *  created.  This does the same as JunctionTreeInferencer does for a new
+   *  tree, without searching for the cluster of each factor.
+   */
+  void initCpts (FactorGraph mdl, JunctionTree jt)
+  {
+    Factor[] cpfs = new Factor [clusterVars.length];
+    for (int c = 0; c < cpfs.length; c++) {
+      cpfs [c] = new ConstantFactor (1.0);
+    }
+
+    int fi = 0;
+    for (Iterator it = mdl.factorsIterator (); it.hasNext ();) {
+      Factor ptl = (Factor) it.next ();
+      int c = factorClusters [fi++];
+      cpfs [c] = cpfs [c].multiply (ptl);
+    }
+
+    int c = 0;
+    for (Iterator it = jt.getVerticesIterator (); it.hasNext ();) {
+      jt.setCPF ((VarSet) it.next (), cpfs [c++]);
+    }
+  }
+
+  /** Returns a key that is equal for factor graphs that can share a plan. */
+  static Key keyOf (FactorGraph mdl)
+  {
+    int numVars = mdl.numVariables ();
+    int size = 2 + numVars;
+    for (Iterator it = mdl.factorsIterator (); it.hasNext ();) {
+      size += 1 + ((Factor) it.next ()).varSet ().size ();
+    }
+
+    int[] key = new int [size];
+    int k = 0;
+    key [k++] = numVars;
+    key [k++] = mdl.factors ().size ();
+    for (int v = 0; v < numVars; v++) {
+      key [k++] = mdl.get (v).getNumOutcomes ();
+    }
+    for (Iterator it = mdl.factorsIterator (); it.hasNext ();) {
+      VarSet vs = ((Factor) it.next ()).varSet ();
+      key [k++] = vs.size ();
+      for (int vi = 0; vi < vs.size (); vi++) {
+        key [k++] = mdl.getIndex (vs.get (vi));
+      }
+    }
+    return new Key (key);
+  }
+
+  static final class Key {
+    private final int[] key;
+    private final int hash;
+
+    Key (int[] key)
+    {
+      this.key = key;
+      this.hash = Arrays.hashCode (key);
+    }
+
+    public int hashCode () { return hash; }
+
+    public boolean equals (Object o)
+    {
+      return (o instanceof Key) && hash == ((Key) o).hash && Arrays.equals (key, ((Key) o).key);
+    }
+  }
+
+}
@@ -63,6 +63,12 @@ class JunctionTreePropagation implements Serializable {
   }
 
 
+  /** Returns a new propagator that uses the same message strategy. */
+  public JunctionTreePropagation duplicate ()
+  {
+    return new JunctionTreePropagation (strategy);
+  }
+
   public int getTotalMessagesSent ()
   {
     return totalMessagesSent;
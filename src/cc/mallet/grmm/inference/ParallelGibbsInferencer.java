@@ -0,0 +1,628 @@
+/* Copyright (C) 2003 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.grmm.inference;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import cc.mallet.grmm.types.*;
+import cc.mallet.util.FastRandoms;
+import cc.mallet.util.Randoms;
+
+/**
+ * Approximate inference by running several Gibbs sampling chains, on
+ *  several threads.
+ * <p>
+ * Before sampling, each factor is turned into a table of log values, and
+ *  each variable gets the list of its factors with its stride in each.  The
+ *  conditional distribution of a variable is then a sum of table lookups,
+ *  rather than a product of factors as in {@link GibbsSampler}.
+ * <p>
+ * Each chain has its own random stream, seeded from this inferencer's, and
+ *  starts from a random assignment (or, if that has zero probability, the
+ *  feasible assignment that GibbsSampler would use).  By default, the chains
+ *  are divided among the threads.  In chromatic mode, the chains instead run
+ *  one at a time, and the variables are colored so that no two variables of
+ *  the same color share a factor; each color is then sampled by all threads
+ *  at once.  This suits a few chains on a large model.  Each color is cut
+ *  into blocks of a fixed number of variables, each with its own random
+ *  stream, and the threads share out whole blocks, so in either mode the
+ *  samples do not depend on the number of threads.
+ * <p>
+ * Marginals of single variables, and of sets of variables that are the
+ *  domain of some factor, are estimated from the samples of all chains.
+ *  {@link #getRHat(Variable)} gives the Gelman-Rubin potential scale
+ *  reduction of each variable's marginal over the chains, which should be
+ *  close to 1 when they have mixed.
+ *
+ * @see SamplingInferencer
+ */
+public class ParallelGibbsInferencer extends AbstractInferencer {
+
+  private int numChains = 4;
+  private int burnin = 100;
+  private int numSamples = 1000;
+  private int numThreads = 1;
+  private boolean chromatic = false;
+
+  // Variables per random stream in chromatic mode
+  private static final int BLOCK_SIZE = 64;
+
+  private Randoms r = new FastRandoms (324231);
+
+  transient private ExecutorService executor;
+
+  // Results of the last call to computeMarginals
+  transient private FactorGraph mdlCurrent;
+  transient private Model model;
+  transient private double[][] varCounts;
+  transient private double[][] factorCounts;
+  transient private double[] rHat;
+
+  public ParallelGibbsInferencer () {}
+
+  /**
+   * @param numChains Number of independent chains
+   * @param burnin Number of sweeps each chain makes before it is sampled
+   * @param numSamples Number of samples taken from each chain, one per sweep
+   */
+  public ParallelGibbsInferencer (int numChains, int burnin, int numSamples)
+  {
+    this.numChains = numChains;
+    this.burnin = burnin;
+    this.numSamples = numSamples;
+  }
+
+  public ParallelGibbsInferencer (int numChains, int burnin, int numSamples, int numThreads)
+  {
+    this (numChains, burnin, numSamples);
+    setNumThreads (numThreads);
+  }
+
+  public ParallelGibbsInferencer setNumThreads (int numThreads)
+  {
+    if (numThreads < 1)
+      throw new IllegalArgumentException ("Need at least one thread, not "+numThreads);
+    shutdown ();
+    this.numThreads = numThreads;
+    return this;
+  }
+
+  public int getNumThreads () { return numThreads; }
+
+  public ParallelGibbsInferencer setChromatic (boolean chromatic)
+  {
+    this.chromatic = chromatic;
+    return this;
+  }
+
+  public boolean isChromatic () { return chromatic; }
+
+  public ParallelGibbsInferencer setRandom (Randoms r)
+  {
+    this.r = r;
+    return this;
+  }
+
+  /** Stops the worker threads, if any.  They are restarted if needed. */
+  public void shutdown ()
+  {
+    if (executor != null) {
+      executor.shutdown ();
+      executor = null;
+    }
+  }
+
+  protected Object clone () throws CloneNotSupportedException
+  {
+    ParallelGibbsInferencer dup = (ParallelGibbsInferencer) super.clone ();
+    dup.executor = null;
+    dup.r = new FastRandoms (r.nextLong ());
+    return dup;
+  }
+
+  public void computeMarginals (FactorGraph mdl)
+  {
+    mdlCurrent = mdl;
+    model = new Model (mdl, chromatic);
+
+    Chain[] chains = new Chain [numChains];
+    for (int c = 0; c < numChains; c++) {
+      chains [c] = new Chain (model, new FastRandoms (r.nextLong ()));
+    }
+
+    if (numThreads == 1) {
+      for (int c = 0; c < numChains; c++) chains [c].run (null);
+    } else if (chromatic) {
+      for (int c = 0; c < numChains; c++) chains [c].run (executor ());
+    } else {
+      List tasks = new ArrayList (numChains);
+      for (int c = 0; c < numChains; c++) {
+        final Chain chain = chains [c];
+        tasks.add (new Callable () {
+          public Object call () { chain.run (null); return null; }
+        });
+      }
+      invokeAll (executor (), tasks);
+    }
+
+    collectCounts (chains);
+  }
+
+  private ExecutorService executor ()
+  {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool (numThreads, new ThreadFactory () {
+        public Thread newThread (Runnable r) {
+          Thread t = new Thread (r, "ParallelGibbsInferencer worker");
+          t.setDaemon (true);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+
+  private static void invokeAll (ExecutorService executor, List tasks)
+  {
+    try {
+      List futures = executor.invokeAll (tasks);
+      for (Iterator it = futures.iterator (); it.hasNext ();) {
+        ((Future) it.next ()).get ();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException (e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException (e.getCause ());
+    }
+  }
+
+  private void collectCounts (Chain[] chains)
+  {
+    int numVars = model.numVars;
+    varCounts = new double [numVars][];
+    rHat = new double [numVars];
+    for (int v = 0; v < numVars; v++) {
+      varCounts [v] = new double [model.outcomes [v]];
+      for (int c = 0; c < chains.length; c++) {
+        for (int k = 0; k < varCounts [v].length; k++) {
+          varCounts [v][k] += chains [c].varCounts [v][k];
+        }
+      }
+      rHat [v] = computeRHat (chains, v);
+    }
+
+    factorCounts = new double [model.logTables.length][];
+    for (int f = 0; f < factorCounts.length; f++) {
+      factorCounts [f] = new double [model.logTables [f].length];
+      for (int c = 0; c < chains.length; c++) {
+        for (int i = 0; i < factorCounts [f].length; i++) {
+          factorCounts [f][i] += chains [c].factorCounts [f][i];
+        }
+      }
+    }
+  }
+
+  // Gelman-Rubin statistic for the indicator of each outcome, maximized over outcomes
+  private double computeRHat (Chain[] chains, int v)
+  {
+    int m = chains.length;
+    double n = numSamples;
+    if (m < 2 || n < 2) return Double.NaN;
+
+    double maxR = 1;
+    for (int k = 0; k < model.outcomes [v]; k++) {
+      double meanOfMeans = 0;
+      double W = 0;
+      for (int c = 0; c < m; c++) {
+        double p = chains [c].varCounts [v][k] / n;
+        meanOfMeans += p / m;
+        W += n / (n - 1) * p * (1 - p) / m;
+      }
+      double B = 0;
+      for (int c = 0; c < m; c++) {
+        double diff = chains [c].varCounts [v][k] / n - meanOfMeans;
+        B += n * diff * diff / (m - 1);
+      }
+
+      double R;
+      if (W == 0) {
+        R = (B == 0) ? 1 : Double.POSITIVE_INFINITY;
+      } else {
+        double V = (n - 1) / n * W + B / n;
+        R = Math.sqrt (V / W);
+      }
+      maxR = Math.max (maxR, R);
+    }
+    return maxR;
+  }
+
+  public Factor lookupMarginal (Variable var)
+  {
+    int v = mdlCurrent.getIndex (var);
+    if (v < 0)
+      throw new IllegalArgumentException ("Cannot find variable "+var+" in factor graph "+mdlCurrent);
+    TableFactor marg = new TableFactor (var, (double[]) varCounts [v].clone ());
+    marg.normalize ();
+    return marg;
+  }
+
+  /**
+   * Returns the marginal of a single variable, or of the domain of a factor
+   *  in the graph.
+   */
+  public Factor lookupMarginal (VarSet varSet)
+  {
+    if (varSet.size () == 1) {
+      return lookupMarginal (varSet.get (0));
+    }
+
+    List factors = mdlCurrent.allFactorsOf (varSet);
+    if (factors.isEmpty ()) {
+      throw new UnsupportedOperationException
+              ("Cannot compute marginal of " + varSet + ": Must be either a single variable or a factor in the graph.");
+    }
+
+    Factor factor = (Factor) factors.get (0);
+    int f = model.indexOf (factor);
+    TableFactor marg = new TableFactor (factor.varSet (), (double[]) factorCounts [f].clone ());
+    marg.normalize ();
+    return marg;
+  }
+
+  /**
+   * Returns the potential scale reduction of the marginal of VAR in the last
+   *  call to computeMarginals, or NaN with fewer than two chains.
+   */
+  public double getRHat (Variable var)
+  {
+    return rHat [mdlCurrent.getIndex (var)];
+  }
+
+  /** Returns the largest potential scale reduction of any variable. */
+  public double getMaxRHat ()
+  {
+    double max = Double.NaN;
+    for (int v = 0; v < rHat.length; v++) {
+      if (Double.isNaN (max) || rHat [v] > max) max = rHat [v];
+    }
+    return max;
+  }
+
+  /**
+   * A factor graph compiled for sampling: every factor as a dense table of log
+   *  values, and for each variable its factors and its stride in each.
+   */
+  private static class Model {
+    final int numVars;
+    final int[] outcomes;
+
+    final double[][] logTables;
+    final int[][] factorVars;
+    final int[][] factorStrides;
+
+    final int[][] varFactors;
+    final int[][] varStrides;
+
+    final int[][] colors;     // variables of each color, or one class with all if not chromatic
+
+    private final IdentityHashMap factorIndices = new IdentityHashMap ();
+
+    Model (FactorGraph mdl, boolean chromatic)
+    {
+      numVars = mdl.numVariables ();
+      outcomes = new int [numVars];
+      for (int v = 0; v < numVars; v++) {
+        outcomes [v] = mdl.get (v).getNumOutcomes ();
+      }
+
+      int numFactors = mdl.factors ().size ();
+      logTables = new double [numFactors][];
+      factorVars = new int [numFactors][];
+      factorStrides = new int [numFactors][];
+      int[] degree = new int [numVars];
+
+      int f = 0;
+      for (Iterator it = mdl.factorsIterator (); it.hasNext (); f++) {
+        Factor factor = (Factor) it.next ();
+        factorIndices.put (factor, new Integer (f));
+        VarSet vs = factor.varSet ();
+        int size = vs.size ();
+        factorVars [f] = new int [size];
+        factorStrides [f] = new int [size];
+        int stride = 1;
+        for (int i = size - 1; i >= 0; i--) {
+          factorVars [f][i] = mdl.getIndex (vs.get (i));
+          factorStrides [f][i] = stride;
+          stride *= vs.get (i).getNumOutcomes ();
+          degree [factorVars [f][i]]++;
+        }
+        logTables [f] = logTable (factor, stride);
+      }
+
+      varFactors = new int [numVars][];
+      varStrides = new int [numVars][];
+      for (int v = 0; v < numVars; v++) {
+        varFactors [v] = new int [degree [v]];
+        varStrides [v] = new int [degree [v]];
+      }
+      int[] fill = new int [numVars];
+      for (f = 0; f < numFactors; f++) {
+        for (int i = 0; i < factorVars [f].length; i++) {
+          int v = factorVars [f][i];
+          varFactors [v][fill [v]] = f;
+          varStrides [v][fill [v]] = factorStrides [f][i];
+          fill [v]++;
+        }
+      }
+
+      colors = chromatic ? colorVariables () : new int[][] { allVariables () };
+    }
+
+    // Log values of FACTOR, in row-major order over its varSet
+    private static double[] logTable (Factor factor, int size)
+    {
+      double[] table = new double [size];
+      if (factor instanceof AbstractTableFactor) {
+        Arrays.fill (table, Double.NEGATIVE_INFINITY);
+        for (AssignmentIterator it = factor.assignmentIterator (); it.hasNext (); it.advance ()) {
+          table [it.indexOfCurrentAssn ()] = factor.logValue (it);
+        }
+      } else {
+        AssignmentIterator it = new TableFactor (factor.varSet ()).assignmentIterator ();
+        for (int i = 0; it.hasNext (); it.advance (), i++) {
+          table [i] = factor.logValue (it.assignment ());
+        }
+      }
+      return table;
+    }
+
+    private int[] allVariables ()
+    {
+      int[] all = new int [numVars];
+      for (int v = 0; v < numVars; v++) all [v] = v;
+      return all;
+    }
+
+    // Greedy coloring, so that no two variables of a color share a factor
+    private int[][] colorVariables ()
+    {
+      int[] color = new int [numVars];
+      Arrays.fill (color, -1);
+      int numColors = 0;
+      boolean[] used = new boolean [numVars + 1];
+      for (int v = 0; v < numVars; v++) {
+        Arrays.fill (used, false);
+        for (int j = 0; j < varFactors [v].length; j++) {
+          int[] vars = factorVars [varFactors [v][j]];
+          for (int i = 0; i < vars.length; i++) {
+            if (color [vars [i]] >= 0) used [color [vars [i]]] = true;
+          }
+        }
+        int c = 0;
+        while (used [c]) c++;
+        color [v] = c;
+        numColors = Math.max (numColors, c + 1);
+      }
+
+      int[] sizes = new int [numColors];
+      for (int v = 0; v < numVars; v++) sizes [color [v]]++;
+      int[][] classes = new int [numColors][];
+      for (int c = 0; c < numColors; c++) classes [c] = new int [sizes [c]];
+      Arrays.fill (sizes, 0);
+      for (int v = 0; v < numVars; v++) classes [color [v]][sizes [color [v]]++] = v;
+      return classes;
+    }
+
+    int indexOf (Factor factor)
+    {
+      return ((Integer) factorIndices.get (factor)).intValue ();
+    }
+
+    /** Index of the cell of factor F for the assignment STATE. */
+    int cellOf (int f, int[] state)
+    {
+      int idx = 0;
+      int[] vars = factorVars [f];
+      for (int i = 0; i < vars.length; i++) {
+        idx += state [vars [i]] * factorStrides [f][i];
+      }
+      return idx;
+    }
+
+    double logValue (int[] state)
+    {
+      double logValue = 0;
+      for (int f = 0; f < logTables.length; f++) {
+        logValue += logTables [f][cellOf (f, state)];
+      }
+      return logValue;
+    }
+
+    /** Samples variable V from its conditional given the rest of STATE. */
+    void sample (int v, int[] state, Randoms r, double[] scratch)
+    {
+      int numOutcomes = outcomes [v];
+      Arrays.fill (scratch, 0, numOutcomes, 0.0);
+      int[] factors = varFactors [v];
+      for (int j = 0; j < factors.length; j++) {
+        int f = factors [j];
+        int stride = varStrides [v][j];
+        int base = cellOf (f, state) - state [v] * stride;
+        double[] table = logTables [f];
+        for (int k = 0; k < numOutcomes; k++) {
+          scratch [k] += table [base + k * stride];
+        }
+      }
+
+      double max = Double.NEGATIVE_INFINITY;
+      for (int k = 0; k < numOutcomes; k++) max = Math.max (max, scratch [k]);
+      double sum = 0;
+      for (int k = 0; k < numOutcomes; k++) {
+        scratch [k] = Math.exp (scratch [k] - max);
+        sum += scratch [k];
+      }
+
+      double u = r.nextUniform () * sum;
+      int k = 0;
+      while (k < numOutcomes - 1 && (u -= scratch [k]) > 0) k++;
+      state [v] = k;
+    }
+  }
+
+  /** One chain: its state, random stream, and counts of its samples. */
+  private class Chain {
+    final Model model;
+    final Randoms rand;
+    final Randoms[][] blockRands;  // for each color, the stream of each block, if chromatic
+    final int[] state;
+    final double[][] varCounts;
+    final double[][] factorCounts;
+
+    Chain (Model model, Randoms rand)
+    {
+      this.model = model;
+      this.rand = rand;
+      state = initialState ();
+      blockRands = chromatic ? createBlockRandoms () : null;
+      varCounts = new double [model.numVars][];
+      for (int v = 0; v < model.numVars; v++) varCounts [v] = new double [model.outcomes [v]];
+      factorCounts = new double [model.logTables.length][];
+      for (int f = 0; f < factorCounts.length; f++) factorCounts [f] = new double [model.logTables [f].length];
+    }
+
+    private int[] initialState ()
+    {
+      int[] state = new int [model.numVars];
+      for (int v = 0; v < state.length; v++) state [v] = rand.nextInt (model.outcomes [v]);
+      if (model.logValue (state) > Double.NEGATIVE_INFINITY) return state;
+
+      Assignment assn = GibbsSampler.initialAssignment (mdlCurrent);
+      if (assn == null)
+        throw new IllegalArgumentException ("ParallelGibbsInferencer: Could not find feasible assignment for model "+mdlCurrent);
+      for (int v = 0; v < state.length; v++) state [v] = assn.get (mdlCurrent.get (v));
+      return state;
+    }
+
+    private Randoms[][] createBlockRandoms ()
+    {
+      Randoms[][] blockRands = new Randoms [model.colors.length][];
+      for (int c = 0; c < model.colors.length; c++) {
+        int numBlocks = (model.colors [c].length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blockRands [c] = new Randoms [numBlocks];
+        for (int b = 0; b < numBlocks; b++) blockRands [c][b] = new FastRandoms (rand.nextLong ());
+      }
+      return blockRands;
+    }
+
+    /** Runs the chain, sampling each color on EXECUTOR if it is not null. */
+    void run (ExecutorService executor)
+    {
+      List tasks = (executor == null) ? null : createColorTasks ();
+      double[] scratch = new double [maxOutcomes ()];
+
+      for (int i = 0; i < burnin + numSamples; i++) {
+        if (executor != null) {
+          for (int c = 0; c < tasks.size (); c++) invokeAll (executor, (List) tasks.get (c));
+        } else if (blockRands != null) {
+          for (int c = 0; c < model.colors.length; c++) {
+            sampleBlocks (c, 0, blockRands [c].length, scratch);
+          }
+        } else {
+          for (int c = 0; c < model.colors.length; c++) {
+            int[] vars = model.colors [c];
+            for (int vi = 0; vi < vars.length; vi++) model.sample (vars [vi], state, rand, scratch);
+          }
+        }
+        if (i >= burnin) addSample ();
+      }
+    }
+
+    // Samples blocks FIRST until LAST of color C, each block with its own random stream
+    private void sampleBlocks (int c, int first, int last, double[] scratch)
+    {
+      int[] vars = model.colors [c];
+      for (int b = first; b < last; b++) {
+        Randoms blockRand = blockRands [c][b];
+        int end = Math.min (vars.length, (b + 1) * BLOCK_SIZE);
+        for (int vi = b * BLOCK_SIZE; vi < end; vi++) model.sample (vars [vi], state, blockRand, scratch);
+      }
+    }
+
+    // For each color, tasks that sample an equal share of its blocks
+    private List createColorTasks ()
+    {
+      List tasks = new ArrayList (model.colors.length);
+      for (int c = 0; c < model.colors.length; c++) {
+        final int color = c;
+        int numBlocks = blockRands [c].length;
+        List colorTasks = new ArrayList (numThreads);
+        for (int t = 0; t < numThreads; t++) {
+          final int first = numBlocks * t / numThreads;
+          final int last = numBlocks * (t + 1) / numThreads;
+          if (first == last) continue;
+          final double[] scratch = new double [maxOutcomes ()];
+          colorTasks.add (new Callable () {
+            public Object call ()
+            {
+              sampleBlocks (color, first, last, scratch);
+              return null;
+            }
+          });
+        }
+        tasks.add (colorTasks);
+      }
+      return tasks;
+    }
+
+    private int maxOutcomes ()
+    {
+      int max = 1;
+      for (int v = 0; v < model.numVars; v++) max = Math.max (max, model.outcomes [v]);
+      return max;
+    }
+
+    private void addSample ()
+    {
+      for (int v = 0; v < state.length; v++) varCounts [v][state [v]]++;
+      for (int f = 0; f < factorCounts.length; f++) factorCounts [f][model.cellOf (f, state)]++;
+    }
+  }
+
+  // Serialization
+  private static final long serialVersionUID = 1;
+  private static final int CURRENT_SERIAL_VERSION = 1;
+
+  private void writeObject (ObjectOutputStream out) throws IOException
+  {
+    out.defaultWriteObject ();
+    out.writeInt (CURRENT_SERIAL_VERSION);
+  }
+
+  private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject ();
+    in.readInt ();  // version
+  }
+
+  public String toString ()
+  {
+    return "(ParallelGibbsInferencer: "+numChains+" chains, "+numThreads+" threads"+(chromatic ? ", chromatic" : "")+")";
+  }
+}
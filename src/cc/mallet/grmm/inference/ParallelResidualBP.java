@@ -0,0 +1,565 @@
+/* Copyright (C) 2003 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.grmm.inference;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import cc.mallet.grmm.types.*;
+
+/**
+ * Residual belief propagation that updates variables on several threads at once.
+ * <p>
+ * Each variable has a residual: the largest change, since it was last updated,
+ *  in any message sent to one of its factors by another variable.  Updating a
+ *  variable recomputes the messages from its factors to it, and then its
+ *  messages back to those factors, raising the residuals of their other
+ *  variables.  Inference stops when no residual is above the threshold.
+ * <p>
+ * Variables waiting to be updated are kept in several priority queues rather
+ *  than one.  A thread takes the variable with the larger residual from two
+ *  queues chosen at random, so threads rarely wait on each other, and the
+ *  update order is close to that of a single queue.  With one thread there is
+ *  a single queue and this is ordinary residual BP.  Threads may read messages
+ *  that a neighbour is replacing; as in any asynchronous BP, they then see the
+ *  old message, and the neighbour's update reschedules them.
+ * <p>
+ * Supports sum-product (the default) and max-product, without damping.
+ *  After computeMarginals, {@link #getMessagesPerSecond()},
+ *  {@link #getUpdatesUsedLastTime()} and {@link #getMaxResidual()} describe
+ *  the run.
+ *
+ * @see ResidualBP
+ */
+public class ParallelResidualBP extends AbstractBeliefPropagation {
+
+  public static final int DEFAULT_MAX_ITER = 1000;
+
+  private static final int IDLE = 0;
+  private static final int QUEUED = 1;
+  private static final int RUNNING = 2;
+  private static final int RUNNING_DIRTY = 3;   // rescheduled while being updated
+
+  private int numThreads;
+  private int maxIter;
+  private double threshold = 0.00001;
+  private Random rand = new Random ();
+
+  transient private ExecutorService executor;
+
+  // Statistics of the last call to computeMarginals
+  transient private long lastUpdates;
+  transient private long lastMessages;
+  transient private long lastMillis;
+  transient private double lastMaxResidual;
+  transient private boolean lastConverged;
+
+  public ParallelResidualBP ()
+  {
+    this (Runtime.getRuntime ().availableProcessors ());
+  }
+
+  public ParallelResidualBP (int numThreads)
+  {
+    this (new SumProductMessageStrategy (), numThreads, DEFAULT_MAX_ITER);
+  }
+
+  /**
+   * @param messager Either a SumProductMessageStrategy or a MaxProductMessageStrategy
+   * @param maxIter The maximum number of updates, as a multiple of the number of variables
+   */
+  public ParallelResidualBP (MessageStrategy messager, int numThreads, int maxIter)
+  {
+    super (messager);
+    if (numThreads < 1)
+      throw new IllegalArgumentException ("Need at least one thread, not "+numThreads);
+    this.numThreads = numThreads;
+    this.maxIter = maxIter;
+  }
+
+  public static Inferencer createForMaxProduct ()
+  {
+    return new ParallelResidualBP (new MaxProductMessageStrategy (), Runtime.getRuntime ().availableProcessors (), DEFAULT_MAX_ITER);
+  }
+
+  public static Inferencer createForMaxProduct (int numThreads)
+  {
+    return new ParallelResidualBP (new MaxProductMessageStrategy (), numThreads, DEFAULT_MAX_ITER);
+  }
+
+  public ParallelResidualBP setRand (Random rand)
+  {
+    this.rand = rand;
+    return this;
+  }
+
+  public ParallelResidualBP setThreshold (double threshold)
+  {
+    this.threshold = threshold;
+    return this;
+  }
+
+  public void setUseCaching (boolean useCaching) { this.useCaching = useCaching; }
+
+  public int getNumThreads () { return numThreads; }
+
+  /** Returns the number of variable updates during the last call to computeMarginals. */
+  public long getUpdatesUsedLastTime () { return lastUpdates; }
+
+  /** Returns the number of messages sent per second during the last call to computeMarginals. */
+  public double getMessagesPerSecond ()
+  {
+    return (lastMillis == 0) ? 0 : lastMessages * 1000.0 / lastMillis;
+  }
+
+  /** Returns the largest residual left when the last call to computeMarginals stopped. */
+  public double getMaxResidual () { return lastMaxResidual; }
+
+  /** Returns whether the last call to computeMarginals converged before running out of updates. */
+  public boolean isConverged () { return lastConverged; }
+
+  /** Stops the worker threads, if any.  They are restarted if needed. */
+  public void shutdown ()
+  {
+    if (executor != null) {
+      executor.shutdown ();
+      executor = null;
+    }
+  }
+
+  protected Object clone () throws CloneNotSupportedException
+  {
+    ParallelResidualBP dup = (ParallelResidualBP) super.clone ();
+    dup.executor = null;
+    return dup;
+  }
+
+  public void computeMarginals (FactorGraph mdl)
+  {
+    initForGraph (mdl);
+    resetMessagesSentAtStart ();
+
+    long start = System.currentTimeMillis ();
+    Schedule schedule = new Schedule (mdl);
+    if (numThreads == 1 || mdl.numVariables () < 2) {
+      schedule.new Worker (rand.nextLong ()).call ();
+    } else {
+      runWorkers (schedule);
+    }
+    lastMillis = System.currentTimeMillis () - start;
+
+    schedule.copyMessagesTo (getMessageArray ());
+    lastUpdates = schedule.updates.get ();
+    lastMessages = 2 * schedule.messages.get ();
+    lastMaxResidual = schedule.maxResidual ();
+    lastConverged = schedule.active.get () == 0;
+    addMessagesSent ((int) lastMessages);
+
+    int numVars = Math.max (1, mdl.numVariables ());
+    iterUsed = (int) ((lastUpdates + numVars - 1) / numVars);
+    if (lastConverged) {
+      logger.info ("***ParallelResidualBP converged: "+lastUpdates+" updates, "
+              + (int) getMessagesPerSecond ()+" messages/sec");
+    } else {
+      logger.info ("***ParallelResidualBP quitting: not converged after "+lastUpdates+" updates, max residual "+lastMaxResidual);
+    }
+
+    doneWithGraph (mdl);
+  }
+
+  private void runWorkers (Schedule schedule)
+  {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool (numThreads, new ThreadFactory () {
+        public Thread newThread (Runnable r) {
+          Thread t = new Thread (r, "ParallelResidualBP worker");
+          t.setDaemon (true);
+          return t;
+        }
+      });
+    }
+
+    List futures = new ArrayList (numThreads);
+    for (int t = 0; t < numThreads; t++) {
+      futures.add (executor.submit (schedule.new Worker (rand.nextLong ())));
+    }
+
+    try {
+      for (int t = 0; t < numThreads; t++) {
+        ((Future) futures.get (t)).get ();
+      }
+    } catch (InterruptedException e) {
+      schedule.failed.set (true);
+      throw new RuntimeException (e);
+    } catch (ExecutionException e) {
+      schedule.failed.set (true);
+      throw new RuntimeException (e.getCause ());
+    }
+  }
+
+  /**
+   * The messages and residuals of one call to computeMarginals.  Each edge of
+   *  the factor graph, between a factor and one of its variables, has a number,
+   *  and the edges of a factor are numbered consecutively.
+   */
+  private class Schedule {
+
+    final FactorGraph mdl;
+    final boolean maxProduct;
+    final boolean inLogSpace;
+
+    final Factor[] factors;
+    final int[] factorStart;      // edges of factor f are factorStart[f]..factorStart[f+1]-1
+    final int[] edgeFactor;
+    final Variable[] edgeVar;
+    final int[] edgeVarIdx;
+    final int[][] varEdges;
+
+    final AtomicReferenceArray f2v;
+    final AtomicReferenceArray v2f;
+
+    final AtomicLongArray residual;     // as Double bits
+    final AtomicIntegerArray state;
+    final PriorityQueue[] queues;
+
+    final AtomicInteger active = new AtomicInteger ();   // variables queued or running
+    final AtomicInteger updates = new AtomicInteger ();
+    final AtomicInteger messages = new AtomicInteger ();
+    final AtomicBoolean failed = new AtomicBoolean ();
+    final long maxUpdates;
+
+    Schedule (FactorGraph mdl)
+    {
+      this.mdl = mdl;
+      maxProduct = getMessager () instanceof MaxProductMessageStrategy;
+      MessageArray cached = getMessageArray ();
+      inLogSpace = cached.isInLogSpace ();
+
+      Collection factorList = mdl.factors ();
+      factors = (Factor[]) factorList.toArray (new Factor [factorList.size ()]);
+      factorStart = new int [factors.length + 1];
+      int numEdges = 0;
+      for (int f = 0; f < factors.length; f++) {
+        factorStart [f] = numEdges;
+        numEdges += factors [f].varSet ().size ();
+      }
+      factorStart [factors.length] = numEdges;
+
+      int numVars = mdl.numVariables ();
+      edgeFactor = new int [numEdges];
+      edgeVar = new Variable [numEdges];
+      edgeVarIdx = new int [numEdges];
+      int[] degree = new int [numVars];
+      for (int f = 0; f < factors.length; f++) {
+        VarSet vs = factors [f].varSet ();
+        for (int k = 0; k < vs.size (); k++) {
+          int e = factorStart [f] + k;
+          edgeFactor [e] = f;
+          edgeVar [e] = vs.get (k);
+          edgeVarIdx [e] = mdl.getIndex (edgeVar [e]);
+          degree [edgeVarIdx [e]]++;
+        }
+      }
+      varEdges = new int [numVars][];
+      for (int v = 0; v < numVars; v++) varEdges [v] = new int [degree [v]];
+      int[] fill = new int [numVars];
+      for (int e = 0; e < numEdges; e++) {
+        int v = edgeVarIdx [e];
+        varEdges [v][fill [v]++] = e;
+      }
+
+      // Start from the cached messages, if any, or else uniform ones
+      f2v = new AtomicReferenceArray (numEdges);
+      v2f = new AtomicReferenceArray (numEdges);
+      for (int e = 0; e < numEdges; e++) {
+        Factor factor = factors [edgeFactor [e]];
+        Factor msg = cached.get (factor, edgeVar [e]);
+        f2v.set (e, (msg != null) ? msg : uniform (edgeVar [e]));
+        msg = cached.get (edgeVar [e], factor);
+        v2f.set (e, (msg != null) ? msg : uniform (edgeVar [e]));
+      }
+
+      // Every variable starts out queued
+      residual = new AtomicLongArray (numVars);
+      state = new AtomicIntegerArray (numVars);
+      queues = new PriorityQueue [(numThreads == 1) ? 1 : 2 * numThreads];
+      for (int q = 0; q < queues.length; q++) queues [q] = new PriorityQueue ();
+      for (int v = 0; v < numVars; v++) {
+        residual.set (v, Double.doubleToLongBits (Double.POSITIVE_INFINITY));
+        state.set (v, QUEUED);
+        queues [v % queues.length].add (new Entry (v, Double.POSITIVE_INFINITY));
+      }
+      active.set (numVars);
+      maxUpdates = (long) maxIter * numVars;
+    }
+
+    private Factor uniform (Variable var)
+    {
+      Factor msg = inLogSpace ? (Factor) new LogTableFactor (var) : new TableFactor (var);
+      msg.normalize ();
+      return msg;
+    }
+
+    /** Recomputes the messages into variable V, and then the messages out of it. */
+    void update (int v)
+    {
+      int[] edges = varEdges [v];
+      for (int i = 0; i < edges.length; i++) {
+        int e = edges [i];
+        f2v.set (e, factorMessage (e));
+      }
+
+      for (int i = 0; i < edges.length; i++) {
+        int e = edges [i];
+        Variable var = edgeVar [e];
+        Factor msg = uniform (var);
+        for (int j = 0; j < edges.length; j++) {
+          if (j != i) msg.multiplyBy ((Factor) f2v.get (edges [j]));
+        }
+        msg.normalize ();
+
+        double diff = difference ((Factor) v2f.get (e), msg);
+        v2f.set (e, msg);
+        if (diff > threshold) {
+          int f = edgeFactor [e];
+          for (int e2 = factorStart [f]; e2 < factorStart [f+1]; e2++) {
+            if (e2 != e) raise (edgeVarIdx [e2], diff);
+          }
+        }
+      }
+
+      messages.addAndGet (edges.length);
+    }
+
+    private Factor factorMessage (int e)
+    {
+      int f = edgeFactor [e];
+      Factor factor = factors [f];
+      Variable to = edgeVar [e];
+      Factor[] msgs = new Factor [factorStart [f+1] - factorStart [f] - 1];
+      int m = 0;
+      for (int e2 = factorStart [f]; e2 < factorStart [f+1]; e2++) {
+        if (e2 != e) msgs [m++] = (Factor) v2f.get (e2);
+      }
+
+      Factor msg;
+      if (!maxProduct && factor instanceof AbstractTableFactor) {
+        msg = ((AbstractTableFactor) factor).multiplyAndMarginalize (msgs, to);
+      } else {
+        Factor product = factor.duplicate ();
+        for (int i = 0; i < msgs.length; i++) product.multiplyBy (msgs [i]);
+        msg = maxProduct ? product.extractMax (to) : product.marginalize (to);
+      }
+      msg.normalize ();
+      return msg;
+    }
+
+    // Largest absolute difference between two messages over the same variable
+    private double difference (Factor oldMsg, Factor newMsg)
+    {
+      double maxDiff = 0;
+      for (AssignmentIterator it = oldMsg.assignmentIterator (); it.hasNext (); it.advance ()) {
+        double diff = Math.abs (oldMsg.value (it) - newMsg.value (it));
+        if (diff > maxDiff) maxDiff = diff;
+      }
+      return maxDiff;
+    }
+
+    /** Raises the residual of variable V to at least R, and schedules it. */
+    void raise (int v, double r)
+    {
+      boolean raised = false;
+      while (true) {
+        long bits = residual.get (v);
+        if (Double.longBitsToDouble (bits) >= r) break;
+        if (residual.compareAndSet (v, bits, Double.doubleToLongBits (r))) {
+          raised = true;
+          break;
+        }
+      }
+
+      while (true) {
+        int s = state.get (v);
+        if (s == IDLE) {
+          if (state.compareAndSet (v, IDLE, QUEUED)) {
+            active.incrementAndGet ();
+            push (v, r);
+            return;
+          }
+        } else if (s == QUEUED) {
+          // The old entry may have a lower priority; the stale one is skipped when popped.
+          if (raised) push (v, r);
+          return;
+        } else if (s == RUNNING) {
+          if (state.compareAndSet (v, RUNNING, RUNNING_DIRTY)) return;
+        } else {
+          return;
+        }
+      }
+    }
+
+    private void push (int v, double priority)
+    {
+      PriorityQueue queue = queues [v % queues.length];
+      synchronized (queue) {
+        queue.add (new Entry (v, priority));
+      }
+    }
+
+    /** Removes a variable with a high residual from the queues, or returns -1 if they look empty. */
+    int pop (Random r)
+    {
+      int n = queues.length;
+      while (true) {
+        PriorityQueue best;
+        if (n == 1) {
+          best = queues [0];
+        } else {
+          PriorityQueue q1 = queues [r.nextInt (n)];
+          PriorityQueue q2 = queues [r.nextInt (n)];
+          best = (topPriority (q1) >= topPriority (q2)) ? q1 : q2;
+        }
+
+        Entry entry = poll (best);
+        if (entry == null) {
+          // The two we looked at were empty; try the rest before giving up
+          int start = r.nextInt (n);
+          for (int q = 0; q < n && entry == null; q++) {
+            entry = poll (queues [(start + q) % n]);
+          }
+          if (entry == null) return -1;
+        }
+
+        if (state.compareAndSet (entry.var, QUEUED, RUNNING)) {
+          residual.set (entry.var, Double.doubleToLongBits (0));
+          return entry.var;
+        }
+        // else a stale entry for a variable that has already been updated
+      }
+    }
+
+    private double topPriority (PriorityQueue queue)
+    {
+      synchronized (queue) {
+        Entry entry = (Entry) queue.peek ();
+        return (entry == null) ? Double.NEGATIVE_INFINITY : entry.priority;
+      }
+    }
+
+    private Entry poll (PriorityQueue queue)
+    {
+      synchronized (queue) {
+        return (Entry) queue.poll ();
+      }
+    }
+
+    /** Marks variable V as updated, requeueing it if it was raised meanwhile. */
+    void finish (int v)
+    {
+      if (state.compareAndSet (v, RUNNING, IDLE)) {
+        active.decrementAndGet ();
+      } else {
+        state.set (v, QUEUED);
+        push (v, Double.longBitsToDouble (residual.get (v)));
+      }
+    }
+
+    double maxResidual ()
+    {
+      double max = 0;
+      for (int v = 0; v < residual.length (); v++) {
+        if (state.get (v) != IDLE) max = Math.max (max, Double.longBitsToDouble (residual.get (v)));
+      }
+      return max;
+    }
+
+    void copyMessagesTo (MessageArray msgs)
+    {
+      for (int e = 0; e < edgeVar.length; e++) {
+        Factor factor = factors [edgeFactor [e]];
+        msgs.put (factor, edgeVar [e], (Factor) f2v.get (e));
+        msgs.put (edgeVar [e], factor, (Factor) v2f.get (e));
+      }
+    }
+
+    class Worker implements Callable {
+      private final Random r;
+
+      Worker (long seed) { r = new Random (seed); }
+
+      public Object call ()
+      {
+        while (!failed.get ()) {
+          if (updates.get () >= maxUpdates) break;
+          int v = pop (r);
+          if (v < 0) {
+            if (active.get () == 0) break;
+            Thread.yield ();  // other threads are still updating, and may queue more
+            continue;
+          }
+          try {
+            update (v);
+          } catch (RuntimeException e) {
+            failed.set (true);
+            throw e;
+          }
+          updates.incrementAndGet ();
+          finish (v);
+        }
+        return null;
+      }
+    }
+  }
+
+  private static class Entry implements Comparable {
+    final int var;
+    final double priority;
+
+    Entry (int var, double priority)
+    {
+      this.var = var;
+      this.priority = priority;
+    }
+
+    // Highest priority first
+    public int compareTo (Object o)
+    {
+      return Double.compare (((Entry) o).priority, priority);
+    }
+  }
+
+  // Serialization
+  private static final long serialVersionUID = 1;
+
+  // If seralization-incompatible changes are made to these classes,
+  //  then smarts can be added to these methods for backward compatibility.
+  private void writeObject (ObjectOutputStream out) throws IOException {
+     out.defaultWriteObject ();
+   }
+
+  private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+     in.defaultReadObject ();
+  }
+
+}
@@ -706,6 +706,10 @@ public class TRP extends AbstractBeliefPropagation {
       if (terminator != null) {
         dup.terminator = (TerminationCondition) terminator.clone ();
       }
+      // The default factory is bound to this TRP's edge-touched table
+      if (factory instanceof AlmostRandomTreeFactory) {
+        dup.factory = null;
+      }
       return dup;
     } catch (CloneNotSupportedException e) {
       // should never happen
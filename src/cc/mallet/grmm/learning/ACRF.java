@@ -14,6 +14,13 @@ import java.util.logging.Logger;
 import java.io.*;
 
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 import gnu.trove.*;
@@ -997,41 +1004,55 @@ public class ACRF implements Serializable {
 
   public UnrolledGraph unroll (Instance inst)
   {
-    UnrolledGraph g;
-    if (cacheUnrolledGraphs && graphCache.containsKey (inst)) {
-      g = (UnrolledGraph) graphCache.get (inst);
+    UnrolledGraph g = cacheUnrolledGraphs ? cachedGraph (inst) : null;
+    if (g != null) {
       g.recomputeFactors ();
     } else {
       g = new UnrolledGraph (inst, templates, fixedPtls);
       if (graphProcessor != null)
         graphProcessor.process (g, inst);
+      if (cacheUnrolledGraphs) cacheGraph (inst, g);
     }
 
-    if (cacheUnrolledGraphs) graphCache.put (inst, g);
-
     return g;
   }
 
   public UnrolledGraph unrollStructureOnly (Instance inst)
   {
-    UnrolledGraph g;
-    if (cacheUnrolledGraphs && graphCache.containsKey (inst)) {
-      g = (UnrolledGraph) graphCache.get (inst);
+    UnrolledGraph g = cacheUnrolledGraphs ? cachedGraph (inst) : null;
+    if (g != null) {
       g.recomputeFactors ();
     } else {
       g = new UnrolledGraph (inst, templates, fixedPtls, false);
       if (graphProcessor != null)
         graphProcessor.process (g, inst);
+      if (cacheUnrolledGraphs) cacheGraph (inst, g);
     }
 
-    if (cacheUnrolledGraphs) graphCache.put (inst, g);
-
     return g;
   }
 
+  // The graph cache is shared by the threads of a multi-threaded MaximizableACRF.
+
+  private UnrolledGraph cachedGraph (Instance inst)
+  {
+    synchronized (graphCache) {
+      return (UnrolledGraph) graphCache.get (inst);
+    }
+  }
+
+  private void cacheGraph (Instance inst, UnrolledGraph g)
+  {
+    synchronized (graphCache) {
+      graphCache.put (inst, g);
+    }
+  }
+
   private void reportOnGraphCache ()
   {
-    logger.info ("Number of cached graphs = "+graphCache.size ());
+    synchronized (graphCache) {
+      logger.info ("Number of cached graphs = "+graphCache.size ());
+    }
   }
 
 
@@ -1052,6 +1073,14 @@ public class ACRF implements Serializable {
 
     protected Inferencer inferencer = globalInferencer.duplicate();
 
+    /** Number of threads that run inference in getValue().  With more than one,
+     *  each thread has its own duplicate of the inferencer, and the marginals are
+     *  added into the expectations in instance order, so the value and gradient
+     *  are the same as with one thread (for deterministic inferencers). */
+    private int numThreads = 1;
+    transient private ExecutorService executor;
+    transient private BlockingQueue<Inferencer> threadInferencers;
+
     /* Vectors that contain the counts of features observed in the
          training data. Maps
          (clique-template x feature-number) => count
@@ -1323,29 +1352,30 @@ public class ACRF implements Serializable {
       resetExpectations();
 
       /* Fill in expectations for each instance */
+      MarginalsPipeline pipeline = (numThreads > 1) ? new MarginalsPipeline () : null;
+      try {
       for (int i = 0; i < numInstances; i++)
       {
         Instance instance = trainData.get(i);
 
         /* Compute marginals for each clique */
-        long unrollStart = System.currentTimeMillis ();
-        UnrolledGraph unrolled = unroll (instance);
-        long unrollEnd = System.currentTimeMillis ();
-        unrollTime += (unrollEnd - unrollStart);
+        InstanceMarginals marginals = (pipeline != null)
+                ? pipeline.take (i)
+                : computeMarginals (instance, inferencer, false);
+        UnrolledGraph unrolled = marginals.unrolled;
+        unrollTime += marginals.unrollTime;
 
-        if (unrolled.numVariables () == 0) continue;   // Happens if all nodes are pruned.
-        inferencer.computeMarginals (unrolled);
-        marginalsTime += (System.currentTimeMillis () - unrollEnd);
+        if (marginals.cliqueMarginals == null) continue;   // Happens if all nodes are pruned.
+        marginalsTime += marginals.marginalsTime;
 
 //				unrolled.dump();
 
         /* Save the expected value of each feature for when we
                compute the gradient. */
-        collectExpectations (unrolled, inferencer);
+        collectExpectations (unrolled, marginals.cliqueMarginals);
 
         /* Add in the joint prob of the labeling. */
-        Assignment jointAssn = unrolled.getAssignment ();
-        double value = inferencer.lookupLogJoint (jointAssn);
+        double value = marginals.logJoint;
 
         if (Double.isInfinite(value))
         {
@@ -1379,6 +1409,9 @@ public class ACRF implements Serializable {
         }
 
       }
+      } finally {
+        if (pipeline != null) pipeline.cancel ();
+      }
 
       if (doSizeScale) {
         retval = retval / trainData.size ();
@@ -1583,13 +1616,14 @@ public class ACRF implements Serializable {
      *    collector[i][j][k]  gets the expected value for the
      *    feature for clique i, label assignment j, and input features k.
      */
-    private void collectExpectations (UnrolledGraph unrolled, Inferencer inferencer)
+    private void collectExpectations (UnrolledGraph unrolled, Factor[] cliqueMarginals)
     {
-      for (Iterator it = unrolled.unrolledVarSetIterator (); it.hasNext();) {
+      int ci = 0;
+      for (Iterator it = unrolled.unrolledVarSetIterator (); it.hasNext(); ci++) {
         UnrolledVarSet clique = (UnrolledVarSet) it.next();
         int tidx = clique.tmpl.index;
         if (tidx == -1) continue;
-        Factor ptl = inferencer.lookupMarginal (clique);
+        Factor ptl = cliqueMarginals [ci];
 
 
         // for each assigment to the clique
@@ -1611,6 +1645,145 @@ public class ACRF implements Serializable {
     }
 
 
+    /** The marginals of one training instance, as needed by computeLogLikelihood(). */
+    private class InstanceMarginals {
+      UnrolledGraph unrolled;
+      /** Marginal of each clique in unrolledVarSetIterator() order, or null if the graph is empty. */
+      Factor[] cliqueMarginals;
+      double logJoint;
+      long unrollTime;
+      long marginalsTime;
+    }
+
+    /**
+     * Unrolls an instance and runs inference on it.  If <tt>copy</tt> is true, the
+     *  marginals are copied so that they stay valid after <tt>inf</tt> is reused.
+     */
+    private InstanceMarginals computeMarginals (Instance instance, Inferencer inf, boolean copy)
+    {
+      InstanceMarginals ret = new InstanceMarginals ();
+      long unrollStart = System.currentTimeMillis ();
+      ret.unrolled = unroll (instance);
+      long unrollEnd = System.currentTimeMillis ();
+      ret.unrollTime = unrollEnd - unrollStart;
+      if (ret.unrolled.numVariables () == 0) return ret;
+
+      inf.computeMarginals (ret.unrolled);
+      List marginals = new ArrayList ();
+      for (Iterator it = ret.unrolled.unrolledVarSetIterator (); it.hasNext();) {
+        UnrolledVarSet clique = (UnrolledVarSet) it.next();
+        if (clique.tmpl.index == -1) {
+          marginals.add (null);
+        } else {
+          Factor ptl = inf.lookupMarginal (clique);
+          marginals.add (copy ? ptl.duplicate () : ptl);
+        }
+      }
+      ret.cliqueMarginals = (Factor[]) marginals.toArray (new Factor [marginals.size ()]);
+      ret.logJoint = inf.lookupLogJoint (ret.unrolled.getAssignment ());
+      ret.marginalsTime = System.currentTimeMillis () - unrollEnd;
+      return ret;
+    }
+
+    /**
+     * Sets the number of threads that compute marginals of the training
+     *  instances.  The default is 1.
+     */
+    public void setNumThreads (int numThreads)
+    {
+      shutdown ();
+      this.numThreads = numThreads;
+    }
+
+    public int getNumThreads () { return numThreads; }
+
+    /** Stops the worker threads, if any.  They are restarted if needed. */
+    public void shutdown ()
+    {
+      if (executor != null) {
+        executor.shutdown ();
+        executor = null;
+      }
+    }
+
+    /**
+     * Computes the marginals of the training instances on the worker threads,
+     *  keeping a bounded window of instances in flight, and hands them back in
+     *  instance order.
+     */
+    private class MarginalsPipeline {
+      private final Future<InstanceMarginals>[] window;
+      private final int numInstances = trainData.size ();
+
+      MarginalsPipeline ()
+      {
+        if (executor == null) {
+          executor = Executors.newFixedThreadPool (numThreads, new ThreadFactory () {
+            public Thread newThread (Runnable r) {
+              Thread t = new Thread (r, "MaximizableACRF worker");
+              t.setDaemon (true);
+              return t;
+            }
+          });
+          threadInferencers = new LinkedBlockingQueue<Inferencer> ();
+          for (int t = 0; t < numThreads; t++)
+            threadInferencers.add (globalInferencer.duplicate ());
+        }
+        window = new Future [4 * numThreads];
+        for (int i = 0; i < window.length && i < numInstances; i++)
+          submit (i);
+      }
+
+      private void submit (final int i)
+      {
+        window [i % window.length] = executor.submit (new java.util.concurrent.Callable<InstanceMarginals> () {
+          public InstanceMarginals call () throws InterruptedException {
+            Inferencer inf = threadInferencers.take ();
+            try {
+              return computeMarginals (trainData.get (i), inf, true);
+            } finally {
+              threadInferencers.put (inf);
+            }
+          }
+        });
+      }
+
+      InstanceMarginals take (int i)
+      {
+        Future<InstanceMarginals> future = window [i % window.length];
+        window [i % window.length] = null;
+        if (i + window.length < numInstances)
+          submit (i + window.length);
+        try {
+          return future.get ();
+        } catch (InterruptedException e) {
+          Thread.currentThread ().interrupt ();
+          throw new IllegalStateException ("Interrupted while computing marginals", e);
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause ();
+          if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+          if (cause instanceof Error) throw (Error) cause;
+          throw new IllegalStateException (cause);
+        }
+      }
+
+      /** Waits for the instances still in flight, so none is unrolled twice at once. */
+      void cancel ()
+      {
+        for (int i = 0; i < window.length; i++) {
+          if (window [i] != null) {
+            window [i].cancel (false);
+            try {
+              window [i].get ();
+            } catch (Exception e) {
+              // Cancelled, or failed after its result was no longer needed
+            }
+            window [i] = null;
+          }
+        }
+      }
+    }
+
     public void collectConstraints (InstanceList ilist)
     {
       for (int inum = 0; inum < ilist.size(); inum++) {
@@ -1705,6 +1878,17 @@ public class ACRF implements Serializable {
         nmsg = ((JunctionTreeInferencer)inferencer).getTotalMessagesSent();
       }
 
+      if (nmsg != -1 && threadInferencers != null) {
+        for (Iterator it = threadInferencers.iterator (); it.hasNext ();) {
+          Object inf = it.next ();
+          if (inf instanceof AbstractBeliefPropagation) {
+            nmsg += ((AbstractBeliefPropagation) inf).getTotalMessagesSent ();
+          } else if (inf instanceof JunctionTreeInferencer) {
+            nmsg += ((JunctionTreeInferencer) inf).getTotalMessagesSent ();
+          }
+        }
+      }
+
       if (nmsg != -1)
         logger.info ("Total messages sent = "+nmsg);
     }
@@ -45,6 +45,7 @@ public class DefaultAcrfTrainer implements ACRFTrainer {
   private static Logger logger = MalletLogger.getLogger (DefaultAcrfTrainer.class.getName ());
   private Optimizer maxer;
   private static boolean rethrowExceptions = false;
+  private int numThreads = 1;
 
   public DefaultAcrfTrainer ()
   {
@@ -71,6 +72,21 @@ public class DefaultAcrfTrainer implements ACRFTrainer {
   }
 
 
+  public int getNumThreads ()
+  {
+    return numThreads;
+  }
+
+  /**
+   * Sets the number of threads used to compute the gradient.
+   *  Has effect only if the optimizable is a MaximizableACRF.
+   */
+  public void setNumThreads (int numThreads)
+  {
+    this.numThreads = numThreads;
+  }
+
+
   public static boolean isRethrowExceptions ()
   {
     return rethrowExceptions;
@@ -122,7 +138,11 @@ public class DefaultAcrfTrainer implements ACRFTrainer {
 
   protected Optimizable.ByGradientValue createOptimizable (ACRF acrf, InstanceList trainingList)
   {
-    return acrf.getMaximizable (trainingList);
+    Optimizable.ByGradientValue macrf = acrf.getMaximizable (trainingList);
+    if (macrf instanceof MaximizableACRF) {
+      ((MaximizableACRF) macrf).setNumThreads (numThreads);
+    }
+    return macrf;
   }
 
 /*
@@ -255,6 +275,7 @@ public class DefaultAcrfTrainer implements ACRFTrainer {
 
     if (macrf instanceof MaximizableACRF) {
       ((MaximizableACRF) macrf).report ();
+      ((MaximizableACRF) macrf).shutdown ();
     }
 
     if ((testSet != null) && (eval != null)) {
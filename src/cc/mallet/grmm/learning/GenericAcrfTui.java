@@ -80,6 +80,10 @@ public class GenericAcrfTui {
           (GenericAcrfTui.class, "cache-graphs", "true|false", true, false,
                   "Whether to use memory-intensive caching.", null);
 
+  static CommandOption.Integer numThreadsOption = new CommandOption.Integer
+          (GenericAcrfTui.class, "num-threads", "INTEGER", true, 1,
+                  "Number of threads used to compute the gradient during training.", null);
+
   static CommandOption.Boolean useTokenText = new CommandOption.Boolean
           (GenericAcrfTui.class, "use-token-text", "true|false", true, false,
                   "Set this to true if first feature in every list is should be considered the text of the " +
@@ -147,8 +151,12 @@ public class GenericAcrfTui {
     ACRF acrf = new ACRF (pipe, tmpls);
     acrf.setInferencer (inf);
     acrf.setViterbiInferencer (maxInf);
+    acrf.setCacheUnrolledGraphs (cacheUnrolledGraph.value);
 
     ACRFTrainer trainer = createTrainer();
+    if (trainer instanceof DefaultAcrfTrainer) {
+      ((DefaultAcrfTrainer) trainer).setNumThreads (numThreadsOption.value);
+    }
     System.err.println ("ACRF Trainer = "+trainer);
     trainer.train (acrf, training, null, testing, eval, 9999);
     timing.tick ("Training");
@@ -7,7 +7,12 @@
 
 package cc.mallet.grmm.test;
 
+import java.util.Iterator;
+import java.util.Random;
+
 import cc.mallet.grmm.inference.GibbsSampler;
+import cc.mallet.grmm.inference.JunctionTreeInferencer;
+import cc.mallet.grmm.inference.ParallelGibbsInferencer;
 import cc.mallet.grmm.types.Factor;
 import cc.mallet.grmm.types.FactorGraph;
 import cc.mallet.grmm.types.TableFactor;
@@ -48,6 +53,77 @@ public class TestGibbsSampler extends TestCase {
   }
 
 
+  public void testParallelGibbsMarginals ()
+  {
+    FactorGraph mdl = TestInference.createRandomGrid (4, 4, 3, new Random (4321));
+    JunctionTreeInferencer jt = new JunctionTreeInferencer ();
+    jt.computeMarginals (mdl);
+
+    ParallelGibbsInferencer[] infs = {
+      new ParallelGibbsInferencer (4, 100, 2500, 2),
+      new ParallelGibbsInferencer (2, 100, 5000, 3).setChromatic (true),
+    };
+
+    for (int i = 0; i < infs.length; i++) {
+      ParallelGibbsInferencer gibbs = infs[i];
+      gibbs.computeMarginals (mdl);
+      gibbs.shutdown ();
+
+      for (Iterator it = mdl.variablesIterator (); it.hasNext ();) {
+        Variable var = (Variable) it.next ();
+        Factor exact = jt.lookupMarginal (var);
+        Factor appx = gibbs.lookupMarginal (var);
+        assertTrue (gibbs+": marginal of "+var+" was "+appx+", should be "+exact, exact.almostEquals (appx, 0.05));
+        assertTrue (gibbs.getRHat (var) < 1.1);
+      }
+
+      for (Iterator it = mdl.factorsIterator (); it.hasNext ();) {
+        Factor factor = (Factor) it.next ();
+        Factor exact = jt.lookupMarginal (factor.varSet ());
+        Factor appx = gibbs.lookupMarginal (factor.varSet ());
+        assertTrue (gibbs+": marginal of "+factor.varSet ()+" was "+appx+", should be "+exact, exact.almostEquals (appx, 0.05));
+      }
+    }
+  }
+
+  // The same seed gives the same samples however many threads there are
+  public void testParallelGibbsDeterministic ()
+  {
+    FactorGraph mdl = TestInference.createRandomGrid (3, 3, 2, new Random (99));
+    ParallelGibbsInferencer gibbs1 = new ParallelGibbsInferencer (3, 10, 200, 1);
+    gibbs1.setRandom (new Randoms (7));
+    gibbs1.computeMarginals (mdl);
+    ParallelGibbsInferencer gibbs3 = new ParallelGibbsInferencer (3, 10, 200, 3);
+    gibbs3.setRandom (new Randoms (7));
+    gibbs3.computeMarginals (mdl);
+    gibbs3.shutdown ();
+
+    for (Iterator it = mdl.variablesIterator (); it.hasNext ();) {
+      Variable var = (Variable) it.next ();
+      assertTrue (gibbs1.lookupMarginal (var).almostEquals (gibbs3.lookupMarginal (var), 0.0));
+    }
+    assertEquals (gibbs1.getMaxRHat (), gibbs3.getMaxRHat (), 0.0);
+  }
+
+  // In chromatic mode too, on a grid with several blocks of variables per color
+  public void testChromaticGibbsDeterministic ()
+  {
+    FactorGraph mdl = TestInference.createRandomGrid (15, 15, 2, new Random (99));
+    ParallelGibbsInferencer gibbs1 = new ParallelGibbsInferencer (2, 10, 100, 1).setChromatic (true);
+    gibbs1.setRandom (new Randoms (7));
+    gibbs1.computeMarginals (mdl);
+    ParallelGibbsInferencer gibbs3 = new ParallelGibbsInferencer (2, 10, 100, 3).setChromatic (true);
+    gibbs3.setRandom (new Randoms (7));
+    gibbs3.computeMarginals (mdl);
+    gibbs3.shutdown ();
+
+    for (Iterator it = mdl.variablesIterator (); it.hasNext ();) {
+      Variable var = (Variable) it.next ();
+      assertTrue (gibbs1.lookupMarginal (var).almostEquals (gibbs3.lookupMarginal (var), 0.0));
+    }
+    assertEquals (gibbs1.getMaxRHat (), gibbs3.getMaxRHat (), 0.0);
+  }
+
   /**
    * @return a <code>TestSuite</code>
    */
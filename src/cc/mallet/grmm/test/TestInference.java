@@ -52,6 +52,7 @@ public class TestInference extends TestCase {
   final public Class[] appxAlgs = {
     TRP.class,
     LoopyBP.class,
+    ParallelResidualBP.class,
   };
 
   // only used for logJoint test for now
@@ -543,7 +544,9 @@ public class TestInference extends TestCase {
     // Add a few that don't fit
     algs.add (new TRP ().setMessager (new AbstractBeliefPropagation.SumProductMessageStrategy (0.8)));
     algs.add (new LoopyBP ().setMessager (new AbstractBeliefPropagation.SumProductMessageStrategy (0.8)));
+    algs.add (new ParallelResidualBP (4));
     algs.add (new SamplingInferencer (new GibbsSampler (10000), 10000));
+    algs.add (new ParallelGibbsInferencer (4, 1000, 2500, 2));
     algs.add (new SamplingInferencer (new ExactSampler (), 1000));
 
     return (Inferencer[]) algs.toArray (new Inferencer [algs.size ()]);
@@ -555,6 +558,7 @@ public class TestInference extends TestCase {
     algs.add (JunctionTreeInferencer.createForMaxProduct ());
     algs.add (TRP.createForMaxProduct ());
     algs.add (LoopyBP.createForMaxProduct ());
+    algs.add (ParallelResidualBP.createForMaxProduct (4));
 
     return (Inferencer[]) algs.toArray (new Inferencer [algs.size ()]);
   }
@@ -1596,6 +1600,29 @@ public void testJtConsistency() {
     assertTrue (loopy.iterationsUsed() > 8);
   }
 
+  public void testParallelResidualMatchesLoopy ()
+  {
+    Random r = new Random (67);
+    FactorGraph mdl = createRandomGrid (10, 10, 2, r);
+
+    LoopyBP loopy = new LoopyBP ();
+    loopy.computeMarginals (mdl);
+
+    ParallelResidualBP prbp = new ParallelResidualBP (4);
+    prbp.computeMarginals (mdl);
+    assertTrue (prbp.isConverged ());
+    assertTrue (prbp.getMaxResidual () < 1e-5);
+    assertTrue (prbp.getMessagesUsedLastTime () > 0);
+    prbp.shutdown ();
+
+    for (Iterator it = mdl.variablesIterator (); it.hasNext ();) {
+      Variable var = (Variable) it.next ();
+      Factor ptl1 = loopy.lookupMarginal (var);
+      Factor ptl2 = prbp.lookupMarginal (var);
+      assertTrue ("Marginals of "+var+" differ: "+ptl1+" vs. "+ptl2, ptl1.almostEquals (ptl2, 1e-3));
+    }
+  }
+
   public void testSingletonGraph ()
   {
     Variable v = new Variable (2);
@@ -1657,6 +1684,32 @@ public void testJtConsistency() {
     assertEquals (jt.clusterPotentials ().size (), reached.size());
   }
 
+  public void testJunctionTreePlanCache ()
+  {
+    JunctionTreeInferencer cached = new JunctionTreeInferencer ();
+    JunctionTreeInferencer uncached = new JunctionTreeInferencer ();
+    uncached.setPlanCacheSize (0);
+
+    Random r = new Random (42);
+    for (int i = 0; i < 3; i++) {
+      FactorGraph mdl = createRandomGrid (4, 4, 2, r);
+      cached.computeMarginals (mdl);
+      uncached.computeMarginals (mdl);
+      for (Iterator it = mdl.variablesIterator (); it.hasNext ();) {
+        Variable var = (Variable) it.next ();
+        Factor ptl1 = uncached.lookupMarginal (var);
+        Factor ptl2 = cached.lookupMarginal (var);
+        assertTrue ("Marginals of "+var+" differ: "+ptl1+" vs. "+ptl2, ptl1.almostEquals (ptl2, 1e-10));
+      }
+      Assignment assn = new Assignment (mdl, new int [mdl.numVariables ()]);
+      assertEquals (uncached.lookupLogJoint (assn), cached.lookupLogJoint (assn), 1e-10);
+    }
+
+    assertEquals (1, cached.getPlanCacheMisses ());
+    assertEquals (2, cached.getPlanCacheHits ());
+    assertEquals (0, uncached.getPlanCacheHits ());
+  }
+
   public void testBpLargeModels ()
   {
     Timing timing = new Timing ();
@@ -0,0 +1,152 @@
+/* Copyright (C) 2006 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.grmm.test;
+
+import java.io.StringReader;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.mallet.grmm.inference.JunctionTreeInferencer;
+import cc.mallet.grmm.learning.ACRF;
+import cc.mallet.grmm.learning.GenericAcrfData2TokenSequence;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.InstanceList;
+
+/**
+ * Checks that the multi-threaded and graph-caching variants of MaximizableACRF
+ * compute the same value and gradient as the plain one.
+ * Uses an exact inferencer, because TRP chooses its spanning trees at random.
+ */
+public class TestMaximizableACRF extends TestCase {
+
+  String data = "A C ---- f1 f5 f7\n" +
+          "B C ---- f5 f6\n" +
+          "B D ---- f3\n" +
+          "A D ---- f2 f1\n" +
+          "\n" +
+          "B D ---- f1 f6\n" +
+          "A C ---- f5\n" +
+          "\n" +
+          "A C ---- f7 f2\n" +
+          "A D ---- f2\n" +
+          "B D ---- f6 f3\n" +
+          "\n" +
+          "B C ---- f4\n" +
+          "A C ---- f1 f4\n" +
+          "B D ---- f5 f7\n" +
+          "A D ---- f2 f3\n" +
+          "B C ---- f6\n";
+
+  public TestMaximizableACRF (String name)
+  {
+    super (name);
+  }
+
+  private ACRF.MaximizableACRF createMaximizable (int numThreads)
+  {
+    return createMaximizable (numThreads, false);
+  }
+
+  private ACRF.MaximizableACRF createMaximizable (int numThreads, boolean cacheGraphs)
+  {
+    Pipe pipe = new SerialPipes (new Pipe[] {
+            new GenericAcrfData2TokenSequence (2),
+            new TokenSequence2FeatureVectorSequence (true, true),
+    });
+    InstanceList training = new InstanceList (pipe);
+    training.addThruPipe (new LineGroupIterator (new StringReader (data), Pattern.compile ("^$"), true));
+
+    ACRF.Template[] tmpls = new ACRF.Template[] {
+            new ACRF.BigramTemplate (0),
+            new ACRF.BigramTemplate (1),
+            new ACRF.PairwiseFactorTemplate (0, 1),
+    };
+    ACRF acrf = new ACRF (pipe, tmpls);
+    acrf.setInferencer (new JunctionTreeInferencer ());
+    acrf.setCacheUnrolledGraphs (cacheGraphs);
+    ACRF.MaximizableACRF macrf = (ACRF.MaximizableACRF) acrf.getMaximizable (training);
+    macrf.setNumThreads (numThreads);
+
+    Random r = new Random (42);
+    double[] params = new double [macrf.getNumParameters ()];
+    for (int i = 0; i < params.length; i++) params[i] = r.nextGaussian ();
+    macrf.setParameters (params);
+    return macrf;
+  }
+
+  public void testThreadedGradientMatchesSerial ()
+  {
+    ACRF.MaximizableACRF serial = createMaximizable (1);
+    ACRF.MaximizableACRF threaded = createMaximizable (4);
+    try {
+      assertEquals (serial.getNumParameters (), threaded.getNumParameters ());
+      assertEquals (serial.getValue (), threaded.getValue (), 0.0);
+
+      double[] g1 = new double [serial.getNumParameters ()];
+      double[] g2 = new double [threaded.getNumParameters ()];
+      serial.getValueGradient (g1);
+      threaded.getValueGradient (g2);
+      for (int i = 0; i < g1.length; i++) {
+        assertEquals ("gradient "+i, g1[i], g2[i], 0.0);
+      }
+    } finally {
+      threaded.shutdown ();
+    }
+  }
+
+  public void testGraphCacheMatchesUnrolling ()
+  {
+    ACRF.MaximizableACRF plain = createMaximizable (1, false);
+    ACRF.MaximizableACRF cached = createMaximizable (1, true);
+    double[] params = new double [plain.getNumParameters ()];
+
+    for (int iter = 0; iter < 3; iter++) {
+      // The second and later iterations recompute the cached graphs' factors
+      assertEquals (plain.getValue (), cached.getValue (), 0.0);
+      double[] g1 = new double [params.length];
+      double[] g2 = new double [params.length];
+      plain.getValueGradient (g1);
+      cached.getValueGradient (g2);
+      for (int i = 0; i < g1.length; i++) {
+        assertEquals ("gradient "+i, g1[i], g2[i], 0.0);
+      }
+
+      plain.getParameters (params);
+      for (int i = 0; i < params.length; i++) params[i] += 0.1 * g1[i];
+      plain.setParameters (params);
+      cached.setParameters (params);
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestMaximizableACRF.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestMaximizableACRF (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -14,6 +14,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.*;
 
+import cc.mallet.grmm.util.Flops;
 import cc.mallet.grmm.util.GeneralUtils;
 import cc.mallet.types.*;
 import cc.mallet.util.Maths;
@@ -242,8 +243,7 @@ public abstract class AbstractTableFactor implements DiscreteFactor {
     //xxx Could be dangerous! But these should never be modified
     vars = in.vars;
     numVars = in.numVars;
-    if (in.projectionCache == null) in.initializeProjectionCache ();
-    projectionCache = in.projectionCache;
+    projectionCache = in.projectionCache;  // if null, looked up when first needed
   }
 
   /**
@@ -499,9 +499,85 @@ public abstract class AbstractTableFactor implements DiscreteFactor {
     return projection;
   }
 
+  /**
+   * Combines PTL into this table with a TableKernels operation, if both tables
+   *  are dense.  Returns false, having done nothing, if either is sparse.
+   *  PTL must store its values in the same space as this factor.
+   */
+  final boolean combineDense (int op, DiscreteFactor ptl)
+  {
+    double[] mine = TableKernels.denseValues (probs);
+    double[] his = TableKernels.denseValues (((AbstractTableFactor) ptl).probs);
+    if (mine == null || his == null) return false;
+    TableKernels.combine (op, mine, TableKernels.sizes (this), his, TableKernels.strides (this, ptl));
+    return true;
+  }
+
+  /**
+   * Accumulates this table into RESULT with a TableKernels operation, if both
+   *  tables are dense.  Returns false, having done nothing, if either is sparse.
+   */
+  final boolean marginalizeDense (int op, AbstractTableFactor result)
+  {
+    double[] mine = TableKernels.denseValues (probs);
+    double[] his = TableKernels.denseValues (result.probs);
+    if (mine == null || his == null) return false;
+    TableKernels.marginalize (op, mine, TableKernels.sizes (this), his, TableKernels.strides (this, result));
+    return true;
+  }
+
+  /**
+   * Returns the marginal over VAR of the product of this factor and each
+   *  of FACTORS, leaving this factor unchanged.  Each of FACTORS must be
+   *  over a subset of this factor's variables.  This is the same as
+   *  multiplying a duplicate of this factor by each of FACTORS in turn
+   *  and marginalizing, but when all the tables are dense and of this
+   *  factor's class, it is done in one pass without the duplicate.
+   */
+  public Factor multiplyAndMarginalize (Factor[] factors, Variable var)
+  {
+    double[] mine = TableKernels.denseValues (probs);
+    double[][] others = new double [factors.length][];
+    for (int f = 0; mine != null && f < factors.length; f++) {
+      if (factors[f].getClass () != getClass ()) {
+        mine = null;
+      } else {
+        others[f] = TableKernels.denseValues (((AbstractTableFactor) factors[f]).probs);
+        if (others[f] == null) mine = null;
+      }
+    }
+
+    if (mine == null) {
+      Factor product = duplicate ();
+      for (int f = 0; f < factors.length; f++) {
+        product.multiplyBy (factors[f]);
+      }
+      return product.marginalize (var);
+    }
+
+    AbstractTableFactor result = createBlankSubset (new Variable[] { var });
+    boolean inLogSpace = this instanceof LogTableFactor;
+    result.setAll (inLogSpace ? Double.NEGATIVE_INFINITY : 0.0);
+
+    int[][] strides = new int [factors.length][];
+    for (int f = 0; f < factors.length; f++) {
+      strides[f] = TableKernels.strides (this, (DiscreteFactor) factors[f]);
+    }
+    TableKernels.multiplyAndMarginalize (inLogSpace, mine, TableKernels.sizes (this), others, strides,
+            TableKernels.denseValues (result.probs), TableKernels.strides (this, result));
+    Flops.increment (mine.length * (factors.length + 1));
+    return result;
+  }
+
   int[] largeIdxToSmall (DiscreteFactor smallPotential)
           //	private int cachedlargeIdxToSmall (int largeIdx, MultinomialPotential smallPotential)
   {
+    // Projections of sparse tables are by location, so they can't share the
+    //  cache with dense tables of the same dimensions.
+    if (probs.numLocations () != probs.singleSize ()) {
+      return computeLargeIdxToSmall (smallPotential);
+    }
+
     if (projectionCache == null) initializeProjectionCache ();
 
 // Special case where smallPtl has only one variable.  Here
@@ -524,12 +600,17 @@ public abstract class AbstractTableFactor implements DiscreteFactor {
   private int[] cachedLargeIdxToSmall (DiscreteFactor smallPotential)
   {
     int hashval = computeSubsetHashValue (smallPotential);
-    Object ints = projectionCache.get (hashval);
+    Object ints;
+    synchronized (projectionCache) {   // shared between factors, maybe on other threads
+      ints = projectionCache.get (hashval);
+    }
     if (ints != null) {
       return (int[]) ints;
     } else {
       int[] projection = computeLargeIdxToSmall (smallPotential);
-      projectionCache.put (hashval, projection);
+      synchronized (projectionCache) {
+        projectionCache.put (hashval, projection);
+      }
       return projection;
     }
   }
@@ -591,6 +672,7 @@ public abstract class AbstractTableFactor implements DiscreteFactor {
   {
 
     result.setAll (Double.NEGATIVE_INFINITY);
+    if (marginalizeDense (TableKernels.MAX, result)) return result;
 
     int[] projection = largeIdxToSmall (result);
     /* Add each element of the single array of the large potential
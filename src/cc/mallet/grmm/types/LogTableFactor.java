@@ -131,6 +131,10 @@ public class LogTableFactor extends AbstractTableFactor {
    */
   protected void multiplyByInternal (DiscreteFactor ptl)
   {
+    if (ptl instanceof LogTableFactor && combineDense (TableKernels.LOG_MULTIPLY, ptl)) {
+      Flops.increment (probs.numLocations ());
+      return;
+    }
     int[] projection = largeIdxToSmall (ptl);
     int numLocs = probs.numLocations ();
     for (int singleLoc = 0; singleLoc < numLocs; singleLoc++) {
@@ -147,6 +151,10 @@ public class LogTableFactor extends AbstractTableFactor {
 // the variables in pot.
   protected void divideByInternal (DiscreteFactor ptl)
   {
+    if (ptl instanceof LogTableFactor && combineDense (TableKernels.LOG_DIVIDE, ptl)) {
+      Flops.increment (probs.numLocations ());
+      return;
+    }
     int[] projection = largeIdxToSmall (ptl);
     int numLocs = probs.numLocations ();
     for (int singleLoc = 0; singleLoc < numLocs; singleLoc++) {
@@ -170,6 +178,10 @@ public class LogTableFactor extends AbstractTableFactor {
    */
   protected void plusEqualsInternal (DiscreteFactor ptl)
   {
+    if (ptl instanceof LogTableFactor && combineDense (TableKernels.LOG_PLUS, ptl)) {
+      Flops.sumLogProb (probs.numLocations ());
+      return;
+    }
     int[] projection = largeIdxToSmall (ptl);
     int numLocs = probs.numLocations ();
     for (int singleLoc = 0; singleLoc < numLocs; singleLoc++) {
@@ -223,6 +235,10 @@ public class LogTableFactor extends AbstractTableFactor {
   {
 
     result.setAll (Double.NEGATIVE_INFINITY);
+    if (marginalizeDense (TableKernels.LOG_SUM, result)) {
+      Flops.sumLogProb (probs.numLocations ());
+      return result;
+    }
     int[] projection = largeIdxToSmall (result);
 
     /* Add each element of the single array of the large potential
@@ -195,6 +195,10 @@ public class TableFactor extends AbstractTableFactor {
   {
 
     result.setAll (0.0);
+    if (marginalizeDense (TableKernels.SUM, result)) {
+      Flops.increment (probs.numLocations ());
+      return result;
+    }
 
     int[] projection = largeIdxToSmall (result);
 
@@ -221,6 +225,10 @@ to the correct element in the small potential. */
 // the variables in pot.
   protected void multiplyByInternal (DiscreteFactor ptl)
   {
+    if (ptl instanceof TableFactor && combineDense (TableKernels.MULTIPLY, ptl)) {
+      Flops.increment (probs.numLocations ());
+      return;
+    }
     int[] projection = largeIdxToSmall (ptl);
     int numLocs = probs.numLocations ();
     for (int singleLoc = 0; singleLoc < numLocs; singleLoc++) {
@@ -236,6 +244,10 @@ to the correct element in the small potential. */
   // the variables in pot.
   protected void divideByInternal (DiscreteFactor ptl)
   {
+    if (ptl instanceof TableFactor && combineDense (TableKernels.DIVIDE, ptl)) {
+      Flops.increment (probs.numLocations ());
+      return;
+    }
     int[] projection = largeIdxToSmall (ptl);
     int numLocs = probs.numLocations ();
     for (int singleLoc = 0; singleLoc < numLocs; singleLoc++) {
@@ -256,6 +268,10 @@ to the correct element in the small potential. */
 // the variables in pot.
   protected void plusEqualsInternal (DiscreteFactor ptl)
   {
+    if (ptl instanceof TableFactor && combineDense (TableKernels.PLUS, ptl)) {
+      Flops.increment (probs.numLocations ());
+      return;
+    }
     int[] projection = largeIdxToSmall (ptl);
     int numLocs = probs.numLocations ();
     for (int singleLoc = 0; singleLoc < numLocs; singleLoc++) {
@@ -0,0 +1,228 @@
+/* Copyright (C) 2003 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.grmm.types;
+
+import cc.mallet.types.Matrixn;
+import cc.mallet.util.Maths;
+
+/**
+ * Loops over dense factor tables that combine a large table with a table
+ *  over a subset of its variables.  Instead of looking up a projection
+ *  array, these step through both tables at once: the large table in
+ *  order, the small one by the stride of each of the large table's
+ *  variables in the small table (0 for variables it does not contain).
+ * <p>
+ * Tables are in the row-major layout of Matrixn, over the variables in
+ *  the order of <tt>getVariable(i)</tt>.  All the loops visit the cells
+ *  of the large table in increasing order, so they compute exactly what
+ *  the projection-based code in the factor classes does.
+ *
+ * @see AbstractTableFactor
+ */
+final class TableKernels {
+
+  private TableKernels () {}
+
+  static final int MULTIPLY = 0;
+  static final int DIVIDE = 1;          // x/0 is 0
+  static final int PLUS = 2;
+  static final int LOG_MULTIPLY = 3;
+  static final int LOG_DIVIDE = 4;      // -Inf if the divisor is infinite
+  static final int LOG_PLUS = 5;
+
+  static final int SUM = 0;
+  static final int LOG_SUM = 1;
+  static final int MAX = 2;
+
+  /** Returns the dense array behind a factor's table, or null if the table is sparse. */
+  static double[] denseValues (Object matrix)
+  {
+    return (matrix instanceof Matrixn) ? ((Matrixn) matrix).toArray () : null;
+  }
+
+  /** Returns the number of outcomes of each of the factor's variables. */
+  static int[] sizes (DiscreteFactor large)
+  {
+    int numVars = large.varSet ().size ();
+    int[] sizes = new int [numVars];
+    for (int d = 0; d < numVars; d++) {
+      sizes [d] = large.getVariable (d).getNumOutcomes ();
+    }
+    return sizes;
+  }
+
+  /**
+   * Returns, for each variable of LARGE, its stride in the table of SMALL,
+   *  or 0 if SMALL does not contain it.
+   */
+  static int[] strides (DiscreteFactor large, DiscreteFactor small)
+  {
+    int numLarge = large.varSet ().size ();
+    int numSmall = small.varSet ().size ();
+    int[] strides = new int [numLarge];
+    int stride = 1;
+    for (int sd = numSmall - 1; sd >= 0; sd--) {
+      Variable var = small.getVariable (sd);
+      int ld = 0;
+      while (ld < numLarge && large.getVariable (ld) != var) ld++;
+      if (ld == numLarge)
+        throw new IllegalArgumentException ("Variable "+var+" of "+small.varSet ()+" not in "+large.varSet ());
+      strides [ld] = stride;
+      stride *= var.getNumOutcomes ();
+    }
+    return strides;
+  }
+
+  /** Does large[i] op= small[j] for every cell i of the large table and its cell j in the small one. */
+  static void combine (int op, double[] large, int[] sizes, double[] small, int[] strides)
+  {
+    int numVars = sizes.length;
+    if (numVars == 0) {
+      combineRun (op, large, 0, 1, small, 0, 0);
+      return;
+    }
+
+    int last = numVars - 1;
+    int runLength = sizes [last];
+    int runStride = strides [last];
+    int[] counter = new int [numVars];
+    int j = 0;
+    for (int i = 0; i < large.length; i += runLength) {
+      combineRun (op, large, i, runLength, small, j, runStride);
+      j = carry (counter, sizes, strides, last, j);
+    }
+  }
+
+  private static void combineRun (int op, double[] large, int i, int n, double[] small, int j, int stride)
+  {
+    int end = i + n;
+    switch (op) {
+      case MULTIPLY:
+        for (; i < end; i++, j += stride) large [i] *= small [j];
+        break;
+      case DIVIDE:
+        for (; i < end; i++, j += stride) {
+          double div = small [j];
+          large [i] = Maths.almostEquals (div, 0) ? 0 : large [i] / div;
+        }
+        break;
+      case PLUS:
+        for (; i < end; i++, j += stride) large [i] += small [j];
+        break;
+      case LOG_MULTIPLY:
+        for (; i < end; i++, j += stride) large [i] += small [j];
+        break;
+      case LOG_DIVIDE:
+        for (; i < end; i++, j += stride) {
+          double div = small [j];
+          large [i] = Double.isInfinite (div) ? Double.NEGATIVE_INFINITY : large [i] - div;
+        }
+        break;
+      case LOG_PLUS:
+        for (; i < end; i++, j += stride) large [i] = Maths.sumLogProb (large [i], small [j]);
+        break;
+      default:
+        throw new IllegalArgumentException ("Unknown operation "+op);
+    }
+  }
+
+  /**
+   * Accumulates every cell of the large table into its cell of the small one,
+   *  which should have been initialized to the identity of the operation.
+   */
+  static void marginalize (int op, double[] large, int[] sizes, double[] small, int[] strides)
+  {
+    int numVars = sizes.length;
+    if (numVars == 0) {
+      marginalizeRun (op, large, 0, 1, small, 0, 0);
+      return;
+    }
+
+    int last = numVars - 1;
+    int runLength = sizes [last];
+    int runStride = strides [last];
+    int[] counter = new int [numVars];
+    int j = 0;
+    for (int i = 0; i < large.length; i += runLength) {
+      marginalizeRun (op, large, i, runLength, small, j, runStride);
+      j = carry (counter, sizes, strides, last, j);
+    }
+  }
+
+  private static void marginalizeRun (int op, double[] large, int i, int n, double[] small, int j, int stride)
+  {
+    int end = i + n;
+    switch (op) {
+      case SUM:
+        for (; i < end; i++, j += stride) small [j] += large [i];
+        break;
+      case LOG_SUM:
+        for (; i < end; i++, j += stride) small [j] = Maths.sumLogProb (large [i], small [j]);
+        break;
+      case MAX:
+        for (; i < end; i++, j += stride) if (large [i] > small [j]) small [j] = large [i];
+        break;
+      default:
+        throw new IllegalArgumentException ("Unknown operation "+op);
+    }
+  }
+
+  /**
+   * Computes the marginal onto RESULT of the product of the large table with
+   *  each of FACTORS in turn, without forming the product.  For each cell of
+   *  the large table, the factors are multiplied in (or, in log space, added)
+   *  in order, and the cell is then summed into RESULT, so this gives the
+   *  same numbers as multiplying a copy of the table and marginalizing it.
+   */
+  static void multiplyAndMarginalize (boolean inLogSpace, double[] large, int[] sizes,
+                                      double[][] factors, int[][] factorStrides,
+                                      double[] result, int[] resultStrides)
+  {
+    int numVars = sizes.length;
+    int numFactors = factors.length;
+    int[] counter = new int [numVars];
+    int[] js = new int [numFactors];
+    int r = 0;
+
+    for (int i = 0; i < large.length; i++) {
+      double v = large [i];
+      if (inLogSpace) {
+        for (int f = 0; f < numFactors; f++) v += factors [f][js [f]];
+        result [r] = Maths.sumLogProb (v, result [r]);
+      } else {
+        for (int f = 0; f < numFactors; f++) v *= factors [f][js [f]];
+        result [r] += v;
+      }
+
+      // advance every index to the next cell of the large table
+      for (int d = numVars - 1; d >= 0; d--) {
+        counter [d]++;
+        r += resultStrides [d];
+        for (int f = 0; f < numFactors; f++) js [f] += factorStrides [f][d];
+        if (counter [d] < sizes [d]) break;
+        r -= sizes [d] * resultStrides [d];
+        for (int f = 0; f < numFactors; f++) js [f] -= sizes [d] * factorStrides [f][d];
+        counter [d] = 0;
+      }
+    }
+  }
+
+  // Moves the small-table index J from the end of one run over the last
+  //  variable to the start of the next.
+  private static int carry (int[] counter, int[] sizes, int[] strides, int last, int j)
+  {
+    for (int d = last - 1; d >= 0; d--) {
+      counter [d]++;
+      j += strides [d];
+      if (counter [d] < sizes [d]) return j;
+      j -= sizes [d] * strides [d];
+      counter [d] = 0;
+    }
+    return j;
+  }
+
+}
@@ -33,28 +33,30 @@ public class Universe implements Serializable {
     variableAlphabet = new BidirectionalIntObjectMap ();
   }
 
-  public static void resetUniverse()
+  public static synchronized void resetUniverse()
   {
       DEFAULT = new Universe();
       allProjectionCaches = new THashMap();
   }
 
-  public int add (Variable var)
+  // Variables may be created by several inference threads at once
+
+  public synchronized int add (Variable var)
   {
     return variableAlphabet.lookupIndex (var, true);
   }
 
-  public Variable get (int idx)
+  public synchronized Variable get (int idx)
   {
     return (Variable) variableAlphabet.lookupObject (idx);
   }
 
-  public int getIndex (Variable var)
+  public synchronized int getIndex (Variable var)
   {
      return variableAlphabet.lookupIndex (var);
   }
 
-  public int size ()
+  public synchronized int size ()
   {
     return variableAlphabet.size ();
   }
@@ -95,12 +97,13 @@ public class Universe implements Serializable {
       sizes.add (varSet.get(vi).getNumOutcomes ());
     }
 
-    TIntObjectHashMap result = (TIntObjectHashMap) allProjectionCaches.get (sizes);
-    if (result == null) {
-      result = new TIntObjectHashMap ();
-      allProjectionCaches.put (sizes, result);
+    synchronized (Universe.class) {
+      TIntObjectHashMap result = (TIntObjectHashMap) allProjectionCaches.get (sizes);
+      if (result == null) {
+        result = new TIntObjectHashMap ();
+        allProjectionCaches.put (sizes, result);
+      }
+      return result;
     }
-
-    return result;
   }
 }
@@ -0,0 +1,79 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.pipe;
+
+import java.io.*;
+import java.util.regex.Pattern;
+
+import cc.mallet.extract.StringSpan;
+import cc.mallet.extract.StringTokenization;
+import cc.mallet.types.Instance;
+import cc.mallet.types.TokenSequence;
+import cc.mallet.util.AutomatonLexer;
+import cc.mallet.util.CharSequenceLexer;
+
+/**
+ *  Pipe that tokenizes a character sequence in one pass with an
+ *   {@link AutomatonLexer}.  Like {@link CharSequence2TokenSequence},
+ *   but any number of token patterns are matched together, and each
+ *   token is the longest match of any of them.
+ */
+public class CharSequence2TokenSequenceByAutomaton extends Pipe implements Serializable
+{
+	AutomatonLexer lexer;
+
+	public CharSequence2TokenSequenceByAutomaton (AutomatonLexer lexer)
+	{
+		this.lexer = lexer;
+	}
+
+	public CharSequence2TokenSequenceByAutomaton (Pattern[] tokenPatterns)
+	{
+		this (new AutomatonLexer (tokenPatterns));
+	}
+
+	public CharSequence2TokenSequenceByAutomaton (Pattern tokenPattern)
+	{
+		this (new AutomatonLexer (tokenPattern));
+	}
+
+	public CharSequence2TokenSequenceByAutomaton ()
+	{
+		this (CharSequenceLexer.LEX_ALPHA);
+	}
+
+	public Instance pipe (Instance carrier)
+	{
+		CharSequence string = (CharSequence) carrier.getData();
+		lexer.setCharSequence (string);
+		TokenSequence ts = new StringTokenization (string);
+		while (lexer.hasNext()) {
+			lexer.next();
+			ts.add (new StringSpan (string, lexer.getStartOffset (), lexer.getEndOffset ()));
+		}
+		lexer.setCharSequence (null);
+		carrier.setData(ts);
+		return carrier;
+	}
+
+	// Serialization
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt(CURRENT_SERIAL_VERSION);
+		out.writeObject(lexer);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		int version = in.readInt ();
+		lexer = (AutomatonLexer) in.readObject();
+	}
+
+}
@@ -0,0 +1,32 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.pipe;
+
+import java.io.Serializable;
+
+import cc.mallet.types.CompressedFeatureSequence;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+
+/**
+ * Replaces a FeatureSequence in the data field with a bit-packed
+ * {@link CompressedFeatureSequence}.  Put this at the end of a topic
+ * modeling import pipe to reduce the memory taken by large corpora.
+ */
+public class FeatureSequence2CompressedFeatureSequence extends Pipe implements Serializable
+{
+	public Instance pipe (Instance carrier)
+	{
+		FeatureSequence fs = (FeatureSequence) carrier.getData();
+		if (!(fs instanceof CompressedFeatureSequence))
+			carrier.setData(new CompressedFeatureSequence (fs));
+		return carrier;
+	}
+
+	private static final long serialVersionUID = 1;
+}
@@ -0,0 +1,88 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+
+
+
+/**
+		Add a feature with value 1.0 for each of several regular expressions
+		that the entire token text matches.  Equivalent to a chain of
+		{@link RegexMatches} pipes, one per feature, but all the patterns are
+		compiled into a single {@link RegexAutomaton}, so each token is
+		scanned once (twice if it has surrounding parentheses or a trailing
+		period) however many features there are.
+ */
+
+package cc.mallet.pipe.tsf;
+
+import java.util.regex.Pattern;
+import java.io.*;
+
+import cc.mallet.pipe.*;
+import cc.mallet.types.*;
+import cc.mallet.util.RegexAutomaton;
+
+
+public class MultiRegexMatches extends Pipe implements Serializable
+{
+	RegexAutomaton automaton;
+	String[] features;
+
+	public MultiRegexMatches (String[] featureNames, Pattern[] regexes)
+	{
+		if (featureNames.length != regexes.length)
+			throw new IllegalArgumentException ("Got "+featureNames.length+" feature names for "+regexes.length+" patterns");
+		this.features = (String[]) featureNames.clone ();
+		this.automaton = new RegexAutomaton (regexes);
+	}
+
+	public int numFeatures () { return features.length; }
+
+	public Instance pipe (Instance carrier)
+	{
+		TokenSequence ts = (TokenSequence) carrier.getData();
+		for (int i = 0; i < ts.size(); i++) {
+			Token t = ts.get(i);
+			String s = t.getText();
+			int[] matched = automaton.matchingPatterns (s);
+			for (int j = 0; j < matched.length; j++)
+				t.setFeatureValue (features[matched[j]], 1.0);
+			//dealing with ([a-z]+), ([a-z]+, [a-z]+), [a-z]+. as RegexMatches does
+			int start = 0, end = s.length();
+			if (s.startsWith("("))
+				start++;
+			if (end > start && (s.endsWith(")") || s.endsWith(".")))
+				end--;
+			if (start != 0 || end != s.length()) {
+				matched = automaton.matchingPatterns (s, start, end);
+				for (int j = 0; j < matched.length; j++)
+					t.setFeatureValue (features[matched[j]], 1.0);
+			}
+		}
+		return carrier;
+	}
+
+
+	// Serialization
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt(CURRENT_SERIAL_VERSION);
+		out.writeObject(automaton);
+		out.writeObject(features);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		int version = in.readInt ();
+		automaton = (RegexAutomaton) in.readObject();
+		features = (String[]) in.readObject();
+	}
+
+
+}
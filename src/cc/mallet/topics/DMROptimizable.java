@@ -9,6 +9,12 @@ package cc.mallet.topics;
 
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import cc.mallet.classify.MaxEnt;
@@ -59,6 +65,11 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 	int numFeatures;
 	int defaultFeatureIndex;
 
+	// If not null, the value and gradient are computed in numTasks
+	//  ranges of instances on this executor.
+	ExecutorService executor = null;
+	int numTasks = 1;
+
 	public DMROptimizable () {}
 
 	public DMROptimizable (InstanceList instances, MaxEnt initialClassifier) {
@@ -142,6 +153,15 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 		this.gaussianPriorVariance = sigmaSquared;
 	}
 
+	/** Compute the value and gradient in <code>numTasks</code> ranges of instances,
+	 *   run on the given executor. The ranges are summed in order, so the result
+	 *   does not depend on the timing of the threads.
+	 */
+	public void setExecutor(ExecutorService executor, int numTasks) {
+		this.executor = executor;
+		this.numTasks = numTasks;
+	}
+
 	public MaxEnt getClassifier () { return classifier; }
                 
 	public double getParameter (int index) {
@@ -180,21 +200,66 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 		if (! cachedValueStale) { return cachedValue; }
 
 		numGetValueCalls++;
-		cachedValue = 0;
 
 		// Incorporate likelihood of data
+		cachedValue = 0;
+		if (executor == null || numTasks < 2) {
+			cachedValue = getDataValue(0, trainingList.size());
+		}
+		else {
+			List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(numTasks);
+			for (int task = 0; task < numTasks; task++) {
+				final int from = (int) ((long) trainingList.size() * task / numTasks);
+				final int to = (int) ((long) trainingList.size() * (task + 1) / numTasks);
+				tasks.add(new Callable<Double>() {
+						public Double call() {
+							return getDataValue(from, to);
+						}
+					});
+			}
+			for (Double value: runAll(tasks)) {
+				cachedValue += value;
+			}
+		}
+
+		// Incorporate prior on parameters
+
+		double prior = 0;
+
+		// The log of a gaussian prior is x^2 / -2sigma^2
+
+		for (int label = 0; label < numLabels; label++) {
+			for (int feature = 0; feature < numFeatures - 1; feature++) {
+				double param = parameters[label*numFeatures + feature];
+				prior -= (param - gaussianPriorMean) * (param - gaussianPriorMean) / (2 * gaussianPriorVariance);
+			}
+			double param = parameters[label*numFeatures + defaultFeatureIndex];
+			prior -= (param - gaussianPriorMean) * (param - gaussianPriorMean) /
+				(2 * defaultFeatureGaussianPriorVariance);
+		}
+
+		double labelProbability = cachedValue;
+		cachedValue += prior;
+		cachedValueStale = false;
+		progressLogger.info ("Value (likelihood=" + formatter.format(labelProbability) +
+							 " prior=" + formatter.format(prior) +
+							 ") = " + formatter.format(cachedValue));
+
+		return cachedValue;
+	}
+
+	/** The log probability of the count vectors of instances <code>from</code> to <code>to - 1</code>. */
+	double getDataValue (int from, int to) {
+
 		double[] scores = new double[ trainingList.getTargetAlphabet().size() ];
-		double value = 0.0;
+		double dataValue = 0.0;
 
-		int instanceIndex = 0;
-		
-		for (Instance instance: trainingList) {
+		for (int instanceIndex = from; instanceIndex < to; instanceIndex++) {
+			Instance instance = trainingList.get(instanceIndex);
 
 			FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
 			if (multinomialValues == null) { continue; }
 
-			//System.out.println("L Now "+inputAlphabet.size()+" regular features.");
-                
 			// Get the predicted probability of each class
 			//   under the current model parameters
 			this.classifier.getUnnormalizedClassificationScores(instance, scores);
@@ -208,11 +273,10 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 				sumScores += scores[i];
 			}
 
-			FeatureVector features = (FeatureVector) instance.getData();
-
 			// This is really an int, but since FeatureVectors are defined as doubles, 
 			//  avoid casting.
 			double totalLength = 0;
+			double value = 0.0;
 
 			for (int i = 0; i < multinomialValues.numLocations(); i++) {
 				int label = multinomialValues.indexAtLocation(i);
@@ -239,55 +303,78 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 
 			if (Double.isInfinite(value)) {
 				logger.warning ("Instance " + instance.getSource() + 
-								" has infinite value; skipping value and gradient");
-				cachedValue -= value;
-				cachedValueStale = false;
-				return -value;
+								" has infinite value; skipping value");
+				continue;
 			}
 
-			//System.out.println(value);
-
-			cachedValue += value;
-                
-			instanceIndex++;
+			dataValue += value;
 		}
 
-		// Incorporate prior on parameters
+		return dataValue;
+	}
 
-		double prior = 0;
+	public void getValueGradient (double [] buffer) {
 
-		// The log of a gaussian prior is x^2 / -2sigma^2
+		MatrixOps.setAll (cachedGradient, 0.0);
+
+		// Incorporate likelihood of data
+		if (executor == null || numTasks < 2) {
+			addDataGradient(0, trainingList.size(), cachedGradient);
+		}
+		else {
+			List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>(numTasks);
+			for (int task = 0; task < numTasks; task++) {
+				final int from = (int) ((long) trainingList.size() * task / numTasks);
+				final int to = (int) ((long) trainingList.size() * (task + 1) / numTasks);
+				tasks.add(new Callable<double[]>() {
+						public double[] call() {
+							double[] gradient = new double[cachedGradient.length];
+							addDataGradient(from, to, gradient);
+							return gradient;
+						}
+					});
+			}
+			for (double[] gradient: runAll(tasks)) {
+				MatrixOps.plusEquals(cachedGradient, gradient);
+			}
+		}
 
+		numGetValueGradientCalls++;
+            
 		for (int label = 0; label < numLabels; label++) {
 			for (int feature = 0; feature < numFeatures - 1; feature++) {
 				double param = parameters[label*numFeatures + feature];
-				prior -= (param - gaussianPriorMean) * (param - gaussianPriorMean) / (2 * gaussianPriorVariance);
+
+				cachedGradient[label * numFeatures + feature] -= 
+					(param - gaussianPriorMean) / gaussianPriorVariance;
 			}
+
 			double param = parameters[label*numFeatures + defaultFeatureIndex];
-			prior -= (param - gaussianPriorMean) * (param - gaussianPriorMean) /
-				(2 * defaultFeatureGaussianPriorVariance);
+                
+			cachedGradient[label * numFeatures + defaultFeatureIndex] -= 
+				(param - gaussianPriorMean) / defaultFeatureGaussianPriorVariance;
 		}
 
-		double labelProbability = cachedValue;
-		cachedValue += prior;
-		cachedValueStale = false;
-		progressLogger.info ("Value (likelihood=" + formatter.format(labelProbability) +
-							 " prior=" + formatter.format(prior) +
-							 ") = " + formatter.format(cachedValue));
+		// A parameter may be set to -infinity by an external user.
+		// We set gradient to 0 because the parameter's value can
+		// never change anyway and it will mess up future calculations
+		// on the matrix, such as norm().
+		MatrixOps.substitute (cachedGradient, Double.NEGATIVE_INFINITY, 0.0);
 
-		return cachedValue;
+		assert (buffer != null && buffer.length == parameters.length);
+		System.arraycopy (cachedGradient, 0, buffer, 0, cachedGradient.length);
+		//System.out.println ("DCMMaxEntTrainer gradient infinity norm = "+MatrixOps.infinityNorm(cachedGradient));
 	}
 
-	public void getValueGradient (double [] buffer) {
-
-		MatrixOps.setAll (cachedGradient, 0.0);
+	/** Adds the gradient of the log probability of the count vectors of
+	 *   instances <code>from</code> to <code>to - 1</code> to <code>gradient</code>.
+	 */
+	void addDataGradient (int from, int to, double[] gradient) {
 
-		// Incorporate likelihood of data
 		double[] scores = new double[ trainingList.getTargetAlphabet().size() ];
 
-		int instanceIndex = 0;
-
-		for (Instance instance: trainingList) {
+		for (int instanceIndex = from; instanceIndex < to; instanceIndex++) {
+			Instance instance = trainingList.get(instanceIndex);
 
 			FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
 			if (multinomialValues == null) { continue; }
@@ -328,7 +415,7 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 				//  one for all labels, the other for just the non-zero ones.
 
 				for (int label=0; label<numLabels; label++) {
-					cachedGradient[label * numFeatures + index] -=
+					gradient[label * numFeatures + index] -=
 						value * scores[label] * digammaDifferenceForSums;
 				}
 
@@ -348,7 +435,7 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 							Dirichlet.digamma(scores[label]);
 					}
 
-					cachedGradient[label * numFeatures + index] +=
+					gradient[label * numFeatures + index] +=
 						value * scores[label] * diff;
 
 				}
@@ -356,7 +443,7 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 			// Now add the default feature
 
 			for (int label=0; label<numLabels; label++) {
-				cachedGradient[label * numFeatures + defaultFeatureIndex] -=
+				gradient[label * numFeatures + defaultFeatureIndex] -=
 					scores[label] * digammaDifferenceForSums;
 			}
 
@@ -377,7 +464,7 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 						Dirichlet.digamma(scores[label]);
 				}
 
-				cachedGradient[label * numFeatures + defaultFeatureIndex] +=
+				gradient[label * numFeatures + defaultFeatureIndex] +=
 					scores[label] * diff;
                     
 
@@ -385,31 +472,22 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
 
 		}
 
-		numGetValueGradientCalls++;
-            
-		for (int label = 0; label < numLabels; label++) {
-			for (int feature = 0; feature < numFeatures - 1; feature++) {
-				double param = parameters[label*numFeatures + feature];
+	}
 
-				cachedGradient[label * numFeatures + feature] -= 
-					(param - gaussianPriorMean) / gaussianPriorVariance;
+	/** Runs the tasks on the executor and returns their results in order. */
+	<T> List<T> runAll(List<Callable<T>> tasks) {
+		try {
+			List<T> results = new ArrayList<T>(tasks.size());
+			for (Future<T> future: executor.invokeAll(tasks)) {
+				results.add(future.get());
 			}
-
-			double param = parameters[label*numFeatures + defaultFeatureIndex];
-                
-			cachedGradient[label * numFeatures + defaultFeatureIndex] -= 
-				(param - gaussianPriorMean) / defaultFeatureGaussianPriorVariance;
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing DMR likelihood", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Computing DMR likelihood failed", e.getCause());
 		}
-
-		// A parameter may be set to -infinity by an external user.
-		// We set gradient to 0 because the parameter's value can
-		// never change anyway and it will mess up future calculations
-		// on the matrix, such as norm().
-		MatrixOps.substitute (cachedGradient, Double.NEGATIVE_INFINITY, 0.0);
-
-		assert (buffer != null && buffer.length == parameters.length);
-		System.arraycopy (cachedGradient, 0, buffer, 0, cachedGradient.length);
-		//System.out.println ("DCMMaxEntTrainer gradient infinity norm = "+MatrixOps.infinityNorm(cachedGradient));
 	}
 }
 
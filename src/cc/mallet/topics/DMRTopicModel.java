@@ -7,99 +7,190 @@ import cc.mallet.types.*;
 import cc.mallet.classify.MaxEnt;
 import cc.mallet.pipe.Pipe;
 import cc.mallet.pipe.Noop;
-
-import gnu.trove.TIntIntHashMap;
+import cc.mallet.util.FastRandoms;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.File;
-
-public class DMRTopicModel extends LDAHyper {
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Dirichlet-multinomial regression topic model: the Dirichlet prior over
+ *  topics of each document is a log-linear function of the features in
+ *  its target. Sampling runs on the worker threads of
+ *  {@link ParallelTopicModel}, each document with its own alpha vector, and
+ *  the regression parameters are fit on the same threads.
+ */
+public class DMRTopicModel extends ParallelTopicModel {
 
 	MaxEnt dmrParameters = null;
     int numFeatures;
     int defaultFeatureIndex;
 
     Pipe parameterPipe = null;
-	
-	double[][] alphaCache;
+
+	// Built once, with the features of each document with a target in the
+	//  data field, and its topic counts, updated before each optimization,
+	//  in the target field.
+	InstanceList parameterInstances = null;
+	int[] parameterDocs; // the document of each parameter instance
+
+	// Indexed by <document index, topic index>; null until the parameters are first fit
+	double[][] alphaCache = null;
     double[] alphaSumCache;
 
 	public DMRTopicModel(int numberOfTopics) {
 		super(numberOfTopics);
 	}
 
-	public void estimate (int iterationsThisRound) throws IOException {
+	public void estimate () throws IOException {
 
         numFeatures = data.get(0).instance.getTargetAlphabet().size() + 1;
         defaultFeatureIndex = numFeatures - 1;
 
 		int numDocs = data.size(); // TODO consider beginning by sub-sampling?
 
-		alphaCache = new double[numDocs][numTopics];
-        alphaSumCache = new double[numDocs];
-
 		long startTime = System.currentTimeMillis();
-        int maxIteration = iterationsSoFar + iterationsThisRound;
 
-        for ( ; iterationsSoFar <= maxIteration; iterationsSoFar++) {
-            long iterationStart = System.currentTimeMillis();
+		DMRWorkerRunnable[] runnables = new DMRWorkerRunnable[numThreads];
 
-            if (showTopicsInterval != 0 && iterationsSoFar != 0 && iterationsSoFar % showTopicsInterval == 0) {
-                System.out.println();
-                printTopWords (System.out, wordsPerTopic, false);
-			}
+		// Each runnable gets its own, non-overlapping stream from this one
+		FastRandoms random = null;
+		if (randomSeed == -1) {
+			random = new FastRandoms();
+		}
+		else {
+			random = new FastRandoms(randomSeed);
+		}
 
-			if (saveStateInterval != 0 && iterationsSoFar % saveStateInterval == 0) {
-                this.printState(new File(stateFilename + '.' + iterationsSoFar + ".gz"));
-            }
+		int offset = 0;
+		for (int thread = 0; thread < numThreads; thread++) {
+			int docsPerThread = (int) ((long) numDocs * (thread + 1) / numThreads) - offset;
 
-			if (iterationsSoFar > burninPeriod && optimizeInterval != 0 &&
-				iterationsSoFar % optimizeInterval == 0) {
+			if (numThreads > 1) {
+				int[] runnableTotals = new int[numTopics];
+				System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
+
+				int[][] runnableCounts = new int[numTypes][];
+				for (int type = 0; type < numTypes; type++) {
+					int[] counts = new int[typeTopicCounts[type].length];
+					System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
+					runnableCounts[type] = counts;
+				}
 
-				// Train regression parameters
-				learnParameters();
+				runnables[thread] = new DMRWorkerRunnable(numTopics,
+														  alpha, alphaSum, beta,
+														  random.split(), data,
+														  runnableCounts, runnableTotals,
+														  offset, docsPerThread);
 			}
+			else {
+				// If there is only one thread, it samples directly
+				//  into the model's counts.
+				runnables[thread] = new DMRWorkerRunnable(numTopics,
+														  alpha, alphaSum, beta,
+														  random, data,
+														  typeTopicCounts, tokensPerTopic,
+														  offset, docsPerThread);
+				runnables[thread].makeOnlyThread();
+			}
+
+			runnables[thread].initializeAlphaStatistics(docLengthCounts.length);
+			runnables[thread].setDocumentAlphas(alphaCache);
+			offset += docsPerThread;
+		}
 
-			// Loop over every document in the corpus
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
 
-            for (int doc = 0; doc < numDocs; doc++) {
-                FeatureSequence tokenSequence = (FeatureSequence) data.get(doc).instance.getData();
-                LabelSequence topicSequence = (LabelSequence) data.get(doc).topicSequence;
+		try {
+			for (int iteration = 1; iteration <= numIterations; iteration++) {
+				long iterationStart = System.currentTimeMillis();
 
-				if (dmrParameters != null) {
-					// set appropriate Alpha parameters
-					setAlphas(data.get(doc).instance);
+				if (showTopicsInterval != 0 && iteration % showTopicsInterval == 0) {
+					logger.info("\n" + displayTopWords (wordsPerTopic, false));
 				}
 
-                sampleTopicsForOneDoc (tokenSequence, topicSequence,
-									   false, false);
-            }
+				if (saveStateInterval != 0 && iteration % saveStateInterval == 0) {
+					this.printState(new File(stateFilename + '.' + iteration + ".gz"));
+				}
 
-			long ms = System.currentTimeMillis() - iterationStart;
-			if (ms > 1000) {
-				System.out.print(Math.round(ms / 1000) + "s ");
-			}
-			else {
-				System.out.print(ms + "ms ");
-			}
+				if (iteration > burninPeriod && optimizeInterval != 0 &&
+					iteration % optimizeInterval == 0) {
 
-            if (iterationsSoFar % 10 == 0) {
-                System.out.println ("<" + iterationsSoFar + "> ");
-                if (printLogLikelihood) System.out.println (modelLogLikelihood());
-            }
-            System.out.flush();
+					// Train regression parameters
+					learnParameters(executor);
+					for (DMRWorkerRunnable runnable: runnables) {
+						runnable.setDocumentAlphas(alphaCache);
+					}
+				}
+
+				if (numThreads > 1) {
+					runAll(executor, runnables);
+					sumTypeTopicCounts(runnables);
+					copyTypeTopicCounts(runnables);
+				}
+				else {
+					runnables[0].run();
+				}
+
+				long elapsedMillis = System.currentTimeMillis() - iterationStart;
+				if (elapsedMillis < 1000) {
+					logger.fine(elapsedMillis + "ms ");
+				}
+				else {
+					logger.fine((elapsedMillis/1000) + "s ");
+				}
+
+				if (iteration % 10 == 0) {
+					if (printLogLikelihood) {
+						logger.info ("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
+					}
+					else {
+						logger.info ("<" + iteration + ">");
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
 		}
 
 		long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
         long minutes = seconds / 60;    seconds %= 60;
         long hours = minutes / 60;  minutes %= 60;
         long days = hours / 24; hours %= 24;
-        System.out.print ("\nTotal time: ");
-        if (days != 0) { System.out.print(days); System.out.print(" days "); }
-        if (hours != 0) { System.out.print(hours); System.out.print(" hours "); }
-        if (minutes != 0) { System.out.print(minutes); System.out.print(" minutes "); }
-        System.out.print(seconds); System.out.println(" seconds");
+
+		StringBuilder timeReport = new StringBuilder();
+		timeReport.append("\nTotal time: ");
+		if (days != 0) { timeReport.append(days); timeReport.append(" days "); }
+		if (hours != 0) { timeReport.append(hours); timeReport.append(" hours "); }
+		if (minutes != 0) { timeReport.append(minutes); timeReport.append(" minutes "); }
+		timeReport.append(seconds); timeReport.append(" seconds");
+
+		logger.info(timeReport.toString());
+	}
+
+	private void runAll (ExecutorService executor, DMRWorkerRunnable[] runnables) {
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(runnables.length);
+		for (DMRWorkerRunnable runnable: runnables) {
+			tasks.add(Executors.callable(runnable));
+		}
+		try {
+			for (Future<Object> future: executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sampling", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Sampling failed", e.getCause());
+		}
 	}
 
 	/**
@@ -108,39 +199,31 @@ public class DMRTopicModel extends LDAHyper {
 	public void setAlphas() {
 
         double[] parameters = dmrParameters.getParameters();
-        
+
         alphaSum = 0.0;
-		smoothingOnlyMass = 0.0;
 
         // Use only the default features to set the topic prior (use no document features)
         for (int topic=0; topic < numTopics; topic++) {
             alpha[topic] = Math.exp( parameters[ (topic * numFeatures) + defaultFeatureIndex ] );
             alphaSum += alpha[topic];
-			
-			smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
-			cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
         }
 
     }
 
-    /** This method sets the alphas for a hypothetical "document" that contains 
+    /** This method sets the alphas for a hypothetical "document" that contains
      *   a single non-default feature.
      */
     public void setAlphas(int featureIndex) {
 
         double[] parameters = dmrParameters.getParameters();
-        
+
         alphaSum = 0.0;
-		smoothingOnlyMass = 0.0;
 
         // Use only the default features to set the topic prior (use no document features)
         for (int topic=0; topic < numTopics; topic++) {
-            alpha[topic] = Math.exp(parameters[ (topic * numFeatures) + featureIndex ] +  
+            alpha[topic] = Math.exp(parameters[ (topic * numFeatures) + featureIndex ] +
                                     parameters[ (topic * numFeatures) + defaultFeatureIndex ] );
             alphaSum += alpha[topic];
-
-			smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
-			cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
         }
 
     }
@@ -149,38 +232,63 @@ public class DMRTopicModel extends LDAHyper {
 	 *  Set alpha based on features in an instance
 	 */
     public void setAlphas(Instance instance) {
-    
+
         // we can't use the standard score functions from MaxEnt,
         //  since our features are currently in the Target.
         FeatureVector features = (FeatureVector) instance.getTarget();
         if (features == null) { setAlphas(); return; }
-        
+
+        alphaSum = getAlphas(features, alpha);
+    }
+
+	/**
+	 *  Fill <code>documentAlpha</code> with the topic prior for
+	 *   a document with the given features, and return its sum.
+	 */
+	public double getAlphas(FeatureVector features, double[] documentAlpha) {
+
         double[] parameters = dmrParameters.getParameters();
-        
-        alphaSum = 0.0;
-		smoothingOnlyMass = 0.0;
-        
+        double sum = 0.0;
+
         for (int topic = 0; topic < numTopics; topic++) {
-            alpha[topic] = parameters[topic*numFeatures + defaultFeatureIndex]
+            documentAlpha[topic] = parameters[topic*numFeatures + defaultFeatureIndex]
                 + MatrixOps.rowDotProduct (parameters,
                                            numFeatures,
                                            topic, features,
                                            defaultFeatureIndex,
                                            null);
-            
-            alpha[topic] = Math.exp(alpha[topic]);
-            alphaSum += alpha[topic];
 
-			smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
-			cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
+            documentAlpha[topic] = Math.exp(documentAlpha[topic]);
+            sum += documentAlpha[topic];
         }
+
+        return sum;
     }
 
+	/**
+	 *  Returns the topic prior of each document, as cached by the last
+	 *   call to {@link #learnParameters()}, or null before the first.
+	 *   A null row means the document has no features and uses the
+	 *   default prior, <code>alpha</code>.
+	 */
+	public double[][] getDocumentAlphas() {
+		return alphaCache;
+	}
+
 	public void learnParameters() {
+		learnParameters(null);
+	}
 
-        // Create a "fake" pipe with the features in the data and 
+	/**
+	 *  Fit the regression parameters to the current topic counts, computing
+	 *   the likelihood and its gradient on the executor's threads if it is
+	 *   not null, and cache the prior of every document.
+	 */
+	public void learnParameters(ExecutorService executor) {
+
+        // Create a "fake" pipe with the features in the data and
         //  a trove int-int hashmap of topic counts in the target.
-        
+
         if (parameterPipe == null) {
             parameterPipe = new Noop();
 
@@ -188,33 +296,51 @@ public class DMRTopicModel extends LDAHyper {
             parameterPipe.setTargetAlphabet(topicAlphabet);
         }
 
-        InstanceList parameterInstances = new InstanceList(parameterPipe);
-
         if (dmrParameters == null) {
             dmrParameters = new MaxEnt(parameterPipe, new double[numFeatures * numTopics]);
         }
-        
-        for (int doc=0; doc < data.size(); doc++) {
-            
-            if (data.get(doc).instance.getTarget() == null) {
-                continue;
+
+        boolean firstPass = (parameterInstances == null);
+        if (firstPass) {
+            parameterInstances = new InstanceList(parameterPipe);
+            parameterDocs = new int[data.size()];
+            int numParameterDocs = 0;
+            for (int doc=0; doc < data.size(); doc++) {
+                if (data.get(doc).instance.getTarget() != null) {
+                    parameterDocs[numParameterDocs++] = doc;
+                }
             }
+            parameterDocs = Arrays.copyOf(parameterDocs, numParameterDocs);
+        }
 
+        for (int i = 0; i < parameterDocs.length; i++) {
+            TopicAssignment document = data.get(parameterDocs[i]);
 			FeatureCounter counter = new FeatureCounter(topicAlphabet);
 
-			for (int topic : data.get(doc).topicSequence.getFeatures()) {
+			for (int topic : document.topicSequence.getFeatures()) {
 				counter.increment(topic);
             }
 
-            // Put the real target in the data field, and the
-            //  topic counts in the target field
-            parameterInstances.add( new Instance(data.get(doc).instance.getTarget(), counter.toFeatureVector(), null, null) );
-
+            if (firstPass) {
+                // Put the real target in the data field, and the
+                //  topic counts in the target field
+                parameterInstances.add( new Instance(document.instance.getTarget(), counter.toFeatureVector(), null, null) );
+            }
+            else {
+                // Later passes only replace the topic counts
+                Instance instance = parameterInstances.get(i);
+                instance.unLock();
+                instance.setTarget(counter.toFeatureVector());
+                instance.lock();
+            }
         }
 
         DMROptimizable optimizable = new DMROptimizable(parameterInstances, dmrParameters);
         optimizable.setRegularGaussianPriorVariance(0.5);
         optimizable.setInterceptGaussianPriorVariance(100.0);
+        if (executor != null && numThreads > 1) {
+            optimizable.setExecutor(executor, numThreads);
+        }
 
 		LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
 
@@ -233,20 +359,27 @@ public class DMRTopicModel extends LDAHyper {
 		}
         dmrParameters = optimizable.getClassifier();
 
-        for (int doc=0; doc < data.size(); doc++) {
-            Instance instance = data.get(doc).instance;
-            FeatureSequence tokens = (FeatureSequence) instance.getData();
-            if (instance.getTarget() == null) { continue; }
-            int numTokens = tokens.getLength();
+        // Documents without features use the default prior, which
+        //  the runnables share with us, so update it in place.
+        setAlphas();
 
-            // This sets alpha[] and alphaSum
-            setAlphas(instance);
+        if (alphaCache == null) {
+            alphaCache = new double[data.size()][];
+            alphaSumCache = new double[data.size()];
+        }
 
-            // Now cache alpha values
-            for (int topic=0; topic < numTopics; topic++) {
-                alphaCache[doc][topic] = alpha[topic];
+        for (int doc=0; doc < data.size(); doc++) {
+            FeatureVector features = (FeatureVector) data.get(doc).instance.getTarget();
+            if (features == null) {
+                alphaCache[doc] = null;
+                alphaSumCache[doc] = alphaSum;
+                continue;
+            }
+
+            if (alphaCache[doc] == null) {
+                alphaCache[doc] = new double[numTopics];
             }
-            alphaSumCache[doc] = alphaSum;
+            alphaSumCache[doc] = getAlphas(features, alphaCache[doc]);
         }
     }
 
@@ -267,22 +400,31 @@ public class DMRTopicModel extends LDAHyper {
     private static final int CURRENT_SERIAL_VERSION = 0;
     private static final int NULL_INTEGER = -1;
 
-	public static void main (String[] args) throws IOException {
+	public static void main (String[] args) {
 
-        InstanceList training = InstanceList.load (new File(args[0]));
+		try {
 
-        int numTopics = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+			InstanceList training = InstanceList.load (new File(args[0]));
 
-        InstanceList testing =
-            args.length > 2 ? InstanceList.load (new File(args[2])) : null;
+			int numTopics = args.length > 1 ? Integer.parseInt(args[1]) : 200;
 
-        DMRTopicModel lda = new DMRTopicModel (numTopics);
-		lda.setOptimizeInterval(100);
-		lda.setTopicDisplay(100, 10);
-		lda.addInstances(training);
-		lda.estimate();
+			InstanceList testing =
+				args.length > 2 ? InstanceList.load (new File(args[2])) : null;
 
-		lda.writeParameters(new File("dmr.parameters"));
-		lda.printState(new File("dmr.state.gz"));
-    }
-}
\ No newline at end of file
+			int numThreads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+			DMRTopicModel lda = new DMRTopicModel (numTopics);
+			lda.setOptimizeInterval(100);
+			lda.setTopicDisplay(100, 10);
+			lda.setNumThreads(numThreads);
+			lda.addInstances(training);
+			lda.estimate();
+
+			lda.writeParameters(new File("dmr.parameters"));
+			lda.printState(new File("dmr.state.gz"));
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.ArrayList;
+
+import cc.mallet.util.Randoms;
+
+/**
+ * A parallel topic model runnable task for {@link DMRTopicModel}, in which
+ *  every document has its own Dirichlet prior over topics.
+ */
+
+public class DMRWorkerRunnable extends WorkerRunnable {
+
+	// The prior for documents without their own, shared with the model
+	double[] defaultAlpha;
+
+	// Indexed by <document index, topic index>, shared with the model.
+	//  A null row, or a null array, means the default prior.
+	double[][] documentAlphas = null;
+
+	// True if alpha currently holds the default prior
+	boolean usingDefaultAlpha = true;
+
+	public DMRWorkerRunnable (int numTopics,
+							  double[] alpha, double alphaSum,
+							  double beta, Randoms random,
+							  ArrayList<TopicAssignment> data,
+							  int[][] typeTopicCounts,
+							  int[] tokensPerTopic,
+							  int startDoc, int numDocs) {
+		// Each runnable changes alpha from document to document, so it needs its own copy
+		super(numTopics, (double[]) alpha.clone(), alphaSum, beta, random, data,
+			  typeTopicCounts, tokensPerTopic, startDoc, numDocs);
+		this.defaultAlpha = alpha;
+	}
+
+	public void setDocumentAlphas(double[][] documentAlphas) {
+		this.documentAlphas = documentAlphas;
+	}
+
+	public void run() {
+		// The model may have changed the default prior since the last iteration
+		System.arraycopy(defaultAlpha, 0, alpha, 0, numTopics);
+		usingDefaultAlpha = true;
+		super.run();
+	}
+
+	protected void prepareDocument (int doc) {
+		double[] docAlpha = (documentAlphas == null) ? null : documentAlphas[doc];
+		if (docAlpha == null) {
+			if (usingDefaultAlpha) { return; }
+			docAlpha = defaultAlpha;
+		}
+		usingDefaultAlpha = (docAlpha == defaultAlpha);
+
+		System.arraycopy(docAlpha, 0, alpha, 0, numTopics);
+
+		// The smoothing-only bucket and the cached coefficients depend on alpha
+		smoothingOnlyMass = 0.0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
+			cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+		}
+	}
+
+}
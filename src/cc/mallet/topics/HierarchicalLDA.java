@@ -2,9 +2,18 @@ package cc.mallet.topics;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.*;
 
 import cc.mallet.types.*;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
 
 import gnu.trove.*;
@@ -39,6 +48,8 @@ public class HierarchicalLDA {
 	int displayTopicsInterval = 50;
 	int numWordsToDisplay = 10;
 
+	int numThreads = 1;
+
     public HierarchicalLDA () {
 		alpha = 10.0;
 		gamma = 1.0;
@@ -61,6 +72,11 @@ public class HierarchicalLDA {
 		this.stateFile = stateFile;
 	}
 
+	/** Returns the root of the nCRP tree, whose level is 0. */
+	public NCRPNode getRootNode() {
+		return rootNode;
+	}
+
 	public void setTopicDisplay(int interval, int words) {
 		displayTopicsInterval = interval;
 		numWordsToDisplay = words;
@@ -74,6 +90,23 @@ public class HierarchicalLDA {
 		this.showProgress = showProgress;
 	}
 
+	/**
+	 *  Sets the number of threads used by {@link #estimate(int)}. With more
+	 *   than one, each iteration samples the paths of all documents against
+	 *   the tree as it stood at the start of the iteration and then moves
+	 *   them all, and samples levels with per-thread count deltas that are
+	 *   merged at the end of the iteration. Like approximate distributed LDA,
+	 *   this is not an exact Gibbs sampler: documents in the same iteration
+	 *   do not see each other's moves, and two documents that start new
+	 *   branches from the same node get separate branches.
+	 */
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+		}
+		this.numThreads = numThreads;
+	}
+
     public void initialize(InstanceList instances, InstanceList testing,
 						   int numLevels, Randoms random) {
 		this.instances = instances;
@@ -128,23 +161,50 @@ public class HierarchicalLDA {
 	}
 
 	public void estimate(int numIterations) {
-		for (int iteration = 1; iteration <= numIterations; iteration++) {
-			for (int doc=0; doc < numDocuments; doc++) {
-				samplePath(doc, iteration);
-			}
-			for (int doc=0; doc < numDocuments; doc++) {
-				sampleTopics(doc);
+		int numTasks = Math.min(numThreads, numDocuments);
+		ExecutorService executor = null;
+		Randoms[] threadRandoms = null;
+
+		if (numTasks > 1) {
+			executor = Executors.newFixedThreadPool(numTasks);
+
+			// Streams that are reproducible from the sampler's seed
+			threadRandoms = new Randoms[numTasks];
+			for (int thread = 0; thread < numTasks; thread++) {
+				threadRandoms[thread] = (random instanceof FastRandoms) ?
+					((FastRandoms) random).split() : new FastRandoms(random.nextLong());
 			}
+		}
+
+		try {
+			for (int iteration = 1; iteration <= numIterations; iteration++) {
+				if (executor == null) {
+					for (int doc=0; doc < numDocuments; doc++) {
+						samplePath(doc, iteration);
+					}
+					for (int doc=0; doc < numDocuments; doc++) {
+						sampleTopics(doc);
+					}
+				}
+				else {
+					samplePathsInParallel(executor, threadRandoms);
+					sampleTopicsInParallel(executor, threadRandoms);
+				}
 			
-			if (showProgress) {
-				System.out.print(".");
-				if (iteration % 50 == 0) {
-					System.out.println(" " + iteration);
+				if (showProgress) {
+					System.out.print(".");
+					if (iteration % 50 == 0) {
+						System.out.println(" " + iteration);
+					}
 				}
-			}
 
-			if (iteration % displayTopicsInterval == 0) {
-				printNodes();
+				if (iteration % displayTopicsInterval == 0) {
+					printNodes();
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
 			}
 		}
     }
@@ -209,20 +269,7 @@ public class HierarchicalLDA {
 
 		// Calculate the weight for a new path at a given level.
 		double[] newTopicWeights = new double[numLevels];
-		for (level = 1; level < numLevels; level++) {  // Skip the root...
-			int[] types = typeCounts[level].keys();
-			int totalTokens = 0;
-
-			for (int t: types) {
-				for (int i=0; i<typeCounts[level].get(t); i++) {
-					newTopicWeights[level] += 
-						Math.log((eta + i) / (etaSum + totalTokens));
-					totalTokens++;
-				}
-			}
-
-			//if (iteration > 1) { System.out.println(newTopicWeights[level]); }
-		}
+		calculateNewTopicWeights(typeCounts, newTopicWeights);
 	
 		calculateWordLikelihood(nodeWeights, rootNode, 0.0, typeCounts, newTopicWeights, 0, iteration);
 
@@ -280,6 +327,26 @@ public class HierarchicalLDA {
 		}
     }
 
+	/**
+	 *  Fills <code>newTopicWeights</code> with the log probability of the
+	 *   words at each level under a new, empty topic.
+	 */
+	void calculateNewTopicWeights(TIntIntHashMap[] typeCounts, double[] newTopicWeights) {
+		Arrays.fill(newTopicWeights, 0.0);
+		for (int level = 1; level < numLevels; level++) {  // Skip the root...
+			int[] types = typeCounts[level].keys();
+			int totalTokens = 0;
+
+			for (int t: types) {
+				for (int i=0; i<typeCounts[level].get(t); i++) {
+					newTopicWeights[level] += 
+						Math.log((eta + i) / (etaSum + totalTokens));
+					totalTokens++;
+				}
+			}
+		}
+	}
+
     public void calculateNCRP(TObjectDoubleHashMap<NCRPNode> nodeWeights, 
 							  NCRPNode node, double weight) {
 		for (NCRPNode child: node.children) {
@@ -287,7 +354,11 @@ public class HierarchicalLDA {
 						  weight + Math.log((double) child.customers / (node.customers + gamma)));
 		}
 
-		nodeWeights.put(node, weight + Math.log(gamma / (node.customers + gamma)));
+		// Internal nodes also stand for a new path through a new child
+		if (! node.isLeaf()) {
+			weight += Math.log(gamma / (node.customers + gamma));
+		}
+		nodeWeights.put(node, weight);
     }
 
     public void calculateWordLikelihood(TObjectDoubleHashMap<NCRPNode> nodeWeights,
@@ -339,7 +410,7 @@ public class HierarchicalLDA {
 			level++;
 		}
 
-		nodeWeights.adjustValue(node, nodeWeight);
+		nodeWeights.adjustValue(node, weight + nodeWeight);
 
     }
 
@@ -418,6 +489,368 @@ public class HierarchicalLDA {
 		}
     }
 
+	/**
+	 *  Samples a path for every document on the executor's threads, against
+	 *   a frozen copy of the tree, and then moves the documents to their
+	 *   new paths.
+	 */
+	void samplePathsInParallel(ExecutorService executor, Randoms[] threadRandoms) {
+		final TreeArrays tree = new TreeArrays(rootNode);
+		final int[] choices = new int[numDocuments];
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int thread = 0; thread < threadRandoms.length; thread++) {
+			final int from = (int) ((long) numDocuments * thread / threadRandoms.length);
+			final int to = (int) ((long) numDocuments * (thread + 1) / threadRandoms.length);
+			final Randoms threadRandom = threadRandoms[thread];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					samplePaths(tree, from, to, choices, threadRandom);
+					return null;
+				}
+			});
+		}
+		runAll(executor, tasks);
+
+		movePaths(tree, choices);
+	}
+
+	/**
+	 *  Chooses a node of the tree for each document from <code>from</code>
+	 *   to <code>to - 1</code>, with the weights of {@link #samplePath(int, int)},
+	 *   but without changing the tree: the document's own customers and word
+	 *   counts are subtracted as the weights are calculated. A leaf stands
+	 *   for an existing path, an internal node for a new branch from it.
+	 */
+	void samplePaths(TreeArrays tree, int from, int to, int[] choices, Randoms random) {
+		int numNodes = tree.size;
+		int[] customers = new int[numNodes];
+		double[] prior = new double[numNodes];
+		double[] wordWeights = new double[numNodes];
+		double[] weights = new double[numNodes];
+		int[] path = new int[numLevels];
+		int[] levelTokens = new int[numLevels];
+
+		TIntIntHashMap[] typeCounts = new TIntIntHashMap[numLevels];
+		for (int level = 0; level < numLevels; level++) {
+			typeCounts[level] = new TIntIntHashMap();
+		}
+		double[] newTopicWeights = new double[numLevels];
+		// The weight of new topics at all the levels below a given one
+		double[] newBranchWeights = new double[numLevels];
+
+		for (int doc = from; doc < to; doc++) {
+			int node = documentLeaves[doc].index;
+			for (int level = numLevels - 1; level >= 0; level--) {
+				path[level] = node;
+				node = tree.parent[node];
+			}
+
+			for (int level = 0; level < numLevels; level++) {
+				typeCounts[level].clear();
+				levelTokens[level] = 0;
+			}
+			int[] docLevels = levels[doc];
+			FeatureSequence fs = (FeatureSequence) instances.get(doc).getData();
+			for (int token = 0; token < docLevels.length; token++) {
+				typeCounts[ docLevels[token] ].adjustOrPutValue(fs.getIndexAtPosition(token), 1, 1);
+				levelTokens[ docLevels[token] ]++;
+			}
+
+			calculateNewTopicWeights(typeCounts, newTopicWeights);
+			newBranchWeights[numLevels - 1] = 0.0;
+			for (int level = numLevels - 2; level >= 0; level--) {
+				newBranchWeights[level] = newBranchWeights[level + 1] + newTopicWeights[level + 1];
+			}
+
+			// Parents come before their children, so one pass calculates
+			//  both p(c_m | c_{-m}) and p(w_m | c, w_{-m}, z) down each path.
+			double max = Double.NEGATIVE_INFINITY;
+			for (node = 0; node < numNodes; node++) {
+				int level = tree.level[node];
+				boolean onPath = path[level] == node;
+				customers[node] = tree.customers[node] - (onPath ? 1 : 0);
+
+				if (customers[node] == 0 && node > 0) {
+					// Only this document passes through here, and so
+					//  through all of the node's subtree: skip it.
+					Arrays.fill(weights, node, tree.subtreeEnd[node], Double.NEGATIVE_INFINITY);
+					node = tree.subtreeEnd[node] - 1;
+					continue;
+				}
+
+				double nodePrior = 0.0;
+				double nodeWords = 0.0;
+				if (node > 0) {
+					int parent = tree.parent[node];
+					nodePrior = prior[parent] +
+						Math.log((double) customers[node] / (customers[parent] + gamma));
+					nodeWords = wordWeights[parent];
+				}
+
+				int[] nodeTypeCounts = tree.typeCounts[node];
+				int nodeTotalTokens = tree.totalTokens[node] - (onPath ? levelTokens[level] : 0);
+				int[] types = typeCounts[level].keys();
+				int totalTokens = 0;
+				for (int type: types) {
+					int count = typeCounts[level].get(type);
+					int nodeCount = nodeTypeCounts[type] - (onPath ? count : 0);
+					for (int i = 0; i < count; i++) {
+						nodeWords += Math.log((eta + nodeCount + i) /
+											  (etaSum + nodeTotalTokens + totalTokens));
+						totalTokens++;
+					}
+				}
+
+				prior[node] = nodePrior;
+				wordWeights[node] = nodeWords;
+				weights[node] = nodePrior + nodeWords;
+				if (level < numLevels - 1) {
+					weights[node] += Math.log(gamma / (customers[node] + gamma)) +
+						newBranchWeights[level];
+				}
+				if (weights[node] > max) {
+					max = weights[node];
+				}
+			}
+
+			double sum = 0.0;
+			for (node = 0; node < numNodes; node++) {
+				weights[node] = Math.exp(weights[node] - max);
+				sum += weights[node];
+			}
+			choices[doc] = random.nextDiscrete(weights, sum);
+		}
+	}
+
+	/**
+	 *  Moves every document to the node of the tree it chose, making a new
+	 *   branch if that is an internal node. All documents are added to
+	 *   their new paths before any is dropped from its old one, so that no
+	 *   chosen node is pruned from the tree before it is used.
+	 */
+	void movePaths(TreeArrays tree, int[] choices) {
+		NCRPNode[] oldLeaves = documentLeaves.clone();
+
+		for (int doc = 0; doc < numDocuments; doc++) {
+			NCRPNode node = tree.nodes[ choices[doc] ];
+			if (! node.isLeaf()) {
+				node = node.getNewLeaf();
+			}
+			node.addPath();
+			documentLeaves[doc] = node;
+			addDocumentCounts(doc, node, 1);
+		}
+
+		for (int doc = 0; doc < numDocuments; doc++) {
+			addDocumentCounts(doc, oldLeaves[doc], -1);
+			oldLeaves[doc].dropPath();
+		}
+	}
+
+	/** Adds <code>sign</code> times the word counts of a document to the path ending at <code>leaf</code>. */
+	void addDocumentCounts(int doc, NCRPNode leaf, int sign) {
+		NCRPNode[] path = new NCRPNode[numLevels];
+		NCRPNode node = leaf;
+		for (int level = numLevels - 1; level >= 0; level--) {
+			path[level] = node;
+			node = node.parent;
+		}
+
+		int[] docLevels = levels[doc];
+		FeatureSequence fs = (FeatureSequence) instances.get(doc).getData();
+		for (int token = 0; token < docLevels.length; token++) {
+			node = path[ docLevels[token] ];
+			node.typeCounts[ fs.getIndexAtPosition(token) ] += sign;
+			node.totalTokens += sign;
+		}
+	}
+
+	/**
+	 *  Samples the levels of every document on the executor's threads. Each
+	 *   thread sees the counts of the tree as they were at the start, plus
+	 *   its own changes, which are added to the tree once all are done.
+	 */
+	void sampleTopicsInParallel(ExecutorService executor, Randoms[] threadRandoms) {
+		List<Callable<LevelCountDeltas>> tasks = new ArrayList<Callable<LevelCountDeltas>>();
+		for (int thread = 0; thread < threadRandoms.length; thread++) {
+			final int from = (int) ((long) numDocuments * thread / threadRandoms.length);
+			final int to = (int) ((long) numDocuments * (thread + 1) / threadRandoms.length);
+			final Randoms threadRandom = threadRandoms[thread];
+			tasks.add(new Callable<LevelCountDeltas>() {
+				public LevelCountDeltas call() {
+					LevelCountDeltas deltas = new LevelCountDeltas();
+					for (int doc = from; doc < to; doc++) {
+						sampleTopics(doc, deltas, threadRandom);
+					}
+					return deltas;
+				}
+			});
+		}
+
+		for (LevelCountDeltas deltas: runAll(executor, tasks)) {
+			deltas.addTo();
+		}
+	}
+
+	/**
+	 *  Samples the levels of one document as {@link #sampleTopics(int)}
+	 *   does, but reads and records count changes in <code>deltas</code>
+	 *   rather than in the nodes.
+	 */
+	void sampleTopics(int doc, LevelCountDeltas deltas, Randoms random) {
+		FeatureSequence fs = (FeatureSequence) instances.get(doc).getData();
+		int seqLen = fs.getLength();
+		int[] docLevels = levels[doc];
+		NCRPNode[] path = new NCRPNode[numLevels];
+		TIntIntHashMap[] typeDeltas = new TIntIntHashMap[numLevels];
+		int[] tokenDeltas = new int[numLevels];
+		int[] levelCounts = new int[numLevels];
+		int type, token, level;
+		double sum;
+
+		NCRPNode node = documentLeaves[doc];
+		for (level = numLevels - 1; level >= 0; level--) {
+			path[level] = node;
+			typeDeltas[level] = deltas.typeDeltas(node);
+			node = node.parent;
+		}
+
+		double[] levelWeights = new double[numLevels];
+
+		for (token = 0; token < seqLen; token++) {
+			levelCounts[ docLevels[token] ]++;
+		}
+
+		for (token = 0; token < seqLen; token++) {
+			type = fs.getIndexAtPosition(token);
+	    
+			level = docLevels[token];
+			levelCounts[level]--;
+			typeDeltas[level].adjustOrPutValue(type, -1, -1);
+			tokenDeltas[level]--;
+
+			sum = 0.0;
+			for (level=0; level < numLevels; level++) {
+				levelWeights[level] = 
+					(alpha + levelCounts[level]) * 
+					(eta + path[level].typeCounts[type] + typeDeltas[level].get(type)) /
+					(etaSum + path[level].totalTokens + deltas.tokenDeltas.get(path[level]) + tokenDeltas[level]);
+				sum += levelWeights[level];
+			}
+			level = random.nextDiscrete(levelWeights, sum);
+
+			docLevels[token] = level;
+			levelCounts[level]++;
+			typeDeltas[level].adjustOrPutValue(type, 1, 1);
+			tokenDeltas[level]++;
+		}
+
+		for (level = 0; level < numLevels; level++) {
+			deltas.tokenDeltas.adjustOrPutValue(path[level], tokenDeltas[level], tokenDeltas[level]);
+		}
+	}
+
+	/** Changes to the word counts of nodes, made by one thread. */
+	class LevelCountDeltas {
+		HashMap<NCRPNode, TIntIntHashMap> typeDeltas = new HashMap<NCRPNode, TIntIntHashMap>();
+		TObjectIntHashMap<NCRPNode> tokenDeltas = new TObjectIntHashMap<NCRPNode>();
+
+		TIntIntHashMap typeDeltas(NCRPNode node) {
+			TIntIntHashMap deltas = typeDeltas.get(node);
+			if (deltas == null) {
+				deltas = new TIntIntHashMap();
+				typeDeltas.put(node, deltas);
+			}
+			return deltas;
+		}
+
+		void addTo() {
+			for (NCRPNode node: typeDeltas.keySet()) {
+				TIntIntHashMap deltas = typeDeltas.get(node);
+				for (int type: deltas.keys()) {
+					node.typeCounts[type] += deltas.get(type);
+				}
+				node.totalTokens += tokenDeltas.get(node);
+			}
+		}
+	}
+
+	/** Runs the tasks on the executor and returns their results in order. */
+	<T> List<T> runAll(ExecutorService executor, List<Callable<T>> tasks) {
+		try {
+			List<T> results = new ArrayList<T>(tasks.size());
+			for (Future<T> future: executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sampling", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Sampling failed", e.getCause());
+		}
+	}
+
+	/**
+	 *  A compact copy of the tree in flat arrays, in preorder. The subtree
+	 *   of node <code>i</code> occupies positions <code>i</code> to
+	 *   <code>subtreeEnd[i] - 1</code>, so every parent comes before its
+	 *   children. The word count arrays are those of the nodes themselves,
+	 *   so the tree must not change while the copy is in use. Building it
+	 *   sets the <code>index</code> of every node.
+	 *  <p>
+	 *  This is a snapshot for one round of parallel path sampling, rebuilt
+	 *   at every iteration in time linear in the number of nodes; the
+	 *   {@link NCRPNode} objects remain the model's own representation of
+	 *   the tree, which the serial moves of documents update.
+	 */
+	class TreeArrays {
+		NCRPNode[] nodes;
+		int[] parent;
+		int[] level;
+		int[] customers;
+		int[] totalTokens;
+		int[] subtreeEnd;
+		int[][] typeCounts;
+		int size = 0;
+
+		TreeArrays(NCRPNode root) {
+			int capacity = countNodes(root);
+			nodes = new NCRPNode[capacity];
+			parent = new int[capacity];
+			level = new int[capacity];
+			customers = new int[capacity];
+			totalTokens = new int[capacity];
+			subtreeEnd = new int[capacity];
+			typeCounts = new int[capacity][];
+			add(root, -1);
+		}
+
+		int countNodes(NCRPNode node) {
+			int count = 1;
+			for (NCRPNode child: node.children) {
+				count += countNodes(child);
+			}
+			return count;
+		}
+
+		void add(NCRPNode node, int parentIndex) {
+			int i = size++;
+			node.index = i;
+			nodes[i] = node;
+			parent[i] = parentIndex;
+			level[i] = node.level;
+			customers[i] = node.customers;
+			totalTokens[i] = node.totalTokens;
+			typeCounts[i] = node.typeCounts;
+			for (NCRPNode child: node.children) {
+				add(child, i);
+			}
+			subtreeEnd[i] = size;
+		}
+	}
+
 	/**
 	 *  Writes the current sampling state to the file specified in <code>stateFile</code>.
 	 */
@@ -573,7 +1006,7 @@ public class HierarchicalLDA {
 		}
     }
 
-    class NCRPNode {
+    public class NCRPNode {
 		int customers;
 		ArrayList<NCRPNode> children;
 		NCRPNode parent;
@@ -584,6 +1017,9 @@ public class HierarchicalLDA {
 
 		public int nodeID;
 
+		// Position in the latest TreeArrays
+		int index;
+
 		public NCRPNode(NCRPNode parent, int dimensions, int level) {
 			customers = 0;
 			this.parent = parent;
@@ -603,6 +1039,16 @@ public class HierarchicalLDA {
 			this(null, dimensions, 0);
 		}
 
+		/** The number of documents whose path passes through this node. */
+		public int getCustomers() { return customers; }
+		public List<NCRPNode> getChildren() { return Collections.unmodifiableList(children); }
+		/** The parent of this node, or null for the root. */
+		public NCRPNode getParent() { return parent; }
+		public int getLevel() { return level; }
+		public int getTotalTokens() { return totalTokens; }
+		/** The number of tokens of a word type assigned to this node. */
+		public int getTypeCount(int type) { return typeCounts[type]; }
+
 		public NCRPNode addChild() {
 			NCRPNode node = new NCRPNode(this, typeCounts.length, level + 1);
 			children.add(node);
@@ -3,7 +3,14 @@ package cc.mallet.topics;
 import cc.mallet.types.*;
 import cc.mallet.util.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.*;
 import java.text.NumberFormat;
 
@@ -45,6 +52,10 @@ public class HierarchicalPAM {
 		(HierarchicalPAM.class, "num-sub-topics", "INTEGER", true, 20,
 		 "The number of sub-topics", null);
 	
+	static CommandOption.Integer numThreadsOption = new CommandOption.Integer
+		(HierarchicalPAM.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for parallel training.", null);
+
     public static final int NUM_LEVELS = 3;
 
     // Constants to determine the level of the output multinomial
@@ -82,14 +93,6 @@ public class HierarchicalPAM {
     int[][] superTopics; // indexed by <document index, sequence index>
     int[][] subTopics; // indexed by <document index, sequence index>
     
-    // Per-document state variables
-    int[][] superSubCounts; // # of words per <super, sub>
-    int[] superCounts; // # of words per <super>
-    double[] superWeights; // the component of the Gibbs update that depends on super-topics
-    double[] subWeights;   // the component of the Gibbs update that depends on sub-topics
-    double[][] superSubWeights; // unnormalized sampling distribution
-    double[] cumulativeSuperWeights; // a cache of the cumulative weight for each super-topic
-
 	// Document frequencies used for "minimal path" hierarchical Dirichlets
 	int[] superTopicDocumentFrequencies;
 	int[][] superSubTopicDocumentFrequencies;
@@ -110,6 +113,8 @@ public class HierarchicalPAM {
     int[] tokensPerSuperTopic; // indexed by <topic index>
     int[][] tokensPerSuperSubTopic;
 
+	int numThreads = 1;
+
     Runtime runtime;
     NumberFormat formatter;
     
@@ -131,6 +136,28 @@ public class HierarchicalPAM {
 	
 		runtime = Runtime.getRuntime();
     }
+
+	/**
+	 *  Sets the number of threads that sample documents. Each thread 
+	 *   works from a copy of the word counts and document frequencies
+	 *   made at the start of the iteration, and the copies are summed at
+	 *   the end of it, as in {@link PAM4L}.
+	 */
+	public void setNumThreads (int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("numThreads must be positive: " + threads);
+		}
+		this.numThreads = threads;
+	}
+
+	public int[][] getSuperTopics() { return superTopics; }
+	public int[][] getSubTopics() { return subTopics; }
+	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
+	public int[] getTokensPerTopic() { return tokensPerTopic; }
+	public int[] getTokensPerSuperTopic() { return tokensPerSuperTopic; }
+	public int[][] getTokensPerSuperSubTopic() { return tokensPerSuperSubTopic; }
+	public int[] getSuperTopicDocumentFrequencies() { return superTopicDocumentFrequencies; }
+	public int[][] getSuperSubTopicDocumentFrequencies() { return superSubTopicDocumentFrequencies; }
     
     public void estimate (InstanceList documents, InstanceList testing,
 						  int numIterations, int showTopicsInterval,
@@ -143,16 +170,6 @@ public class HierarchicalPAM {
 		superTopics = new int[numDocs][];
 		subTopics = new int[numDocs][];
 
-		// Allocate several arrays for use within each document
-		//  to cut down memory allocation and garbage collection time
-
-		superSubCounts = new int[numSuperTopics + 1][numSubTopics + 1];
-		superCounts = new int[numSuperTopics + 1];
-		superWeights = new double[numSuperTopics + 1];
-		subWeights = new double[numSubTopics];
-		superSubWeights = new double[numSuperTopics + 1][numSubTopics + 1];
-		cumulativeSuperWeights = new double[numSuperTopics];
-
 		typeTopicCounts = new int[numTypes][1 + numSuperTopics + numSubTopics];
 		tokensPerTopic = new int[1 + numSuperTopics + numSubTopics];
 
@@ -265,28 +282,200 @@ public class HierarchicalPAM {
 			cacheSuperSubTopicPrior(superTopic);
 		}
 
+		int threads = Math.max(1, Math.min(numThreads, numDocs));
+		HierarchicalPAMWorkerRunnable[] runnables = new HierarchicalPAMWorkerRunnable[threads];
+
+		if (threads > 1) {
+			int offset = 0;
+			for (int thread = 0; thread < threads; thread++) {
+				int docsPerThread = (int) ((long) numDocs * (thread + 1) / threads) - offset;
+
+				// Each runnable gets its own, non-overlapping stream from r
+				Randoms threadRandom = (r instanceof FastRandoms) ?
+					((FastRandoms) r).split() : new FastRandoms(r.nextLong());
+
+				runnables[thread] =
+					new HierarchicalPAMWorkerRunnable(numSuperTopics, numSubTopics,
+					                                  superTopicBalance, superTopicSmoothing,
+					                                  subTopicBalance, subTopicSmoothing,
+					                                  beta, threadRandom,
+					                                  instances, superTopics, subTopics,
+					                                  new int[numTypes][1 + numSuperTopics + numSubTopics],
+					                                  new int[1 + numSuperTopics + numSubTopics],
+					                                  new int[numSuperTopics + 1],
+					                                  new int[numSuperTopics + 1][numSubTopics + 1],
+					                                  new int[numSuperTopics + 1],
+					                                  new int[numSuperTopics + 1][numSubTopics + 1],
+					                                  new int[numSuperTopics],
+					                                  new double[numSuperTopics + 1],
+					                                  new double[numSuperTopics][numSubTopics + 1],
+					                                  offset, docsPerThread);
+				offset += docsPerThread;
+			}
+		}
+		else {
+			// If there is only one thread, it samples directly into our
+			//  counts, document frequencies and priors.
+			runnables[0] =
+				new HierarchicalPAMWorkerRunnable(numSuperTopics, numSubTopics,
+				                                  superTopicBalance, superTopicSmoothing,
+				                                  subTopicBalance, subTopicSmoothing,
+				                                  beta, r,
+				                                  instances, superTopics, subTopics,
+				                                  typeTopicCounts, tokensPerTopic,
+				                                  tokensPerSuperTopic, tokensPerSuperSubTopic,
+				                                  superTopicDocumentFrequencies,
+				                                  superSubTopicDocumentFrequencies,
+				                                  sumSuperTopicDocumentFrequencies,
+				                                  superTopicPriorWeights, superSubTopicPriorWeights,
+				                                  0, numDocs);
+			runnables[0].makeOnlyThread();
+		}
+
+		ExecutorService executor = null;
+		if (threads > 1) {
+			executor = Executors.newFixedThreadPool(threads);
+		}
+
 		// Finally, start the sampler!
 
-		for (int iterations = 1; iterations < numIterations; iterations++) {
-			long iterationStart = System.currentTimeMillis();
+		try {
+			for (int iterations = 1; iterations < numIterations; iterations++) {
+				long iterationStart = System.currentTimeMillis();
 
-			// Loop over every word in the corpus
-			for (int doc = 0; doc < superTopics.length; doc++) {
-				sampleTopicsForOneDoc ((FeatureSequence)instances.get(doc).getData(),
-									   superTopics[doc], subTopics[doc], r);
-			}
+				if (executor == null) {
+					runnables[0].setSumDocumentFrequencies(sumDocumentFrequencies);
+					runnables[0].run();
+					sumDocumentFrequencies = runnables[0].getSumDocumentFrequencies();
+				}
+				else {
+					copyCounts(runnables);
+					runAll(executor, runnables);
+					sumCounts(runnables);
+				}
 			
-			if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0) {
-				logger.info( printTopWords(8, false) );
-			}
+				if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0) {
+					logger.info( printTopWords(8, false) );
+				}
 
-			logger.fine((System.currentTimeMillis() - iterationStart) + " ");
-			if (iterations % 10 == 0) {
-				logger.info ("<" + iterations + "> LL: " + formatter.format(modelLogLikelihood() / numTokens));
+				logger.fine((System.currentTimeMillis() - iterationStart) + " ");
+				if (iterations % 10 == 0) {
+					logger.info ("<" + iterations + "> LL: " + formatter.format(modelLogLikelihood() / numTokens));
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
 			}
 		}
 	
     }
+
+	/**
+	 *  Gives every runnable a copy of the counts and document frequencies
+	 *   over all documents, and the priors cached from them.
+	 */
+	private void copyCounts (HierarchicalPAMWorkerRunnable[] runnables) {
+		int numTopics = 1 + numSuperTopics + numSubTopics;
+		for (HierarchicalPAMWorkerRunnable runnable: runnables) {
+			int[][] runnableCounts = runnable.getTypeTopicCounts();
+			for (int type = 0; type < numTypes; type++) {
+				System.arraycopy(typeTopicCounts[type], 0, runnableCounts[type], 0, numTopics);
+			}
+			System.arraycopy(tokensPerTopic, 0, runnable.getTokensPerTopic(), 0, numTopics);
+			System.arraycopy(tokensPerSuperTopic, 0, runnable.getTokensPerSuperTopic(), 0, numSuperTopics + 1);
+			System.arraycopy(superTopicDocumentFrequencies, 0,
+			                 runnable.getSuperTopicDocumentFrequencies(), 0, numSuperTopics + 1);
+			System.arraycopy(sumSuperTopicDocumentFrequencies, 0,
+			                 runnable.getSumSuperTopicDocumentFrequencies(), 0, numSuperTopics);
+			int[][] runnableSuperSub = runnable.getTokensPerSuperSubTopic();
+			int[][] runnableFrequencies = runnable.getSuperSubTopicDocumentFrequencies();
+			for (int superTopic = 0; superTopic <= numSuperTopics; superTopic++) {
+				System.arraycopy(tokensPerSuperSubTopic[superTopic], 0,
+				                 runnableSuperSub[superTopic], 0, numSubTopics + 1);
+				System.arraycopy(superSubTopicDocumentFrequencies[superTopic], 0,
+				                 runnableFrequencies[superTopic], 0, numSubTopics + 1);
+			}
+			runnable.setSumDocumentFrequencies(sumDocumentFrequencies);
+			runnable.cachePriors();
+		}
+	}
+
+	/**
+	 *  Replaces our counts and document frequencies with the sum of the
+	 *   runnables' over their own documents, and recalculates our priors.
+	 */
+	private void sumCounts (HierarchicalPAMWorkerRunnable[] runnables) {
+		int numTopics = 1 + numSuperTopics + numSubTopics;
+		for (int type = 0; type < numTypes; type++) {
+			Arrays.fill(typeTopicCounts[type], 0);
+		}
+		Arrays.fill(tokensPerTopic, 0);
+		Arrays.fill(tokensPerSuperTopic, 0);
+		Arrays.fill(superTopicDocumentFrequencies, 0);
+		Arrays.fill(sumSuperTopicDocumentFrequencies, 0);
+		sumDocumentFrequencies = 0;
+		for (int superTopic = 0; superTopic <= numSuperTopics; superTopic++) {
+			Arrays.fill(tokensPerSuperSubTopic[superTopic], 0);
+			Arrays.fill(superSubTopicDocumentFrequencies[superTopic], 0);
+		}
+
+		for (HierarchicalPAMWorkerRunnable runnable: runnables) {
+			int[][] runnableCounts = runnable.getTypeTopicCounts();
+			for (int type = 0; type < numTypes; type++) {
+				int[] source = runnableCounts[type];
+				int[] target = typeTopicCounts[type];
+				for (int topic = 0; topic < numTopics; topic++) {
+					target[topic] += source[topic];
+				}
+			}
+			int[] runnableTotals = runnable.getTokensPerTopic();
+			for (int topic = 0; topic < numTopics; topic++) {
+				tokensPerTopic[topic] += runnableTotals[topic];
+			}
+
+			int[] runnableSuperTotals = runnable.getTokensPerSuperTopic();
+			int[] runnableSuperFrequencies = runnable.getSuperTopicDocumentFrequencies();
+			int[][] runnableSuperSub = runnable.getTokensPerSuperSubTopic();
+			int[][] runnableSuperSubFrequencies = runnable.getSuperSubTopicDocumentFrequencies();
+			for (int superTopic = 0; superTopic <= numSuperTopics; superTopic++) {
+				tokensPerSuperTopic[superTopic] += runnableSuperTotals[superTopic];
+				superTopicDocumentFrequencies[superTopic] += runnableSuperFrequencies[superTopic];
+				for (int subTopic = 0; subTopic <= numSubTopics; subTopic++) {
+					tokensPerSuperSubTopic[superTopic][subTopic] += runnableSuperSub[superTopic][subTopic];
+					superSubTopicDocumentFrequencies[superTopic][subTopic] +=
+						runnableSuperSubFrequencies[superTopic][subTopic];
+				}
+			}
+			int[] runnableSums = runnable.getSumSuperTopicDocumentFrequencies();
+			for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+				sumSuperTopicDocumentFrequencies[superTopic] += runnableSums[superTopic];
+			}
+			sumDocumentFrequencies += runnable.getSumDocumentFrequencies();
+		}
+
+		cacheSuperTopicPrior();
+		for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+			cacheSuperSubTopicPrior(superTopic);
+		}
+	}
+
+	private void runAll (ExecutorService executor, HierarchicalPAMWorkerRunnable[] runnables) {
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(runnables.length);
+		for (HierarchicalPAMWorkerRunnable runnable: runnables) {
+			tasks.add(Executors.callable(runnable));
+		}
+		try {
+			for (Future<Object> future: executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sampling", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Sampling failed", e.getCause());
+		}
+	}
     
 	private void cacheSuperTopicPrior() {
 		for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
@@ -314,225 +503,6 @@ public class HierarchicalPAM {
 			(sumSuperTopicDocumentFrequencies[superTopic] + (numSubTopics + 1) * subTopicSmoothing);
 	}
 
-    private void sampleTopicsForOneDoc (FeatureSequence oneDocTokens,
-										int[] superTopics, // indexed by seq position
-										int[] subTopics,
-										Randoms r) {
-
-		//long startTime = System.currentTimeMillis();
-	
-		int[] currentTypeTopicCounts;
-		int[] currentSuperSubCounts;
-		double[] currentSuperSubWeights;
-
-		double[] wordWeights = new double[ 1 + numSuperTopics + numSubTopics ];
-
-		int type, subTopic, superTopic;
-		double rootWeight, currentSuperWeight, cumulativeWeight, sample;
-	    
-		int docLen = oneDocTokens.getLength();
-
-		Arrays.fill(superCounts, 0);
-		for (int t = 0; t < numSuperTopics; t++) {
-			Arrays.fill(superSubCounts[t], 0);
-		}
-	
-		// populate topic counts
-		for (int position = 0; position < docLen; position++) {
-			superSubCounts[ superTopics[position] ][ subTopics[position] ]++;
-			superCounts[ superTopics[position] ]++;
-		}
-
-		for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-			superWeights[superTopic] =
-				((double) superCounts[superTopic] + 
-				 (superTopicBalance * superTopicPriorWeights[superTopic])) /
-				((double) superCounts[superTopic] + subTopicBalance);
-			assert(superWeights[superTopic] != 0.0);
-		}
-
-		// Iterate over the positions (words) in the document
-
-		for (int position = 0; position < docLen; position++) {
-
-			type = oneDocTokens.getIndexAtPosition(position);
-			currentTypeTopicCounts = typeTopicCounts[type];
-
-			superTopic = superTopics[position];
-			subTopic = subTopics[position];
-
-			if (superTopic == numSuperTopics) {
-				currentTypeTopicCounts[ 0 ]--;
-				tokensPerTopic[ 0 ]--;
-			}
-			else if (subTopic == numSubTopics) {
-				currentTypeTopicCounts[ 1 + superTopic ]--;
-				tokensPerTopic[ 1 + superTopic ]--;
-			}
-			else {
-				currentTypeTopicCounts[ 1 + numSuperTopics + subTopic ]--;
-				tokensPerTopic[ 1 + numSuperTopics + subTopic ]--;
-			}
-
-			// Remove this token from all counts
-			superCounts[superTopic]--;
-			superSubCounts[superTopic][subTopic]--;
-
-			if (superCounts[superTopic] == 0) {
-				// The document frequencies have changed.
-				//  Decrement and recalculate the prior weights
-				superTopicDocumentFrequencies[superTopic]--;
-				sumDocumentFrequencies--;
-				cacheSuperTopicPrior();
-			}
-			if (superTopic != numSuperTopics && 
-				superSubCounts[superTopic][subTopic] == 0) {
-				superSubTopicDocumentFrequencies[superTopic][subTopic]--;
-				sumSuperTopicDocumentFrequencies[superTopic]--;
-				cacheSuperSubTopicPrior(superTopic);
-			}
-
-			tokensPerSuperTopic[superTopic]--;
-			tokensPerSuperSubTopic[superTopic][subTopic]--;
-
-			// Update the super-topic weight for the old topic.
-			superWeights[superTopic] =
-                ((double) superCounts[superTopic] +
-                 (superTopicBalance * superTopicPriorWeights[superTopic])) /
-                ((double) superCounts[superTopic] + subTopicBalance);
-
-			// Build a distribution over super-sub topic pairs 
-			//   for this token
-
-			for (int i=0; i<wordWeights.length; i++) {
-				wordWeights[i] = 
-					(beta + currentTypeTopicCounts[i]) /
-					(betaSum + tokensPerTopic[i]);
-
-				assert(wordWeights[i] != 0);
-			}
-
-			Arrays.fill(cumulativeSuperWeights, 0.0);
-
-			// The conditional probability of each super-sub pair is proportional
-			//  to an expression with three parts, one that depends only on the 
-			//  super-topic, one that depends only on the sub-topic and the word type,
-			//  and one that depends on the super-sub pair.
-
-			cumulativeWeight = 0.0;
-
-			for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-				currentSuperSubWeights = superSubWeights[superTopic];
-				currentSuperSubCounts = superSubCounts[superTopic];
-				currentSuperWeight = superWeights[superTopic];
-		
-				int[] documentFrequencies = superSubTopicDocumentFrequencies[superTopic];
-				double[] priorCache = superSubTopicPriorWeights[superTopic];
-				
-				for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-					currentSuperSubWeights[subTopic] =
-						currentSuperWeight *
-						wordWeights[ 1 + numSuperTopics + subTopic ] *
-						((double) currentSuperSubCounts[subTopic] + 
-						 ( subTopicBalance * priorCache[subTopic] ));
-					cumulativeWeight += currentSuperSubWeights[subTopic];
-				}
-		
-				currentSuperSubWeights[numSubTopics] = 
-					currentSuperWeight *
-					wordWeights[1 + superTopic] *
-					((double) currentSuperSubCounts[numSubTopics] +
-					 ( subTopicBalance * priorCache[numSubTopics] ));
-				cumulativeWeight += currentSuperSubWeights[numSubTopics];
-
-				cumulativeSuperWeights[superTopic] = cumulativeWeight;
-				assert(cumulativeSuperWeights[superTopic] != 0.0);
-			}
-
-			rootWeight = wordWeights[0] *
-				(superCounts[numSuperTopics] +
-				 (superTopicBalance * superTopicPriorWeights[numSuperTopics]));
-
-			// Sample a topic assignment from this distribution
-			sample = r.nextUniform() * (cumulativeWeight + rootWeight);
-
-			if (sample > cumulativeWeight) {
-				// We picked the root topic
-		
-				currentTypeTopicCounts[ 0 ]++;
-				tokensPerTopic[ 0 ] ++;
-		
-				superTopic = numSuperTopics;
-				subTopic = numSubTopics;
-			}
-			else {
-
-				// Go over the row sums to find the super-topic...
-				superTopic = 0;
-				while (sample > cumulativeSuperWeights[superTopic]) {
-					superTopic++;
-				}
-
-				// Now read across to find the sub-topic
-				currentSuperSubWeights = superSubWeights[superTopic];
-				cumulativeWeight = cumulativeSuperWeights[superTopic];
-
-				// Go over each sub-topic until the weight is LESS than
-				//  the sample. Note that we're subtracting weights
-				//  in the same order we added them...
-				subTopic = 0;
-				cumulativeWeight -=	currentSuperSubWeights[0];
-
-				while (sample < cumulativeWeight) {
-					subTopic++;
-					cumulativeWeight -= currentSuperSubWeights[subTopic];
-				}
-		
-				if (subTopic == numSubTopics) {
-					currentTypeTopicCounts[ 1 + superTopic ]++;
-					tokensPerTopic[ 1 + superTopic ]++;
-				}
-				else {
-					currentTypeTopicCounts[ 1 + numSuperTopics + subTopic ]++;
-					tokensPerTopic[ 1 + numSuperTopics + subTopic ]++;
-				}
-			}
-
-			// Save the choice into the Gibbs state
-	    
-			superTopics[position] = superTopic;
-			subTopics[position] = subTopic;
-
-			// Put the new super/sub topics into the counts
-	    
-			superSubCounts[superTopic][subTopic]++;
-			superCounts[superTopic]++;
-
-			if (superCounts[superTopic] == 1) {
-				superTopicDocumentFrequencies[superTopic]++;
-				sumDocumentFrequencies++;
-				cacheSuperTopicPrior();
-			}
-			if (superTopic != numSuperTopics && 
-				superSubCounts[superTopic][subTopic] == 1) {
-				superSubTopicDocumentFrequencies[superTopic][subTopic]++;
-				sumSuperTopicDocumentFrequencies[superTopic]++;
-				cacheSuperSubTopicPrior(superTopic);
-			}
-
-			tokensPerSuperTopic[superTopic]++;
-			tokensPerSuperSubTopic[superTopic][subTopic]++;
-
-			// Update the weight for the new super topic
-			superWeights[superTopic] =
-                ((double) superCounts[superTopic] +
-                 (superTopicBalance * superTopicPriorWeights[superTopic])) /
-                ((double) superCounts[superTopic] + subTopicBalance);
-
-		}
-
-    }
-
     public String printTopWords (int numWords, boolean useNewLines) {
 
 		StringBuilder output = new StringBuilder();
@@ -760,6 +730,7 @@ public class HierarchicalPAM {
 
         HierarchicalPAM pam = new HierarchicalPAM (numSuperTopicsOption.value, numSubTopicsOption.value,
 												   superTopicBalanceOption.value, subTopicBalanceOption.value);
+		pam.setNumThreads(numThreadsOption.value);
         pam.estimate (instances, testing, 1000, 100, 0, 250, null, new Randoms());
 		if (stateFile.wasInvoked()) {
 			pam.printState(new File(stateFile.value));
@@ -0,0 +1,433 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+/**
+ * A runnable task that samples the root, super- and sub-topics of a range
+ *  of documents for {@link HierarchicalPAM}.
+ * <p>
+ * Besides the word counts, the "minimal path" priors of HierarchicalPAM
+ *  depend on the number of documents that use each super-topic and each
+ *  super/sub pair. A worker keeps those document frequencies, and the
+ *  priors cached from them, along with its word counts: they are the
+ *  model's own if it is the only thread, and otherwise a copy made at the
+ *  start of the iteration, which it replaces with counts over its own
+ *  documents once they are sampled.
+ */
+
+public class HierarchicalPAMWorkerRunnable implements Runnable {
+
+	InstanceList instances;
+	int[][] superTopics; // indexed by <document index, sequence index>
+	int[][] subTopics; // indexed by <document index, sequence index>
+	int startDoc, numDocs;
+
+	int numSuperTopics;
+	int numSubTopics;
+
+	double superTopicBalance;
+	double superTopicSmoothing;
+	double subTopicBalance;
+	double subTopicSmoothing;
+	double beta;
+	double betaSum;
+
+	// Counts over this worker's documents, or over all documents if it is the only thread
+	int[][] typeTopicCounts; // indexed by <feature index, topic index>
+	int[] tokensPerTopic; // indexed by <topic index>
+	int[] tokensPerSuperTopic;
+	int[][] tokensPerSuperSubTopic;
+
+	int[] superTopicDocumentFrequencies;
+	int[][] superSubTopicDocumentFrequencies;
+	int sumDocumentFrequencies;
+	int[] sumSuperTopicDocumentFrequencies;
+
+	// Priors cached from the document frequencies
+	double[] superTopicPriorWeights;
+	double[][] superSubTopicPriorWeights;
+
+	boolean shouldBuildLocalCounts = true;
+
+	Randoms random;
+
+	// Per-document state variables
+	int[][] superSubCounts; // # of words per <super, sub>
+	int[] superCounts; // # of words per <super>
+	double[] superWeights; // the component of the Gibbs update that depends on super-topics
+	double[][] superSubWeights; // unnormalized sampling distribution
+	double[] cumulativeSuperWeights; // a cache of the cumulative weight for each super-topic
+	double[] wordWeights;
+
+	public HierarchicalPAMWorkerRunnable (int numSuperTopics, int numSubTopics,
+	                                      double superTopicBalance, double superTopicSmoothing,
+	                                      double subTopicBalance, double subTopicSmoothing,
+	                                      double beta, Randoms random,
+	                                      InstanceList instances, int[][] superTopics, int[][] subTopics,
+	                                      int[][] typeTopicCounts, int[] tokensPerTopic,
+	                                      int[] tokensPerSuperTopic, int[][] tokensPerSuperSubTopic,
+	                                      int[] superTopicDocumentFrequencies,
+	                                      int[][] superSubTopicDocumentFrequencies,
+	                                      int[] sumSuperTopicDocumentFrequencies,
+	                                      double[] superTopicPriorWeights,
+	                                      double[][] superSubTopicPriorWeights,
+	                                      int startDoc, int numDocs) {
+		this.numSuperTopics = numSuperTopics;
+		this.numSubTopics = numSubTopics;
+
+		this.superTopicBalance = superTopicBalance;
+		this.superTopicSmoothing = superTopicSmoothing;
+		this.subTopicBalance = subTopicBalance;
+		this.subTopicSmoothing = subTopicSmoothing;
+		this.beta = beta;
+		this.betaSum = beta * typeTopicCounts.length;
+		this.random = random;
+
+		this.instances = instances;
+		this.superTopics = superTopics;
+		this.subTopics = subTopics;
+		this.startDoc = startDoc;
+		this.numDocs = numDocs;
+
+		this.typeTopicCounts = typeTopicCounts;
+		this.tokensPerTopic = tokensPerTopic;
+		this.tokensPerSuperTopic = tokensPerSuperTopic;
+		this.tokensPerSuperSubTopic = tokensPerSuperSubTopic;
+		this.superTopicDocumentFrequencies = superTopicDocumentFrequencies;
+		this.superSubTopicDocumentFrequencies = superSubTopicDocumentFrequencies;
+		this.sumSuperTopicDocumentFrequencies = sumSuperTopicDocumentFrequencies;
+		this.superTopicPriorWeights = superTopicPriorWeights;
+		this.superSubTopicPriorWeights = superSubTopicPriorWeights;
+
+		superSubCounts = new int[numSuperTopics + 1][numSubTopics + 1];
+		superCounts = new int[numSuperTopics + 1];
+		superWeights = new double[numSuperTopics + 1];
+		superSubWeights = new double[numSuperTopics + 1][numSubTopics + 1];
+		cumulativeSuperWeights = new double[numSuperTopics];
+		wordWeights = new double[1 + numSuperTopics + numSubTopics];
+	}
+
+	/**
+	 *  If there is only one thread, the worker samples directly
+	 *   into the model's counts, and need not rebuild local ones.
+	 */
+	public void makeOnlyThread() {
+		shouldBuildLocalCounts = false;
+	}
+
+	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
+	public int[] getTokensPerTopic() { return tokensPerTopic; }
+	public int[] getTokensPerSuperTopic() { return tokensPerSuperTopic; }
+	public int[][] getTokensPerSuperSubTopic() { return tokensPerSuperSubTopic; }
+
+	public int[] getSuperTopicDocumentFrequencies() { return superTopicDocumentFrequencies; }
+	public int[][] getSuperSubTopicDocumentFrequencies() { return superSubTopicDocumentFrequencies; }
+	public int[] getSumSuperTopicDocumentFrequencies() { return sumSuperTopicDocumentFrequencies; }
+
+	public int getSumDocumentFrequencies() { return sumDocumentFrequencies; }
+	public void setSumDocumentFrequencies(int sum) { sumDocumentFrequencies = sum; }
+
+	/** Recalculates the cached priors from the current document frequencies. */
+	public void cachePriors() {
+		cacheSuperTopicPrior();
+		for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+			cacheSuperSubTopicPrior(superTopic);
+		}
+	}
+
+	public void run () {
+		for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+			sampleTopicsForOneDoc ((FeatureSequence) instances.get(doc).getData(),
+			                       superTopics[doc], subTopics[doc]);
+		}
+
+		if (shouldBuildLocalCounts) {
+			buildLocalCounts();
+		}
+	}
+
+	/**
+	 *  Once the documents are sampled, replace the "global" counts
+	 *   this worker started from with counts over its own documents,
+	 *   ready to be summed by the model.
+	 */
+	public void buildLocalCounts () {
+		for (int type = 0; type < typeTopicCounts.length; type++) {
+			Arrays.fill(typeTopicCounts[type], 0);
+		}
+		Arrays.fill(tokensPerTopic, 0);
+		Arrays.fill(tokensPerSuperTopic, 0);
+		Arrays.fill(superTopicDocumentFrequencies, 0);
+		Arrays.fill(sumSuperTopicDocumentFrequencies, 0);
+		sumDocumentFrequencies = 0;
+		for (int superTopic = 0; superTopic <= numSuperTopics; superTopic++) {
+			Arrays.fill(tokensPerSuperSubTopic[superTopic], 0);
+			Arrays.fill(superSubTopicDocumentFrequencies[superTopic], 0);
+		}
+
+		for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+			FeatureSequence tokens = (FeatureSequence) instances.get(doc).getData();
+			int[] docSuperTopics = superTopics[doc];
+			int[] docSubTopics = subTopics[doc];
+
+			for (int t = 0; t <= numSuperTopics; t++) {
+				Arrays.fill(superSubCounts[t], 0);
+			}
+			Arrays.fill(superCounts, 0);
+
+			for (int position = 0; position < docSuperTopics.length; position++) {
+				int superTopic = docSuperTopics[position];
+				int subTopic = docSubTopics[position];
+				typeTopicCounts[ tokens.getIndexAtPosition(position) ][ topicIndex(superTopic, subTopic) ]++;
+				tokensPerTopic[ topicIndex(superTopic, subTopic) ]++;
+				tokensPerSuperTopic[superTopic]++;
+				tokensPerSuperSubTopic[superTopic][subTopic]++;
+
+				if (superCounts[superTopic]++ == 0) {
+					superTopicDocumentFrequencies[superTopic]++;
+					sumDocumentFrequencies++;
+				}
+				if (superTopic != numSuperTopics &&
+					superSubCounts[superTopic][subTopic]++ == 0) {
+					superSubTopicDocumentFrequencies[superTopic][subTopic]++;
+					sumSuperTopicDocumentFrequencies[superTopic]++;
+				}
+			}
+		}
+	}
+
+	/** The index in the word counts of the root, a super-topic, or a sub-topic. */
+	int topicIndex (int superTopic, int subTopic) {
+		if (superTopic == numSuperTopics) { return 0; }
+		else if (subTopic == numSubTopics) { return 1 + superTopic; }
+		else { return 1 + numSuperTopics + subTopic; }
+	}
+
+	private void cacheSuperTopicPrior() {
+		for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+			superTopicPriorWeights[superTopic] = 
+				(superTopicDocumentFrequencies[superTopic] + superTopicSmoothing) /
+				(sumDocumentFrequencies + (numSuperTopics + 1) * superTopicSmoothing);
+		}
+		
+		superTopicPriorWeights[numSuperTopics] = 
+			(superTopicDocumentFrequencies[numSuperTopics] + superTopicSmoothing) /
+			(sumDocumentFrequencies + (numSuperTopics + 1) * superTopicSmoothing);
+	}
+
+	private void cacheSuperSubTopicPrior(int superTopic) {
+		int[] documentFrequencies = superSubTopicDocumentFrequencies[superTopic];
+
+		for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+			superSubTopicPriorWeights[superTopic][subTopic] = 
+				(documentFrequencies[subTopic] + subTopicSmoothing ) /
+				(sumSuperTopicDocumentFrequencies[superTopic] + (numSubTopics + 1) * subTopicSmoothing);
+		}
+		
+		superSubTopicPriorWeights[superTopic][numSubTopics] = 
+			(documentFrequencies[numSubTopics] + subTopicSmoothing ) /
+			(sumSuperTopicDocumentFrequencies[superTopic] + (numSubTopics + 1) * subTopicSmoothing);
+	}
+
+	private void sampleTopicsForOneDoc (FeatureSequence oneDocTokens,
+	                                    int[] superTopics, // indexed by seq position
+	                                    int[] subTopics) {
+
+		int[] currentTypeTopicCounts;
+		int[] currentSuperSubCounts;
+		double[] currentSuperSubWeights;
+
+		int type, subTopic, superTopic;
+		double rootWeight, currentSuperWeight, cumulativeWeight, sample;
+	    
+		int docLen = oneDocTokens.getLength();
+
+		Arrays.fill(superCounts, 0);
+		for (int t = 0; t <= numSuperTopics; t++) {
+			Arrays.fill(superSubCounts[t], 0);
+		}
+	
+		// populate topic counts
+		for (int position = 0; position < docLen; position++) {
+			superSubCounts[ superTopics[position] ][ subTopics[position] ]++;
+			superCounts[ superTopics[position] ]++;
+		}
+
+		for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+			superWeights[superTopic] =
+				((double) superCounts[superTopic] + 
+				 (superTopicBalance * superTopicPriorWeights[superTopic])) /
+				((double) superCounts[superTopic] + subTopicBalance);
+			assert(superWeights[superTopic] != 0.0);
+		}
+
+		// Iterate over the positions (words) in the document
+
+		for (int position = 0; position < docLen; position++) {
+
+			type = oneDocTokens.getIndexAtPosition(position);
+			currentTypeTopicCounts = typeTopicCounts[type];
+
+			superTopic = superTopics[position];
+			subTopic = subTopics[position];
+
+			currentTypeTopicCounts[ topicIndex(superTopic, subTopic) ]--;
+			tokensPerTopic[ topicIndex(superTopic, subTopic) ]--;
+
+			// Remove this token from all counts
+			superCounts[superTopic]--;
+			superSubCounts[superTopic][subTopic]--;
+
+			if (superCounts[superTopic] == 0) {
+				// The document frequencies have changed.
+				//  Decrement and recalculate the prior weights
+				superTopicDocumentFrequencies[superTopic]--;
+				sumDocumentFrequencies--;
+				cacheSuperTopicPrior();
+			}
+			if (superTopic != numSuperTopics && 
+				superSubCounts[superTopic][subTopic] == 0) {
+				superSubTopicDocumentFrequencies[superTopic][subTopic]--;
+				sumSuperTopicDocumentFrequencies[superTopic]--;
+				cacheSuperSubTopicPrior(superTopic);
+			}
+
+			tokensPerSuperTopic[superTopic]--;
+			tokensPerSuperSubTopic[superTopic][subTopic]--;
+
+			// Update the super-topic weight for the old topic.
+			superWeights[superTopic] =
+				((double) superCounts[superTopic] +
+				 (superTopicBalance * superTopicPriorWeights[superTopic])) /
+				((double) superCounts[superTopic] + subTopicBalance);
+
+			// Build a distribution over super-sub topic pairs 
+			//   for this token
+
+			for (int i=0; i<wordWeights.length; i++) {
+				wordWeights[i] = 
+					(beta + currentTypeTopicCounts[i]) /
+					(betaSum + tokensPerTopic[i]);
+
+				assert(wordWeights[i] != 0);
+			}
+
+			Arrays.fill(cumulativeSuperWeights, 0.0);
+
+			// The conditional probability of each super-sub pair is proportional
+			//  to an expression with three parts, one that depends only on the 
+			//  super-topic, one that depends only on the sub-topic and the word type,
+			//  and one that depends on the super-sub pair.
+
+			cumulativeWeight = 0.0;
+
+			for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+				currentSuperSubWeights = superSubWeights[superTopic];
+				currentSuperSubCounts = superSubCounts[superTopic];
+				currentSuperWeight = superWeights[superTopic];
+		
+				double[] priorCache = superSubTopicPriorWeights[superTopic];
+				
+				for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
+					currentSuperSubWeights[subTopic] =
+						currentSuperWeight *
+						wordWeights[ 1 + numSuperTopics + subTopic ] *
+						((double) currentSuperSubCounts[subTopic] + 
+						 ( subTopicBalance * priorCache[subTopic] ));
+					cumulativeWeight += currentSuperSubWeights[subTopic];
+				}
+		
+				currentSuperSubWeights[numSubTopics] = 
+					currentSuperWeight *
+					wordWeights[1 + superTopic] *
+					((double) currentSuperSubCounts[numSubTopics] +
+					 ( subTopicBalance * priorCache[numSubTopics] ));
+				cumulativeWeight += currentSuperSubWeights[numSubTopics];
+
+				cumulativeSuperWeights[superTopic] = cumulativeWeight;
+				assert(cumulativeSuperWeights[superTopic] != 0.0);
+			}
+
+			rootWeight = wordWeights[0] *
+				(superCounts[numSuperTopics] +
+				 (superTopicBalance * superTopicPriorWeights[numSuperTopics]));
+
+			// Sample a topic assignment from this distribution
+			sample = random.nextUniform() * (cumulativeWeight + rootWeight);
+
+			if (sample > cumulativeWeight) {
+				// We picked the root topic
+				superTopic = numSuperTopics;
+				subTopic = numSubTopics;
+			}
+			else {
+
+				// Go over the row sums to find the super-topic...
+				superTopic = 0;
+				while (sample > cumulativeSuperWeights[superTopic]) {
+					superTopic++;
+				}
+
+				// Now read across to find the sub-topic
+				currentSuperSubWeights = superSubWeights[superTopic];
+				cumulativeWeight = cumulativeSuperWeights[superTopic];
+
+				// Go over each sub-topic until the weight is LESS than
+				//  the sample. Note that we're subtracting weights
+				//  in the same order we added them...
+				subTopic = 0;
+				cumulativeWeight -=	currentSuperSubWeights[0];
+
+				while (sample < cumulativeWeight) {
+					subTopic++;
+					cumulativeWeight -= currentSuperSubWeights[subTopic];
+				}
+			}
+
+			currentTypeTopicCounts[ topicIndex(superTopic, subTopic) ]++;
+			tokensPerTopic[ topicIndex(superTopic, subTopic) ]++;
+
+			// Save the choice into the Gibbs state
+	    
+			superTopics[position] = superTopic;
+			subTopics[position] = subTopic;
+
+			// Put the new super/sub topics into the counts
+	    
+			superSubCounts[superTopic][subTopic]++;
+			superCounts[superTopic]++;
+
+			if (superCounts[superTopic] == 1) {
+				superTopicDocumentFrequencies[superTopic]++;
+				sumDocumentFrequencies++;
+				cacheSuperTopicPrior();
+			}
+			if (superTopic != numSuperTopics && 
+				superSubCounts[superTopic][subTopic] == 1) {
+				superSubTopicDocumentFrequencies[superTopic][subTopic]++;
+				sumSuperTopicDocumentFrequencies[superTopic]++;
+				cacheSuperSubTopicPrior(superTopic);
+			}
+
+			tokensPerSuperTopic[superTopic]++;
+			tokensPerSuperSubTopic[superTopic][subTopic]++;
+
+			// Update the weight for the new super topic
+			superWeights[superTopic] =
+				((double) superCounts[superTopic] +
+				 (superTopicBalance * superTopicPriorWeights[superTopic])) /
+				((double) superCounts[superTopic] + subTopicBalance);
+		}
+	}
+
+}
@@ -99,8 +99,6 @@ public class LDAHyper implements Serializable {
 	protected double betaSum;
 	public static final double DEFAULT_BETA = 0.01;
 	
-	protected double smoothingOnlyMass = 0.0;
-	protected double[] cachedCoefficients;
 	int topicTermCount = 0;
 	int betaTopicCount = 0;
 	int smoothingOnlyCount = 0;
@@ -116,6 +114,11 @@ public class LDAHyper implements Serializable {
 	protected gnu.trove.TIntIntHashMap[] typeTopicCounts; // indexed by <feature index, topic index>
 	protected int[] tokensPerTopic; // indexed by <topic index>
 
+	// The same counts in the packed form used for sampling, rebuilt
+	//  from typeTopicCounts whenever that has been changed directly.
+	//  Updates tokensPerTopic in place.
+	protected SparseTopicSampler sampler;
+
 	// for dirichlet estimation
 	protected int[] docLengthCounts; // histogram of document sizes
 	protected int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
@@ -317,21 +320,33 @@ public class LDAHyper implements Serializable {
 				maxTokens = seqLen;
 			totalTokens += seqLen;
 		}
-		// Initialize the smoothing-only sampling bucket
-		smoothingOnlyMass = 0;
-		for (int topic = 0; topic < numTopics; topic++) 
-			smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
-
-		// Initialize the cached coefficients, using only smoothing.
-		cachedCoefficients = new double[ numTopics ];
-		for (int topic=0; topic < numTopics; topic++)
-			cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
-
 		System.err.println("max tokens: " + maxTokens);
 		System.err.println("total tokens: " + totalTokens);
 
 		docLengthCounts = new int[maxTokens + 1];
 		topicDocCounts = new int[numTopics][maxTokens + 1];
+
+		// The type/topic counts may have changed, so the sampler
+		//  will be rebuilt before the next sampling pass.
+		sampler = null;
+	}
+
+	/**
+	 *  Copy the type/topic count maps into a sparse sampler. This needs to
+	 *   be called again if <code>typeTopicCounts</code> or
+	 *   <code>tokensPerTopic</code> are changed other than through the sampler.
+	 */
+	protected void buildSampler() {
+		sampler = new SparseTopicSampler(numTopics, numTypes, alpha, beta, betaSum, tokensPerTopic);
+		for (int type = 0; type < numTypes; type++) {
+			TIntIntHashMap currentTypeTopicCounts = typeTopicCounts[type];
+			int[] counts = currentTypeTopicCounts.getValues();
+			int total = 0;
+			for (int count: counts) {
+				total += count;
+			}
+			sampler.setTypeTopicCounts(type, currentTypeTopicCounts.keys(), counts, counts.length, total);
+		}
 	}
 	
 	public void estimate () throws IOException {
@@ -375,10 +390,8 @@ public class LDAHyper implements Serializable {
 
 				alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts);
 
-				smoothingOnlyMass = 0.0;
-				for (int topic = 0; topic < numTopics; topic++) {
-					smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
-					cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
+				if (sampler != null) {
+					sampler.resetSmoothing();
 				}
 				clearHistograms();
 			}
@@ -516,38 +529,18 @@ public class LDAHyper implements Serializable {
 										  boolean shouldSaveState,
 										  boolean readjustTopicsAndStats /* currently ignored */) {
 
+		if (sampler == null) {
+			buildSampler();
+		}
+
 		int[] oneDocTopics = topicSequence.getFeatures();
 
 		TIntIntHashMap currentTypeTopicCounts;
 		int type, oldTopic, newTopic;
-		double topicWeightsSum;
 		int docLength = tokenSequence.getLength();
 
 		//		populate topic counts
-		TIntIntHashMap localTopicCounts = new TIntIntHashMap();
-		for (int position = 0; position < docLength; position++) {
-			localTopicCounts.adjustOrPutValue(oneDocTopics[position], 1, 1);
-		}
-
-		//		Initialize the topic count/beta sampling bucket
-		double topicBetaMass = 0.0;
-		for (int topic: localTopicCounts.keys()) {
-			int n = localTopicCounts.get(topic);
-
-			//			initialize the normalization constant for the (B * n_{t|d}) term
-			topicBetaMass += beta * n /	(tokensPerTopic[topic] + betaSum);	
-
-			//			update the coefficients for the non-zero topics
-			cachedCoefficients[topic] =	(alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
-		}
-
-		double topicTermMass = 0.0;
-
-		double[] topicTermScores = new double[numTopics];
-		int[] topicTermIndices;
-		int[] topicTermValues;
-		int i;
-		double score;
+		sampler.startDocument(oneDocTopics, docLength);
 
 		//	Iterate over the positions (words) in the document 
 		for (int position = 0; position < docLength; position++) {
@@ -566,164 +559,27 @@ public class LDAHyper implements Serializable {
 			else {
 				currentTypeTopicCounts.adjustValue(oldTopic, -1);
 			}
+			sampler.removeToken(type, oldTopic);
 
-			smoothingOnlyMass -= alpha[oldTopic] * beta / 
-				(tokensPerTopic[oldTopic] + betaSum);
-			topicBetaMass -= beta * localTopicCounts.get(oldTopic) /
-				(tokensPerTopic[oldTopic] + betaSum);
-			
-			if (localTopicCounts.get(oldTopic) == 1) {
-				localTopicCounts.remove(oldTopic);
-			}
-			else {
-				localTopicCounts.adjustValue(oldTopic, -1);
-			}
-
-			tokensPerTopic[oldTopic]--;
-			
-			smoothingOnlyMass += alpha[oldTopic] * beta / 
-				(tokensPerTopic[oldTopic] + betaSum);
-			topicBetaMass += beta * localTopicCounts.get(oldTopic) /
-				(tokensPerTopic[oldTopic] + betaSum);
-			
-			cachedCoefficients[oldTopic] = 
-				(alpha[oldTopic] + localTopicCounts.get(oldTopic)) /
-				(tokensPerTopic[oldTopic] + betaSum);
-
-			topicTermMass = 0.0;
-
-			topicTermIndices = currentTypeTopicCounts.keys();
-			topicTermValues = currentTypeTopicCounts.getValues();
-
-			for (i=0; i < topicTermIndices.length; i++) {
-				int topic = topicTermIndices[i];
-				score =
-					cachedCoefficients[topic] * topicTermValues[i];
-				//				((alpha[topic] + localTopicCounts.get(topic)) * 
-				//				topicTermValues[i]) /
-				//				(tokensPerTopic[topic] + betaSum);
-				
-				//				Note: I tried only doing this next bit if 
-				//				score > 0, but it didn't make any difference,
-				//				at least in the first few iterations.
-				
-				topicTermMass += score;
-				topicTermScores[i] = score;
-				//				topicTermIndices[i] = topic;
-			}
-			//			indicate that this is the last topic
-			//			topicTermIndices[i] = -1;
-			
-			double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
-			double origSample = sample;
-
-//			Make sure it actually gets set
-			newTopic = -1;
-
-			if (sample < topicTermMass) {
-				//topicTermCount++;
-
-				i = -1;
-				while (sample > 0) {
-					i++;
-					sample -= topicTermScores[i];
-				}
-				newTopic = topicTermIndices[i];
-
-			}
-			else {
-				sample -= topicTermMass;
-
-				if (sample < topicBetaMass) {
-					//betaTopicCount++;
-
-					sample /= beta;
-
-					topicTermIndices = localTopicCounts.keys();
-					topicTermValues = localTopicCounts.getValues();
-
-					for (i=0; i < topicTermIndices.length; i++) {
-						newTopic = topicTermIndices[i];
-
-						sample -= topicTermValues[i] /
-							(tokensPerTopic[newTopic] + betaSum);
-
-						if (sample <= 0.0) {
-							break;
-						}
-					}
-
-				}
-				else {
-					//smoothingOnlyCount++;
-
-					sample -= topicBetaMass;
-
-					sample /= beta;
-
-					for (int topic = 0; topic < numTopics; topic++) {
-						sample -= alpha[topic] / 
-							(tokensPerTopic[topic] + betaSum);
-
-						if (sample <= 0.0) {
-							newTopic = topic;
-							break;
-						}
-					}
-
-				}
-
-			}
-
-			if (newTopic == -1) {
-				System.err.println("LDAHyper sampling error: "+ origSample + " " + sample + " " + smoothingOnlyMass + " " + 
-						topicBetaMass + " " + topicTermMass);
-				newTopic = numTopics-1; // TODO is this appropriate
-				//throw new IllegalStateException ("LDAHyper: New topic not sampled.");
-			}
-			//assert(newTopic != -1);
+			newTopic = sampler.sampleTopic(type, random);
 
 			//			Put that new topic into the counts
 			oneDocTopics[position] = newTopic;
 			currentTypeTopicCounts.adjustOrPutValue(newTopic, 1, 1);
-
-			smoothingOnlyMass -= alpha[newTopic] * beta / 
-				(tokensPerTopic[newTopic] + betaSum);
-			topicBetaMass -= beta * localTopicCounts.get(newTopic) /
-				(tokensPerTopic[newTopic] + betaSum);
-
-			localTopicCounts.adjustOrPutValue(newTopic, 1, 1);
-			tokensPerTopic[newTopic]++;
-
-			//			update the coefficients for the non-zero topics
-			cachedCoefficients[newTopic] =
-				(alpha[newTopic] + localTopicCounts.get(newTopic)) /
-				(tokensPerTopic[newTopic] + betaSum);
-
-			smoothingOnlyMass += alpha[newTopic] * beta / 
-				(tokensPerTopic[newTopic] + betaSum);
-			topicBetaMass += beta * localTopicCounts.get(newTopic) /
-				(tokensPerTopic[newTopic] + betaSum);
-
-			assert(currentTypeTopicCounts.get(newTopic) >= 0);
-
-		}
-
-		//		Clean up our mess: reset the coefficients to values with only
-		//		smoothing. The next doc will update its own non-zero topics...
-		for (int topic: localTopicCounts.keys()) {
-			cachedCoefficients[topic] =
-				alpha[topic] / (tokensPerTopic[topic] + betaSum);
+			sampler.addToken(type, newTopic);
 		}
 
 		if (shouldSaveState) {
 			//			Update the document-topic count histogram,
 			//			for dirichlet estimation
 			docLengthCounts[ docLength ]++;
-			for (int topic: localTopicCounts.keys()) {
-				topicDocCounts[topic][ localTopicCounts.get(topic) ]++;
+			for (int denseIndex = 0; denseIndex < sampler.getNumNonZeroTopics(); denseIndex++) {
+				int topic = sampler.getNonZeroTopic(denseIndex);
+				topicDocCounts[topic][ sampler.getDocumentTopicCount(topic) ]++;
 			}
 		}
+
+		sampler.finishDocument();
 	}
 
 
@@ -1096,7 +952,7 @@ public class LDAHyper implements Serializable {
 	// Serialization
 
 	private static final long serialVersionUID = 1;
-	private static final int CURRENT_SERIAL_VERSION = 0;
+	private static final int CURRENT_SERIAL_VERSION = 1;
 	private static final int NULL_INTEGER = -1;
 
 	private void writeObject (ObjectOutputStream out) throws IOException {
@@ -1112,9 +968,6 @@ public class LDAHyper implements Serializable {
 		out.writeDouble (beta);
 		out.writeDouble (betaSum);
 
-		out.writeDouble(smoothingOnlyMass);
-		out.writeObject(cachedCoefficients);
-
 		out.writeInt(iterationsSoFar);
 		out.writeInt(numIterations);
 
@@ -1155,8 +1008,11 @@ public class LDAHyper implements Serializable {
 		beta = in.readDouble();
 		betaSum = in.readDouble();
 
-		smoothingOnlyMass = in.readDouble();
-		cachedCoefficients = (double[]) in.readObject();
+		if (version == 0) {
+			// The smoothing-only mass and cached coefficients, which the sampler now keeps
+			in.readDouble();
+			in.readObject();
+		}
 
 		iterationsSoFar = in.readInt();
 		numIterations = in.readInt();
@@ -109,6 +109,9 @@ public class LDAStream extends LDAHyper {
 			test.add (t);
 		}
 
+		// The test tokens were added to typeTopicCounts directly
+		buildSampler();
+
 		long startTime = System.currentTimeMillis();
 		//loop
 		int iter = 0;
@@ -140,24 +143,14 @@ public class LDAStream extends LDAHyper {
 	//called by inferenceAll, using unseen words in testdata
 	private void sampleTopicsForOneTestDocAll(FeatureSequence tokenSequence,
 			LabelSequence topicSequence) {
-		// TODO Auto-generated method stub
 		int[] oneDocTopics = topicSequence.getFeatures();
 
 		TIntIntHashMap currentTypeTopicCounts;
 		int type, oldTopic, newTopic;
-		double tw;
-		double[] topicWeights = new double[numTopics];
-		double topicWeightsSum;
 		int docLength = tokenSequence.getLength();
 
 		//		populate topic counts
-		int[] localTopicCounts = new int[numTopics];
-		for (int ti = 0; ti < numTopics; ti++){
-			localTopicCounts[ti] = 0;
-		}
-		for (int position = 0; position < docLength; position++) {
-			localTopicCounts[oneDocTopics[position]] ++;
-		}
+		sampler.startDocument(oneDocTopics, docLength);
 
 		// Iterate over the positions (words) in the document
 		for (int si = 0; si < docLength; si++) {
@@ -165,8 +158,6 @@ public class LDAStream extends LDAHyper {
 			oldTopic = oneDocTopics[si];
 
 			// Remove this token from all counts
-			localTopicCounts[oldTopic] --;
-
 			currentTypeTopicCounts = typeTopicCounts[type];
 			assert(currentTypeTopicCounts.get(oldTopic) >= 0);
 
@@ -176,27 +167,18 @@ public class LDAStream extends LDAHyper {
 			else {
 				currentTypeTopicCounts.adjustValue(oldTopic, -1);
 			}
-			tokensPerTopic[oldTopic]--;
-
-			// Build a distribution over topics for this token
-			Arrays.fill (topicWeights, 0.0);
-			topicWeightsSum = 0;
+			sampler.removeToken(type, oldTopic);
 
-			for (int ti = 0; ti < numTopics; ti++) {
-				tw = ((currentTypeTopicCounts.get(ti) + beta) / (tokensPerTopic[ti] + betaSum))
-				      * ((localTopicCounts[ti] + alpha[ti])); // (/docLen-1+tAlpha); is constant across all topics
-				topicWeightsSum += tw;
-				topicWeights[ti] = tw;
-			}
-			// Sample a topic assignment from this distribution
-			newTopic = random.nextDiscrete (topicWeights, topicWeightsSum);
+			// Sample a topic assignment, (n_{w|t} + beta) / (n_t + betaSum) * (n_{t|d} + alpha_t)
+			newTopic = sampler.sampleTopic(type, random);
 
 			// Put that new topic into the counts
 			oneDocTopics[si] = newTopic;
 			currentTypeTopicCounts.adjustOrPutValue(newTopic, 1, 1);
-			localTopicCounts[newTopic] ++;
-			tokensPerTopic[newTopic]++;
+			sampler.addToken(type, newTopic);
 		}
+
+		sampler.finishDocument();
 	}
 	
 	//what do we have:
@@ -262,6 +244,9 @@ public class LDAStream extends LDAHyper {
 			}
 		}
 
+		// The test tokens were added to typeTopicCounts directly
+		buildSampler();
+
 		long startTime = System.currentTimeMillis();
 		//loop
 		int iter = 0;
@@ -292,26 +277,14 @@ public class LDAStream extends LDAHyper {
 
 	private void sampleTopicsForOneTestDoc(FeatureSequence tokenSequence,
 			LabelSequence topicSequence) {
-		// TODO Auto-generated method stub
 		int[] oneDocTopics = topicSequence.getFeatures();
 
 		TIntIntHashMap currentTypeTopicCounts;
 		int type, oldTopic, newTopic;
-		double tw;
-		double[] topicWeights = new double[numTopics];
-		double topicWeightsSum;
 		int docLength = tokenSequence.getLength();
 
-		//		populate topic counts
-		int[] localTopicCounts = new int[numTopics];
-		for (int ti = 0; ti < numTopics; ti++){
-			localTopicCounts[ti] = 0;
-		}
-		for (int position = 0; position < docLength; position++) {
-			if(oneDocTopics[position] != -1) {
-				localTopicCounts[oneDocTopics[position]] ++;
-			}
-		}
+		//		populate topic counts, skipping unseen words
+		sampler.startDocument(oneDocTopics, docLength);
 
 		// Iterate over the positions (words) in the document
 		for (int si = 0; si < docLength; si++) {
@@ -322,7 +295,6 @@ public class LDAStream extends LDAHyper {
 			}
 
 			// Remove this token from all counts
-     		localTopicCounts[oldTopic] --;
      		currentTypeTopicCounts = typeTopicCounts[type];
 			assert(currentTypeTopicCounts.get(oldTopic) >= 0);
 
@@ -332,27 +304,18 @@ public class LDAStream extends LDAHyper {
 			else {
 				currentTypeTopicCounts.adjustValue(oldTopic, -1);
 			}
-			tokensPerTopic[oldTopic]--;
-
-			// Build a distribution over topics for this token
-			Arrays.fill (topicWeights, 0.0);
-			topicWeightsSum = 0;
+			sampler.removeToken(type, oldTopic);
 
-			for (int ti = 0; ti < numTopics; ti++) {
-				tw = ((currentTypeTopicCounts.get(ti) + beta) / (tokensPerTopic[ti] + betaSum))
-				      * ((localTopicCounts[ti] + alpha[ti])); // (/docLen-1+tAlpha); is constant across all topics
-				topicWeightsSum += tw;
-				topicWeights[ti] = tw;
-			}
-			// Sample a topic assignment from this distribution
-			newTopic = random.nextDiscrete (topicWeights, topicWeightsSum);
+			// Sample a topic assignment, (n_{w|t} + beta) / (n_t + betaSum) * (n_{t|d} + alpha_t)
+			newTopic = sampler.sampleTopic(type, random);
 
 			// Put that new topic into the counts
 			oneDocTopics[si] = newTopic;
 			currentTypeTopicCounts.adjustOrPutValue(newTopic, 1, 1);
-			localTopicCounts[newTopic] ++;
-			tokensPerTopic[newTopic]++;
+			sampler.addToken(type, newTopic);
 		}
+
+		sampler.finishDocument();
 	}
 
 	//inference method 3, for each doc, for each iteration, for each word
@@ -394,6 +357,9 @@ public class LDAStream extends LDAHyper {
 			test.add (t);
 		}
 
+		// The test tokens were added to typeTopicCounts directly
+		buildSampler();
+
 		long startTime = System.currentTimeMillis();
 		//loop
 		int iter = 0;
@@ -465,6 +431,9 @@ public class LDAStream extends LDAHyper {
 			}
 		}
 
+		// The test tokens were added to typeTopicCounts directly
+		buildSampler();
+
 		long startTime = System.currentTimeMillis();
 		//loop
 		int iter = 0;
@@ -498,15 +467,14 @@ public class LDAStream extends LDAHyper {
 	//sampling with known theta, from maxent
 	private void sampleTopicsForOneDocWithTheta(FeatureSequence tokenSequence,
 			LabelSequence topicSequence, double[] topicDistribution) {
-		// TODO Auto-generated method stub
 		int[] oneDocTopics = topicSequence.getFeatures();
 
 		TIntIntHashMap currentTypeTopicCounts;
 		int type, oldTopic, newTopic;
-		double tw;
-		double[] topicWeights = new double[numTopics];
-		double topicWeightsSum;
 		int docLength = tokenSequence.getLength();
+
+		// The known theta takes the place of alpha and the document's topic counts
+		sampler.startDocument(topicDistribution);
 		
 		// Iterate over the positions (words) in the document
 		for (int si = 0; si < docLength; si++) {
@@ -525,26 +493,18 @@ public class LDAStream extends LDAHyper {
 			else {
 				currentTypeTopicCounts.adjustValue(oldTopic, -1);
 			}
-			tokensPerTopic[oldTopic]--;
+			sampler.removeTypeTopic(type, oldTopic);
 
-			// Build a distribution over topics for this token
-			Arrays.fill (topicWeights, 0.0);
-			topicWeightsSum = 0;
-
-			for (int ti = 0; ti < numTopics; ti++) {
-				tw = ((currentTypeTopicCounts.get(ti) + beta) / (tokensPerTopic[ti] + betaSum))
-				      * topicDistribution[ti]; // (/docLen-1+tAlpha); is constant across all topics
-				topicWeightsSum += tw;
-				topicWeights[ti] = tw;
-			}
-			// Sample a topic assignment from this distribution
-			newTopic = random.nextDiscrete (topicWeights, topicWeightsSum);
+			// Sample a topic assignment, (n_{w|t} + beta) / (n_t + betaSum) * theta_t
+			newTopic = sampler.sampleTopic(type, random);
 
 			// Put that new topic into the counts
 			oneDocTopics[si] = newTopic;
 			currentTypeTopicCounts.adjustOrPutValue(newTopic, 1, 1);
-			tokensPerTopic[newTopic]++;
+			sampler.addTypeTopic(type, newTopic);
 		}
+
+		sampler.finishDocument();
 	}
 
 	//print human readable doc-topic matrix, for further IR use
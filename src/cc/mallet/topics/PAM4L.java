@@ -9,8 +9,16 @@ version 1.0, as published by http://www.opensource.org.  For further
 information, see the file `LICENSE' included with this distribution. */
 
 import cc.mallet.types.*;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.*;
 import java.text.NumberFormat;
 
@@ -43,14 +51,6 @@ public class PAM4L {
 	int[][] superTopics; // indexed by <document index, sequence index>
 	int[][] subTopics; // indexed by <document index, sequence index>
 
-	// Per-document state variables
-	int[][] superSubCounts; // # of words per <super, sub>
-	int[] superCounts; // # of words per <super>
-	double[] superWeights; // the component of the Gibbs update that depends on super-topics
-	double[] subWeights;   // the component of the Gibbs update that depends on sub-topics
-	double[][] superSubWeights; // unnormalized sampling distribution
-	double[] cumulativeSuperWeights; // a cache of the cumulative weight for each super-topic
-
 	// Per-word type state variables
 	int[][] typeSubTopicCounts; // indexed by <feature index, topic index>
 	int[] tokensPerSubTopic; // indexed by <topic index>
@@ -64,6 +64,8 @@ public class PAM4L {
 	//  eg, [17][4] is # of docs with 4 words in sT 17...
 	int[][][] subTopicHistograms; // for each supertopic, histogram of # of words per subtopic
 
+	int numThreads = 1;
+
 	Runtime runtime;
 	NumberFormat formatter;
 
@@ -97,6 +99,23 @@ public class PAM4L {
 		runtime = Runtime.getRuntime();
 	}
 
+	/**
+	 *  Sets the number of threads that sample documents. Each thread 
+	 *   works from a copy of the word counts made at the start of the
+	 *   iteration, and the copies are summed at the end of it, as in
+	 *   {@link ParallelTopicModel}.
+	 */
+	public void setNumThreads (int threads) {
+		this.numThreads = threads;
+	}
+
+	public int[][] getSuperTopics () { return superTopics; }
+	public int[][] getSubTopics () { return subTopics; }
+	public int[][] getTypeSubTopicCounts () { return typeSubTopicCounts; }
+	public int[] getTokensPerSubTopic () { return tokensPerSubTopic; }
+	public int[] getTokensPerSuperTopic () { return tokensPerSuperTopic; }
+	public int[][] getTokensPerSuperSubTopic () { return tokensPerSuperSubTopic; }
+
 	public void estimate (InstanceList documents, int numIterations, int optimizeInterval, 
 	                      int showTopicsInterval,
 	                      int outputModelInterval, String outputModelFilename,
@@ -108,16 +127,6 @@ public class PAM4L {
 		superTopics = new int[numDocs][];
 		subTopics = new int[numDocs][];
 
-		//		Allocate several arrays for use within each document
-		//		to cut down memory allocation and garbage collection time
-
-		superSubCounts = new int[numSuperTopics][numSubTopics];
-		superCounts = new int[numSuperTopics];
-		superWeights = new double[numSuperTopics];
-		subWeights = new double[numSubTopics];
-		superSubWeights = new double[numSuperTopics][numSubTopics];
-		cumulativeSuperWeights = new double[numSuperTopics];
-
 		typeSubTopicCounts = new int[numTypes][numSubTopics];
 		tokensPerSubTopic = new int[numSubTopics];
 		tokensPerSuperTopic = new int[numSuperTopics];
@@ -174,51 +183,109 @@ public class PAM4L {
 		superTopicHistograms = new int[numSuperTopics][maxTokens + 1];
 		subTopicHistograms = new int[numSuperTopics][numSubTopics][maxTokens + 1];
 
-		//		Finally, start the sampler!
+		int threads = Math.max(1, Math.min(numThreads, numDocs));
+		PAMWorkerRunnable[] runnables = new PAMWorkerRunnable[threads];
+
+		if (threads > 1) {
+			int offset = 0;
+			for (int thread = 0; thread < threads; thread++) {
+				int docsPerThread = (int) ((long) numDocs * (thread + 1) / threads) - offset;
+
+				// Each runnable gets its own, non-overlapping stream from r
+				Randoms threadRandom = (r instanceof FastRandoms) ?
+					((FastRandoms) r).split() : new FastRandoms(r.nextLong());
+
+				runnables[thread] =
+					new PAMWorkerRunnable(numSuperTopics, numSubTopics,
+					                      alpha, subAlphas, subAlphaSums, beta, threadRandom,
+					                      ilist, superTopics, subTopics,
+					                      new int[numTypes][numSubTopics], new int[numSubTopics],
+					                      new int[numSuperTopics], new int[numSuperTopics][numSubTopics],
+					                      new int[numSuperTopics][maxTokens + 1],
+					                      new int[numSuperTopics][numSubTopics][maxTokens + 1],
+					                      offset, docsPerThread);
+				offset += docsPerThread;
+			}
+		}
+		else {
+			// If there is only one thread, it samples directly into our
+			//  counts and histograms.
+			runnables[0] =
+				new PAMWorkerRunnable(numSuperTopics, numSubTopics,
+				                      alpha, subAlphas, subAlphaSums, beta, r,
+				                      ilist, superTopics, subTopics,
+				                      typeSubTopicCounts, tokensPerSubTopic,
+				                      tokensPerSuperTopic, tokensPerSuperSubTopic,
+				                      superTopicHistograms, subTopicHistograms,
+				                      0, numDocs);
+			runnables[0].makeOnlyThread();
+		}
 
-		for (int iterations = 0; iterations < numIterations; iterations++) {
-			long iterationStart = System.currentTimeMillis();
+		ExecutorService executor = null;
+		if (threads > 1) {
+			executor = Executors.newFixedThreadPool(threads);
+		}
 
-			clearHistograms();
-			sampleTopicsForAllDocs (r);
+		//		Finally, start the sampler!
 
-			// There are a few things we do on round-numbered iterations
-			//  that don't make sense if this is the first iteration.
+		try {
+			for (int iterations = 0; iterations < numIterations; iterations++) {
+				long iterationStart = System.currentTimeMillis();
 
-			if (iterations > 0) {
-				if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0) {
-					System.out.println ();
-					printTopWords (5, false);
+				if (executor == null) {
+					runnables[0].run();
 				}
-				if (outputModelInterval != 0 && iterations % outputModelInterval == 0) {
-					//this.write (new File(outputModelFilename+'.'+iterations));
+				else {
+					copyCounts(runnables);
+					runAll(executor, runnables);
+					sumCounts(runnables);
 				}
-				if (optimizeInterval != 0 && iterations % optimizeInterval == 0) {
-					long optimizeTime = System.currentTimeMillis();
-					for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-						learnParameters(subAlphas[superTopic],
-								subTopicHistograms[superTopic],
-								superTopicHistograms[superTopic]);
-						subAlphaSums[superTopic] = 0.0;
-						for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-							subAlphaSums[superTopic] += subAlphas[superTopic][subTopic];
+
+				// There are a few things we do on round-numbered iterations
+				//  that don't make sense if this is the first iteration.
+
+				if (iterations > 0) {
+					if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0) {
+						System.out.println ();
+						printTopWords (5, false);
+					}
+					if (outputModelInterval != 0 && iterations % outputModelInterval == 0) {
+						//this.write (new File(outputModelFilename+'.'+iterations));
+					}
+					if (optimizeInterval != 0 && iterations % optimizeInterval == 0) {
+						long optimizeTime = System.currentTimeMillis();
+						if (executor != null) {
+							sumHistograms(runnables);
 						}
+						for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+							learnParameters(subAlphas[superTopic],
+									subTopicHistograms[superTopic],
+									superTopicHistograms[superTopic]);
+							subAlphaSums[superTopic] = 0.0;
+							for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
+								subAlphaSums[superTopic] += subAlphas[superTopic][subTopic];
+							}
+						}
+						System.out.print("[o:" + (System.currentTimeMillis() - optimizeTime) + "]");
 					}
-					System.out.print("[o:" + (System.currentTimeMillis() - optimizeTime) + "]");
 				}
-			}
 
-			if (iterations > 1107) {
-				printWordCounts();
-			}
+				if (iterations > 1107) {
+					printWordCounts();
+				}
 
-			if (iterations % 10 == 0)
-				System.out.println ("<" + iterations + "> ");
+				if (iterations % 10 == 0)
+					System.out.println ("<" + iterations + "> ");
 
-			System.out.print((System.currentTimeMillis() - iterationStart) + " ");
+				System.out.print((System.currentTimeMillis() - iterationStart) + " ");
 
-			//else System.out.print (".");
-			System.out.flush();
+				//else System.out.print (".");
+				System.out.flush();
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
 		}
 
 		long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
@@ -238,13 +305,102 @@ public class PAM4L {
 
 	}
 
-	private void clearHistograms() {
+	/** Gives every runnable a copy of the counts over all documents. */
+	private void copyCounts (PAMWorkerRunnable[] runnables) {
+		for (PAMWorkerRunnable runnable: runnables) {
+			int[][] runnableCounts = runnable.getTypeSubTopicCounts();
+			for (int type = 0; type < numTypes; type++) {
+				System.arraycopy(typeSubTopicCounts[type], 0, runnableCounts[type], 0, numSubTopics);
+			}
+			System.arraycopy(tokensPerSubTopic, 0, runnable.getTokensPerSubTopic(), 0, numSubTopics);
+			System.arraycopy(tokensPerSuperTopic, 0, runnable.getTokensPerSuperTopic(), 0, numSuperTopics);
+			int[][] runnableSuperSub = runnable.getTokensPerSuperSubTopic();
+			for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+				System.arraycopy(tokensPerSuperSubTopic[superTopic], 0,
+				                 runnableSuperSub[superTopic], 0, numSubTopics);
+			}
+		}
+	}
+
+	/** Replaces our counts with the sum of the runnables' counts over their own documents. */
+	private void sumCounts (PAMWorkerRunnable[] runnables) {
+		for (int type = 0; type < numTypes; type++) {
+			Arrays.fill(typeSubTopicCounts[type], 0);
+		}
+		Arrays.fill(tokensPerSubTopic, 0);
+		Arrays.fill(tokensPerSuperTopic, 0);
+		for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+			Arrays.fill(tokensPerSuperSubTopic[superTopic], 0);
+		}
+
+		for (PAMWorkerRunnable runnable: runnables) {
+			int[][] runnableCounts = runnable.getTypeSubTopicCounts();
+			for (int type = 0; type < numTypes; type++) {
+				int[] source = runnableCounts[type];
+				int[] target = typeSubTopicCounts[type];
+				for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+					target[subTopic] += source[subTopic];
+				}
+			}
+			int[] runnableSubTotals = runnable.getTokensPerSubTopic();
+			for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+				tokensPerSubTopic[subTopic] += runnableSubTotals[subTopic];
+			}
+			int[] runnableSuperTotals = runnable.getTokensPerSuperTopic();
+			int[][] runnableSuperSub = runnable.getTokensPerSuperSubTopic();
+			for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+				tokensPerSuperTopic[superTopic] += runnableSuperTotals[superTopic];
+				for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+					tokensPerSuperSubTopic[superTopic][subTopic] += runnableSuperSub[superTopic][subTopic];
+				}
+			}
+		}
+	}
+
+	/** Sums the runnables' histograms of the last iteration into ours. */
+	private void sumHistograms (PAMWorkerRunnable[] runnables) {
 		for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
 			Arrays.fill(superTopicHistograms[superTopic], 0);
 			for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
 				Arrays.fill(subTopicHistograms[superTopic][subTopic], 0);
 			}
 		}
+
+		for (PAMWorkerRunnable runnable: runnables) {
+			int[][] runnableSuper = runnable.getSuperTopicHistograms();
+			int[][][] runnableSub = runnable.getSubTopicHistograms();
+			for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+				int[] target = superTopicHistograms[superTopic];
+				int[] source = runnableSuper[superTopic];
+				for (int count = 0; count < target.length; count++) {
+					target[count] += source[count];
+				}
+				for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+					target = subTopicHistograms[superTopic][subTopic];
+					source = runnableSub[superTopic][subTopic];
+					for (int count = 0; count < target.length; count++) {
+						target[count] += source[count];
+					}
+				}
+			}
+		}
+	}
+
+	private void runAll (ExecutorService executor, PAMWorkerRunnable[] runnables) {
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(runnables.length);
+		for (PAMWorkerRunnable runnable: runnables) {
+			tasks.add(Executors.callable(runnable));
+		}
+		try {
+			for (Future<Object> future: executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sampling", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Sampling failed", e.getCause());
+		}
 	}
 
 	/** Use the fixed point iteration described by Tom Minka. */
@@ -351,169 +507,6 @@ public class PAM4L {
 		}
 	}
 
-	/* One iteration of Gibbs sampling, across all documents. */
-	private void sampleTopicsForAllDocs (Randoms r)
-	{
-//		Loop over every word in the corpus
-		for (int di = 0; di < superTopics.length; di++) {
-
-			sampleTopicsForOneDoc ((FeatureSequence)ilist.get(di).getData(),
-					superTopics[di], subTopics[di], r);
-		}
-	}
-
-	private void sampleTopicsForOneDoc (FeatureSequence oneDocTokens,
-	                                    int[] superTopics, // indexed by seq position
-	                                    int[] subTopics,
-	                                    Randoms r) {
-
-//		long startTime = System.currentTimeMillis();
-
-		int[] currentTypeSubTopicCounts;
-		int[] currentSuperSubCounts;
-		double[] currentSuperSubWeights;
-		double[] currentSubAlpha;
-
-		int type, subTopic, superTopic;
-		double currentSuperWeight, cumulativeWeight, sample;
-
-		int docLen = oneDocTokens.getLength();
-
-		for (int t = 0; t < numSuperTopics; t++) {
-			Arrays.fill(superSubCounts[t], 0);
-		}
-
-		Arrays.fill(superCounts, 0);
-
-
-//		populate topic counts
-		for (int si = 0; si < docLen; si++) {
-			superSubCounts[ superTopics[si] ][ subTopics[si] ]++;
-			superCounts[ superTopics[si] ]++;
-		}
-
-//		Iterate over the positions (words) in the document
-
-		for (int si = 0; si < docLen; si++) {
-
-			type = oneDocTokens.getIndexAtPosition(si);
-			superTopic = superTopics[si];
-			subTopic = subTopics[si];
-
-			// Remove this token from all counts
-			superSubCounts[superTopic][subTopic]--;
-			superCounts[superTopic]--;
-			typeSubTopicCounts[type][subTopic]--;
-			tokensPerSuperTopic[superTopic]--;
-			tokensPerSubTopic[subTopic]--;
-			tokensPerSuperSubTopic[superTopic][subTopic]--;
-
-			// Build a distribution over super-sub topic pairs 
-			//   for this token
-
-			// Clear the data structures
-			for (int t = 0; t < numSuperTopics; t++) {
-				Arrays.fill(superSubWeights[t], 0.0);
-			}
-			Arrays.fill(superWeights, 0.0);
-			Arrays.fill(subWeights, 0.0);
-			Arrays.fill(cumulativeSuperWeights, 0.0);
-
-			// Avoid two layer (ie [][]) array accesses
-			currentTypeSubTopicCounts = typeSubTopicCounts[type];
-
-			// The conditional probability of each super-sub pair is proportional
-			//  to an expression with three parts, one that depends only on the 
-			//  super-topic, one that depends only on the sub-topic and the word type,
-			//  and one that depends on the super-sub pair.
-
-			// Calculate each of the super-only factors first
-
-			for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-				superWeights[superTopic] = ((double) superCounts[superTopic] + alpha[superTopic]) /
-				((double) superCounts[superTopic] + subAlphaSums[superTopic]);
-			}
-
-			// Next calculate the sub-only factors
-
-			for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-				subWeights[subTopic] = ((double) currentTypeSubTopicCounts[subTopic] + beta) / 
-				((double) tokensPerSubTopic[subTopic] + vBeta);
-			}
-
-			// Finally, put them together
-
-			cumulativeWeight = 0.0;
-
-			for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-				currentSuperSubWeights = superSubWeights[superTopic];
-				currentSuperSubCounts = superSubCounts[superTopic];
-				currentSubAlpha = subAlphas[superTopic];
-				currentSuperWeight = superWeights[superTopic];
-
-				for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-					currentSuperSubWeights[subTopic] =
-						currentSuperWeight *
-						subWeights[subTopic] * 
-						((double) currentSuperSubCounts[subTopic] + currentSubAlpha[subTopic]);
-					cumulativeWeight += currentSuperSubWeights[subTopic];
-				}
-
-				cumulativeSuperWeights[superTopic] = cumulativeWeight;
-			}
-
-			// Sample a topic assignment from this distribution
-			sample = r.nextUniform() * cumulativeWeight;
-
-			// Go over the row sums to find the super-topic...
-			superTopic = 0;
-			while (sample > cumulativeSuperWeights[superTopic]) {
-				superTopic++;
-			}
-
-			// Now read across to find the sub-topic
-			currentSuperSubWeights = superSubWeights[superTopic];
-			cumulativeWeight = cumulativeSuperWeights[superTopic] -
-			currentSuperSubWeights[0];
-
-			// Go over each sub-topic until the weight is LESS than
-			//  the sample. Note that we're subtracting weights
-			//  in the same order we added them...
-			subTopic = 0;
-			while (sample < cumulativeWeight) {
-				subTopic++;
-				cumulativeWeight -= currentSuperSubWeights[subTopic];
-			}
-
-			// Save the choice into the Gibbs state
-
-			superTopics[si] = superTopic;
-			subTopics[si] = subTopic;
-
-			// Put the new super/sub topics into the counts
-
-			superSubCounts[superTopic][subTopic]++;
-			superCounts[superTopic]++;
-			typeSubTopicCounts[type][subTopic]++;
-			tokensPerSuperTopic[superTopic]++;
-			tokensPerSubTopic[subTopic]++;
-			tokensPerSuperSubTopic[superTopic][subTopic]++;
-		}
-
-		//		Update the topic count histograms
-		//		for dirichlet estimation
-
-		for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-
-			superTopicHistograms[superTopic][ superCounts[superTopic] ]++;
-			currentSuperSubCounts = superSubCounts[superTopic];
-
-			for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-				subTopicHistograms[superTopic][subTopic][ currentSuperSubCounts[subTopic] ]++;
-			}
-		}
-	}
-
 	public void printWordCounts () {
 		int subTopic, superTopic;
 
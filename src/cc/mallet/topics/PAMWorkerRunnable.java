@@ -0,0 +1,306 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+/**
+ * A runnable task that samples the super- and sub-topics of a range of
+ *  documents for {@link PAM4L}.
+ * <p>
+ * The conditional probability of a super/sub pair (s, t) for a token of
+ *  type w is proportional to
+ * <pre>
+ *   (n_s + alpha_s) / (n_s + alphaSum_s) * (n_st + alpha_st) * (n_wt + beta) / (n_t + vBeta)
+ * </pre>
+ *  Rather than filling the whole super-by-sub table for every token, we
+ *  keep, for each sub-topic, the sum over super-topics of the first two
+ *  factors, and update it as the document counts change. A token then
+ *  takes one pass over the sub-topics to choose t, and one over the
+ *  super-topics to choose s given t.
+ */
+
+public class PAMWorkerRunnable implements Runnable {
+
+	InstanceList ilist;
+	int[][] superTopics; // indexed by <document index, sequence index>
+	int[][] subTopics; // indexed by <document index, sequence index>
+	int startDoc, numDocs;
+
+	int numSuperTopics;
+	int numSubTopics;
+
+	double[] alpha;
+	double[][] subAlphas;
+	double[] subAlphaSums;
+	double beta;
+	double vBeta;
+
+	// Counts over this worker's documents, or over all documents if it is the only thread
+	int[][] typeSubTopicCounts; // indexed by <feature index, topic index>
+	int[] tokensPerSubTopic;
+	int[] tokensPerSuperTopic;
+	int[][] tokensPerSuperSubTopic;
+
+	// Histograms for MLE
+	int[][] superTopicHistograms;
+	int[][][] subTopicHistograms;
+
+	boolean shouldBuildLocalCounts = true;
+
+	Randoms random;
+
+	// Per-document state variables
+	int[][] superSubCounts; // # of words per <super, sub>
+	int[] superCounts; // # of words per <super>
+	double[] superWeights; // the component of the Gibbs update that depends on super-topics
+	double[] subTopicMass; // sum over super-topics of superWeights * (superSubCounts + subAlphas)
+	double[] subWeights;
+
+	public PAMWorkerRunnable (int numSuperTopics, int numSubTopics,
+	                          double[] alpha, double[][] subAlphas, double[] subAlphaSums,
+	                          double beta, Randoms random,
+	                          InstanceList ilist, int[][] superTopics, int[][] subTopics,
+	                          int[][] typeSubTopicCounts, int[] tokensPerSubTopic,
+	                          int[] tokensPerSuperTopic, int[][] tokensPerSuperSubTopic,
+	                          int[][] superTopicHistograms, int[][][] subTopicHistograms,
+	                          int startDoc, int numDocs) {
+		this.numSuperTopics = numSuperTopics;
+		this.numSubTopics = numSubTopics;
+
+		this.alpha = alpha;
+		this.subAlphas = subAlphas;
+		this.subAlphaSums = subAlphaSums;
+		this.beta = beta;
+		this.vBeta = beta * typeSubTopicCounts.length;
+		this.random = random;
+
+		this.ilist = ilist;
+		this.superTopics = superTopics;
+		this.subTopics = subTopics;
+		this.startDoc = startDoc;
+		this.numDocs = numDocs;
+
+		this.typeSubTopicCounts = typeSubTopicCounts;
+		this.tokensPerSubTopic = tokensPerSubTopic;
+		this.tokensPerSuperTopic = tokensPerSuperTopic;
+		this.tokensPerSuperSubTopic = tokensPerSuperSubTopic;
+		this.superTopicHistograms = superTopicHistograms;
+		this.subTopicHistograms = subTopicHistograms;
+
+		superSubCounts = new int[numSuperTopics][numSubTopics];
+		superCounts = new int[numSuperTopics];
+		superWeights = new double[numSuperTopics];
+		subTopicMass = new double[numSubTopics];
+		subWeights = new double[numSubTopics];
+	}
+
+	/**
+	 *  If there is only one thread, the worker samples directly
+	 *   into the model's counts, and need not rebuild local ones.
+	 */
+	public void makeOnlyThread() {
+		shouldBuildLocalCounts = false;
+	}
+
+	public int[][] getTypeSubTopicCounts() { return typeSubTopicCounts; }
+	public int[] getTokensPerSubTopic() { return tokensPerSubTopic; }
+	public int[] getTokensPerSuperTopic() { return tokensPerSuperTopic; }
+	public int[][] getTokensPerSuperSubTopic() { return tokensPerSuperSubTopic; }
+
+	public int[][] getSuperTopicHistograms() { return superTopicHistograms; }
+	public int[][][] getSubTopicHistograms() { return subTopicHistograms; }
+
+	public void run () {
+		for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+			Arrays.fill(superTopicHistograms[superTopic], 0);
+			for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+				Arrays.fill(subTopicHistograms[superTopic][subTopic], 0);
+			}
+		}
+
+		for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+			sampleTopicsForOneDoc ((FeatureSequence) ilist.get(doc).getData(),
+			                       superTopics[doc], subTopics[doc]);
+		}
+
+		if (shouldBuildLocalCounts) {
+			buildLocalCounts();
+		}
+	}
+
+	/**
+	 *  Once the documents are sampled, replace the "global" counts
+	 *   this worker started from with counts over its own documents,
+	 *   ready to be summed by the model.
+	 */
+	public void buildLocalCounts () {
+		for (int type = 0; type < typeSubTopicCounts.length; type++) {
+			Arrays.fill(typeSubTopicCounts[type], 0);
+		}
+		Arrays.fill(tokensPerSubTopic, 0);
+		Arrays.fill(tokensPerSuperTopic, 0);
+		for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+			Arrays.fill(tokensPerSuperSubTopic[superTopic], 0);
+		}
+
+		for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+			FeatureSequence tokens = (FeatureSequence) ilist.get(doc).getData();
+			int[] docSuperTopics = superTopics[doc];
+			int[] docSubTopics = subTopics[doc];
+			for (int position = 0; position < docSuperTopics.length; position++) {
+				int superTopic = docSuperTopics[position];
+				int subTopic = docSubTopics[position];
+				typeSubTopicCounts[ tokens.getIndexAtPosition(position) ][subTopic]++;
+				tokensPerSubTopic[subTopic]++;
+				tokensPerSuperTopic[superTopic]++;
+				tokensPerSuperSubTopic[superTopic][subTopic]++;
+			}
+		}
+	}
+
+	// Removes (sign -1) or restores (sign 1) the contribution of one
+	//  super-topic to the sub-topic masses.
+	private void addSuperTopicMass (int superTopic, double sign) {
+		double weight = sign * superWeights[superTopic];
+		int[] currentSuperSubCounts = superSubCounts[superTopic];
+		double[] currentSubAlpha = subAlphas[superTopic];
+		for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+			subTopicMass[subTopic] +=
+				weight * (currentSuperSubCounts[subTopic] + currentSubAlpha[subTopic]);
+		}
+	}
+
+	private void updateSuperWeight (int superTopic) {
+		superWeights[superTopic] = (superCounts[superTopic] + alpha[superTopic]) /
+			(superCounts[superTopic] + subAlphaSums[superTopic]);
+	}
+
+	private void sampleTopicsForOneDoc (FeatureSequence oneDocTokens,
+	                                    int[] superTopics, // indexed by seq position
+	                                    int[] subTopics) {
+
+		int[] currentTypeSubTopicCounts;
+		int[] currentSuperSubCounts;
+
+		int type, subTopic, superTopic;
+		double totalWeight, sample;
+
+		int docLen = oneDocTokens.getLength();
+
+		for (int t = 0; t < numSuperTopics; t++) {
+			Arrays.fill(superSubCounts[t], 0);
+		}
+		Arrays.fill(superCounts, 0);
+
+		// populate topic counts
+		for (int si = 0; si < docLen; si++) {
+			superSubCounts[ superTopics[si] ][ subTopics[si] ]++;
+			superCounts[ superTopics[si] ]++;
+		}
+
+		// The masses are rebuilt for each document, so that rounding
+		//  errors from the updates do not accumulate.
+		Arrays.fill(subTopicMass, 0.0);
+		for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+			updateSuperWeight(superTopic);
+			addSuperTopicMass(superTopic, 1.0);
+		}
+
+		// Iterate over the positions (words) in the document
+
+		for (int si = 0; si < docLen; si++) {
+
+			type = oneDocTokens.getIndexAtPosition(si);
+			superTopic = superTopics[si];
+			subTopic = subTopics[si];
+
+			// Remove this token from all counts
+			addSuperTopicMass(superTopic, -1.0);
+			superSubCounts[superTopic][subTopic]--;
+			superCounts[superTopic]--;
+			updateSuperWeight(superTopic);
+			addSuperTopicMass(superTopic, 1.0);
+
+			typeSubTopicCounts[type][subTopic]--;
+			tokensPerSuperTopic[superTopic]--;
+			tokensPerSubTopic[subTopic]--;
+			tokensPerSuperSubTopic[superTopic][subTopic]--;
+
+			// Choose the sub-topic, summing over super-topics
+
+			currentTypeSubTopicCounts = typeSubTopicCounts[type];
+			totalWeight = 0.0;
+			for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
+				subWeights[subTopic] = subTopicMass[subTopic] *
+					(currentTypeSubTopicCounts[subTopic] + beta) /
+					(tokensPerSubTopic[subTopic] + vBeta);
+				totalWeight += subWeights[subTopic];
+			}
+
+			sample = random.nextUniform() * totalWeight;
+			subTopic = 0;
+			while (subTopic < numSubTopics - 1 && sample >= subWeights[subTopic]) {
+				sample -= subWeights[subTopic];
+				subTopic++;
+			}
+
+			// Now choose the super-topic given the sub-topic
+
+			totalWeight = 0.0;
+			for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+				totalWeight += superWeights[superTopic] *
+					(superSubCounts[superTopic][subTopic] + subAlphas[superTopic][subTopic]);
+			}
+
+			sample = random.nextUniform() * totalWeight;
+			superTopic = 0;
+			while (superTopic < numSuperTopics - 1) {
+				sample -= superWeights[superTopic] *
+					(superSubCounts[superTopic][subTopic] + subAlphas[superTopic][subTopic]);
+				if (sample < 0) { break; }
+				superTopic++;
+			}
+
+			// Save the choice into the Gibbs state
+
+			superTopics[si] = superTopic;
+			subTopics[si] = subTopic;
+
+			// Put the new super/sub topics into the counts
+
+			addSuperTopicMass(superTopic, -1.0);
+			superSubCounts[superTopic][subTopic]++;
+			superCounts[superTopic]++;
+			updateSuperWeight(superTopic);
+			addSuperTopicMass(superTopic, 1.0);
+
+			typeSubTopicCounts[type][subTopic]++;
+			tokensPerSuperTopic[superTopic]++;
+			tokensPerSubTopic[subTopic]++;
+			tokensPerSuperSubTopic[superTopic][subTopic]++;
+		}
+
+		// Update the topic count histograms
+		//  for dirichlet estimation
+
+		for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+
+			superTopicHistograms[superTopic][ superCounts[superTopic] ]++;
+			currentSuperSubCounts = superSubCounts[superTopic];
+
+			for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
+				subTopicHistograms[superTopic][subTopic][ currentSuperSubCounts[subTopic] ]++;
+			}
+		}
+	}
+
+}
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Formatter;
 import java.util.Locale;
 
@@ -24,6 +25,7 @@ import java.text.NumberFormat;
 
 import cc.mallet.types.*;
 import cc.mallet.topics.TopicAssignment;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
 import cc.mallet.util.MalletLogger;
 
@@ -83,9 +85,13 @@ public class ParallelTopicModel implements Serializable {
 
 	public int saveStateInterval = 0;
 	public String stateFilename = null;
+	public boolean binaryState = false;
 
 	public int saveModelInterval = 0;
 	public String modelFilename = null;
+
+	public int checkpointInterval = 0;
+	public String checkpointFilename = null;
 	
 	public int randomSeed = -1;
 	public NumberFormat formatter;
@@ -97,6 +103,17 @@ public class ParallelTopicModel implements Serializable {
 	int maxTypeCount; 
 	
 	int numThreads = 1;
+
+	// The number of bytes of text state handed to each parsing task
+	private static final int STATE_CHUNK_SIZE = 1 << 20;
+	int stateChunkSize = STATE_CHUNK_SIZE;
+
+	// The sampling threads while estimate() runs, which hyperparameter
+	//  optimization also uses
+	ExecutorService executor = null;
+
+	// A checkpoint whose sampling threads' state has yet to be restored
+	TopicModelCheckpoint resumeCheckpoint = null;
 	
 	public ParallelTopicModel (int numberOfTopics) {
 		this (numberOfTopics, numberOfTopics, DEFAULT_BETA);
@@ -201,6 +218,23 @@ public class ParallelTopicModel implements Serializable {
 		this.stateFilename = filename;
 	}
 
+	/** Write the state in the binary format of {@link TopicModelCheckpoint}
+	 *   rather than as gzipped text. {@link #initializeFromState} reads either.
+	 */
+	public void setBinaryState(boolean b) {
+		this.binaryState = b;
+	}
+
+	/** Set the number of bytes of decompressed text state that {@link #initializeFromState}
+	 *   hands to each parsing thread. Blocks grow to hold lines longer than this.
+	 */
+	public void setStateChunkSize(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("State chunk size must be positive: " + bytes);
+		}
+		this.stateChunkSize = bytes;
+	}
+
 	/** Define how often and where to save a serialized model.
 	 *
 	 * @param interval Save a serialized model every <code>interval</code> iterations.
@@ -211,6 +245,26 @@ public class ParallelTopicModel implements Serializable {
 		this.modelFilename = filename;
 	}
 
+	/** Define how often and where to save a binary checkpoint, from which
+	 *   {@link #resumeFromCheckpoint} can continue sampling. Checkpoints are
+	 *   written by a separate thread while sampling continues.
+	 *
+	 * @param interval Save a checkpoint every <code>interval</code> iterations.
+	 * @param filename Save the checkpoint to this file, with the iteration number as a suffix
+	 */
+	public void setCheckpoint(int interval, String filename) {
+		this.checkpointInterval = interval;
+		this.checkpointFilename = filename;
+	}
+
+	/** Restore the sampling state from a file written by {@link #setCheckpoint}.
+	 *   The model must already hold the same instances, added with {@link #addInstances}.
+	 *   The next call to {@link #estimate} continues from the iteration after the checkpoint.
+	 */
+	public void resumeFromCheckpoint(File checkpointFile) throws IOException {
+		TopicModelCheckpoint.read(checkpointFile).restore(this);
+	}
+
 	public void addInstances (InstanceList training) {
 
 		alphabet = training.getDataAlphabet();
@@ -248,10 +302,10 @@ public class ParallelTopicModel implements Serializable {
 
 		Randoms random = null;
 		if (randomSeed == -1) {
-			random = new Randoms();
+			random = new FastRandoms();
 		}
 		else {
-			random = new Randoms(randomSeed);
+			random = new FastRandoms(randomSeed);
 		}
 
 		for (Instance instance : training) {
@@ -277,45 +331,202 @@ public class ParallelTopicModel implements Serializable {
 		initializeHistograms();
 	}
 
+	/**
+	 *  Set the topic assignments from a state file written by {@link #printState},
+	 *   either gzipped text or binary. The model must already hold the same instances.
+	 */
 	public void initializeFromState(File stateFile) throws IOException {
-		String line;
-		String[] fields;
-
-		BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(stateFile))));
-		line = reader.readLine();
-
-		// Skip some lines starting with "#" that describe the format and specify hyperparameters
-		while (line.startsWith("#")) {
-			line = reader.readLine();
+		DataInputStream in =
+			new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile), 1 << 16));
+		try {
+			in.mark(4);
+			int magic = in.readInt();
+			in.reset();
+
+			if (magic == TopicModelCheckpoint.MAGIC) {
+				// The binary state also holds the counts, so they need not be rebuilt
+				TopicModelCheckpoint state = TopicModelCheckpoint.read(in);
+				state.restoreTopics(this);
+				state.restoreCounts(this);
+			}
+			else {
+				GZIPInputStream text = new GZIPInputStream(in, 1 << 16);
+				try {
+					readTextState(text);
+				} finally {
+					text.close();
+				}
+				buildInitialTypeTopicCounts();
+			}
+		} finally {
+			in.close();
 		}
 		
-		fields = line.split(" ");
+		initializeHistograms();
+	}
 
-		for (TopicAssignment document: data) {
-			FeatureSequence tokens = (FeatureSequence) document.instance.getData();
-			FeatureSequence topicSequence =  (FeatureSequence) document.topicSequence;
+	/**
+	 *  Decompress the text state on this thread, handing blocks of
+	 *   complete lines to <code>numThreads</code> parsing threads.
+	 *   Every line names its document and position, so blocks can be
+	 *   parsed in any order.
+	 */
+	private void readTextState(InputStream in) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		LinkedList<Future<Integer>> pending = new LinkedList<Future<Integer>>();
+		long tokensRead = 0;
 
-			int[] topics = topicSequence.getFeatures();
-			for (int position = 0; position < tokens.size(); position++) {
-				int type = tokens.getIndexAtPosition(position);
-				
-				if (type == Integer.parseInt(fields[3])) {
-					topics[position] = Integer.parseInt(fields[5]);
+		try {
+			byte[] chunk = new byte[stateChunkSize];
+			int length = 0;
+			int bytesRead;
+			while ((bytesRead = in.read(chunk, length, chunk.length - length)) != -1) {
+				length += bytesRead;
+				if (length < chunk.length) { continue; }
+
+				int end = length;
+				while (end > 0 && chunk[end - 1] != '\n') { end--; }
+				if (end == 0) {
+					// A line longer than the block
+					chunk = Arrays.copyOf(chunk, chunk.length * 2);
+					continue;
 				}
-				else {
-					System.err.println("instance list and state do not match: " + line);
-					throw new IllegalStateException();
+
+				// Carry the incomplete last line over to the next block
+				byte[] nextChunk = new byte[chunk.length];
+				System.arraycopy(chunk, end, nextChunk, 0, length - end);
+				pending.add(executor.submit(new StateParser(chunk, end)));
+				chunk = nextChunk;
+				length -= end;
+
+				// Bound the number of blocks held in memory
+				if (pending.size() > 2 * numThreads) {
+					tokensRead += getParsedTokens(pending.removeFirst());
 				}
+			}
+			if (length > 0) {
+				pending.add(executor.submit(new StateParser(chunk, length)));
+			}
+			while (! pending.isEmpty()) {
+				tokensRead += getParsedTokens(pending.removeFirst());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
 
-				line = reader.readLine();
-				if (line != null) {
-					fields = line.split(" ");
+		if (tokensRead != totalTokens) {
+			throw new IllegalStateException("instance list and state do not match: " +
+											"the state has " + tokensRead + " tokens, the instance list " + totalTokens);
+		}
+	}
+
+	private int getParsedTokens(Future<Integer> parsed) {
+		try {
+			return parsed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading state", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Reading state failed", e.getCause());
+		}
+	}
+
+	/**
+	 *  Parses lines of the form "doc source pos typeindex type topic" from
+	 *   a block of text state, setting the topic of each token. Fields are
+	 *   read from the end of the line, so that the source may contain spaces.
+	 */
+	private class StateParser implements Callable<Integer> {
+		byte[] bytes;
+		int length;
+
+		StateParser(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+
+		public Integer call() {
+			int tokens = 0;
+			int lineStart = 0;
+			while (lineStart < length) {
+				int lineEnd = lineStart;
+				while (lineEnd < length && bytes[lineEnd] != '\n') { lineEnd++; }
+
+				// Skip comments, which describe the format and hyperparameters
+				if (lineEnd > lineStart && bytes[lineStart] != '#') {
+					parseLine(lineStart, lineEnd);
+					tokens++;
 				}
+				lineStart = lineEnd + 1;
 			}
+			return tokens;
+		}
+
+		private void parseLine(int lineStart, int lineEnd) {
+			int docEnd = nextSpace(lineStart, lineEnd);
+			int topicStart = previousSpace(lineStart, lineEnd);
+			int wordStart = previousSpace(lineStart, topicStart);
+			int typeStart = previousSpace(lineStart, wordStart);
+			int positionStart = previousSpace(lineStart, typeStart);
+
+			if (positionStart <= docEnd) {
+				mismatch(lineStart, lineEnd);
+			}
+
+			int doc = parseInt(lineStart, docEnd);
+			int position = parseInt(positionStart + 1, typeStart);
+			int type = parseInt(typeStart + 1, wordStart);
+			int topic = parseInt(topicStart + 1, lineEnd);
+
+			if (doc < 0 || doc >= data.size()) {
+				mismatch(lineStart, lineEnd);
+			}
+			FeatureSequence tokens = (FeatureSequence) data.get(doc).instance.getData();
+			if (position < 0 || position >= tokens.getLength() ||
+				tokens.getIndexAtPosition(position) != type) {
+				mismatch(lineStart, lineEnd);
+			}
+
+			data.get(doc).topicSequence.getFeatures()[position] = topic;
+		}
+
+		private int nextSpace(int start, int end) {
+			while (start < end && bytes[start] != ' ') { start++; }
+			return start;
+		}
+
+		private int previousSpace(int start, int end) {
+			end--;
+			while (end >= start && bytes[end] != ' ') { end--; }
+			return end;
+		}
+
+		private int parseInt(int start, int end) {
+			boolean negative = start < end && bytes[start] == '-';
+			if (negative) { start++; }
+			if (start >= end) {
+				throw new NumberFormatException("Empty field in state file");
+			}
+
+			int value = 0;
+			for (int i = start; i < end; i++) {
+				int digit = bytes[i] - '0';
+				if (digit < 0 || digit > 9) {
+					throw new NumberFormatException("For input string: \"" +
+													new String(bytes, start, end - start) + "\"");
+				}
+				value = value * 10 + digit;
+			}
+			return negative ? -value : value;
+		}
+
+		private void mismatch(int lineStart, int lineEnd) {
+			throw new IllegalStateException("instance list and state do not match: " +
+											new String(bytes, lineStart, lineEnd - lineStart));
 		}
-		
-		buildInitialTypeTopicCounts();
-		initializeHistograms();
 	}
 
 	public void buildInitialTypeTopicCounts () {
@@ -517,6 +728,40 @@ public class ParallelTopicModel implements Serializable {
 	}
 	
 
+	/**
+	 *  Copy the global type/topic counts, summed by
+	 *   {@link #sumTypeTopicCounts(WorkerRunnable[])}, back to each runnable
+	 *   for the next iteration.
+	 */
+	public void copyTypeTopicCounts (WorkerRunnable[] runnables) {
+		for (int thread = 0; thread < runnables.length; thread++) {
+			int[] runnableTotals = runnables[thread].getTokensPerTopic();
+			System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
+			
+			int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
+			for (int type = 0; type < numTypes; type++) {
+				int[] targetCounts = runnableCounts[type];
+				int[] sourceCounts = typeTopicCounts[type];
+				
+				int index = 0;
+				while (index < sourceCounts.length) {
+					
+					if (sourceCounts[index] != 0) {
+						targetCounts[index] = sourceCounts[index];
+					}
+					else if (targetCounts[index] != 0) {
+						targetCounts[index] = 0;
+					}
+					else {
+						break;
+					}
+					
+					index++;
+				}
+			}
+		}
+	}
+
 	/** 
 	 *  Gather statistics on the size of documents 
 	 *  and create histograms for use in Dirichlet hyperparameter
@@ -543,57 +788,77 @@ public class ParallelTopicModel implements Serializable {
 		topicDocCounts = new int[numTopics][maxTokens + 1];
 	}
 	
-	public void optimizeAlpha(WorkerRunnable[] runnables) {
+	public void optimizeAlpha(final WorkerRunnable[] runnables) {
 
-		// First clear the sufficient statistic histograms
+		// Gather the document length histograms, which the
+		//  workers clear as they are added.
 
 		Arrays.fill(docLengthCounts, 0);
-		for (int topic = 0; topic < topicDocCounts.length; topic++) {
-			Arrays.fill(topicDocCounts[topic], 0);
+		for (int thread = 0; thread < numThreads; thread++) {
+			runnables[thread].drainDocLengthCounts(docLengthCounts);
 		}
 
-		for (int thread = 0; thread < numThreads; thread++) {
-			int[] sourceLengthCounts = runnables[thread].getDocLengthCounts();
-			int[][] sourceTopicCounts = runnables[thread].getTopicDocCounts();
+		// Each topic's histogram, and with an asymmetric prior each
+		//  topic's parameter, can be handled independently, so split
+		//  the topics over threads.
 
-			for (int count=0; count < sourceLengthCounts.length; count++) {
-				if (sourceLengthCounts[count] > 0) {
-					docLengthCounts[count] += sourceLengthCounts[count];
-					sourceLengthCounts[count] = 0;
-				}
+		final double denominator;
+		if (usingSymmetricAlpha) {
+			denominator = 0.0;
+		}
+		else {
+			// The fixed point update in Dirichlet.learnParameters
+			double oldAlphaSum = 0.0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				oldAlphaSum += alpha[topic];
 			}
+			denominator = Dirichlet.fixedPointDenominator(docLengthCounts, oldAlphaSum, 1.0);
+		}
 
-			for (int topic=0; topic < numTopics; topic++) {
-
-				if (! usingSymmetricAlpha) {
-					for (int count=0; count < sourceTopicCounts[topic].length; count++) {
-						if (sourceTopicCounts[topic][count] > 0) {
-							topicDocCounts[topic][count] += sourceTopicCounts[topic][count];
-							sourceTopicCounts[topic][count] = 0;
-						}
-					}
-				}
-				else {
-					// For the symmetric version, we only need one 
-					//  count array, which I'm putting in the same 
-					//  data structure, but for topic 0. All other
-					//  topic histograms will be empty.
-					// I'm duplicating this for loop, which 
-					//  isn't the best thing, but it means only checking
-					//  whether we are symmetric or not numTopics times, 
-					//  instead of numTopics * longest document length.
-					for (int count=0; count < sourceTopicCounts[topic].length; count++) {
-						if (sourceTopicCounts[topic][count] > 0) {
-							topicDocCounts[0][count] += sourceTopicCounts[topic][count];
-							//			 ^ the only change
-							sourceTopicCounts[topic][count] = 0;
+		int numTasks = Math.min(numThreads, numTopics);
+		List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>(numTasks);
+		for (int task = 0; task < numTasks; task++) {
+			final int startTopic = numTopics * task / numTasks;
+			final int endTopic = numTopics * (task + 1) / numTasks;
+			tasks.add(new Callable<int[]>() {
+					public int[] call() {
+						// For the symmetric version, we only need one 
+						//  histogram summed over topics. All the topic
+						//  histograms will be empty.
+						int[] summedCounts = usingSymmetricAlpha ? new int[docLengthCounts.length] : null;
+
+						for (int topic = startTopic; topic < endTopic; topic++) {
+							int[] counts = topicDocCounts[topic];
+							Arrays.fill(counts, 0);
+
+							if (usingSymmetricAlpha) {
+								for (int thread = 0; thread < numThreads; thread++) {
+									runnables[thread].drainTopicDocCounts(topic, summedCounts);
+								}
+							}
+							else {
+								int nonZeroLimit = 0;
+								for (int thread = 0; thread < numThreads; thread++) {
+									nonZeroLimit = Math.max(nonZeroLimit,
+															runnables[thread].drainTopicDocCounts(topic, counts));
+								}
+								alpha[topic] = Dirichlet.fixedPointUpdate(alpha[topic], counts, nonZeroLimit,
+																		  denominator, 1.001);
+							}
 						}
+						return summedCounts;
 					}
-				}
-			}
+				});
 		}
+		List<int[]> results = runAll(tasks);
 
 		if (usingSymmetricAlpha) {
+			for (int[] summedCounts: results) {
+				for (int count = 0; count < summedCounts.length; count++) {
+					topicDocCounts[0][count] += summedCounts[count];
+				}
+			}
+
 			alphaSum = Dirichlet.learnSymmetricConcentration(topicDocCounts[0],
 															 docLengthCounts,
 															 numTopics,
@@ -603,7 +868,10 @@ public class ParallelTopicModel implements Serializable {
 			}
 		}
 		else {
-			alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts, 1.001, 1.0, 1);
+			alphaSum = 0.0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				alphaSum += alpha[topic];
+			}
 		}
 	}
 
@@ -617,23 +885,7 @@ public class ParallelTopicModel implements Serializable {
 		}
 
 		for (int thread = 0; thread < numThreads; thread++) {
-			int[] sourceLengthCounts = runnables[thread].getDocLengthCounts();
-			int[][] sourceTopicCounts = runnables[thread].getTopicDocCounts();
-
-			for (int count=0; count < sourceLengthCounts.length; count++) {
-				if (sourceLengthCounts[count] > 0) {
-					sourceLengthCounts[count] = 0;
-				}
-			}
-
-			for (int topic=0; topic < numTopics; topic++) {
-
-				for (int count=0; count < sourceTopicCounts[topic].length; count++) {
-					if (sourceTopicCounts[topic][count] > 0) {
-						sourceTopicCounts[topic][count] = 0;
-					}
-				}
-			}
+			runnables[thread].clearAlphaStatistics();
 		}
 
 		for (int topic = 0; topic < numTopics; topic++) {
@@ -643,23 +895,49 @@ public class ParallelTopicModel implements Serializable {
 	}
 
 	public void optimizeBeta(WorkerRunnable[] runnables) {
+		
+		// Count the number of type/topic pairs that have
+		//  each number of tokens, splitting the types over threads.
+
+		int numTasks = Math.max(1, Math.min(numThreads, numTypes));
+		List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>(numTasks);
+		for (int task = 0; task < numTasks; task++) {
+			final int startType = (int) ((long) numTypes * task / numTasks);
+			final int endType = (int) ((long) numTypes * (task + 1) / numTasks);
+			tasks.add(new Callable<int[]>() {
+					public int[] call() {
+						// The counts are sorted, so the first is the largest
+						int maxCount = 0;
+						for (int type = startType; type < endType; type++) {
+							int[] counts = typeTopicCounts[type];
+							if (counts.length > 0) {
+								maxCount = Math.max(maxCount, counts[0] >> topicBits);
+							}
+						}
+
+						int[] countHistogram = new int[maxCount + 1];
+						for (int type = startType; type < endType; type++) {
+							int[] counts = typeTopicCounts[type];
+							int index = 0;
+							while (index < counts.length &&
+								   counts[index] > 0) {
+								int count = counts[index] >> topicBits;
+								countHistogram[count]++;
+								index++;
+							}
+						}
+						return countHistogram;
+					}
+				});
+		}
+
 		// The histogram starts at count 0, so if all of the
 		//  tokens of the most frequent type were assigned to one topic,
 		//  we would need to store a maxTypeCount + 1 count.
 		int[] countHistogram = new int[maxTypeCount + 1];
-		
-		// Now count the number of type/topic pairs that have
-		//  each number of tokens.
-
-		int index;
-		for (int type = 0; type < numTypes; type++) {
-			int[] counts = typeTopicCounts[type];
-			index = 0;
-			while (index < counts.length &&
-				   counts[index] > 0) {
-				int count = counts[index] >> topicBits;
-				countHistogram[count]++;
-				index++;
+		for (int[] partialHistogram: runAll(tasks)) {
+			for (int count = 0; count < partialHistogram.length; count++) {
+				countHistogram[count] += partialHistogram[count];
 			}
 		}
 			
@@ -693,6 +971,47 @@ public class ParallelTopicModel implements Serializable {
 		
 	}
 
+	/**
+	 *  Runs the tasks on up to <code>numThreads</code> threads, or on
+	 *   this thread if there is only one, and returns their results in order.
+	 *   Within {@link #estimate} the tasks share the sampling threads.
+	 */
+	private <T> List<T> runAll(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		if (numThreads == 1 || tasks.size() == 1) {
+			try {
+				for (Callable<T> task: tasks) {
+					results.add(task.call());
+				}
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException("Hyperparameter optimization failed", e);
+			}
+			return results;
+		}
+
+		ExecutorService pool = executor;
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Math.min(numThreads, tasks.size()));
+		}
+		try {
+			for (Future<T> future: pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while optimizing hyperparameters", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Hyperparameter optimization failed", e.getCause());
+		} finally {
+			if (pool != executor) {
+				pool.shutdown();
+			}
+		}
+	}
+
 	public void estimate () throws IOException {
 
 		long startTime = System.currentTimeMillis();
@@ -702,6 +1021,15 @@ public class ParallelTopicModel implements Serializable {
 		int docsPerThread = data.size() / numThreads;
 		int offset = 0;
 
+		// Each runnable gets its own, non-overlapping stream from this one
+		FastRandoms random = null;
+		if (randomSeed == -1) {
+			random = new FastRandoms();
+		}
+		else {
+			random = new FastRandoms(randomSeed);
+		}
+
 		if (numThreads > 1) {
 		
 			for (int thread = 0; thread < numThreads; thread++) {
@@ -720,17 +1048,9 @@ public class ParallelTopicModel implements Serializable {
 					docsPerThread = data.size() - offset;
 				}
 				
-				Randoms random = null;
-				if (randomSeed == -1) {
-					random = new Randoms();
-				}
-				else {
-					random = new Randoms(randomSeed);
-				}
-
 				runnables[thread] = new WorkerRunnable(numTopics,
 													   alpha, alphaSum, beta,
-													   random, data,
+													   random.split(), data,
 													   runnableCounts, runnableTotals,
 													   offset, docsPerThread);
 				
@@ -745,14 +1065,6 @@ public class ParallelTopicModel implements Serializable {
 			// If there is only one thread, copy the typeTopicCounts
 			//  arrays directly, rather than allocating new memory.
 
-			Randoms random = null;
-			if (randomSeed == -1) {
-				random = new Randoms();
-			}
-			else {
-				random = new Randoms(randomSeed);
-			}
-
 			runnables[0] = new WorkerRunnable(numTopics,
 											  alpha, alphaSum, beta,
 											  random, data,
@@ -768,138 +1080,157 @@ public class ParallelTopicModel implements Serializable {
 			runnables[0].makeOnlyThread();
 		}
 
-		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		int firstIteration = 1;
+		if (resumeCheckpoint != null) {
+			firstIteration = resumeCheckpoint.getIteration();
+			resumeCheckpoint.restoreRunnables(runnables);
+			resumeCheckpoint = null;
+			logger.info("Resuming at iteration " + firstIteration);
+		}
+
+		executor = Executors.newFixedThreadPool(numThreads);
+
+		// Checkpoints are written by their own thread, one at a time
+		ExecutorService checkpointExecutor = null;
+		Future<?> pendingCheckpoint = null;
+		if (checkpointInterval != 0) {
+			checkpointExecutor = Executors.newSingleThreadExecutor();
+		}
 	
-		for (int iteration = 1; iteration <= numIterations; iteration++) {
+		// Time spent in hyperparameter optimization, reported separately
+		long optimizeMillis = 0;
 
-			long iterationStart = System.currentTimeMillis();
+		try {
+			for (int iteration = firstIteration; iteration <= numIterations; iteration++) {
 
-			if (showTopicsInterval != 0 && iteration != 0 && iteration % showTopicsInterval == 0) {
-				logger.info("\n" + displayTopWords (wordsPerTopic, false));
-			}
+				long iterationStart = System.currentTimeMillis();
 
-			if (saveStateInterval != 0 && iteration % saveStateInterval == 0) {
-				this.printState(new File(stateFilename + '.' + iteration));
-			}
+				if (showTopicsInterval != 0 && iteration != 0 && iteration % showTopicsInterval == 0) {
+					logger.info("\n" + displayTopWords (wordsPerTopic, false));
+				}
 
-			if (saveModelInterval != 0 && iteration % saveModelInterval == 0) {
-				this.write(new File(modelFilename + '.' + iteration));
-			}
+				if (saveStateInterval != 0 && iteration % saveStateInterval == 0) {
+					this.printState(new File(stateFilename + '.' + iteration));
+				}
+
+				if (saveModelInterval != 0 && iteration % saveModelInterval == 0) {
+					this.write(new File(modelFilename + '.' + iteration));
+				}
 
-			if (numThreads > 1) {
+				if (numThreads > 1) {
 			
-				// Submit runnables to thread pool
+					// Submit runnables to thread pool
 				
-				for (int thread = 0; thread < numThreads; thread++) {
-					if (iteration > burninPeriod && optimizeInterval != 0 &&
-						iteration % saveSampleInterval == 0) {
-						runnables[thread].collectAlphaStatistics();
-					}
+					for (int thread = 0; thread < numThreads; thread++) {
+						if (iteration > burninPeriod && optimizeInterval != 0 &&
+							iteration % saveSampleInterval == 0) {
+							runnables[thread].collectAlphaStatistics();
+						}
 					
-					logger.fine("submitting thread " + thread);
-					executor.submit(runnables[thread]);
-					//runnables[thread].run();
-				}
+						logger.fine("submitting thread " + thread);
+						executor.submit(runnables[thread]);
+						//runnables[thread].run();
+					}
 				
-				// I'm getting some problems that look like 
-				//  a thread hasn't started yet when it is first
-				//  polled, so it appears to be finished. 
-				// This only occurs in very short corpora.
-				try {
-					Thread.sleep(20);
-				} catch (InterruptedException e) {
+					// I'm getting some problems that look like 
+					//  a thread hasn't started yet when it is first
+					//  polled, so it appears to be finished. 
+					// This only occurs in very short corpora.
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
 					
-				}
+					}
 				
-				boolean finished = false;
-				while (! finished) {
+					boolean finished = false;
+					while (! finished) {
 					
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
+						try {
+							Thread.sleep(10);
+						} catch (InterruptedException e) {
 						
-					}
+						}
 					
-					finished = true;
+						finished = true;
 					
-					// Are all the threads done?
-					for (int thread = 0; thread < numThreads; thread++) {
-						//logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
-						finished = finished && runnables[thread].isFinished;
-					}
+						// Are all the threads done?
+						for (int thread = 0; thread < numThreads; thread++) {
+							//logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
+							finished = finished && runnables[thread].isFinished;
+						}
 					
-				}
+					}
 				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
+					//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
 				
-				sumTypeTopicCounts(runnables);
+					sumTypeTopicCounts(runnables);
 				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
+					//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
 				
-				for (int thread = 0; thread < numThreads; thread++) {
-					int[] runnableTotals = runnables[thread].getTokensPerTopic();
-					System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
-					
-					int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
-					for (int type = 0; type < numTypes; type++) {
-						int[] targetCounts = runnableCounts[type];
-						int[] sourceCounts = typeTopicCounts[type];
-						
-						int index = 0;
-						while (index < sourceCounts.length) {
-							
-							if (sourceCounts[index] != 0) {
-								targetCounts[index] = sourceCounts[index];
-							}
-							else if (targetCounts[index] != 0) {
-								targetCounts[index] = 0;
-							}
-							else {
-								break;
-							}
-							
-							index++;
-						}
-						//System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
+					copyTypeTopicCounts(runnables);
+				}
+				else {
+					if (iteration > burninPeriod && optimizeInterval != 0 &&
+						iteration % saveSampleInterval == 0) {
+						runnables[0].collectAlphaStatistics();
 					}
+					runnables[0].run();
 				}
-			}
-			else {
-				if (iteration > burninPeriod && optimizeInterval != 0 &&
-					iteration % saveSampleInterval == 0) {
-					runnables[0].collectAlphaStatistics();
+
+				long elapsedMillis = System.currentTimeMillis() - iterationStart;
+				if (elapsedMillis < 1000) {
+					logger.fine(elapsedMillis + "ms ");
 				}
-				runnables[0].run();
-			}
+				else {
+					logger.fine((elapsedMillis/1000) + "s ");
+				}   
 
-			long elapsedMillis = System.currentTimeMillis() - iterationStart;
-			if (elapsedMillis < 1000) {
-				logger.fine(elapsedMillis + "ms ");
-			}
-			else {
-				logger.fine((elapsedMillis/1000) + "s ");
-			}   
+				if (iteration > burninPeriod && optimizeInterval != 0 &&
+					iteration % optimizeInterval == 0) {
 
-			if (iteration > burninPeriod && optimizeInterval != 0 &&
-				iteration % optimizeInterval == 0) {
+					long optimizeStart = System.currentTimeMillis();
 
-				optimizeAlpha(runnables);
-				optimizeBeta(runnables);
+					optimizeAlpha(runnables);
+					optimizeBeta(runnables);
 				
-				logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
-			}
+					long optimizeElapsed = System.currentTimeMillis() - optimizeStart;
+					optimizeMillis += optimizeElapsed;
+					logger.fine("[O " + optimizeElapsed + "] ");
+				}
 			
-			if (iteration % 10 == 0) {
-				if (printLogLikelihood) {
-					logger.info ("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
+				if (iteration % 10 == 0) {
+					if (printLogLikelihood) {
+						logger.info ("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
+					}
+					else {
+						logger.info ("<" + iteration + ">");
+					}
 				}
-				else {
-					logger.info ("<" + iteration + ">");
+
+				if (checkpointInterval != 0 && iteration % checkpointInterval == 0) {
+					// Only hold one snapshot in memory at a time
+					waitForCheckpoint(pendingCheckpoint);
+
+					final TopicModelCheckpoint checkpoint =
+						TopicModelCheckpoint.take(this, runnables, iteration + 1);
+					final File checkpointFile = new File(checkpointFilename + '.' + iteration);
+					pendingCheckpoint = checkpointExecutor.submit(new Callable<Void>() {
+							public Void call() throws IOException {
+								checkpoint.write(checkpointFile);
+								return null;
+							}
+						});
 				}
 			}
-		}
+		} finally {
+			executor.shutdownNow();
+			executor = null;
 
-		executor.shutdownNow();
+			if (checkpointExecutor != null) {
+				waitForCheckpoint(pendingCheckpoint);
+				checkpointExecutor.shutdown();
+			}
+		}
 	
 		long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
 		long minutes = seconds / 60;	seconds %= 60;
@@ -912,10 +1243,27 @@ public class ParallelTopicModel implements Serializable {
 		if (hours != 0) { timeReport.append(hours); timeReport.append(" hours "); }
 		if (minutes != 0) { timeReport.append(minutes); timeReport.append(" minutes "); }
 		timeReport.append(seconds); timeReport.append(" seconds");
+		if (optimizeMillis > 0) {
+			timeReport.append("\nHyperparameter optimization: ");
+			timeReport.append(formatter.format(optimizeMillis / 1000.0)); timeReport.append(" seconds");
+		}
 		
 		logger.info(timeReport.toString());
 	}
 	
+	/** Wait for a checkpoint to finish writing. A failure is logged rather than stopping the sampler. */
+	private void waitForCheckpoint(Future<?> checkpoint) {
+		if (checkpoint == null) { return; }
+		try {
+			checkpoint.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while writing a checkpoint", e);
+		} catch (ExecutionException e) {
+			logger.warning("Unable to write checkpoint: " + e.getCause());
+		}
+	}
+
 	public void printTopWords (File file, int numWords, boolean useNewLines) throws IOException {
 		PrintStream out = new PrintStream (file);
 		printTopWords(out, numWords, useNewLines);
@@ -1361,7 +1709,13 @@ public class ParallelTopicModel implements Serializable {
 		
 	}
 	
+	/** Write the state as gzipped text, or in binary if {@link #setBinaryState} is set. */
 	public void printState (File f) throws IOException {
+		if (binaryState) {
+			TopicModelCheckpoint.take(this).write(f);
+			return;
+		}
+
 		PrintStream out =
 			new PrintStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(f))));
 		printState(out);
@@ -1638,6 +1992,7 @@ public class ParallelTopicModel implements Serializable {
 		printLogLikelihood = in.readBoolean();
 
 		numThreads = in.readInt();
+		stateChunkSize = STATE_CHUNK_SIZE;
 	}
 
 	public void write (File serializedModelFile) {
@@ -8,6 +8,11 @@
 package cc.mallet.topics;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.*;
 
 import java.io.*;
@@ -15,6 +20,7 @@ import java.text.NumberFormat;
 
 import cc.mallet.types.*;
 import cc.mallet.util.CommandOption;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
 
 /**
@@ -96,6 +102,10 @@ public class PolylingualTopicModel implements Serializable {
 		(PolylingualTopicModel.class, "num-iterations", "INTEGER", true, 1000,
 		 "The number of iterations of Gibbs sampling.", null);
 
+	static CommandOption.Integer numThreadsOption = new CommandOption.Integer
+		(PolylingualTopicModel.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for parallel training.", null);
+
 	static CommandOption.Integer randomSeedOption = new CommandOption.Integer
 		(PolylingualTopicModel.class, "random-seed", "INTEGER", true, 0,
 		 "The random seed for the Gibbs sampler.  Default is 0, which will use the clock.", null);
@@ -198,6 +208,8 @@ public class PolylingualTopicModel implements Serializable {
 	protected Randoms random;
 	protected NumberFormat formatter;
 	protected boolean printLogLikelihood = false;
+
+	int numThreads = 1;
 	
 	public PolylingualTopicModel (int numberOfTopics) {
 		this (numberOfTopics, numberOfTopics);
@@ -262,6 +274,16 @@ public class PolylingualTopicModel implements Serializable {
 	public LabelAlphabet getTopicAlphabet() { return topicAlphabet; }
 	public int getNumTopics() { return numTopics; }
 	public ArrayList<TopicAssignment> getData() { return data; }
+
+	/**
+	 *  Returns the type/topic counts of one language. Each row holds, in
+	 *   descending order of count, entries <code>count &lt;&lt; topicBits | topic</code>,
+	 *   followed by zeros.
+	 */
+	public int[][] getTypeTopicCounts(int language) { return languageTypeTopicCounts[language]; }
+	public int[] getTokensPerTopic(int language) { return languageTokensPerTopic[language]; }
+	public int getTopicMask() { return topicMask; }
+	public int getTopicBits() { return topicBits; }
 	
 	public void setNumIterations (int numIterations) {
 		this.numIterations = numIterations;
@@ -280,6 +302,16 @@ public class PolylingualTopicModel implements Serializable {
 		random = new Randoms(seed);
 	}
 
+	/**
+	 *  Sets the number of threads that sample documents. As in
+	 *   {@link ParallelTopicModel}, each thread works from a copy of
+	 *   every language's type/topic counts made at the start of the
+	 *   iteration, and the copies are summed at the end of it.
+	 */
+	public void setNumThreads(int threads) {
+		this.numThreads = threads;
+	}
+
 	public void setOptimizeInterval(int interval) {
 		this.optimizeInterval = interval;
 	}
@@ -550,61 +582,133 @@ public class PolylingualTopicModel implements Serializable {
 		int maxIteration = iterationsSoFar + iterationsThisRound;
 
 		long totalTime = 0;
-	
-		for ( ; iterationsSoFar <= maxIteration; iterationsSoFar++) {
-			long iterationStart = System.currentTimeMillis();
-			
-			if (showTopicsInterval != 0 && iterationsSoFar != 0 && iterationsSoFar % showTopicsInterval == 0) {
-				System.out.println();
-				printTopWords (System.out, wordsPerTopic, false);
 
-			}
+		int threads = Math.max(1, Math.min(numThreads, data.size()));
+		PolylingualWorkerRunnable[] runnables = new PolylingualWorkerRunnable[threads];
+
+		if (threads > 1) {
+			int offset = 0;
+			for (int thread = 0; thread < threads; thread++) {
+				int docsPerThread = (int) ((long) data.size() * (thread + 1) / threads) - offset;
+
+				// Allocate arrays of the same shape as ours; they are
+				//  filled by copyTypeTopicCounts() below.
+				int[][][] runnableCounts = new int[numLanguages][][];
+				for (int language = 0; language < numLanguages; language++) {
+					runnableCounts[language] = new int[ vocabularySizes[language] ][];
+					for (int type = 0; type < vocabularySizes[language]; type++) {
+						runnableCounts[language][type] =
+							new int[ languageTypeTopicCounts[language][type].length ];
+					}
+				}
 
-			if (saveStateInterval != 0 && iterationsSoFar % saveStateInterval == 0) {
-				this.printState(new File(stateFilename + '.' + iterationsSoFar));
+				// Each runnable gets its own, non-overlapping stream from ours
+				Randoms threadRandom = (random instanceof FastRandoms) ?
+					((FastRandoms) random).split() : new FastRandoms(random.nextLong());
+
+				runnables[thread] =
+					new PolylingualWorkerRunnable(numTopics, topicMask, topicBits,
+												  alpha, betas, betaSums, threadRandom, data,
+												  runnableCounts, new int[numLanguages][numTopics],
+												  new int[docLengthCounts.length],
+												  new int[numTopics][docLengthCounts.length],
+												  offset, docsPerThread);
+				offset += docsPerThread;
 			}
 
-			/*
-			  if (saveModelInterval != 0 && iterations % saveModelInterval == 0) {
-			  this.write (new File(modelFilename+'.'+iterations));
-			  }
-			*/
+			copyTypeTopicCounts(runnables);
+		}
+		else {
+			// If there is only one thread, it samples directly into our
+			//  counts and histograms.
+			runnables[0] =
+				new PolylingualWorkerRunnable(numTopics, topicMask, topicBits,
+											  alpha, betas, betaSums, random, data,
+											  languageTypeTopicCounts, languageTokensPerTopic,
+											  docLengthCounts, topicDocCounts,
+											  0, data.size());
+			runnables[0].makeOnlyThread();
+		}
 
-			// TODO this condition should also check that we have more than one sample to work with here
-			// (The number of samples actually obtained is not yet tracked.)
-			if (iterationsSoFar > burninPeriod && optimizeInterval != 0 &&
-				iterationsSoFar % optimizeInterval == 0) {
+		ExecutorService executor = null;
+		if (threads > 1) {
+			executor = Executors.newFixedThreadPool(threads);
+		}
+	
+		try {
+			for ( ; iterationsSoFar <= maxIteration; iterationsSoFar++) {
+				long iterationStart = System.currentTimeMillis();
+				
+				if (showTopicsInterval != 0 && iterationsSoFar != 0 && iterationsSoFar % showTopicsInterval == 0) {
+					System.out.println();
+					printTopWords (System.out, wordsPerTopic, false);
 
-				alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts);
-				optimizeBetas();
-				clearHistograms();
-				cacheValues();
-			}
+				}
 
-			// Loop over every document in the corpus
-			topicTermCount = betaTopicCount = smoothingOnlyCount = 0;
+				if (saveStateInterval != 0 && iterationsSoFar % saveStateInterval == 0) {
+					this.printState(new File(stateFilename + '.' + iterationsSoFar));
+				}
 
-			for (int doc = 0; doc < data.size(); doc++) {
+				/*
+				  if (saveModelInterval != 0 && iterations % saveModelInterval == 0) {
+				  this.write (new File(modelFilename+'.'+iterations));
+				  }
+				*/
 
-				sampleTopicsForOneDoc (data.get(doc),
-									   (iterationsSoFar >= burninPeriod &&
-										iterationsSoFar % saveSampleInterval == 0));
-			}
-		
-            long elapsedMillis = System.currentTimeMillis() - iterationStart;
-            totalTime += elapsedMillis;
+				// TODO this condition should also check that we have more than one sample to work with here
+				// (The number of samples actually obtained is not yet tracked.)
+				if (iterationsSoFar > burninPeriod && optimizeInterval != 0 &&
+					iterationsSoFar % optimizeInterval == 0) {
 
-			if ((iterationsSoFar + 1) % 10 == 0) {
-				
-				double ll = modelLogLikelihood();
-				System.out.println(elapsedMillis + "\t" + totalTime + "\t" +
-								   ll);
+					if (executor != null) {
+						sumHistograms(runnables);
+					}
+					alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts);
+					optimizeBetas();
+					clearHistograms();
+					cacheValues();
+				}
+
+				if (iterationsSoFar >= burninPeriod &&
+					iterationsSoFar % saveSampleInterval == 0) {
+					for (PolylingualWorkerRunnable runnable: runnables) {
+						runnable.collectAlphaStatistics();
+					}
+				}
+
+				// Sample every document in the corpus
+
+				if (executor == null) {
+					runnables[0].run();
+				}
+				else {
+					runAll(executor, runnables);
+					sumTypeTopicCounts(runnables);
+					copyTypeTopicCounts(runnables);
+				}
+			
+				long elapsedMillis = System.currentTimeMillis() - iterationStart;
+				totalTime += elapsedMillis;
+
+				if ((iterationsSoFar + 1) % 10 == 0) {
+					
+					double ll = modelLogLikelihood();
+					System.out.println(elapsedMillis + "\t" + totalTime + "\t" +
+									   ll);
+				}
+				else {
+					System.out.print(elapsedMillis + " ");
+				}
 			}
-			else {
-				System.out.print(elapsedMillis + " ");
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
 			}
 		}
 
+		// Leave the cached values consistent with the final counts
+		cacheValues();
+
 		/*
 		long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
 		long minutes = seconds / 60;	seconds %= 60;
@@ -617,6 +721,156 @@ public class PolylingualTopicModel implements Serializable {
 		System.out.print(seconds); System.out.println(" seconds");
 		*/
 	}
+
+	/**
+	 *  Replace the type/topic counts of every language with the sum
+	 *   of the runnables' counts over their own documents.
+	 */
+	private void sumTypeTopicCounts (PolylingualWorkerRunnable[] runnables) {
+
+		for (int language = 0; language < numLanguages; language++) {
+
+			int[][] typeTopicCounts = languageTypeTopicCounts[language];
+			int[] tokensPerTopic = languageTokensPerTopic[language];
+
+			// Clear the topic totals
+			Arrays.fill(tokensPerTopic, 0);
+
+			// Clear the type/topic counts, only 
+			//  looking at the entries before the first 0 entry.
+			for (int type = 0; type < typeTopicCounts.length; type++) {
+				int[] targetCounts = typeTopicCounts[type];
+
+				int position = 0;
+				while (position < targetCounts.length && 
+					   targetCounts[position] > 0) {
+					targetCounts[position] = 0;
+					position++;
+				}
+			}
+
+			for (PolylingualWorkerRunnable runnable: runnables) {
+
+				int[] sourceTotals = runnable.getLanguageTokensPerTopic()[language];
+				for (int topic = 0; topic < numTopics; topic++) {
+					tokensPerTopic[topic] += sourceTotals[topic];
+				}
+
+				int[][] sourceTypeTopicCounts = runnable.getLanguageTypeTopicCounts()[language];
+
+				for (int type = 0; type < typeTopicCounts.length; type++) {
+
+					int[] sourceCounts = sourceTypeTopicCounts[type];
+					int[] targetCounts = typeTopicCounts[type];
+
+					int sourceIndex = 0;
+					while (sourceIndex < sourceCounts.length &&
+						   sourceCounts[sourceIndex] > 0) {
+
+						int topic = sourceCounts[sourceIndex] & topicMask;
+						int count = sourceCounts[sourceIndex] >> topicBits;
+
+						int targetIndex = 0;
+						while (targetCounts[targetIndex] > 0 &&
+							   (targetCounts[targetIndex] & topicMask) != topic) {
+							targetIndex++;
+						}
+						int currentCount = targetCounts[targetIndex] >> topicBits;
+
+						targetCounts[targetIndex] =
+							((currentCount + count) << topicBits) + topic;
+
+						// Now ensure that the array is still sorted by 
+						//  bubbling this value up.
+						while (targetIndex > 0 &&
+							   targetCounts[targetIndex] > targetCounts[targetIndex - 1]) {
+							int temp = targetCounts[targetIndex];
+							targetCounts[targetIndex] = targetCounts[targetIndex - 1];
+							targetCounts[targetIndex - 1] = temp;
+
+							targetIndex--;
+						}
+
+						sourceIndex++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 *  Copy the summed type/topic counts back to each runnable
+	 *   for the next iteration.
+	 */
+	private void copyTypeTopicCounts (PolylingualWorkerRunnable[] runnables) {
+		for (PolylingualWorkerRunnable runnable: runnables) {
+			for (int language = 0; language < numLanguages; language++) {
+				System.arraycopy(languageTokensPerTopic[language], 0,
+								 runnable.getLanguageTokensPerTopic()[language], 0, numTopics);
+
+				int[][] runnableCounts = runnable.getLanguageTypeTopicCounts()[language];
+				int[][] typeTopicCounts = languageTypeTopicCounts[language];
+
+				for (int type = 0; type < typeTopicCounts.length; type++) {
+					int[] targetCounts = runnableCounts[type];
+					int[] sourceCounts = typeTopicCounts[type];
+
+					int index = 0;
+					while (index < sourceCounts.length) {
+
+						if (sourceCounts[index] != 0) {
+							targetCounts[index] = sourceCounts[index];
+						}
+						else if (targetCounts[index] != 0) {
+							targetCounts[index] = 0;
+						}
+						else {
+							break;
+						}
+
+						index++;
+					}
+				}
+			}
+		}
+	}
+
+	/** Add the runnables' Dirichlet histograms to ours, and clear theirs. */
+	private void sumHistograms (PolylingualWorkerRunnable[] runnables) {
+		for (PolylingualWorkerRunnable runnable: runnables) {
+			int[] sourceLengthCounts = runnable.getDocLengthCounts();
+			int[][] sourceTopicCounts = runnable.getTopicDocCounts();
+
+			for (int count = 0; count < docLengthCounts.length; count++) {
+				docLengthCounts[count] += sourceLengthCounts[count];
+			}
+			Arrays.fill(sourceLengthCounts, 0);
+
+			for (int topic = 0; topic < numTopics; topic++) {
+				for (int count = 0; count < docLengthCounts.length; count++) {
+					topicDocCounts[topic][count] += sourceTopicCounts[topic][count];
+				}
+				Arrays.fill(sourceTopicCounts[topic], 0);
+			}
+		}
+	}
+
+	private void runAll (ExecutorService executor, PolylingualWorkerRunnable[] runnables) {
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(runnables.length);
+		for (PolylingualWorkerRunnable runnable: runnables) {
+			tasks.add(Executors.callable(runnable));
+		}
+		try {
+			for (Future<Object> future: executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sampling", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Sampling failed", e.getCause());
+		}
+	}
 	
 	public void optimizeBetas() {
 		
@@ -668,404 +922,6 @@ public class PolylingualTopicModel implements Serializable {
 		}
 	}
 
-	protected void sampleTopicsForOneDoc (TopicAssignment topicAssignment, 
-										  boolean shouldSaveState) {
-
-		int[] currentTypeTopicCounts;
-		int type, oldTopic, newTopic;
-		double topicWeightsSum;
-
-		int[] localTopicCounts = new int[numTopics];
-		int[] localTopicIndex = new int[numTopics];
-
-		for (int language = 0; language < numLanguages; language++) {
-
-			int[] oneDocTopics =
-				topicAssignment.topicSequences[language].getFeatures();
-			int docLength = 
-				topicAssignment.topicSequences[language].getLength();
-			
-			//		populate topic counts
-			for (int position = 0; position < docLength; position++) {
-				localTopicCounts[oneDocTopics[position]]++;
-			}
-		}
-
-		// Build an array that densely lists the topics that
-		//  have non-zero counts.
-		int denseIndex = 0;
-		for (int topic = 0; topic < numTopics; topic++) {
-			if (localTopicCounts[topic] != 0) {
-				localTopicIndex[denseIndex] = topic;
-				denseIndex++;
-			}
-		}
-
-		// Record the total number of non-zero topics
-		int nonZeroTopics = denseIndex;
-
-		for (int language = 0; language < numLanguages; language++) {
-
-            int[] oneDocTopics =
-				topicAssignment.topicSequences[language].getFeatures();
-            int docLength =
-				topicAssignment.topicSequences[language].getLength();
-			FeatureSequence tokenSequence =
-				(FeatureSequence) topicAssignment.instances[language].getData();
-
-			int[][] typeTopicCounts = languageTypeTopicCounts[language];
-			int[] tokensPerTopic = languageTokensPerTopic[language];
-			double beta = betas[language];
-			double betaSum = betaSums[language];
-
-			// Initialize the smoothing-only sampling bucket
-			double smoothingOnlyMass = languageSmoothingOnlyMasses[language];
-			//for (int topic = 0; topic < numTopics; topic++) 
-			//smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
-			
-			// Initialize the cached coefficients, using only smoothing.
-			//cachedCoefficients = new double[ numTopics ];
-			//for (int topic=0; topic < numTopics; topic++)
-			//	cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
-			
-			double[] cachedCoefficients =
-				languageCachedCoefficients[language];
-
-			//		Initialize the topic count/beta sampling bucket
-			double topicBetaMass = 0.0;
-			
-			// Initialize cached coefficients and the topic/beta 
-			//  normalizing constant.
-			
-			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-				int topic = localTopicIndex[denseIndex];
-				int n = localTopicCounts[topic];
-				
-				//	initialize the normalization constant for the (B * n_{t|d}) term
-				topicBetaMass += beta * n /	(tokensPerTopic[topic] + betaSum);	
-				
-				//	update the coefficients for the non-zero topics
-				cachedCoefficients[topic] =	(alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
-			}
-
-			double topicTermMass = 0.0;
-
-			double[] topicTermScores = new double[numTopics];
-			int[] topicTermIndices;
-			int[] topicTermValues;
-			int i;
-			double score;
-
-			//	Iterate over the positions (words) in the document 
-			for (int position = 0; position < docLength; position++) {
-				type = tokenSequence.getIndexAtPosition(position);
-				oldTopic = oneDocTopics[position];
-				if (oldTopic == -1) { continue; }
-
-				currentTypeTopicCounts = typeTopicCounts[type];
-				
-				//	Remove this token from all counts. 
-				
-				// Remove this topic's contribution to the 
-				//  normalizing constants
-				smoothingOnlyMass -= alpha[oldTopic] * beta / 
-					(tokensPerTopic[oldTopic] + betaSum);
-				topicBetaMass -= beta * localTopicCounts[oldTopic] /
-					(tokensPerTopic[oldTopic] + betaSum);
-				
-				// Decrement the local doc/topic counts
-				
-				localTopicCounts[oldTopic]--;
-				
-				// Maintain the dense index, if we are deleting
-				//  the old topic
-				if (localTopicCounts[oldTopic] == 0) {
-					
-					// First get to the dense location associated with
-					//  the old topic.
-					
-					denseIndex = 0;
-					
-					// We know it's in there somewhere, so we don't 
-					//  need bounds checking.
-					while (localTopicIndex[denseIndex] != oldTopic) {
-						denseIndex++;
-					}
-					
-					// shift all remaining dense indices to the left.
-					while (denseIndex < nonZeroTopics) {
-						if (denseIndex < localTopicIndex.length - 1) {
-							localTopicIndex[denseIndex] = 
-								localTopicIndex[denseIndex + 1];
-						}
-						denseIndex++;
-					}
-					
-					nonZeroTopics --;
-				}
-				
-				// Decrement the global topic count totals
-				tokensPerTopic[oldTopic]--;
-				//assert(tokensPerTopic[oldTopic] >= 0) : "old Topic " + oldTopic + " below 0";
-					
-				
-				// Add the old topic's contribution back into the
-				//  normalizing constants.
-				smoothingOnlyMass += alpha[oldTopic] * beta / 
-					(tokensPerTopic[oldTopic] + betaSum);
-				topicBetaMass += beta * localTopicCounts[oldTopic] /
-					(tokensPerTopic[oldTopic] + betaSum);
-				
-				// Reset the cached coefficient for this topic
-				cachedCoefficients[oldTopic] = 
-					(alpha[oldTopic] + localTopicCounts[oldTopic]) /
-					(tokensPerTopic[oldTopic] + betaSum);
-				
-				
-				// Now go over the type/topic counts, decrementing
-				//  where appropriate, and calculating the score
-				//  for each topic at the same time.
-				
-				int index = 0;
-				int currentTopic, currentValue;
-				
-				boolean alreadyDecremented = false;
-				
-				topicTermMass = 0.0;
-				
-				while (index < currentTypeTopicCounts.length && 
-					   currentTypeTopicCounts[index] > 0) {
-					currentTopic = currentTypeTopicCounts[index] & topicMask;
-					currentValue = currentTypeTopicCounts[index] >> topicBits;
-					
-					if (! alreadyDecremented && 
-						currentTopic == oldTopic) {
-						
-						// We're decrementing and adding up the 
-						//  sampling weights at the same time, but
-						//  decrementing may require us to reorder
-						//  the topics, so after we're done here,
-						//  look at this cell in the array again.
-						
-						currentValue --;
-						if (currentValue == 0) {
-							currentTypeTopicCounts[index] = 0;
-						}
-						else {
-							currentTypeTopicCounts[index] =
-								(currentValue << topicBits) + oldTopic;
-						}
-						
-						// Shift the reduced value to the right, if necessary.
-						
-						int subIndex = index;
-						while (subIndex < currentTypeTopicCounts.length - 1 && 
-							   currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
-							int temp = currentTypeTopicCounts[subIndex];
-							currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
-							currentTypeTopicCounts[subIndex + 1] = temp;
-							
-							subIndex++;
-						}
-						
-						alreadyDecremented = true;
-					}
-					else {
-						score = 
-							cachedCoefficients[currentTopic] * currentValue;
-						topicTermMass += score;
-						topicTermScores[index] = score;
-						
-						index++;
-					}
-				}
-				
-				double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
-				double origSample = sample;
-				
-				//	Make sure it actually gets set
-				newTopic = -1;
-				
-				if (sample < topicTermMass) {
-					//topicTermCount++;
-					
-					i = -1;
-					while (sample > 0) {
-						i++;
-						sample -= topicTermScores[i];
-					}
-					
-					newTopic = currentTypeTopicCounts[i] & topicMask;
-					currentValue = currentTypeTopicCounts[i] >> topicBits;
-					
-					currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
-					
-					// Bubble the new value up, if necessary
-					
-					while (i > 0 &&
-						   currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
-						int temp = currentTypeTopicCounts[i];
-						currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
-						currentTypeTopicCounts[i - 1] = temp;
-						
-						i--;
-					}
-					
-				}
-				else {
-					sample -= topicTermMass;
-					
-					if (sample < topicBetaMass) {
-						//betaTopicCount++;
-						
-						sample /= beta;
-						
-						for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-							int topic = localTopicIndex[denseIndex];
-							
-							sample -= localTopicCounts[topic] /
-								(tokensPerTopic[topic] + betaSum);
-
-							if (sample <= 0.0) {
-								newTopic = topic;
-								break;
-							}
-						}
-						
-					}
-					else {
-						//smoothingOnlyCount++;
-						
-						sample -= topicBetaMass;
-						
-						sample /= beta;
-						
-						newTopic = 0;
-						sample -= alpha[newTopic] /
-							(tokensPerTopic[newTopic] + betaSum);
-						
-						while (sample > 0.0) {
-							newTopic++;
-							sample -= alpha[newTopic] /
-								(tokensPerTopic[newTopic] + betaSum);
-						}
-					
-					}
-					
-					// Move to the position for the new topic,
-					//  which may be the first empty position if this
-					//  is a new topic for this word.
-					
-					index = 0;
-					while (currentTypeTopicCounts[index] > 0 &&
-						   (currentTypeTopicCounts[index] & topicMask) != newTopic) {
-						index++;
-					}
-					
-					// index should now be set to the position of the new topic,
-					//  which may be an empty cell at the end of the list.
-					
-					if (currentTypeTopicCounts[index] == 0) {
-						// inserting a new topic, guaranteed to be in
-						//  order w.r.t. count, if not topic.
-						currentTypeTopicCounts[index] = (1 << topicBits) + newTopic;
-					}
-					else {
-						currentValue = currentTypeTopicCounts[index] >> topicBits;
-						currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + newTopic;
-						
-						// Bubble the increased value left, if necessary
-						while (index > 0 &&
-							   currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
-							int temp = currentTypeTopicCounts[index];
-							currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
-							currentTypeTopicCounts[index - 1] = temp;
-							
-							index--;
-						}
-					}
-					
-				}
-				
-				if (newTopic == -1) {
-					System.err.println("PolylingualTopicModel sampling error: "+ origSample + " " + sample + " " + smoothingOnlyMass + " " + 
-									   topicBetaMass + " " + topicTermMass);
-					newTopic = numTopics-1; // TODO is this appropriate
-					//throw new IllegalStateException ("PolylingualTopicModel: New topic not sampled.");
-				}
-				//assert(newTopic != -1);
-				
-				//			Put that new topic into the counts
-				oneDocTopics[position] = newTopic;
-				
-				smoothingOnlyMass -= alpha[newTopic] * beta / 
-					(tokensPerTopic[newTopic] + betaSum);
-				topicBetaMass -= beta * localTopicCounts[newTopic] /
-					(tokensPerTopic[newTopic] + betaSum);
-				
-				localTopicCounts[newTopic]++;
-				
-				// If this is a new topic for this document,
-				//  add the topic to the dense index.
-				if (localTopicCounts[newTopic] == 1) {
-					
-					// First find the point where we 
-					//  should insert the new topic by going to
-					//  the end (which is the only reason we're keeping
-					//  track of the number of non-zero
-					//  topics) and working backwards
-					
-					denseIndex = nonZeroTopics;
-					
-					while (denseIndex > 0 &&
-						   localTopicIndex[denseIndex - 1] > newTopic) {
-						
-						localTopicIndex[denseIndex] =
-							localTopicIndex[denseIndex - 1];
-						denseIndex--;
-					}
-					
-					localTopicIndex[denseIndex] = newTopic;
-					nonZeroTopics++;
-				}
-				
-				tokensPerTopic[newTopic]++;
-				
-				//	update the coefficients for the non-zero topics
-				cachedCoefficients[newTopic] =
-					(alpha[newTopic] + localTopicCounts[newTopic]) /
-					(tokensPerTopic[newTopic] + betaSum);
-				
-				smoothingOnlyMass += alpha[newTopic] * beta / 
-					(tokensPerTopic[newTopic] + betaSum);
-				topicBetaMass += beta * localTopicCounts[newTopic] /
-					(tokensPerTopic[newTopic] + betaSum);
-				
-				// Save the smoothing-only mass to the global cache
-				languageSmoothingOnlyMasses[language] = smoothingOnlyMass;
-
-			}
-		}
-
-		if (shouldSaveState) {
-			// Update the document-topic count histogram,
-			//  for dirichlet estimation
-
-			int totalLength = 0;
-
-			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-				int topic = localTopicIndex[denseIndex];
-				
-				topicDocCounts[topic][ localTopicCounts[topic] ]++;
-				totalLength += localTopicCounts[topic];
-			}
-
-			docLengthCounts[ totalLength ]++;
-
-		}
-
-	}
-
 	public void printTopWords (File file, int numWords, boolean useNewLines) throws IOException {
 		PrintStream out = new PrintStream (file);
 		printTopWords(out, numWords, useNewLines);
@@ -1351,6 +1207,21 @@ public class PolylingualTopicModel implements Serializable {
 								   alpha, betas[language], betaSums[language]);
     }
 
+	/**
+	 *  Write a {@link TopicInferencer} for each language to the file
+	 *   <code>prefix.language</code>, for example <code>inferencer.0</code>
+	 *   for the first language. Each one can be loaded with
+	 *   {@link TopicInferencer#read(File)} and used on its own.
+	 */
+	public void writeInferencers (String prefix) throws IOException {
+		for (int language = 0; language < numLanguages; language++) {
+			ObjectOutputStream oos =
+				new ObjectOutputStream(new FileOutputStream(prefix + "." + language));
+			oos.writeObject(getInferencer(language));
+			oos.close();
+		}
+	}
+
 	// Serialization
 
 	private static final long serialVersionUID = 1;
@@ -1541,6 +1412,7 @@ public class PolylingualTopicModel implements Serializable {
 		topicModel.setTopicDisplay(showTopicsIntervalOption.value, topWordsOption.value);
 
 		topicModel.setNumIterations(numIterationsOption.value);
+		topicModel.setNumThreads(numThreadsOption.value);
 		topicModel.setOptimizeInterval(optimizeIntervalOption.value);
 		topicModel.setBurninPeriod(optimizeBurnInOption.value);
 
@@ -1570,19 +1442,10 @@ public class PolylingualTopicModel implements Serializable {
 
 		if (inferencerFilename.value != null) {
 			try {
-				for (int language = 0; language < topicModel.numLanguages; language++) {
-
-					ObjectOutputStream oos =
-						new ObjectOutputStream(new FileOutputStream(inferencerFilename.value + "." + language));
-					oos.writeObject(topicModel.getInferencer(language));
-					oos.close();
-				}
-
+				topicModel.writeInferencers(inferencerFilename.value);
 			} catch (Exception e) {
 				System.err.println(e.getMessage());
-
 			}
-
 		}
 
 		if (outputModelFilename.value != null) {
@@ -0,0 +1,569 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+/**
+ * A runnable task that samples the topics of a range of documents
+ *  for {@link PolylingualTopicModel}. Like {@link WorkerRunnable}, it
+ *  samples against its own copy of the type/topic counts, one copy for
+ *  each language, and replaces them with counts over its own documents
+ *  when it is done so that the model can sum them.
+ */
+
+public class PolylingualWorkerRunnable implements Runnable {
+
+	ArrayList<PolylingualTopicModel.TopicAssignment> data;
+	int startDoc, numDocs;
+
+	protected int numTopics;
+	protected int numLanguages;
+
+	// These values are used to encode type/topic counts as
+	//  count/topic pairs in a single int.
+	protected int topicMask;
+	protected int topicBits;
+
+	// Shared with the model, which changes them in place when it optimizes
+	protected double[] alpha;
+	protected double[] betas;
+	protected double[] betaSums;
+
+	protected double[] languageSmoothingOnlyMasses;
+	protected double[][] languageCachedCoefficients;
+
+	protected int[][][] languageTypeTopicCounts; // indexed by <language, feature index, topic index>
+	protected int[][] languageTokensPerTopic; // indexed by <language, topic index>
+
+	// for dirichlet estimation
+	protected int[] docLengthCounts; // histogram of document sizes, summed over languages
+	protected int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
+
+	boolean shouldSaveState = false;
+	boolean shouldBuildLocalCounts = true;
+
+	protected Randoms random;
+
+	// Per-document state, allocated once
+	int[] localTopicCounts;
+	int[] localTopicIndex;
+	double[] topicTermScores;
+
+	public PolylingualWorkerRunnable (int numTopics, int topicMask, int topicBits,
+									  double[] alpha, double[] betas, double[] betaSums,
+									  Randoms random,
+									  ArrayList<PolylingualTopicModel.TopicAssignment> data,
+									  int[][][] languageTypeTopicCounts,
+									  int[][] languageTokensPerTopic,
+									  int[] docLengthCounts, int[][] topicDocCounts,
+									  int startDoc, int numDocs) {
+
+		this.data = data;
+
+		this.numTopics = numTopics;
+		this.numLanguages = languageTypeTopicCounts.length;
+		this.topicMask = topicMask;
+		this.topicBits = topicBits;
+
+		this.alpha = alpha;
+		this.betas = betas;
+		this.betaSums = betaSums;
+		this.random = random;
+
+		this.languageTypeTopicCounts = languageTypeTopicCounts;
+		this.languageTokensPerTopic = languageTokensPerTopic;
+		this.docLengthCounts = docLengthCounts;
+		this.topicDocCounts = topicDocCounts;
+
+		this.startDoc = startDoc;
+		this.numDocs = numDocs;
+
+		languageSmoothingOnlyMasses = new double[ numLanguages ];
+		languageCachedCoefficients = new double[ numLanguages ][ numTopics ];
+
+		localTopicCounts = new int[numTopics];
+		localTopicIndex = new int[numTopics];
+		topicTermScores = new double[numTopics];
+	}
+
+	/**
+	 *  If there is only one thread, the worker samples directly
+	 *   into the model's counts, and need not rebuild local ones.
+	 */
+	public void makeOnlyThread() {
+		shouldBuildLocalCounts = false;
+	}
+
+	public int[][][] getLanguageTypeTopicCounts() { return languageTypeTopicCounts; }
+	public int[][] getLanguageTokensPerTopic() { return languageTokensPerTopic; }
+
+	public int[] getDocLengthCounts() { return docLengthCounts; }
+	public int[][] getTopicDocCounts() { return topicDocCounts; }
+
+	public void collectAlphaStatistics() {
+		shouldSaveState = true;
+	}
+
+	public void run () {
+
+		// Initialize the smoothing-only sampling buckets and the
+		//  cached coefficients, using only smoothing. These values
+		//  will be selectively replaced in documents with non-zero
+		//  counts in particular topics.
+
+		for (int language = 0; language < numLanguages; language++) {
+			int[] tokensPerTopic = languageTokensPerTopic[language];
+			double[] cachedCoefficients = languageCachedCoefficients[language];
+
+			languageSmoothingOnlyMasses[language] = 0.0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				languageSmoothingOnlyMasses[language] +=
+					alpha[topic] * betas[language] / (tokensPerTopic[topic] + betaSums[language]);
+				cachedCoefficients[topic] =
+					alpha[topic] / (tokensPerTopic[topic] + betaSums[language]);
+			}
+		}
+
+		for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+			sampleTopicsForOneDoc (data.get(doc));
+		}
+
+		if (shouldBuildLocalCounts) {
+			buildLocalTypeTopicCounts();
+		}
+
+		shouldSaveState = false;
+	}
+
+	/**
+	 *  Once the documents are sampled, replace the "global" counts
+	 *   this worker started from with counts over its own documents,
+	 *   ready to be summed by the model.
+	 */
+	public void buildLocalTypeTopicCounts () {
+
+		for (int language = 0; language < numLanguages; language++) {
+
+			int[][] typeTopicCounts = languageTypeTopicCounts[language];
+			int[] tokensPerTopic = languageTokensPerTopic[language];
+
+			// Clear the topic totals
+			Arrays.fill(tokensPerTopic, 0);
+
+			// Clear the type/topic counts, only
+			//  looking at the entries before the first 0 entry.
+			for (int type = 0; type < typeTopicCounts.length; type++) {
+				int[] topicCounts = typeTopicCounts[type];
+
+				int position = 0;
+				while (position < topicCounts.length &&
+					   topicCounts[position] > 0) {
+					topicCounts[position] = 0;
+					position++;
+				}
+			}
+
+			for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+
+				PolylingualTopicModel.TopicAssignment document = data.get(doc);
+				FeatureSequence tokens = (FeatureSequence) document.instances[language].getData();
+				int[] topics = document.topicSequences[language].getFeatures();
+
+				for (int position = 0; position < tokens.size(); position++) {
+
+					int topic = topics[position];
+					if (topic == -1) { continue; }
+
+					tokensPerTopic[topic]++;
+
+					addTypeTopicCount(typeTopicCounts[ tokens.getIndexAtPosition(position) ], topic);
+				}
+			}
+		}
+	}
+
+	protected void sampleTopicsForOneDoc (PolylingualTopicModel.TopicAssignment topicAssignment) {
+
+		int[] currentTypeTopicCounts;
+		int type, oldTopic, newTopic;
+
+		for (int language = 0; language < numLanguages; language++) {
+
+			int[] oneDocTopics =
+				topicAssignment.topicSequences[language].getFeatures();
+			int docLength =
+				topicAssignment.topicSequences[language].getLength();
+
+			//		populate topic counts
+			for (int position = 0; position < docLength; position++) {
+				if (oneDocTopics[position] == -1) { continue; }
+				localTopicCounts[oneDocTopics[position]]++;
+			}
+		}
+
+		// Build an array that densely lists the topics that
+		//  have non-zero counts.
+		int denseIndex = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			if (localTopicCounts[topic] != 0) {
+				localTopicIndex[denseIndex] = topic;
+				denseIndex++;
+			}
+		}
+
+		// Record the total number of non-zero topics
+		int nonZeroTopics = denseIndex;
+
+		for (int language = 0; language < numLanguages; language++) {
+
+			int[] oneDocTopics =
+				topicAssignment.topicSequences[language].getFeatures();
+			int docLength =
+				topicAssignment.topicSequences[language].getLength();
+			FeatureSequence tokenSequence =
+				(FeatureSequence) topicAssignment.instances[language].getData();
+
+			int[][] typeTopicCounts = languageTypeTopicCounts[language];
+			int[] tokensPerTopic = languageTokensPerTopic[language];
+			double beta = betas[language];
+			double betaSum = betaSums[language];
+
+			double smoothingOnlyMass = languageSmoothingOnlyMasses[language];
+			double[] cachedCoefficients = languageCachedCoefficients[language];
+
+			//		Initialize the topic count/beta sampling bucket
+			double topicBetaMass = 0.0;
+
+			// Initialize cached coefficients and the topic/beta
+			//  normalizing constant.
+
+			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+				int topic = localTopicIndex[denseIndex];
+				int n = localTopicCounts[topic];
+
+				//	initialize the normalization constant for the (B * n_{t|d}) term
+				topicBetaMass += beta * n /	(tokensPerTopic[topic] + betaSum);
+
+				//	update the coefficients for the non-zero topics
+				cachedCoefficients[topic] =	(alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
+			}
+
+			double topicTermMass = 0.0;
+
+			int i;
+			double score;
+
+			//	Iterate over the positions (words) in the document
+			for (int position = 0; position < docLength; position++) {
+				type = tokenSequence.getIndexAtPosition(position);
+				oldTopic = oneDocTopics[position];
+				if (oldTopic == -1) { continue; }
+
+				currentTypeTopicCounts = typeTopicCounts[type];
+
+				//	Remove this token from all counts.
+
+				// Remove this topic's contribution to the
+				//  normalizing constants
+				smoothingOnlyMass -= alpha[oldTopic] * beta /
+					(tokensPerTopic[oldTopic] + betaSum);
+				topicBetaMass -= beta * localTopicCounts[oldTopic] /
+					(tokensPerTopic[oldTopic] + betaSum);
+
+				// Decrement the local doc/topic counts
+
+				localTopicCounts[oldTopic]--;
+
+				// Maintain the dense index, if we are deleting
+				//  the old topic
+				if (localTopicCounts[oldTopic] == 0) {
+
+					// First get to the dense location associated with
+					//  the old topic.
+
+					denseIndex = 0;
+
+					// We know it's in there somewhere, so we don't
+					//  need bounds checking.
+					while (localTopicIndex[denseIndex] != oldTopic) {
+						denseIndex++;
+					}
+
+					// shift all remaining dense indices to the left.
+					while (denseIndex < nonZeroTopics) {
+						if (denseIndex < localTopicIndex.length - 1) {
+							localTopicIndex[denseIndex] =
+								localTopicIndex[denseIndex + 1];
+						}
+						denseIndex++;
+					}
+
+					nonZeroTopics --;
+				}
+
+				// Decrement the global topic count totals
+				tokensPerTopic[oldTopic]--;
+
+				// Add the old topic's contribution back into the
+				//  normalizing constants.
+				smoothingOnlyMass += alpha[oldTopic] * beta /
+					(tokensPerTopic[oldTopic] + betaSum);
+				topicBetaMass += beta * localTopicCounts[oldTopic] /
+					(tokensPerTopic[oldTopic] + betaSum);
+
+				// Reset the cached coefficient for this topic
+				cachedCoefficients[oldTopic] =
+					(alpha[oldTopic] + localTopicCounts[oldTopic]) /
+					(tokensPerTopic[oldTopic] + betaSum);
+
+				// Now go over the type/topic counts, decrementing
+				//  where appropriate, and calculating the score
+				//  for each topic at the same time.
+
+				int index = 0;
+				int currentTopic, currentValue;
+
+				boolean alreadyDecremented = false;
+
+				topicTermMass = 0.0;
+
+				while (index < currentTypeTopicCounts.length &&
+					   currentTypeTopicCounts[index] > 0) {
+					currentTopic = currentTypeTopicCounts[index] & topicMask;
+					currentValue = currentTypeTopicCounts[index] >> topicBits;
+
+					if (! alreadyDecremented &&
+						currentTopic == oldTopic) {
+
+						// We're decrementing and adding up the
+						//  sampling weights at the same time, but
+						//  decrementing may require us to reorder
+						//  the topics, so after we're done here,
+						//  look at this cell in the array again.
+
+						currentValue --;
+						if (currentValue == 0) {
+							currentTypeTopicCounts[index] = 0;
+						}
+						else {
+							currentTypeTopicCounts[index] =
+								(currentValue << topicBits) + oldTopic;
+						}
+
+						// Shift the reduced value to the right, if necessary.
+
+						int subIndex = index;
+						while (subIndex < currentTypeTopicCounts.length - 1 &&
+							   currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
+							int temp = currentTypeTopicCounts[subIndex];
+							currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
+							currentTypeTopicCounts[subIndex + 1] = temp;
+
+							subIndex++;
+						}
+
+						alreadyDecremented = true;
+					}
+					else {
+						score =
+							cachedCoefficients[currentTopic] * currentValue;
+						topicTermMass += score;
+						topicTermScores[index] = score;
+
+						index++;
+					}
+				}
+
+				double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+				double origSample = sample;
+
+				//	Make sure it actually gets set
+				newTopic = -1;
+
+				if (sample < topicTermMass) {
+
+					i = -1;
+					while (sample > 0) {
+						i++;
+						sample -= topicTermScores[i];
+					}
+
+					newTopic = currentTypeTopicCounts[i] & topicMask;
+					currentValue = currentTypeTopicCounts[i] >> topicBits;
+
+					currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
+
+					// Bubble the new value up, if necessary
+
+					while (i > 0 &&
+						   currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
+						int temp = currentTypeTopicCounts[i];
+						currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
+						currentTypeTopicCounts[i - 1] = temp;
+
+						i--;
+					}
+
+				}
+				else {
+					sample -= topicTermMass;
+
+					if (sample < topicBetaMass) {
+
+						sample /= beta;
+
+						for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+							int topic = localTopicIndex[denseIndex];
+
+							sample -= localTopicCounts[topic] /
+								(tokensPerTopic[topic] + betaSum);
+
+							if (sample <= 0.0) {
+								newTopic = topic;
+								break;
+							}
+						}
+
+					}
+					else {
+
+						sample -= topicBetaMass;
+
+						sample /= beta;
+
+						newTopic = 0;
+						sample -= alpha[newTopic] /
+							(tokensPerTopic[newTopic] + betaSum);
+
+						while (sample > 0.0 && newTopic < numTopics - 1) {
+							newTopic++;
+							sample -= alpha[newTopic] /
+								(tokensPerTopic[newTopic] + betaSum);
+						}
+
+					}
+
+					if (newTopic == -1) {
+						// Rounding error left the sample just past the last
+						//  bucket: put the token back where it was.
+						System.err.println("PolylingualTopicModel sampling error: "+ origSample + " " + sample + " " + smoothingOnlyMass + " " +
+										   topicBetaMass + " " + topicTermMass);
+						newTopic = oldTopic;
+					}
+
+					// This may be a new topic for this word, in which case
+					//  it goes in the first empty position.
+					addTypeTopicCount(currentTypeTopicCounts, newTopic);
+				}
+
+				//			Put that new topic into the counts
+				oneDocTopics[position] = newTopic;
+
+				smoothingOnlyMass -= alpha[newTopic] * beta /
+					(tokensPerTopic[newTopic] + betaSum);
+				topicBetaMass -= beta * localTopicCounts[newTopic] /
+					(tokensPerTopic[newTopic] + betaSum);
+
+				localTopicCounts[newTopic]++;
+
+				// If this is a new topic for this document,
+				//  add the topic to the dense index.
+				if (localTopicCounts[newTopic] == 1) {
+
+					// First find the point where we
+					//  should insert the new topic by going to
+					//  the end (which is the only reason we're keeping
+					//  track of the number of non-zero
+					//  topics) and working backwards
+
+					denseIndex = nonZeroTopics;
+
+					while (denseIndex > 0 &&
+						   localTopicIndex[denseIndex - 1] > newTopic) {
+
+						localTopicIndex[denseIndex] =
+							localTopicIndex[denseIndex - 1];
+						denseIndex--;
+					}
+
+					localTopicIndex[denseIndex] = newTopic;
+					nonZeroTopics++;
+				}
+
+				tokensPerTopic[newTopic]++;
+
+				//	update the coefficients for the non-zero topics
+				cachedCoefficients[newTopic] =
+					(alpha[newTopic] + localTopicCounts[newTopic]) /
+					(tokensPerTopic[newTopic] + betaSum);
+
+				smoothingOnlyMass += alpha[newTopic] * beta /
+					(tokensPerTopic[newTopic] + betaSum);
+				topicBetaMass += beta * localTopicCounts[newTopic] /
+					(tokensPerTopic[newTopic] + betaSum);
+			}
+
+			// Save the smoothing-only mass for the next document
+			languageSmoothingOnlyMasses[language] = smoothingOnlyMass;
+
+			// Clean up our mess: reset the coefficients to values with only
+			//	smoothing. The next document will update them for its own topics.
+			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+				int topic = localTopicIndex[denseIndex];
+				cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+			}
+		}
+
+		int totalLength = 0;
+
+		for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+			int topic = localTopicIndex[denseIndex];
+
+			if (shouldSaveState) {
+				// Update the document-topic count histogram,
+				//  for dirichlet estimation
+				topicDocCounts[topic][ localTopicCounts[topic] ]++;
+				totalLength += localTopicCounts[topic];
+			}
+
+			localTopicCounts[topic] = 0;
+		}
+
+		if (shouldSaveState) {
+			docLengthCounts[ totalLength ]++;
+		}
+	}
+
+	// Adds one to a type's count for a topic. The array is sorted by
+	//  count (in the high bits), so the new value may bubble up.
+	private void addTypeTopicCount (int[] currentTypeTopicCounts, int topic) {
+		int index = 0;
+		while (currentTypeTopicCounts[index] > 0 &&
+			   (currentTypeTopicCounts[index] & topicMask) != topic) {
+			index++;
+		}
+
+		int currentValue = currentTypeTopicCounts[index] >> topicBits;
+		currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + topic;
+
+		while (index > 0 &&
+			   currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+			int temp = currentTypeTopicCounts[index];
+			currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+			currentTypeTopicCounts[index - 1] = temp;
+
+			index--;
+		}
+	}
+
+}
@@ -23,7 +23,9 @@ import cc.mallet.util.*;
  * A simple implementation of Latent Dirichlet Allocation using Gibbs sampling.
  * This code is slower than the regular Mallet LDA implementation, but provides a 
  *  better starting place for understanding how sampling works and for 
- *  building new topic models.
+ *  building new topic models. The weight of each topic for a token is
+ *  calculated by {@link SparseTopicSampler}, which only visits the topics
+ *  that are in use for the token's document or word type.
  * 
  * @author David Mimno, Andrew McCallum
  */
@@ -63,6 +65,10 @@ public class SimpleLDA implements Serializable {
 	protected int[][] typeTopicCounts; // indexed by <feature index, topic index>
 	protected int[] tokensPerTopic; // indexed by <topic index>
 
+	// The same counts in sparse form, built on the first
+	//  sampling pass. Updates tokensPerTopic in place.
+	protected SparseTopicSampler sampler;
+
 	public int showTopicsInterval = 50;
 	public int wordsPerTopic = 10;
 	
@@ -134,6 +140,7 @@ public class SimpleLDA implements Serializable {
 		betaSum = beta * numTypes;
 		
 		typeTopicCounts = new int[numTypes][numTopics];
+		sampler = null;
 
 		int doc = 0;
 
@@ -192,71 +199,56 @@ public class SimpleLDA implements Serializable {
 	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
 										  FeatureSequence topicSequence) {
 
+		if (sampler == null) {
+			buildSampler();
+		}
+
 		int[] oneDocTopics = topicSequence.getFeatures();
 
-		int[] currentTypeTopicCounts;
 		int type, oldTopic, newTopic;
-		double topicWeightsSum;
 		int docLength = tokenSequence.getLength();
 
-		int[] localTopicCounts = new int[numTopics];
-
 		//		populate topic counts
-		for (int position = 0; position < docLength; position++) {
-			localTopicCounts[oneDocTopics[position]]++;
-		}
-
-		double score, sum;
-		double[] topicTermScores = new double[numTopics];
+		sampler.startDocument(oneDocTopics, docLength);
 
 		//	Iterate over the positions (words) in the document 
 		for (int position = 0; position < docLength; position++) {
 			type = tokenSequence.getIndexAtPosition(position);
 			oldTopic = oneDocTopics[position];
 
-			// Grab the relevant row from our two-dimensional array
-			currentTypeTopicCounts = typeTopicCounts[type];
-
-			//	Remove this token from all counts. 
-			localTopicCounts[oldTopic]--;
-			tokensPerTopic[oldTopic]--;
-			assert(tokensPerTopic[oldTopic] >= 0) : "old Topic " + oldTopic + " below 0";
-			currentTypeTopicCounts[oldTopic]--;
-
-			// Now calculate and add up the scores for each topic for this word
-			sum = 0.0;
-			
-			// Here's where the math happens! Note that overall performance is 
-			//  dominated by what you do in this loop.
-			for (int topic = 0; topic < numTopics; topic++) {
-				score =
-					(alpha + localTopicCounts[topic]) *
-					((beta + currentTypeTopicCounts[topic]) /
-					 (betaSum + tokensPerTopic[topic]));
-				sum += score;
-				topicTermScores[topic] = score;
-			}
-			
-			// Choose a random point between 0 and the sum of all topic scores
-			double sample = random.nextUniform() * sum;
-
-			// Figure out which topic contains that point
-			newTopic = -1;
-			while (sample > 0.0) {
-				newTopic++;
-				sample -= topicTermScores[newTopic];
-			}
+			//	Remove this token from all counts. The sampler
+			//   maintains tokensPerTopic, we keep the dense
+			//   type/topic counts in step with it.
+			sampler.removeToken(type, oldTopic);
+			typeTopicCounts[type][oldTopic]--;
 
-			// Make sure we actually sampled a topic
-			if (newTopic == -1) {
-				throw new IllegalStateException ("SimpleLDA: New topic not sampled.");
-			}
+			// Here's where the math happens! Each topic has weight
+			//   (alpha + localTopicCounts[topic]) *
+			//   (beta + typeTopicCounts[type][topic]) / (betaSum + tokensPerTopic[topic])
+			//  but the sampler splits this sum into buckets, so that
+			//  it only visits the topics that have non-zero counts
+			//  for this document or for this word.
+			newTopic = sampler.sampleTopic(type, random);
 
 			// Put that new topic into the counts
 			oneDocTopics[position] = newTopic;
-			localTopicCounts[newTopic]++;
-			tokensPerTopic[newTopic]++;
-			currentTypeTopicCounts[newTopic]++;
+			sampler.addToken(type, newTopic);
+			typeTopicCounts[type][newTopic]++;
+		}
+
+		sampler.finishDocument();
+	}
+
+	/**
+	 *  Copy the dense type/topic counts into a sparse sampler.
+	 */
+	protected void buildSampler() {
+		double[] alphas = new double[numTopics];
+		Arrays.fill(alphas, alpha);
+
+		sampler = new SparseTopicSampler(numTopics, numTypes, alphas, beta, betaSum, tokensPerTopic);
+		for (int type = 0; type < numTypes; type++) {
+			sampler.setTypeTopicCounts(type, typeTopicCounts[type]);
 		}
 	}
 	
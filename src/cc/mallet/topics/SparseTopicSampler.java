@@ -0,0 +1,508 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+import cc.mallet.util.Randoms;
+
+/**
+ * The SparseLDA sampling kernel, shared by the models that do not run
+ *  through <code>WorkerRunnable</code>. The weight of topic t for a token of
+ *  word type w in document d is
+ *  <pre>(alpha_t + n_{t|d}) (beta + n_{w|t}) / (betaSum + n_t)</pre>
+ *  which is split into a smoothing-only bucket, a document-topic bucket
+ *  and a topic-word bucket, so that sampling a token only visits the topics
+ *  that have non-zero counts for its document or its word type.
+ * <p>
+ *  Type/topic counts are stored in the packed format used by
+ *  <code>ParallelTopicModel</code>: the topic in the low bits and the count
+ *  in the high bits of each int, sorted by count in descending order.
+ *  Topic totals are updated in the array passed to the constructor, so
+ *  callers can keep reading them directly.
+ * <p>
+ *  A typical sweep over one document looks like
+ *  <pre>
+ *  sampler.startDocument(topics, length);
+ *  for each position:
+ *      sampler.removeToken(type, topics[position]);
+ *      topics[position] = sampler.sampleTopic(type, random);
+ *      sampler.addToken(type, topics[position]);
+ *  sampler.finishDocument();
+ *  </pre>
+ */
+
+public class SparseTopicSampler {
+
+	protected int numTopics;
+	protected int numTypes;
+
+	// These values are used to encode type/topic counts as
+	//  count/topic pairs in a single int.
+	protected int topicMask;
+	protected int topicBits;
+
+	protected int[][] typeTopicCounts; // indexed by <feature index, sorted position>
+	protected int[] tokensPerTopic; // indexed by <topic index>
+
+	protected double[] alpha; // the shared prior
+	protected double[] documentAlpha; // the prior for the current document
+	protected double beta;
+	protected double betaSum;
+
+	protected double smoothingOnlyMass = 0.0;
+	protected double[] cachedCoefficients;
+
+	// The current document
+	protected int[] localTopicCounts;
+	protected int[] localTopicIndex;
+	protected int nonZeroTopics = 0;
+	protected double topicBetaMass = 0.0;
+	protected boolean countDocumentTopics = true;
+
+	protected double[] topicTermScores;
+
+	/**
+	 *  @param alpha           The Dirichlet prior over topics. The array is not copied;
+	 *                          call <code>resetSmoothing()</code> after changing its values.
+	 *  @param tokensPerTopic  The topic totals, updated in place as tokens move.
+	 */
+	public SparseTopicSampler (int numTopics, int numTypes,
+							   double[] alpha, double beta, double betaSum,
+							   int[] tokensPerTopic) {
+
+		this.numTopics = numTopics;
+		this.numTypes = numTypes;
+
+		if (Integer.bitCount(numTopics) == 1) {
+			// exact power of 2
+			topicMask = numTopics - 1;
+			topicBits = Integer.bitCount(topicMask);
+		}
+		else {
+			// otherwise add an extra bit
+			topicMask = Integer.highestOneBit(numTopics) * 2 - 1;
+			topicBits = Integer.bitCount(topicMask);
+		}
+
+		this.alpha = alpha;
+		this.documentAlpha = alpha;
+		this.beta = beta;
+		this.betaSum = betaSum;
+		this.tokensPerTopic = tokensPerTopic;
+
+		typeTopicCounts = new int[numTypes][];
+		for (int type = 0; type < numTypes; type++) {
+			typeTopicCounts[type] = new int[0];
+		}
+
+		cachedCoefficients = new double[numTopics];
+		localTopicCounts = new int[numTopics];
+		localTopicIndex = new int[numTopics];
+		topicTermScores = new double[numTopics];
+
+		resetSmoothing();
+	}
+
+	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
+	public int getTopicMask() { return topicMask; }
+	public int getTopicBits() { return topicBits; }
+
+	/**
+	 *  Set the counts for one word type from parallel arrays of topics
+	 *   and their (non-zero) counts.
+	 *
+	 *  @param capacity  The number of distinct topics this type may come to use,
+	 *                    usually the number of tokens of the type. Rows grow if
+	 *                    this turns out to be too small.
+	 */
+	public void setTypeTopicCounts (int type, int[] topics, int[] counts, int size, int capacity) {
+		int[] packed = new int[ Math.min(numTopics, Math.max(size, capacity)) ];
+		for (int i = 0; i < size; i++) {
+			packed[i] = (counts[i] << topicBits) + topics[i];
+		}
+
+		// Sort in descending order, leaving the empty cells at the end
+		Arrays.sort(packed, 0, size);
+		for (int left = 0, right = size - 1; left < right; left++, right--) {
+			int temp = packed[left];
+			packed[left] = packed[right];
+			packed[right] = temp;
+		}
+
+		typeTopicCounts[type] = packed;
+	}
+
+	/** Set the counts for one word type from an array indexed by topic. */
+	public void setTypeTopicCounts (int type, int[] topicCounts) {
+		int[] topics = new int[numTopics];
+		int[] counts = new int[numTopics];
+		int size = 0;
+		int total = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			if (topicCounts[topic] > 0) {
+				topics[size] = topic;
+				counts[size] = topicCounts[topic];
+				size++;
+				total += topicCounts[topic];
+			}
+		}
+		setTypeTopicCounts(type, topics, counts, size, total);
+	}
+
+	public int getTypeTopicCount (int type, int topic) {
+		int[] currentTypeTopicCounts = typeTopicCounts[type];
+		for (int index = 0; index < currentTypeTopicCounts.length && currentTypeTopicCounts[index] > 0; index++) {
+			if ((currentTypeTopicCounts[index] & topicMask) == topic) {
+				return currentTypeTopicCounts[index] >> topicBits;
+			}
+		}
+		return 0;
+	}
+
+	public void resetBeta (double beta, double betaSum) {
+		this.beta = beta;
+		this.betaSum = betaSum;
+		resetSmoothing();
+	}
+
+	/**
+	 *  Recalculate the smoothing-only bucket and the cached coefficients,
+	 *   for example after the values of <code>alpha</code> or the topic
+	 *   totals have been changed from outside the sampler.
+	 */
+	public void resetSmoothing () {
+		smoothingOnlyMass = 0.0;
+		topicBetaMass = 0.0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			double denominator = tokensPerTopic[topic] + betaSum;
+			smoothingOnlyMass += documentAlpha[topic] * beta / denominator;
+			cachedCoefficients[topic] = (documentAlpha[topic] + localTopicCounts[topic]) / denominator;
+			topicBetaMass += beta * localTopicCounts[topic] / denominator;
+		}
+	}
+
+	/**
+	 *  Start sampling a document whose tokens currently have the given
+	 *   topics. Positions with <code>ParallelTopicModel.UNASSIGNED_TOPIC</code>
+	 *   are not counted.
+	 */
+	public void startDocument (int[] docTopics, int length) {
+		countDocumentTopics = true;
+
+		for (int position = 0; position < length; position++) {
+			if (docTopics[position] == ParallelTopicModel.UNASSIGNED_TOPIC) { continue; }
+			localTopicCounts[docTopics[position]]++;
+		}
+
+		// Build an array that densely lists the topics that
+		//  have non-zero counts.
+		nonZeroTopics = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			if (localTopicCounts[topic] != 0) {
+				localTopicIndex[nonZeroTopics] = topic;
+				nonZeroTopics++;
+			}
+		}
+
+		// Initialize cached coefficients and the topic/beta
+		//  normalizing constant.
+		topicBetaMass = 0.0;
+		for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+			int topic = localTopicIndex[denseIndex];
+			int n = localTopicCounts[topic];
+
+			topicBetaMass += beta * n / (tokensPerTopic[topic] + betaSum);
+			cachedCoefficients[topic] = (documentAlpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
+		}
+	}
+
+	/**
+	 *  Start sampling a document with a fixed distribution over topics,
+	 *   which replaces <code>alpha</code> and the document's topic counts.
+	 *   Tokens added and removed until <code>finishDocument()</code> only
+	 *   change the type/topic counts.
+	 */
+	public void startDocument (double[] documentPrior) {
+		countDocumentTopics = false;
+		documentAlpha = documentPrior;
+		resetSmoothing();
+	}
+
+	/**
+	 *  Clear the current document, resetting the cached coefficients
+	 *   to values with only smoothing.
+	 */
+	public void finishDocument () {
+		if (! countDocumentTopics) {
+			documentAlpha = alpha;
+			countDocumentTopics = true;
+			resetSmoothing();
+			return;
+		}
+
+		for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+			int topic = localTopicIndex[denseIndex];
+			localTopicCounts[topic] = 0;
+			cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+		}
+		nonZeroTopics = 0;
+		topicBetaMass = 0.0;
+	}
+
+	public int getDocumentTopicCount (int topic) { return localTopicCounts[topic]; }
+	public int getNumNonZeroTopics () { return nonZeroTopics; }
+	/** The topics with non-zero counts in the current document, in increasing order. */
+	public int getNonZeroTopic (int denseIndex) { return localTopicIndex[denseIndex]; }
+
+	/** Remove a token from both the current document and the type/topic counts. */
+	public void removeToken (int type, int topic) {
+		removeDocumentTopic(topic);
+		removeTypeTopic(type, topic);
+	}
+
+	/** Add a token to both the current document and the type/topic counts. */
+	public void addToken (int type, int topic) {
+		addDocumentTopic(topic);
+		addTypeTopic(type, topic);
+	}
+
+	/** Decrement the count of a topic in the current document only. */
+	public void removeDocumentTopic (int topic) {
+		if (! countDocumentTopics) { return; }
+
+		double denominator = tokensPerTopic[topic] + betaSum;
+		topicBetaMass -= beta / denominator;
+
+		localTopicCounts[topic]--;
+		assert(localTopicCounts[topic] >= 0) : "document topic " + topic + " below 0";
+
+		// Maintain the dense index, if we are deleting the topic
+		if (localTopicCounts[topic] == 0) {
+			int denseIndex = 0;
+			while (localTopicIndex[denseIndex] != topic) {
+				denseIndex++;
+			}
+
+			// shift all remaining dense indices to the left.
+			nonZeroTopics--;
+			while (denseIndex < nonZeroTopics) {
+				localTopicIndex[denseIndex] = localTopicIndex[denseIndex + 1];
+				denseIndex++;
+			}
+		}
+
+		cachedCoefficients[topic] = (documentAlpha[topic] + localTopicCounts[topic]) / denominator;
+	}
+
+	/** Increment the count of a topic in the current document only. */
+	public void addDocumentTopic (int topic) {
+		if (! countDocumentTopics) { return; }
+
+		double denominator = tokensPerTopic[topic] + betaSum;
+		topicBetaMass += beta / denominator;
+
+		localTopicCounts[topic]++;
+
+		// If this is a new topic for this document,
+		//  add the topic to the dense index.
+		if (localTopicCounts[topic] == 1) {
+			int denseIndex = nonZeroTopics;
+			while (denseIndex > 0 && localTopicIndex[denseIndex - 1] > topic) {
+				localTopicIndex[denseIndex] = localTopicIndex[denseIndex - 1];
+				denseIndex--;
+			}
+			localTopicIndex[denseIndex] = topic;
+			nonZeroTopics++;
+		}
+
+		cachedCoefficients[topic] = (documentAlpha[topic] + localTopicCounts[topic]) / denominator;
+	}
+
+	/** Decrement a type/topic count and the topic total, leaving the document unchanged. */
+	public void removeTypeTopic (int type, int topic) {
+		int[] currentTypeTopicCounts = typeTopicCounts[type];
+
+		int index = 0;
+		while (index < currentTypeTopicCounts.length &&
+			   currentTypeTopicCounts[index] > 0 &&
+			   (currentTypeTopicCounts[index] & topicMask) != topic) {
+			index++;
+		}
+		if (index == currentTypeTopicCounts.length || currentTypeTopicCounts[index] == 0) {
+			throw new IllegalStateException("No count for type " + type + " in topic " + topic);
+		}
+
+		int currentValue = (currentTypeTopicCounts[index] >> topicBits) - 1;
+		if (currentValue == 0) {
+			currentTypeTopicCounts[index] = 0;
+		}
+		else {
+			currentTypeTopicCounts[index] = (currentValue << topicBits) + topic;
+		}
+
+		// Shift the reduced value to the right, if necessary.
+		while (index < currentTypeTopicCounts.length - 1 &&
+			   currentTypeTopicCounts[index] < currentTypeTopicCounts[index + 1]) {
+			int temp = currentTypeTopicCounts[index];
+			currentTypeTopicCounts[index] = currentTypeTopicCounts[index + 1];
+			currentTypeTopicCounts[index + 1] = temp;
+			index++;
+		}
+
+		adjustTopicTotal(topic, -1);
+	}
+
+	/** Increment a type/topic count and the topic total, leaving the document unchanged. */
+	public void addTypeTopic (int type, int topic) {
+		int[] currentTypeTopicCounts = typeTopicCounts[type];
+
+		// Move to the position for the topic, which may be the first
+		//  empty position if this is a new topic for this word.
+		int index = 0;
+		while (index < currentTypeTopicCounts.length &&
+			   currentTypeTopicCounts[index] > 0 &&
+			   (currentTypeTopicCounts[index] & topicMask) != topic) {
+			index++;
+		}
+		if (index == currentTypeTopicCounts.length) {
+			currentTypeTopicCounts =
+				Arrays.copyOf(currentTypeTopicCounts, Math.min(numTopics, 2 * index + 1));
+			typeTopicCounts[type] = currentTypeTopicCounts;
+		}
+
+		if (currentTypeTopicCounts[index] == 0) {
+			// inserting a new topic, guaranteed to be in
+			//  order w.r.t. count, if not topic.
+			currentTypeTopicCounts[index] = (1 << topicBits) + topic;
+		}
+		else {
+			currentTypeTopicCounts[index] += 1 << topicBits;
+		}
+
+		// Bubble the increased value left, if necessary
+		while (index > 0 &&
+			   currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+			int temp = currentTypeTopicCounts[index];
+			currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+			currentTypeTopicCounts[index - 1] = temp;
+			index--;
+		}
+
+		adjustTopicTotal(topic, 1);
+	}
+
+	private void adjustTopicTotal (int topic, int change) {
+		// Remove this topic's contribution to the normalizing constants
+		smoothingOnlyMass -= documentAlpha[topic] * beta /
+			(tokensPerTopic[topic] + betaSum);
+		topicBetaMass -= beta * localTopicCounts[topic] /
+			(tokensPerTopic[topic] + betaSum);
+
+		tokensPerTopic[topic] += change;
+		assert(tokensPerTopic[topic] >= 0) : "topic " + topic + " below 0";
+
+		// Add it back with the new total
+		double denominator = tokensPerTopic[topic] + betaSum;
+		smoothingOnlyMass += documentAlpha[topic] * beta / denominator;
+		topicBetaMass += beta * localTopicCounts[topic] / denominator;
+		cachedCoefficients[topic] = (documentAlpha[topic] + localTopicCounts[topic]) / denominator;
+	}
+
+	/**
+	 *  The total weight of all topics for a token of the given type,
+	 *   that is, the normalizing constant of <code>sampleTopic</code>.
+	 *   Models that mix this distribution with other outcomes can use
+	 *   it to decide whether to call <code>sampleTopic</code>.
+	 */
+	public double getWeightSum (int type) {
+		int[] currentTypeTopicCounts = typeTopicCounts[type];
+
+		double topicTermMass = 0.0;
+		int index = 0;
+		while (index < currentTypeTopicCounts.length &&
+			   currentTypeTopicCounts[index] > 0) {
+			topicTermMass += cachedCoefficients[currentTypeTopicCounts[index] & topicMask] *
+				(currentTypeTopicCounts[index] >> topicBits);
+			index++;
+		}
+
+		return smoothingOnlyMass + topicBetaMass + topicTermMass;
+	}
+
+	/**
+	 *  Sample a topic for a token of the given type, which should already
+	 *   have been removed from the counts. The counts are not changed.
+	 */
+	public int sampleTopic (int type, Randoms random) {
+		int[] currentTypeTopicCounts = typeTopicCounts[type];
+
+		double topicTermMass = 0.0;
+		int index = 0;
+		while (index < currentTypeTopicCounts.length &&
+			   currentTypeTopicCounts[index] > 0) {
+			int currentTopic = currentTypeTopicCounts[index] & topicMask;
+			int currentValue = currentTypeTopicCounts[index] >> topicBits;
+
+			double score = cachedCoefficients[currentTopic] * currentValue;
+			topicTermMass += score;
+			topicTermScores[index] = score;
+
+			index++;
+		}
+
+		double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+		double origSample = sample;
+
+		if (sample < topicTermMass) {
+			int i = 0;
+			sample -= topicTermScores[i];
+			while (sample > 0) {
+				i++;
+				sample -= topicTermScores[i];
+			}
+			return currentTypeTopicCounts[i] & topicMask;
+		}
+
+		sample -= topicTermMass;
+
+		if (sample < topicBetaMass) {
+			sample /= beta;
+
+			for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+				int topic = localTopicIndex[denseIndex];
+
+				sample -= localTopicCounts[topic] /
+					(tokensPerTopic[topic] + betaSum);
+
+				if (sample <= 0.0) {
+					return topic;
+				}
+			}
+		}
+		else {
+			sample -= topicBetaMass;
+			sample /= beta;
+
+			for (int topic = 0; topic < numTopics; topic++) {
+				sample -= documentAlpha[topic] /
+					(tokensPerTopic[topic] + betaSum);
+
+				if (sample <= 0.0) {
+					return topic;
+				}
+			}
+		}
+
+		// Only reachable through rounding error in the bucket totals
+		System.err.println("SparseTopicSampler sampling error: "+ origSample + " " + sample + " " + smoothingOnlyMass + " " +
+						   topicBetaMass + " " + topicTermMass);
+		return numTopics - 1;
+	}
+
+}
@@ -64,11 +64,11 @@ public class TopicInferencer implements Serializable {
 			cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
 		}
 
-		random = new Randoms();
+		random = new FastRandoms();
 	}
 
 	public void setRandomSeed(int seed) {
-		random = new Randoms(seed);
+		random = new FastRandoms(seed);
 	}
 
 	/** 
@@ -0,0 +1,469 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.util.FastRandoms;
+import cc.mallet.util.MalletLogger;
+
+/**
+ * A snapshot of the Gibbs sampling state of a {@link ParallelTopicModel},
+ *  from which sampling can resume exactly where it stopped.
+ * <p>
+ * A checkpoint holds the topic assignments, the type/topic counts in
+ *  the order the sampler visits them, the hyperparameters, the
+ *  histograms collected for the next round of alpha optimization and
+ *  the state of each sampling thread's random number generator. It does
+ *  not hold the training instances: the model that resumes from it must
+ *  be given the same instances with {@link ParallelTopicModel#addInstances}.
+ * <p>
+ * {@link #take} copies the state, so that the copy can be written by
+ *  another thread while sampling continues. The file is binary, with the
+ *  topic assignments packed into as few bits as the number of topics
+ *  allows.
+ */
+
+public class TopicModelCheckpoint {
+
+	private static Logger logger = MalletLogger.getLogger(TopicModelCheckpoint.class.getName());
+
+	public static final int MAGIC = 0x4d4c5443;
+	private static final int CURRENT_VERSION = 0;
+
+	// The first iteration to sample after resuming
+	int iteration;
+
+	int numTopics;
+	int numTypes;
+
+	double[] alpha;
+	double alphaSum;
+	double beta;
+	double betaSum;
+
+	int[][] topics; // indexed by <document index, sequence index>
+	int[][] typeTopicCounts; // only the non-zero entries of each type
+	int[] tokensPerTopic;
+
+	// The alpha optimization histograms, summed over sampling threads
+	int[] docLengthCounts;
+	int[][] topicDocCounts;
+
+	// The generator state of each sampling thread
+	byte[][] randomStates;
+
+	private TopicModelCheckpoint() {
+	}
+
+	/**
+	 *  Copy the state of a model between iterations of {@link ParallelTopicModel#estimate}.
+	 *
+	 * @param runnables The model's sampling threads, idle, with counts consistent with the model's
+	 * @param nextIteration The iteration that sampling would continue with
+	 */
+	public static TopicModelCheckpoint take(ParallelTopicModel model, WorkerRunnable[] runnables,
+											int nextIteration) {
+		TopicModelCheckpoint checkpoint = new TopicModelCheckpoint();
+
+		checkpoint.iteration = nextIteration;
+		checkpoint.numTopics = model.numTopics;
+		checkpoint.numTypes = model.numTypes;
+
+		checkpoint.alpha = (double[]) model.alpha.clone();
+		checkpoint.alphaSum = model.alphaSum;
+		checkpoint.beta = model.beta;
+		checkpoint.betaSum = model.betaSum;
+
+		checkpoint.topics = new int[model.data.size()][];
+		for (int doc = 0; doc < model.data.size(); doc++) {
+			FeatureSequence topicSequence = model.data.get(doc).topicSequence;
+			checkpoint.topics[doc] =
+				Arrays.copyOf(topicSequence.getFeatures(), topicSequence.getLength());
+		}
+
+		checkpoint.typeTopicCounts = new int[model.numTypes][];
+		for (int type = 0; type < model.numTypes; type++) {
+			int[] counts = model.typeTopicCounts[type];
+			int length = 0;
+			while (length < counts.length && counts[length] > 0) {
+				length++;
+			}
+			checkpoint.typeTopicCounts[type] = Arrays.copyOf(counts, length);
+		}
+
+		checkpoint.tokensPerTopic = (int[]) model.tokensPerTopic.clone();
+
+		checkpoint.docLengthCounts = new int[model.docLengthCounts.length];
+		checkpoint.topicDocCounts = new int[model.numTopics][model.docLengthCounts.length];
+		checkpoint.randomStates = new byte[runnables.length][];
+
+		for (int thread = 0; thread < runnables.length; thread++) {
+			int[] sourceLengthCounts = runnables[thread].getDocLengthCounts();
+			int[][] sourceTopicCounts = runnables[thread].getTopicDocCounts();
+			for (int count = 0; count < sourceLengthCounts.length; count++) {
+				checkpoint.docLengthCounts[count] += sourceLengthCounts[count];
+			}
+			for (int topic = 0; topic < model.numTopics; topic++) {
+				for (int count = 0; count < sourceTopicCounts[topic].length; count++) {
+					checkpoint.topicDocCounts[topic][count] += sourceTopicCounts[topic][count];
+				}
+			}
+
+			checkpoint.randomStates[thread] = getRandomState(runnables[thread]);
+		}
+
+		return checkpoint;
+	}
+
+	/**
+	 *  Copy only the topic assignments and hyperparameters of a model,
+	 *   as a state file that {@link ParallelTopicModel#initializeFromState} can read.
+	 */
+	public static TopicModelCheckpoint take(ParallelTopicModel model) {
+		return take(model, new WorkerRunnable[0], 0);
+	}
+
+	private static byte[] getRandomState(WorkerRunnable runnable) {
+		if (! (runnable.random instanceof FastRandoms)) {
+			return new byte[0];
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			((FastRandoms) runnable.random).writeState(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/** The first iteration to sample after resuming from this checkpoint. */
+	public int getIteration() { return iteration; }
+
+	/**
+	 *  Write the checkpoint to a temporary file and then rename it, so that
+	 *   a failure while writing does not destroy an earlier checkpoint of the same name.
+	 */
+	public void write(File file) throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp");
+
+		DataOutputStream out =
+			new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16));
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+
+		if (! temporaryFile.renameTo(file)) {
+			// Some platforms will not rename over an existing file
+			file.delete();
+			if (! temporaryFile.renameTo(file)) {
+				throw new IOException("Unable to rename " + temporaryFile + " to " + file);
+			}
+		}
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(CURRENT_VERSION);
+
+		out.writeInt(iteration);
+		out.writeInt(numTopics);
+		out.writeInt(numTypes);
+		out.writeInt(topics.length);
+
+		for (int topic = 0; topic < numTopics; topic++) {
+			out.writeDouble(alpha[topic]);
+		}
+		out.writeDouble(alphaSum);
+		out.writeDouble(beta);
+		out.writeDouble(betaSum);
+
+		for (int doc = 0; doc < topics.length; doc++) {
+			out.writeInt(topics[doc].length);
+		}
+
+		// Topics are stored plus one, so that unassigned tokens (-1) fit
+		int bits = bitsPerTopic(numTopics);
+		long buffer = 0;
+		int bufferedBits = 0;
+		for (int doc = 0; doc < topics.length; doc++) {
+			int[] docTopics = topics[doc];
+			for (int position = 0; position < docTopics.length; position++) {
+				long value = docTopics[position] + 1;
+				buffer |= value << bufferedBits;
+				bufferedBits += bits;
+				if (bufferedBits >= 64) {
+					out.writeLong(buffer);
+					bufferedBits -= 64;
+					// The bits of this value that did not fit
+					buffer = (bufferedBits == 0) ? 0 : value >>> (bits - bufferedBits);
+				}
+			}
+		}
+		if (bufferedBits > 0) {
+			out.writeLong(buffer);
+		}
+
+		for (int type = 0; type < numTypes; type++) {
+			int[] counts = typeTopicCounts[type];
+			out.writeInt(counts.length);
+			for (int i = 0; i < counts.length; i++) {
+				out.writeInt(counts[i]);
+			}
+		}
+
+		for (int topic = 0; topic < numTopics; topic++) {
+			out.writeInt(tokensPerTopic[topic]);
+		}
+
+		out.writeInt(docLengthCounts.length);
+		writeSparse(out, docLengthCounts);
+		for (int topic = 0; topic < numTopics; topic++) {
+			writeSparse(out, topicDocCounts[topic]);
+		}
+
+		out.writeInt(randomStates.length);
+		for (int thread = 0; thread < randomStates.length; thread++) {
+			out.writeInt(randomStates[thread].length);
+			out.write(randomStates[thread]);
+		}
+	}
+
+	public static TopicModelCheckpoint read(File file) throws IOException {
+		DataInputStream in =
+			new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public static TopicModelCheckpoint read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a topic model checkpoint");
+		}
+		int version = in.readInt();
+		if (version != CURRENT_VERSION) {
+			throw new IOException("Unknown checkpoint version " + version);
+		}
+
+		TopicModelCheckpoint checkpoint = new TopicModelCheckpoint();
+
+		checkpoint.iteration = in.readInt();
+		int numTopics = checkpoint.numTopics = in.readInt();
+		int numTypes = checkpoint.numTypes = in.readInt();
+		int numDocs = in.readInt();
+
+		checkpoint.alpha = new double[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			checkpoint.alpha[topic] = in.readDouble();
+		}
+		checkpoint.alphaSum = in.readDouble();
+		checkpoint.beta = in.readDouble();
+		checkpoint.betaSum = in.readDouble();
+
+		checkpoint.topics = new int[numDocs][];
+		for (int doc = 0; doc < numDocs; doc++) {
+			checkpoint.topics[doc] = new int[in.readInt()];
+		}
+
+		int bits = bitsPerTopic(numTopics);
+		long mask = (1L << bits) - 1;
+		long buffer = 0;
+		int bufferedBits = 0;
+		for (int doc = 0; doc < numDocs; doc++) {
+			int[] docTopics = checkpoint.topics[doc];
+			for (int position = 0; position < docTopics.length; position++) {
+				long value;
+				if (bufferedBits >= bits) {
+					value = buffer & mask;
+					buffer >>>= bits;
+					bufferedBits -= bits;
+				}
+				else {
+					// Take the remaining bits of this word and the rest from the next
+					long next = in.readLong();
+					value = (buffer | (next << bufferedBits)) & mask;
+					int used = bits - bufferedBits;
+					buffer = next >>> used;
+					bufferedBits = 64 - used;
+				}
+				docTopics[position] = (int) value - 1;
+			}
+		}
+
+		checkpoint.typeTopicCounts = new int[numTypes][];
+		for (int type = 0; type < numTypes; type++) {
+			int[] counts = new int[in.readInt()];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = in.readInt();
+			}
+			checkpoint.typeTopicCounts[type] = counts;
+		}
+
+		checkpoint.tokensPerTopic = new int[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			checkpoint.tokensPerTopic[topic] = in.readInt();
+		}
+
+		int histogramSize = in.readInt();
+		checkpoint.docLengthCounts = readSparse(in, histogramSize);
+		checkpoint.topicDocCounts = new int[numTopics][];
+		for (int topic = 0; topic < numTopics; topic++) {
+			checkpoint.topicDocCounts[topic] = readSparse(in, histogramSize);
+		}
+
+		checkpoint.randomStates = new byte[in.readInt()][];
+		for (int thread = 0; thread < checkpoint.randomStates.length; thread++) {
+			checkpoint.randomStates[thread] = new byte[in.readInt()];
+			in.readFully(checkpoint.randomStates[thread]);
+		}
+
+		return checkpoint;
+	}
+
+	/**
+	 *  Replace the sampling state of a model with this checkpoint's. The
+	 *   model must already hold the instances the checkpoint was taken from.
+	 *   The next call to {@link ParallelTopicModel#estimate} continues from
+	 *   the checkpoint's iteration.
+	 */
+	public void restore(ParallelTopicModel model) {
+		restoreTopics(model);
+
+		System.arraycopy(alpha, 0, model.alpha, 0, numTopics);
+		model.alphaSum = alphaSum;
+		model.beta = beta;
+		model.betaSum = betaSum;
+
+		restoreCounts(model);
+
+		model.resumeCheckpoint = this;
+	}
+
+	/**
+	 *  Copy the checkpoint's type/topic counts and topic totals into a model,
+	 *   which is equivalent to, but much faster than, rebuilding them from the
+	 *   topic assignments with {@link ParallelTopicModel#buildInitialTypeTopicCounts}.
+	 */
+	void restoreCounts(ParallelTopicModel model) {
+		for (int type = 0; type < numTypes; type++) {
+			int[] counts = model.typeTopicCounts[type];
+			int[] savedCounts = typeTopicCounts[type];
+			System.arraycopy(savedCounts, 0, counts, 0, savedCounts.length);
+			Arrays.fill(counts, savedCounts.length, counts.length, 0);
+		}
+		System.arraycopy(tokensPerTopic, 0, model.tokensPerTopic, 0, numTopics);
+	}
+
+	/**
+	 *  Copy the checkpoint's topic assignments into a model that holds the
+	 *   same instances, leaving the model's counts and hyperparameters unchanged.
+	 */
+	void restoreTopics(ParallelTopicModel model) {
+		if (model.numTopics != numTopics) {
+			throw new IllegalArgumentException("Checkpoint has " + numTopics +
+											   " topics, the model has " + model.numTopics);
+		}
+		if (model.numTypes != numTypes) {
+			throw new IllegalArgumentException("Checkpoint has " + numTypes +
+											   " word types, the model has " + model.numTypes);
+		}
+		if (model.data.size() != topics.length) {
+			throw new IllegalArgumentException("Checkpoint has " + topics.length +
+											   " documents, the model has " + model.data.size());
+		}
+		for (int doc = 0; doc < topics.length; doc++) {
+			if (model.data.get(doc).topicSequence.getLength() != topics[doc].length) {
+				throw new IllegalArgumentException("Document " + doc + " has length " +
+												   model.data.get(doc).topicSequence.getLength() +
+												   " in the model, " + topics[doc].length +
+												   " in the checkpoint");
+			}
+		}
+
+		for (int doc = 0; doc < topics.length; doc++) {
+			System.arraycopy(topics[doc], 0,
+							 model.data.get(doc).topicSequence.getFeatures(), 0, topics[doc].length);
+		}
+	}
+
+	/**
+	 *  Give newly created sampling threads the histograms and generator
+	 *   states of the checkpoint. Sampling continues exactly as it would
+	 *   have if the number of threads is the same as when the checkpoint
+	 *   was taken.
+	 */
+	void restoreRunnables(WorkerRunnable[] runnables) {
+		// The model sums the histograms over threads, so one can hold them
+		//  all. Newly created threads start with empty histograms.
+		runnables[0].setAlphaStatistics(docLengthCounts, topicDocCounts);
+
+		try {
+			if (runnables.length == randomStates.length) {
+				for (int thread = 0; thread < runnables.length; thread++) {
+					if (randomStates[thread].length > 0 && runnables[thread].random instanceof FastRandoms) {
+						((FastRandoms) runnables[thread].random).readState
+							(new DataInputStream(new ByteArrayInputStream(randomStates[thread])));
+					}
+				}
+			}
+			else if (randomStates.length > 0 && randomStates[0].length > 0) {
+				logger.warning("Checkpoint was taken with " + randomStates.length + " threads, resuming with " +
+							   runnables.length + ": sampling will not repeat the original run");
+				FastRandoms random = new FastRandoms();
+				random.readState(new DataInputStream(new ByteArrayInputStream(randomStates[0])));
+				for (int thread = 0; thread < runnables.length; thread++) {
+					runnables[thread].random = random.split();
+				}
+			}
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayInputStream, except for a truncated state
+			throw new IllegalStateException("Invalid random number generator state", e);
+		}
+	}
+
+	private static int bitsPerTopic(int numTopics) {
+		return 32 - Integer.numberOfLeadingZeros(numTopics);
+	}
+
+	// Histograms are mostly zero: write the number of non-zero
+	//  entries, then index/value pairs.
+	private static void writeSparse(DataOutputStream out, int[] histogram) throws IOException {
+		int nonZero = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] != 0) { nonZero++; }
+		}
+		out.writeInt(nonZero);
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] != 0) {
+				out.writeInt(i);
+				out.writeInt(histogram[i]);
+			}
+		}
+	}
+
+	private static int[] readSparse(DataInputStream in, int size) throws IOException {
+		int[] histogram = new int[size];
+		int nonZero = in.readInt();
+		for (int i = 0; i < nonZero; i++) {
+			int index = in.readInt();
+			histogram[index] = in.readInt();
+		}
+		return histogram;
+	}
+
+}
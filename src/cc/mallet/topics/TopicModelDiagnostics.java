@@ -2,6 +2,11 @@ package cc.mallet.topics;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.text.*;
 
 import cc.mallet.types.*;
@@ -41,9 +46,31 @@ public class TopicModelDiagnostics {
 	int[] wordTypeCounts;
 	int numTokens = 0;
 
+	// Tokens per topic in the documents we looked at, which may be a sample
+	int[] documentTokensPerTopic;
+
+	int numThreads = 1;
+	double documentSampleRate = 1.0;
+
 	public TopicModelDiagnostics (ParallelTopicModel model, int numTopWords) {
+		this(model, numTopWords, 1, 1.0);
+	}
+
+	/**
+	 *  @param numThreads the number of threads used to read the documents
+	 *  @param documentSampleRate the fraction of documents to read. Scores that
+	 *   depend on documents, such as coherence, are then estimated from a
+	 *   random sample of that size, drawn with the model's random seed if
+	 *   it has one. Scores that depend only on the word weights are exact.
+	 *   Document entropy grows with the number of documents, so a sample
+	 *   of rate r scores about log(1/r) lower than the full corpus.
+	 */
+	public TopicModelDiagnostics (ParallelTopicModel model, int numTopWords,
+								  int numThreads, double documentSampleRate) {
 		numTopics = model.getNumTopics();
 		this.numTopWords = numTopWords;
+		this.numThreads = Math.max(1, numThreads);
+		this.documentSampleRate = documentSampleRate;
 
 		this.model = model;
 
@@ -80,7 +107,7 @@ public class TopicModelDiagnostics {
 		collectDocumentStatistics();
 		
 		diagnostics.add(getTokensPerTopic(model.tokensPerTopic));
-		diagnostics.add(getDocumentEntropy(model.tokensPerTopic));
+		diagnostics.add(getDocumentEntropy(documentTokensPerTopic));
 		diagnostics.add(getWordLengthScores());
 		diagnostics.add(getCoherence());
 		diagnostics.add(getDistanceFromUniform());
@@ -92,118 +119,282 @@ public class TopicModelDiagnostics {
 		diagnostics.add(getDocumentPercent(5));
 	}
 
+	/**
+	 *  Read the documents and gather the counts the scores need. The
+	 *   documents are split into one range per thread. Each range builds
+	 *   an inverted index from each topic's top words to the documents in
+	 *   which that word is assigned to that topic; the co-document counts
+	 *   are then intersections of these sorted lists.
+	 */
 	public void collectDocumentStatistics () {
 
 		topicCodocumentMatrices = new int[numTopics][numTopWords][numTopWords];
 		wordTypeCounts = new int[alphabet.size()];
 		numTokens = 0;
+		documentTokensPerTopic = new int[numTopics];
 
-		// This is an array of hash sets containing the words-of-interest for each topic,
-		//  used for checking if the word at some position is one of those words.
-		TIntHashSet[] topicTopWordIndices = new TIntHashSet[numTopics];
-		
-		// The same as the topic top words, but with int indices instead of strings,
-		//  used for iterating over positions.
-		int[][] topicWordIndicesInOrder = new int[numTopics][numTopWords];
-
-		// This is an array of hash sets that will hold the words-of-interest present in a document,
-		//  which will be cleared after every document.
-		TIntHashSet[] docTopicWordIndices = new TIntHashSet[numTopics];
-		
-		int numDocs = model.getData().size();
-
-		// The count of each topic, again cleared after every document.
-		int[] topicCounts = new int[numTopics];
+		// For each topic, a map from the index of each of its top words
+		//  to that word's position in the list.
+		TIntIntHashMap[] topWordPositions = new TIntIntHashMap[numTopics];
 
 		for (int topic = 0; topic < numTopics; topic++) {
-			TIntHashSet wordIndices = new TIntHashSet();
+			topWordPositions[topic] = new TIntIntHashMap();
 
 			for (int i = 0; i < numTopWords; i++) {
 				if (topicTopWords[topic][i] != null) {
-					int type = alphabet.lookupIndex(topicTopWords[topic][i]);
-					topicWordIndicesInOrder[topic][i] = type;
-					wordIndices.add(type);
+					topWordPositions[topic].put(alphabet.lookupIndex(topicTopWords[topic][i]), i);
 				}
 			}
-			
-			topicTopWordIndices[topic] = wordIndices;
-			docTopicWordIndices[topic] = new TIntHashSet();
 		}
 
-		int doc = 0;
+		int[] documents = sampleDocuments();
 
-		for (TopicAssignment document: model.getData()) {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
 
-			FeatureSequence tokens = (FeatureSequence) document.instance.getData();
-			FeatureSequence topics =  (FeatureSequence) document.topicSequence;
-			
-			for (int position = 0; position < tokens.size(); position++) {
-				int type = tokens.getIndexAtPosition(position);
-				int topic = topics.getIndexAtPosition(position);
+		try {
+			List<Callable<DocumentStatistics>> documentTasks =
+				new ArrayList<Callable<DocumentStatistics>>(numThreads);
+			int start = 0;
+			for (int thread = 0; thread < numThreads; thread++) {
+				int end = (int) ((long) documents.length * (thread + 1) / numThreads);
+				documentTasks.add(new DocumentStatistics(documents, start, end, topWordPositions));
+				start = end;
+			}
 
-				numTokens++;
-				wordTypeCounts[type]++;
+			// Concatenate the ranges' posting lists, which keeps them sorted
+			final TIntArrayList[][] postings = new TIntArrayList[numTopics][numTopWords];
+			for (int topic = 0; topic < numTopics; topic++) {
+				for (int i = 0; i < numTopWords; i++) {
+					postings[topic][i] = new TIntArrayList();
+				}
+			}
 
-				topicCounts[topic]++;
-				
-				if (topicTopWordIndices[topic].contains(type)) {
-					docTopicWordIndices[topic].add(type);
+			for (DocumentStatistics statistics: runAll(executor, documentTasks)) {
+				statistics.addTo(postings);
+			}
+
+			List<Callable<Object>> topicTasks = new ArrayList<Callable<Object>>(numTopics);
+			for (int topic = 0; topic < numTopics; topic++) {
+				final int currentTopic = topic;
+				topicTasks.add(new Callable<Object>() {
+						public Object call() {
+							fillCodocumentMatrix(currentTopic, postings[currentTopic]);
+							return null;
+						}
+					});
+			}
+			runAll(executor, topicTasks);
+
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Returns the indices of the documents to read, in order. */
+	private int[] sampleDocuments () {
+		int numDocs = model.getData().size();
+
+		if (documentSampleRate >= 1.0) {
+			int[] documents = new int[numDocs];
+			for (int doc = 0; doc < numDocs; doc++) {
+				documents[doc] = doc;
+			}
+			return documents;
+		}
+
+		Randoms random = (model.randomSeed == -1) ? new Randoms() : new Randoms(model.randomSeed);
+		TIntArrayList documents = new TIntArrayList();
+		for (int doc = 0; doc < numDocs; doc++) {
+			if (random.nextUniform() < documentSampleRate) {
+				documents.add(doc);
+			}
+		}
+		return documents.toNativeArray();
+	}
+
+	private void fillCodocumentMatrix (int topic, TIntArrayList[] topicPostings) {
+		int[][] matrix = topicCodocumentMatrices[topic];
+
+		int[][] documentLists = new int[numTopWords][];
+		for (int i = 0; i < numTopWords; i++) {
+			documentLists[i] = topicPostings[i].toNativeArray();
+		}
+
+		for (int i = 0; i < numTopWords; i++) {
+			// Diagonals are total number of documents with word W in topic T
+			matrix[i][i] = documentLists[i].length;
+
+			for (int j = i + 1; j < numTopWords; j++) {
+				int count = countIntersection(documentLists[i], documentLists[j]);
+				matrix[i][j] = count;
+				matrix[j][i] = count;
+			}
+		}
+	}
+
+	/** The number of values found in both of two sorted arrays. */
+	public static int countIntersection (int[] first, int[] second) {
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < first.length && j < second.length) {
+			if (first[i] < second[j]) { i++; }
+			else if (first[i] > second[j]) { j++; }
+			else {
+				count++;
+				i++;
+				j++;
+			}
+		}
+		return count;
+	}
+
+	private <T> List<T> runAll (ExecutorService executor, List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> future: executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while collecting document statistics", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Collecting document statistics failed", e.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 *  The counts from one range of documents. Since the documents are
+	 *   read in order, each posting list is sorted.
+	 */
+	class DocumentStatistics implements Callable<DocumentStatistics> {
+
+		int[] documents;
+		int start, end;
+		TIntIntHashMap[] topWordPositions;
+
+		int[] wordTypeCounts = new int[alphabet.size()];
+		int numTokens = 0;
+		int[] tokensPerTopic = new int[numTopics];
+
+		int[] numRank1Documents = new int[numTopics];
+		int[] numNonZeroDocuments = new int[numTopics];
+		int[][] numDocumentsAtProportions = new int[numTopics][ DEFAULT_DOC_PROPORTIONS.length ];
+		double[] sumCountTimesLogCount = new double[numTopics];
+
+		// The documents in which each top word is assigned to its topic,
+		//  indexed by <topic, top word position>
+		TIntArrayList[][] postings = new TIntArrayList[numTopics][numTopWords];
+
+		DocumentStatistics (int[] documents, int start, int end, TIntIntHashMap[] topWordPositions) {
+			this.documents = documents;
+			this.start = start;
+			this.end = end;
+			this.topWordPositions = topWordPositions;
+
+			for (int topic = 0; topic < numTopics; topic++) {
+				for (int i = 0; i < numTopWords; i++) {
+					postings[topic][i] = new TIntArrayList();
 				}
 			}
+		}
 
-			int docLength = tokens.size();
+		public DocumentStatistics call () {
 
-			if (docLength > 0) {
-				int maxTopic = -1;
-				int maxCount = -1;
+			ArrayList<TopicAssignment> data = model.getData();
 
-				for (int topic = 0; topic < numTopics; topic++) {
-					
-					if (topicCounts[topic] > 0) {
-						numNonZeroDocuments[topic]++;
-						
-						if (topicCounts[topic] > maxCount) { 
-							maxTopic = topic;
-							maxCount = topicCounts[topic];
-						}
+			// The count of each topic, cleared after every document.
+			int[] topicCounts = new int[numTopics];
+
+			for (int index = start; index < end; index++) {
+				int doc = documents[index];
+				TopicAssignment document = data.get(doc);
+
+				FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+				FeatureSequence topics =  (FeatureSequence) document.topicSequence;
+
+				for (int position = 0; position < tokens.size(); position++) {
+					int type = tokens.getIndexAtPosition(position);
+					int topic = topics.getIndexAtPosition(position);
 
-						sumCountTimesLogCount[topic] += topicCounts[topic] * Math.log(topicCounts[topic]);
-						
-						double proportion = (model.alpha[topic] + topicCounts[topic]) / (model.alphaSum + docLength);
-						for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
-							if (proportion < DEFAULT_DOC_PROPORTIONS[i]) { break; }
-							numDocumentsAtProportions[topic][i]++;
+					numTokens++;
+					wordTypeCounts[type]++;
+
+					topicCounts[topic]++;
+
+					if (topWordPositions[topic].containsKey(type)) {
+						TIntArrayList posting = postings[topic][ topWordPositions[topic].get(type) ];
+
+						// Add each document only once
+						if (posting.isEmpty() || posting.get(posting.size() - 1) != doc) {
+							posting.add(doc);
 						}
+					}
+				}
+
+				int docLength = tokens.size();
+
+				if (docLength > 0) {
+					int maxTopic = -1;
+					int maxCount = -1;
+
+					for (int topic = 0; topic < numTopics; topic++) {
+
+						if (topicCounts[topic] > 0) {
+							numNonZeroDocuments[topic]++;
+							tokensPerTopic[topic] += topicCounts[topic];
 
-						TIntHashSet supportedWords = docTopicWordIndices[topic];
-						int[] indices = topicWordIndicesInOrder[topic];
-
-						for (int i = 0; i < numTopWords; i++) {
-							if (supportedWords.contains(indices[i])) {
-								for (int j = i; j < numTopWords; j++) {
-									if (i == j) {
-										// Diagonals are total number of documents with word W in topic T
-										topicCodocumentMatrices[topic][i][i]++;
-									}
-									else if (supportedWords.contains(indices[j])) {
-										topicCodocumentMatrices[topic][i][j]++;
-										topicCodocumentMatrices[topic][j][i]++;
-									}
-								}
+							if (topicCounts[topic] > maxCount) {
+								maxTopic = topic;
+								maxCount = topicCounts[topic];
 							}
+
+							sumCountTimesLogCount[topic] += topicCounts[topic] * Math.log(topicCounts[topic]);
+
+							double proportion = (model.alpha[topic] + topicCounts[topic]) / (model.alphaSum + docLength);
+							for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
+								if (proportion < DEFAULT_DOC_PROPORTIONS[i]) { break; }
+								numDocumentsAtProportions[topic][i]++;
+							}
+
+							topicCounts[topic] = 0;
 						}
-						
-						docTopicWordIndices[topic].clear();
-						topicCounts[topic] = 0;
 					}
-				}
 
-				if (maxTopic > -1) {
-					numRank1Documents[maxTopic]++;
+					if (maxTopic > -1) {
+						numRank1Documents[maxTopic]++;
+					}
 				}
 			}
 
-			doc++;
+			return this;
+		}
+
+		/**
+		 *  Add these counts to the diagnostics' totals, and append these
+		 *   posting lists to the given ones. Ranges must be added in order.
+		 */
+		void addTo (TIntArrayList[][] allPostings) {
+			TopicModelDiagnostics.this.numTokens += numTokens;
+			for (int type = 0; type < wordTypeCounts.length; type++) {
+				TopicModelDiagnostics.this.wordTypeCounts[type] += wordTypeCounts[type];
+			}
+
+			for (int topic = 0; topic < numTopics; topic++) {
+				documentTokensPerTopic[topic] += tokensPerTopic[topic];
+				TopicModelDiagnostics.this.numRank1Documents[topic] += numRank1Documents[topic];
+				TopicModelDiagnostics.this.numNonZeroDocuments[topic] += numNonZeroDocuments[topic];
+				TopicModelDiagnostics.this.sumCountTimesLogCount[topic] += sumCountTimesLogCount[topic];
+				for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
+					TopicModelDiagnostics.this.numDocumentsAtProportions[topic][i] +=
+						numDocumentsAtProportions[topic][i];
+				}
+
+				for (int i = 0; i < numTopWords; i++) {
+					allPostings[topic][i].add(postings[topic][i].toNativeArray());
+				}
+			}
 		}
 	}
 
@@ -0,0 +1,179 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureSequenceWithBigrams;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Token;
+import cc.mallet.types.TokenSequence;
+import cc.mallet.util.Randoms;
+
+/**
+ * Times the models that sample through {@link SparseTopicSampler}, in
+ * tokens per second, on a synthetic corpus in which each document mixes
+ * three of the topics: {@link SimpleLDA}, {@link LDAHyper} (as
+ * {@link LDAStream}), the two kinds of {@link LDAStream} inference on
+ * held-out documents, and {@link TopicalNGrams}.
+ * <p>
+ * Usage: TopicSamplerBenchmark [numTopics [numIterations [simple|hyper|stream|tng|all]]]
+ */
+public class TopicSamplerBenchmark
+{
+	static final int NUM_TYPES = 10000, NUM_DOCS = 2000, DOC_LENGTH = 100, WORDS_PER_TOPIC = 200;
+
+	public static void main (String[] args) throws Exception
+	{
+		int numTopics = (args.length > 0) ? Integer.parseInt (args[0]) : 100;
+		int numIterations = (args.length > 1) ? Integer.parseInt (args[1]) : 20;
+		String model = (args.length > 2) ? args[2] : "all";
+		Random r = new Random (1);
+
+		int[][] topicWords = new int[numTopics][WORDS_PER_TOPIC];
+		for (int topic = 0; topic < numTopics; topic++)
+			for (int i = 0; i < WORDS_PER_TOPIC; i++)
+				topicWords[topic][i] = r.nextInt (NUM_TYPES);
+
+		Alphabet alphabet = new Alphabet ();
+		Alphabet bigramAlphabet = new Alphabet ();
+		InstanceList training = new InstanceList (alphabet, null);
+		InstanceList bigramTraining = new InstanceList (alphabet, null);
+		InstanceList testing = new InstanceList (alphabet, null);
+		for (int doc = 0; doc < NUM_DOCS; doc++) {
+			String[] words = document (r, topicWords);
+			FeatureSequence features = new FeatureSequence (alphabet);
+			TokenSequence tokens = new TokenSequence ();
+			for (int i = 0; i < words.length; i++) {
+				features.add (words[i]);
+				Token token = new Token (words[i]);
+				if (r.nextInt (3) == 0)
+					token.setProperty (FeatureSequenceWithBigrams.deletionMark, "");
+				tokens.add (token);
+			}
+			training.add (new Instance (features, null, "d" + doc, null));
+			bigramTraining.add (new Instance (new FeatureSequenceWithBigrams (alphabet, bigramAlphabet, tokens),
+			                                  null, "d" + doc, null));
+		}
+		for (int doc = 0; doc < NUM_DOCS / 4; doc++) {
+			String[] words = document (r, topicWords);
+			FeatureSequence features = new FeatureSequence (alphabet);
+			for (int i = 0; i < words.length; i++)
+				features.add (words[i]);
+			testing.add (new Instance (features, null, "t" + doc, null));
+		}
+
+		// The models report progress on both streams
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		PrintStream quiet = new PrintStream (new ByteArrayOutputStream ());
+		long tokens = (long) NUM_DOCS * DOC_LENGTH;
+		long testTokens = (long) (NUM_DOCS / 4) * DOC_LENGTH;
+
+		try {
+			System.setErr (quiet);
+
+			if (model.equals ("simple") || model.equals ("all")) {
+				SimpleLDA lda = new SimpleLDA (numTopics, 50.0, 0.01, new Randoms (1));
+				lda.setTopicDisplay (0, 10);
+				lda.addInstances (training);
+				System.setOut (quiet);
+				lda.sample (2);
+				long start = System.nanoTime ();
+				lda.sample (numIterations);
+				report (out, numTopics, "SimpleLDA", start, tokens * numIterations);
+			}
+
+			if (model.equals ("hyper") || model.equals ("stream") || model.equals ("all")) {
+				LDAStream lda = new LDAStream (numTopics, 50.0, 0.01, new Randoms (1));
+				lda.setTopicDisplay (0, 10);
+				lda.setOptimizeInterval (10);
+				lda.burninPeriod = 5;
+				lda.addInstances (training);
+				System.setOut (quiet);
+				lda.estimate (1);
+				// estimate(n) runs n + 1 iterations
+				long start = System.nanoTime ();
+				lda.estimate (numIterations - 1);
+				report (out, numTopics, "LDAHyper", start, tokens * numIterations);
+
+				if (! model.equals ("hyper")) {
+					lda.setTestingInstances (testing);
+					start = System.nanoTime ();
+					lda.inference (numIterations - 1);
+					report (out, numTopics, "LDAStream.inference", start, testTokens * numIterations);
+
+					InstanceList theta = topicProportions (lda, numTopics);
+					start = System.nanoTime ();
+					lda.inferenceWithTheta (numIterations - 1, theta);
+					report (out, numTopics, "LDAStream.inferenceWithTheta", start, testTokens * numIterations);
+				}
+			}
+
+			if (model.equals ("tng") || model.equals ("all")) {
+				System.setOut (quiet);
+				new TopicalNGrams (numTopics).estimate (bigramTraining, 2, 0, 0, null, new Randoms (1));
+				TopicalNGrams tng = new TopicalNGrams (numTopics);
+				long start = System.nanoTime ();
+				tng.estimate (bigramTraining, numIterations, 0, 0, null, new Randoms (1));
+				report (out, numTopics, "TopicalNGrams", start, tokens * numIterations);
+			}
+		} finally {
+			System.setOut (out);
+			System.setErr (err);
+		}
+	}
+
+	/** Words drawn mostly from the top words of three topics. */
+	private static String[] document (Random r, int[][] topicWords)
+	{
+		int numTopics = topicWords.length;
+		int[] documentTopics = { r.nextInt (numTopics), r.nextInt (numTopics), r.nextInt (numTopics) };
+		String[] words = new String[DOC_LENGTH];
+		for (int i = 0; i < DOC_LENGTH; i++) {
+			int type;
+			if (r.nextDouble () < 0.8)
+				type = topicWords[documentTopics[r.nextInt (3)]][r.nextInt (WORDS_PER_TOPIC)];
+			else
+				type = r.nextInt (NUM_TYPES);
+			words[i] = "w" + type;
+		}
+		return words;
+	}
+
+	/** The topic proportions of the held-out documents after inference, as fixed priors. */
+	private static InstanceList topicProportions (LDAStream lda, int numTopics)
+	{
+		Alphabet topicAlphabet = new Alphabet ();
+		int[] indices = new int[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			topicAlphabet.lookupIndex ("topic" + topic);
+			indices[topic] = topic;
+		}
+		InstanceList theta = new InstanceList (topicAlphabet, null);
+		for (int doc = 0; doc < lda.getTest ().size (); doc++) {
+			double[] values = new double[numTopics];
+			for (int topic : lda.getTest ().get (doc).topicSequence.getFeatures ())
+				values[topic] += 1.0 / DOC_LENGTH;
+			theta.add (new Instance (new FeatureVector (topicAlphabet, indices.clone (), values), null, "t" + doc, null));
+		}
+		return theta;
+	}
+
+	private static void report (PrintStream out, int numTopics, String name, long start, long tokens)
+	{
+		double seconds = (System.nanoTime () - start) / 1e9;
+		out.printf ("%d topics  %-30s %12.0f tokens/s%n", numTopics, name, tokens / seconds);
+	}
+}
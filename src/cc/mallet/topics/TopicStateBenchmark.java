@@ -0,0 +1,115 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+
+/**
+ * Times writing and reading the sampling state of a {@link ParallelTopicModel}
+ * with random assignments, as gzipped text read on one or more threads and
+ * in the binary format of {@link TopicModelCheckpoint}. The defaults give
+ * 100 million tokens, which needs a heap of several gigabytes.
+ * <p>
+ * Usage: TopicStateBenchmark [numDocs [docLength [numTopics [stateDirectory]]]]
+ */
+public class TopicStateBenchmark
+{
+	public static void main (String[] args) throws Exception
+	{
+		int numDocs = (args.length > 0) ? Integer.parseInt (args[0]) : 1000000;
+		int docLength = (args.length > 1) ? Integer.parseInt (args[1]) : 100;
+		int numTopics = (args.length > 2) ? Integer.parseInt (args[2]) : 100;
+		File directory = new File ((args.length > 3) ? args[3] : System.getProperty ("java.io.tmpdir"));
+		int numTypes = 20000;
+		int[] threadCounts = { 1, 2, 4 };
+		Random r = new Random (4);
+
+		Alphabet alphabet = new Alphabet ();
+		for (int type = 0; type < numTypes; type++)
+			alphabet.lookupIndex ("w" + type);
+		InstanceList instances = new InstanceList (new Noop (alphabet, null));
+		for (int doc = 0; doc < numDocs; doc++) {
+			int[] features = new int[docLength];
+			for (int i = 0; i < docLength; i++)
+				features[i] = r.nextInt (numTypes);
+			instances.add (new Instance (new FeatureSequence (alphabet, features), null, "d" + doc, "source " + doc));
+		}
+
+		ParallelTopicModel model = new ParallelTopicModel (numTopics, 5.0, 0.01);
+		model.setRandomSeed (1);
+		model.addInstances (instances);
+		long expected = hash (model);
+		System.out.println ("tokens " + model.totalTokens);
+
+		File text = new File (directory, "state-benchmark.gz");
+		File binary = new File (directory, "state-benchmark.bin");
+		try {
+			long start = System.nanoTime ();
+			model.printState (text);
+			report ("write text", start, text);
+
+			model.setBinaryState (true);
+			start = System.nanoTime ();
+			model.printState (binary);
+			report ("write binary", start, binary);
+
+			for (int t = 0; t < threadCounts.length; t++) {
+				clear (model);
+				model.setNumThreads (threadCounts[t]);
+				start = System.nanoTime ();
+				model.initializeFromState (text);
+				report ("read text, " + threadCounts[t] + " threads", start, hash (model) == expected);
+			}
+
+			for (int pass = 0; pass < 2; pass++) {
+				clear (model);
+				start = System.nanoTime ();
+				model.initializeFromState (binary);
+				report ("read binary", start, hash (model) == expected);
+			}
+		} finally {
+			text.delete ();
+			binary.delete ();
+		}
+	}
+
+	private static void clear (ParallelTopicModel model)
+	{
+		for (TopicAssignment document : model.getData ())
+			Arrays.fill (document.topicSequence.getFeatures (), 0);
+	}
+
+	private static long hash (ParallelTopicModel model)
+	{
+		long hash = 0;
+		for (TopicAssignment document : model.getData ()) {
+			for (int position = 0; position < document.topicSequence.getLength (); position++)
+				hash = hash * 31 + document.topicSequence.getIndexAtPosition (position);
+		}
+		return hash;
+	}
+
+	private static void report (String what, long start, File file)
+	{
+		System.out.printf ("%-24s %10.1f ms %14d bytes%n", what, (System.nanoTime () - start) / 1e6, file.length ());
+	}
+
+	private static void report (String what, long start, boolean correct)
+	{
+		System.out.printf ("%-24s %10.1f ms %s%n", what, (System.nanoTime () - start) / 1e6,
+		                   correct ? "" : "WRONG ASSIGNMENTS");
+	}
+}
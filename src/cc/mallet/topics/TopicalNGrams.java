@@ -45,6 +45,9 @@ public class TopicalNGrams {
 	int[] tokensPerTopic; // indexed by <topic index>
 	// "sumNgramWords"
 	int[][] bitokensPerTopic; // indexed by <feature index, topic index>, where the later is the conditioned word
+	// Samples topics for positions where a bigram is not possible, using
+	//  packed copies of unitypeTopicCounts.  Updates tokensPerTopic in place.
+	SparseTopicSampler sampler;
 
 	public TopicalNGrams (int numberOfTopics)
 	{
@@ -127,6 +130,12 @@ public class TopicalNGrams {
 			}
 		}
 
+		double[] alphas = new double[numTopics];
+		Arrays.fill (alphas, alpha);
+		sampler = new SparseTopicSampler (numTopics, numTypes, alphas, beta, vBeta, tokensPerTopic);
+		for (fi = 0; fi < numTypes; fi++)
+			sampler.setTypeTopicCounts (fi, unitypeTopicCounts[fi]);
+
     for (int iterations = 0; iterations < numIterations; iterations++) {
       sampleTopicsForAllDocs (r);
       if (iterations % 10 == 0) System.out.print (iterations);	else System.out.print (".");
@@ -146,13 +155,12 @@ public class TopicalNGrams {
 	/* One iteration of Gibbs sampling, across all documents. */
 	private void sampleTopicsForAllDocs (Randoms r)
 	{
-		double[] uniTopicWeights = new double[numTopics];
-		double[] biTopicWeights = new double[numTopics*2];
+		double[] biTopicWeights = new double[numTopics];
 		// Loop over every word in the corpus
 		for (int di = 0; di < topics.length; di++) {
 			sampleTopicsForOneDoc ((FeatureSequenceWithBigrams)ilist.get(di).getData(),
 			                       topics[di], grams[di], docTopicCounts[di],
-			                       uniTopicWeights, biTopicWeights,
+			                       biTopicWeights,
 			                       r);
 		}
 	}
@@ -161,17 +169,16 @@ public class TopicalNGrams {
 	private void sampleTopicsForOneDoc (FeatureSequenceWithBigrams oneDocTokens,
 	                                    int[] oneDocTopics, int[] oneDocGrams,
 		                                  int[] oneDocTopicCounts, // indexed by topic index
-		                                  double[] uniTopicWeights, // length==numTopics
-	                                    double[] biTopicWeights, // length==numTopics*2: joint topic/gram sampling
+	                                    double[] biTopicWeights, // length==numTopics: topics given a bigram
 	                                    Randoms r)
 	{
-		int[] currentTypeTopicCounts;
 		int[] currentBitypeTopicCounts;
 		int[] previousBitokensPerTopic;
 		int type, bitype, oldGram, nextGram, newGram, oldTopic, newTopic;
 		double topicWeightsSum, tw;
 		// xxx int docLen = oneDocTokens.length;
 		int docLen = oneDocTokens.getLength();
+		sampler.startDocument (oneDocTopics, docLen);
 		// Iterate over the positions (words) in the document
 		for (int si = 0; si < docLen; si++) {
 			type = oneDocTokens.getIndexAtPosition(si);
@@ -184,9 +191,9 @@ public class TopicalNGrams {
 			boolean bigramPossible = (bitype != -1);
 			assert (!(!bigramPossible && oldGram == 1));
 			if (!bigramPossible) {
-				// Remove this token from all counts
+				// Remove this token from all counts (the sampler also decrements tokensPerTopic)
 				oneDocTopicCounts[oldTopic]--;
-				tokensPerTopic[oldTopic]--;
+				sampler.removeToken (type, oldTopic);
 				unitypeTopicCounts[type][oldTopic]--;
 				if (si != docLen-1) {
 					typeNgramTopicCounts[type][nextGram][oldTopic]--;
@@ -195,23 +202,14 @@ public class TopicalNGrams {
 				assert (oneDocTopicCounts[oldTopic] >= 0);
 				assert (tokensPerTopic[oldTopic] >= 0);
 				assert (unitypeTopicCounts[type][oldTopic] >= 0);
-				// Build a distribution over topics for this token
-				Arrays.fill (uniTopicWeights, 0.0);
-				topicWeightsSum = 0;
-				currentTypeTopicCounts = unitypeTopicCounts[type];
-				for (int ti = 0; ti < numTopics; ti++) {
-					tw = ((currentTypeTopicCounts[ti] + beta) / (tokensPerTopic[ti] + vBeta))
-						    * ((oneDocTopicCounts[ti] + alpha)); // additional term is constance across all topics
-					topicWeightsSum += tw;
-					uniTopicWeights[ti] = tw;
-				}
-				// Sample a topic assignment from this distribution
-				newTopic = r.nextDiscrete (uniTopicWeights, topicWeightsSum);
+				// Sample a topic assignment from the distribution over topics for this token,
+				// ((unitypeTopicCounts[type][ti] + beta) / (tokensPerTopic[ti] + vBeta)) * (oneDocTopicCounts[ti] + alpha)
+				newTopic = sampler.sampleTopic (type, r);
 				// Put that new topic into the counts
 				oneDocTopics[si] = newTopic;
 				oneDocTopicCounts[newTopic]++;
 				unitypeTopicCounts[type][newTopic]++;
-				tokensPerTopic[newTopic]++;
+				sampler.addToken (type, newTopic);
 				if (si != docLen-1)
 					typeNgramTopicCounts[type][nextGram][newTopic]++;
 			} else {
@@ -220,12 +218,13 @@ public class TopicalNGrams {
 				int prevTopic = oneDocTopics[si-1];
 				// Remove this token from all counts
 				oneDocTopicCounts[oldTopic]--;
+				sampler.removeDocumentTopic (oldTopic);
 				typeNgramTopicCounts[prevType][oldGram][prevTopic]--;
 				if (si != docLen-1)
 					typeNgramTopicCounts[type][nextGram][oldTopic]--;
 				if (oldGram == 0) {
 					unitypeTopicCounts[type][oldTopic]--;
-					tokensPerTopic[oldTopic]--;
+					sampler.removeTypeTopic (type, oldTopic);
 				} else {
 					bitypeTopicCounts[bitype][oldTopic]--;
 					bitokensPerTopic[prevType][oldTopic]--;
@@ -239,45 +238,43 @@ public class TopicalNGrams {
 				assert (bitypeTopicCounts[bitype][oldTopic] >= 0);
 				assert (bitokensPerTopic[prevType][oldTopic] >= 0);
 				assert (biTokens >= 0);
-				// Build a joint distribution over topics and ngram-status for this token
-				Arrays.fill (biTopicWeights, 0.0);
+				// Build a joint distribution over topics and ngram-status for this token.
+				// The unigram outcomes are proportional to the sampler's distribution for this type,
+				// ((unitypeTopicCounts[type][ti] + beta) / (tokensPerTopic[ti] + vBeta)) * (oneDocTopicCounts[ti] + alpha),
+				// so only their total is needed here.
+				double unigramWeightsSum = sampler.getWeightSum (type)
+					* (typeNgramTopicCounts[prevType][0][prevTopic] + delta1);
+				// The bigram outcomes
 				topicWeightsSum = 0;
-				currentTypeTopicCounts = unitypeTopicCounts[type];
 				currentBitypeTopicCounts = bitypeTopicCounts[bitype];
 				previousBitokensPerTopic = bitokensPerTopic[prevType];
 				for (int ti = 0; ti < numTopics; ti++) {
-					newTopic = ti << 1; // just using this variable as an index into [ti*2+gram]
-					// The unigram outcome
-					tw =
-					    (currentTypeTopicCounts[ti] + beta) / (tokensPerTopic[ti] + vBeta)
-					  * (oneDocTopicCounts[ti] + alpha)
-						* (typeNgramTopicCounts[prevType][0][prevTopic] + delta1);
-					topicWeightsSum += tw;
-					biTopicWeights[newTopic] = tw;
-					// The bigram outcome
-					newTopic++;
 					tw =
 					    (currentBitypeTopicCounts[ti] + gamma) / (previousBitokensPerTopic[ti] + vGamma)
-					    * (oneDocTopicCounts[ti] + alpha)
-					    * (typeNgramTopicCounts[prevType][1][prevTopic] + delta2);
+					    * (oneDocTopicCounts[ti] + alpha);
 					topicWeightsSum += tw;
-					biTopicWeights[newTopic] = tw;
+					biTopicWeights[ti] = tw;
+				}
+				double bigramWeightsSum = topicWeightsSum * (typeNgramTopicCounts[prevType][1][prevTopic] + delta2);
+				// Sample a gram status, and then a topic assignment given that status
+				if (r.nextUniform() * (unigramWeightsSum + bigramWeightsSum) < unigramWeightsSum) {
+					newGram = 0;
+					newTopic = sampler.sampleTopic (type, r);
+				} else {
+					newGram = 1;
+					newTopic = r.nextDiscrete (biTopicWeights, topicWeightsSum);
 				}
-				// Sample a topic assignment from this distribution
-				newTopic = r.nextDiscrete (biTopicWeights, topicWeightsSum);
-				// Put that new topic into the counts
-				newGram = newTopic % 2;
-				newTopic /= 2;
 				// Put that new topic into the counts
 				oneDocTopics[si] = newTopic;
 				oneDocGrams[si] = newGram;
 				oneDocTopicCounts[newTopic]++;
+				sampler.addDocumentTopic (newTopic);
 				typeNgramTopicCounts[prevType][newGram][prevTopic]++;
 				if (si != docLen-1)
 					typeNgramTopicCounts[type][nextGram][newTopic]++;
 				if (newGram == 0) {
 					unitypeTopicCounts[type][newTopic]++;
-					tokensPerTopic[newTopic]++;
+					sampler.addTypeTopic (type, newTopic);
 				} else {
 					bitypeTopicCounts[bitype][newTopic]++;
 					bitokensPerTopic[prevType][newTopic]++;
@@ -285,6 +282,7 @@ public class TopicalNGrams {
 				}
 			}
 		}
+		sampler.finishDocument ();
 	}
 
 	public void printTopWords (int numWords, boolean useNewLines)
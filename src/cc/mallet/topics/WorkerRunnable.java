@@ -56,6 +56,11 @@ public class WorkerRunnable implements Runnable {
 	protected int[] docLengthCounts; // histogram of document sizes
 	protected int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
 
+	// The largest index of a non-zero entry in each histogram, so that
+	//  merging and clearing them need not scan the empty tails
+	protected int docLengthLimit = 0;
+	protected int[] topicDocLimits;
+
 	boolean shouldSaveState = false;
 	boolean shouldBuildLocalCounts = true;
 	
@@ -123,6 +128,68 @@ public class WorkerRunnable implements Runnable {
 	public void initializeAlphaStatistics(int size) {
 		docLengthCounts = new int[size];
 		topicDocCounts = new int[numTopics][size];
+		docLengthLimit = 0;
+		topicDocLimits = new int[numTopics];
+	}
+
+	/**
+	 *  Add the document length histogram to <code>counts</code> and clear it.
+	 *
+	 *  @return The largest index of a non-zero entry that was added
+	 */
+	public int drainDocLengthCounts(int[] counts) {
+		int limit = docLengthLimit;
+		for (int count = 0; count <= limit; count++) {
+			counts[count] += docLengthCounts[count];
+			docLengthCounts[count] = 0;
+		}
+		docLengthLimit = 0;
+		return limit;
+	}
+
+	/**
+	 *  Add the document/topic count histogram of one topic to <code>counts</code>
+	 *   and clear it. Different topics may be drained by different threads.
+	 *
+	 *  @return The largest index of a non-zero entry that was added
+	 */
+	public int drainTopicDocCounts(int topic, int[] counts) {
+		int limit = topicDocLimits[topic];
+		int[] histogram = topicDocCounts[topic];
+		for (int count = 0; count <= limit; count++) {
+			counts[count] += histogram[count];
+			histogram[count] = 0;
+		}
+		topicDocLimits[topic] = 0;
+		return limit;
+	}
+
+	/** Clear the histograms without using them. */
+	public void clearAlphaStatistics() {
+		Arrays.fill(docLengthCounts, 0, docLengthLimit + 1, 0);
+		docLengthLimit = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			Arrays.fill(topicDocCounts[topic], 0, topicDocLimits[topic] + 1, 0);
+			topicDocLimits[topic] = 0;
+		}
+	}
+
+	/** Replace the histograms, for example with ones saved in a checkpoint. */
+	public void setAlphaStatistics(int[] docLengthCounts, int[][] topicDocCounts) {
+		System.arraycopy(docLengthCounts, 0, this.docLengthCounts, 0, docLengthCounts.length);
+		docLengthLimit = lastNonZero(docLengthCounts);
+
+		for (int topic = 0; topic < numTopics; topic++) {
+			System.arraycopy(topicDocCounts[topic], 0,
+							 this.topicDocCounts[topic], 0, topicDocCounts[topic].length);
+			topicDocLimits[topic] = lastNonZero(topicDocCounts[topic]);
+		}
+	}
+
+	private static int lastNonZero(int[] histogram) {
+		int index = histogram.length - 1;
+		while (index > 0 && histogram[index] == 0) { index--; }
+		return Math.max(index, 0);
 	}
 	
 	public void collectAlphaStatistics() {
@@ -272,6 +339,7 @@ public class WorkerRunnable implements Runnable {
 				LabelSequence topicSequence =
 					(LabelSequence) data.get(doc).topicSequence;
 				
+				prepareDocument (doc);
 				sampleTopicsForOneDoc (tokenSequence, topicSequence,
 									   true);
 			}
@@ -288,6 +356,14 @@ public class WorkerRunnable implements Runnable {
 		}
 	}
 	
+	/**
+	 *  Called before each document is sampled. Subclasses with a
+	 *   different prior for each document can set <code>alpha</code>,
+	 *   <code>smoothingOnlyMass</code> and <code>cachedCoefficients</code> here.
+	 */
+	protected void prepareDocument (int doc) {
+	}
+
 	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
 										  FeatureSequence topicSequence,
 										  boolean readjustTopicsAndStats /* currently ignored */) {
@@ -648,11 +724,14 @@ public class WorkerRunnable implements Runnable {
 			// Update the document-topic count histogram,
 			//  for dirichlet estimation
 			docLengthCounts[ docLength ]++;
+			if (docLength > docLengthLimit) { docLengthLimit = docLength; }
 
 			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
 				int topic = localTopicIndex[denseIndex];
+				int count = localTopicCounts[topic];
 				
-				topicDocCounts[topic][ localTopicCounts[topic] ]++;
+				topicDocCounts[topic][count]++;
+				if (count > topicDocLimits[topic]) { topicDocLimits[topic] = count; }
 			}
 		}
 
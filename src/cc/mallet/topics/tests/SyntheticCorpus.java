@@ -0,0 +1,66 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.Random;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+
+/**
+ * Small random corpora for the topic model tests. Each document draws
+ *  most of its words from one of a few disjoint blocks of the vocabulary,
+ *  and the rest from the whole vocabulary, so that models have some
+ *  structure to find.
+ */
+public class SyntheticCorpus {
+
+  private SyntheticCorpus () {}
+
+  /** Returns an alphabet of <code>numTypes</code> words, "w0", "w1", ... */
+  public static Alphabet alphabet (int numTypes)
+  {
+    Alphabet alphabet = new Alphabet ();
+    for (int type = 0; type < numTypes; type++) {
+      alphabet.lookupIndex ("w" + type);
+    }
+    return alphabet;
+  }
+
+  /** Returns one random document of <code>length</code> words. */
+  public static FeatureSequence document (Alphabet alphabet, int numBlocks, int length, Random random)
+  {
+    int numTypes = alphabet.size ();
+    int blockSize = numTypes / numBlocks;
+    int block = random.nextInt (numBlocks);
+    int[] features = new int[length];
+    for (int i = 0; i < length; i++) {
+      features[i] = (random.nextInt (4) == 0) ? random.nextInt (numTypes) :
+        block * blockSize + random.nextInt (blockSize);
+    }
+    return new FeatureSequence (alphabet, features);
+  }
+
+  /**
+   * Returns <code>numDocs</code> documents over <code>numTypes</code> words,
+   *  with lengths from 1 to <code>maxLength</code>.
+   */
+  public static InstanceList generate (int numDocs, int numTypes, int numBlocks,
+                                       int maxLength, Random random)
+  {
+    Alphabet alphabet = alphabet (numTypes);
+    InstanceList instances = new InstanceList (new Noop (alphabet, null));
+    for (int doc = 0; doc < numDocs; doc++) {
+      FeatureSequence fs = document (alphabet, numBlocks, 1 + random.nextInt (maxLength), random);
+      instances.add (new Instance (fs, null, "doc" + doc, null));
+    }
+    return instances;
+  }
+}
@@ -0,0 +1,256 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cc.mallet.classify.MaxEnt;
+import cc.mallet.pipe.Noop;
+import cc.mallet.topics.DMROptimizable;
+import cc.mallet.topics.DMRTopicModel;
+import cc.mallet.topics.DMRWorkerRunnable;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.Dirichlet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.LabelAlphabet;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the Dirichlet-multinomial regression topic model: the value and
+ *  gradient of its regression, serially and on several threads, and the
+ *  per-document priors used by its sampler.
+ */
+public class TestDMR extends TestCase {
+
+  private static final int NUM_FEATURES = 4;
+  private static final int NUM_TOPICS = 3;
+
+  public TestDMR (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestDMR.class);
+  }
+
+  private static Alphabet featureAlphabet ()
+  {
+    Alphabet features = new Alphabet ();
+    for (int feature = 0; feature < NUM_FEATURES; feature++) {
+      features.lookupIndex ("f" + feature);
+    }
+    return features;
+  }
+
+  // Features of a document: each one present with probability 1/2
+  private static FeatureVector randomFeatures (Alphabet features, Random random)
+  {
+    int[] indices = new int[NUM_FEATURES];
+    double[] values = new double[NUM_FEATURES];
+    int size = 0;
+    for (int feature = 0; feature < NUM_FEATURES; feature++) {
+      if (random.nextBoolean ()) {
+        indices[size] = feature;
+        values[size] = 0.5 + random.nextDouble ();
+        size++;
+      }
+    }
+    return new FeatureVector (features, java.util.Arrays.copyOf (indices, size),
+                              java.util.Arrays.copyOf (values, size));
+  }
+
+  /** Regression instances: document features as data, topic counts as target. */
+  private static InstanceList regressionInstances (Random random)
+  {
+    Alphabet features = featureAlphabet ();
+    LabelAlphabet topics = new LabelAlphabet ();
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      topics.lookupLabel ("topic" + topic);
+    }
+    InstanceList instances = new InstanceList (new Noop (features, topics));
+    for (int i = 0; i < 50; i++) {
+      int[] indices = new int[NUM_TOPICS];
+      double[] counts = new double[NUM_TOPICS];
+      int size = 0;
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        int count = random.nextInt (3) == 0 ? 0 : random.nextInt (20);
+        if (count > 0) {
+          indices[size] = topic;
+          counts[size] = count;
+          size++;
+        }
+      }
+      instances.add (new Instance (randomFeatures (features, random),
+                                   new FeatureVector (topics, java.util.Arrays.copyOf (indices, size),
+                                                      java.util.Arrays.copyOf (counts, size)),
+                                   "instance" + i, null));
+    }
+    return instances;
+  }
+
+  private static DMROptimizable newOptimizable (InstanceList instances, double[] parameters)
+  {
+    DMROptimizable optimizable =
+      new DMROptimizable (instances, new MaxEnt (instances.getPipe (), (double[]) parameters.clone ()));
+    optimizable.setRegularGaussianPriorVariance (0.5);
+    optimizable.setInterceptGaussianPriorVariance (100.0);
+    return optimizable;
+  }
+
+  /**
+   * The value is the sum over instances of the Dirichlet-multinomial log
+   *  probability of their topic counts, plus the Gaussian prior, and the
+   *  parallel value and gradient agree with the serial ones.
+   */
+  public void testValueAndGradient ()
+  {
+    Random random = new Random (1);
+    InstanceList instances = regressionInstances (random);
+    int numParameters = NUM_TOPICS * (NUM_FEATURES + 1);
+    double[] parameters = new double[numParameters];
+    for (int i = 0; i < numParameters; i++) {
+      parameters[i] = random.nextDouble () * 2.0 - 1.0;
+    }
+
+    double expected = 0.0;
+    for (int i = 0; i < instances.size (); i++) {
+      FeatureVector features = (FeatureVector) instances.get (i).getData ();
+      FeatureVector counts = (FeatureVector) instances.get (i).getTarget ();
+      double[] scores = new double[NUM_TOPICS];
+      double sumScores = 0.0;
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        double score = parameters[topic * (NUM_FEATURES + 1) + NUM_FEATURES];
+        for (int loc = 0; loc < features.numLocations (); loc++) {
+          score += features.valueAtLocation (loc) *
+            parameters[topic * (NUM_FEATURES + 1) + features.indexAtLocation (loc)];
+        }
+        scores[topic] = Math.exp (score);
+        sumScores += scores[topic];
+      }
+      double total = 0.0;
+      for (int loc = 0; loc < counts.numLocations (); loc++) {
+        double score = scores[ counts.indexAtLocation (loc) ];
+        expected += Dirichlet.logGammaStirling (score + counts.valueAtLocation (loc)) -
+          Dirichlet.logGammaStirling (score);
+        total += counts.valueAtLocation (loc);
+      }
+      expected -= Dirichlet.logGammaStirling (sumScores + total) -
+        Dirichlet.logGammaStirling (sumScores);
+    }
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      for (int feature = 0; feature <= NUM_FEATURES; feature++) {
+        double param = parameters[topic * (NUM_FEATURES + 1) + feature];
+        expected -= param * param / (2 * (feature == NUM_FEATURES ? 100.0 : 0.5));
+      }
+    }
+
+    DMROptimizable serial = newOptimizable (instances, parameters);
+    double value = serial.getValue ();
+    assertEquals (expected, value, 1e-9 * Math.abs (expected));
+    double[] gradient = new double[numParameters];
+    serial.getValueGradient (gradient);
+
+    ExecutorService executor = Executors.newFixedThreadPool (3);
+    try {
+      DMROptimizable parallel = newOptimizable (instances, parameters);
+      parallel.setExecutor (executor, 3);
+      assertEquals (value, parallel.getValue (), 1e-11 * Math.abs (value));
+      double[] parallelGradient = new double[numParameters];
+      parallel.getValueGradient (parallelGradient);
+      for (int i = 0; i < numParameters; i++) {
+        assertEquals ("gradient " + i, gradient[i], parallelGradient[i],
+                      1e-11 * Math.max (1.0, Math.abs (gradient[i])));
+      }
+    } finally {
+      executor.shutdown ();
+    }
+  }
+
+  /** Exposes the prior that the runnable loads for each document. */
+  private static class PriorRunnable extends DMRWorkerRunnable {
+    PriorRunnable (DMRTopicModel model)
+    {
+      super (model.numTopics, model.alpha, model.alphaSum, model.beta, null, model.data,
+             model.typeTopicCounts, model.tokensPerTopic, 0, model.data.size ());
+      setDocumentAlphas (model.getDocumentAlphas ());
+    }
+
+    double[] prepare (int doc)
+    {
+      prepareDocument (doc);
+      double mass = 0.0;
+      for (int topic = 0; topic < numTopics; topic++) {
+        mass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
+        assertEquals (alpha[topic] / (tokensPerTopic[topic] + betaSum), cachedCoefficients[topic], 1e-15);
+      }
+      assertEquals (mass, smoothingOnlyMass, 1e-12);
+      return (double[]) alpha.clone ();
+    }
+  }
+
+  public void testDocumentPriors () throws IOException
+  {
+    Random random = new Random (2);
+    Alphabet words = SyntheticCorpus.alphabet (20);
+    Alphabet features = featureAlphabet ();
+    InstanceList instances = new InstanceList (new Noop (words, features));
+    for (int doc = 0; doc < 40; doc++) {
+      FeatureSequence fs = SyntheticCorpus.document (words, 4, 5 + random.nextInt (20), random);
+      instances.add (new Instance (fs, randomFeatures (features, random), "doc" + doc, null));
+    }
+    // Every third document has no features. The list will not take
+    //  such instances, so remove their features once they are added.
+    for (int doc = 2; doc < instances.size (); doc += 3) {
+      Instance instance = instances.get (doc);
+      instance.unLock ();
+      instance.setTarget (null);
+      instance.lock ();
+    }
+
+    DMRTopicModel model = new DMRTopicModel (NUM_TOPICS);
+    model.setRandomSeed (3);
+    model.setNumIterations (20);
+    model.setBurninPeriod (5);
+    model.setOptimizeInterval (10);
+    model.setTopicDisplay (0, 5);
+    model.addInstances (instances);
+    model.estimate ();
+    assertNotNull (model.getDocumentAlphas ());
+
+    PriorRunnable runnable = new PriorRunnable (model);
+    double[] expected = new double[NUM_TOPICS];
+    for (int doc = 0; doc < instances.size (); doc++) {
+      FeatureVector docFeatures = (FeatureVector) instances.get (doc).getTarget ();
+      double[] docAlpha = runnable.prepare (doc);
+      if (docFeatures == null) {
+        assertNull (model.getDocumentAlphas ()[doc]);
+        System.arraycopy (model.alpha, 0, expected, 0, NUM_TOPICS);
+      }
+      else {
+        model.getAlphas (docFeatures, expected);
+      }
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        assertEquals ("doc " + doc + ", topic " + topic, expected[topic], docAlpha[topic], 0.0);
+      }
+    }
+  }
+
+  public static void main (String[] args)
+  {
+    junit.textui.TestRunner.run (suite ());
+  }
+}
@@ -0,0 +1,212 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TObjectDoubleHashMap;
+
+import cc.mallet.topics.HierarchicalLDA;
+import cc.mallet.types.InstanceList;
+import cc.mallet.util.FastRandoms;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the path weights of the hLDA sampler against the nCRP and word
+ *  likelihoods calculated directly from the tree, and that the tree's
+ *  counts agree with the sampled paths and levels.
+ */
+public class TestHierarchicalLDA extends TestCase {
+
+  private static final int NUM_LEVELS = 3;
+  private static final double GAMMA = 1.0;
+  private static final double ETA = 0.1;
+
+  public TestHierarchicalLDA (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestHierarchicalLDA.class);
+  }
+
+  private static HierarchicalLDA newSampler (InstanceList instances, long seed)
+  {
+    HierarchicalLDA lda = new HierarchicalLDA ();
+    lda.setGamma (GAMMA);
+    lda.setEta (ETA);
+    lda.setProgressDisplay (false);
+    lda.setTopicDisplay (Integer.MAX_VALUE, 5);
+    lda.initialize (instances, null, NUM_LEVELS, new FastRandoms (seed));
+    return lda;
+  }
+
+  private static void collectNodes (HierarchicalLDA.NCRPNode node, List<HierarchicalLDA.NCRPNode> nodes)
+  {
+    nodes.add (node);
+    for (HierarchicalLDA.NCRPNode child : node.getChildren ()) {
+      collectNodes (child, nodes);
+    }
+  }
+
+  // The log probability of the words at one level under a node's topic
+  private static double wordLikelihood (HierarchicalLDA.NCRPNode node, TIntIntHashMap counts, double etaSum)
+  {
+    double weight = 0.0;
+    int seen = 0;
+    for (int type : counts.keys ()) {
+      int typeCount = (node == null) ? 0 : node.getTypeCount (type);
+      int totalTokens = (node == null) ? 0 : node.getTotalTokens ();
+      for (int i = 0; i < counts.get (type); i++) {
+        weight += Math.log ((ETA + typeCount + i) / (etaSum + totalTokens + seen));
+        seen++;
+      }
+    }
+    return weight;
+  }
+
+  /**
+   * The weight of a node is the nCRP probability of reaching it, times the
+   *  likelihood of the document's words at its level and at the levels of
+   *  all its ancestors, and, for an internal node, times the probability
+   *  of a new branch and of the words at the levels below under new topics.
+   */
+  public void testPathWeights ()
+  {
+    InstanceList instances = SyntheticCorpus.generate (40, 12, 3, 15, new Random (1));
+    HierarchicalLDA lda = newSampler (instances, 2);
+    lda.estimate (5);
+    double etaSum = ETA * instances.getDataAlphabet ().size ();
+
+    // Words of a new document at each level
+    TIntIntHashMap[] typeCounts = new TIntIntHashMap[NUM_LEVELS];
+    for (int level = 0; level < NUM_LEVELS; level++) {
+      typeCounts[level] = new TIntIntHashMap ();
+    }
+    typeCounts[0].put (0, 2);
+    typeCounts[0].put (5, 1);
+    typeCounts[1].put (4, 1);
+    typeCounts[2].put (9, 2);
+    typeCounts[2].put (0, 1);
+
+    double[] newTopicWeights = new double[NUM_LEVELS];
+    for (int level = 1; level < NUM_LEVELS; level++) {
+      newTopicWeights[level] = wordLikelihood (null, typeCounts[level], etaSum);
+    }
+
+    TObjectDoubleHashMap<HierarchicalLDA.NCRPNode> weights =
+      new TObjectDoubleHashMap<HierarchicalLDA.NCRPNode> ();
+    lda.calculateNCRP (weights, lda.getRootNode (), 0.0);
+    lda.calculateWordLikelihood (weights, lda.getRootNode (), 0.0, typeCounts, newTopicWeights, 0, 1);
+
+    List<HierarchicalLDA.NCRPNode> nodes = new ArrayList<HierarchicalLDA.NCRPNode> ();
+    collectNodes (lda.getRootNode (), nodes);
+    assertTrue (nodes.size () > NUM_LEVELS);
+    assertEquals (nodes.size (), weights.size ());
+
+    for (HierarchicalLDA.NCRPNode node : nodes) {
+      double expected = 0.0;
+      for (HierarchicalLDA.NCRPNode n = node; n != null; n = n.getParent ()) {
+        if (n.getParent () != null) {
+          expected += Math.log ((double) n.getCustomers () / (n.getParent ().getCustomers () + GAMMA));
+        }
+        expected += wordLikelihood (n, typeCounts[n.getLevel ()], etaSum);
+      }
+      if (node.getLevel () < NUM_LEVELS - 1) {
+        expected += Math.log (GAMMA / (node.getCustomers () + GAMMA));
+        for (int level = node.getLevel () + 1; level < NUM_LEVELS; level++) {
+          expected += newTopicWeights[level];
+        }
+      }
+      assertEquals ("node " + node.nodeID + " at level " + node.getLevel (),
+                    expected, weights.get (node), 1e-9);
+    }
+  }
+
+  /**
+   * Rebuilds the customers and word counts of every node from the
+   *  sampling state, and compares them with the tree.
+   */
+  private static void checkCounts (HierarchicalLDA lda, InstanceList instances) throws IOException
+  {
+    StringWriter state = new StringWriter ();
+    PrintWriter out = new PrintWriter (state);
+    lda.printState (out);
+    out.flush ();
+
+    HashMap<Integer, int[]> typeCounts = new HashMap<Integer, int[]> ();
+    HashMap<Integer, Integer> customers = new HashMap<Integer, Integer> ();
+    int numTypes = instances.getDataAlphabet ().size ();
+    String[] lines = state.toString ().split ("\n");
+    int line = 0;
+    for (int doc = 0; doc < instances.size (); doc++) {
+      int length = ((cc.mallet.types.FeatureSequence) instances.get (doc).getData ()).getLength ();
+      for (int token = 0; token < length; token++) {
+        String[] fields = lines[line++].trim ().split (" ");
+        // The path, from the leaf up, then type, word and level
+        if (token == 0) {
+          for (int level = 0; level < NUM_LEVELS; level++) {
+            Integer id = Integer.valueOf (fields[level]);
+            customers.put (id, customers.containsKey (id) ? customers.get (id) + 1 : 1);
+          }
+        }
+        int type = Integer.parseInt (fields[NUM_LEVELS]);
+        int level = Integer.parseInt (fields[NUM_LEVELS + 2]);
+        Integer id = Integer.valueOf (fields[NUM_LEVELS - 1 - level]);
+        if (! typeCounts.containsKey (id)) {
+          typeCounts.put (id, new int[numTypes]);
+        }
+        typeCounts.get (id)[type]++;
+      }
+    }
+    assertEquals (lines.length, line);
+
+    List<HierarchicalLDA.NCRPNode> nodes = new ArrayList<HierarchicalLDA.NCRPNode> ();
+    collectNodes (lda.getRootNode (), nodes);
+    assertEquals (customers.size (), nodes.size ());
+    for (HierarchicalLDA.NCRPNode node : nodes) {
+      Integer id = Integer.valueOf (node.nodeID);
+      assertEquals ("customers of node " + id, customers.get (id).intValue (), node.getCustomers ());
+      int[] expected = typeCounts.containsKey (id) ? typeCounts.get (id) : new int[numTypes];
+      int total = 0;
+      for (int type = 0; type < numTypes; type++) {
+        assertEquals ("count of " + type + " at node " + id, expected[type], node.getTypeCount (type));
+        total += expected[type];
+      }
+      assertEquals (total, node.getTotalTokens ());
+    }
+  }
+
+  public void testCountsMatchState () throws IOException
+  {
+    InstanceList instances = SyntheticCorpus.generate (60, 20, 4, 20, new Random (3));
+    int[] threadCounts = { 1, 3 };
+    for (int i = 0; i < threadCounts.length; i++) {
+      HierarchicalLDA lda = newSampler (instances, 4);
+      lda.setNumThreads (threadCounts[i]);
+      checkCounts (lda, instances);
+      lda.estimate (15);
+      checkCounts (lda, instances);
+    }
+  }
+
+  public static void main (String[] args)
+  {
+    junit.textui.TestRunner.run (suite ());
+  }
+}
@@ -0,0 +1,162 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.Random;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.WorkerRunnable;
+import cc.mallet.types.Dirichlet;
+import cc.mallet.types.InstanceList;
+import cc.mallet.util.Randoms;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that alpha optimization, which splits the topics over threads,
+ *  gives the same result for any number of threads, and the result of
+ *  the single-threaded Dirichlet estimates.
+ */
+public class TestHyperparameterOptimization extends TestCase {
+
+  private static final int NUM_TOPICS = 9;
+  private static final int NUM_DOCS = 150;
+  private static final int MAX_LENGTH = 40;
+
+  public TestHyperparameterOptimization (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestHyperparameterOptimization.class);
+  }
+
+  /** The number of tokens of each topic in each document, skewed towards low topics. */
+  private static int[][] documentTopicCounts ()
+  {
+    Random random = new Random (5);
+    int[][] counts = new int[NUM_DOCS][NUM_TOPICS];
+    for (int doc = 0; doc < NUM_DOCS; doc++) {
+      int length = 1 + random.nextInt (MAX_LENGTH);
+      for (int i = 0; i < length; i++) {
+        counts[doc][random.nextInt (1 + random.nextInt (NUM_TOPICS))]++;
+      }
+    }
+    return counts;
+  }
+
+  private static int length (int[] topicCounts)
+  {
+    int length = 0;
+    for (int topic = 0; topic < topicCounts.length; topic++) {
+      length += topicCounts[topic];
+    }
+    return length;
+  }
+
+  /**
+   * Runs one alpha optimization on a model with <code>numThreads</code>
+   *  workers, whose histograms each hold a share of the documents.
+   */
+  private static ParallelTopicModel optimize (int[][] counts, boolean symmetric, int numThreads)
+  {
+    InstanceList instances = SyntheticCorpus.generate (20, 30, 3, MAX_LENGTH, new Random (1));
+
+    ParallelTopicModel model = new ParallelTopicModel (NUM_TOPICS, 4.0, 0.01);
+    model.setSymmetricAlpha (symmetric);
+    model.setNumThreads (numThreads);
+    model.addInstances (instances);
+    // Start from an asymmetric alpha, which the symmetric version replaces
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      model.alpha[topic] = 0.2 + 0.1 * topic;
+    }
+
+    WorkerRunnable[] runnables = new WorkerRunnable[numThreads];
+    for (int thread = 0; thread < numThreads; thread++) {
+      int[] docLengthCounts = new int[MAX_LENGTH + 1];
+      int[][] topicDocCounts = new int[NUM_TOPICS][MAX_LENGTH + 1];
+      for (int doc = thread; doc < NUM_DOCS; doc += numThreads) {
+        docLengthCounts[length (counts[doc])]++;
+        for (int topic = 0; topic < NUM_TOPICS; topic++) {
+          topicDocCounts[topic][counts[doc][topic]]++;
+        }
+      }
+
+      runnables[thread] = new WorkerRunnable (NUM_TOPICS, model.alpha, model.alphaSum, model.beta,
+                                              new Randoms (thread), model.getData (),
+                                              model.typeTopicCounts, model.tokensPerTopic, 0, 0);
+      runnables[thread].initializeAlphaStatistics (MAX_LENGTH + 1);
+      runnables[thread].setAlphaStatistics (docLengthCounts, topicDocCounts);
+    }
+
+    model.optimizeAlpha (runnables);
+    return model;
+  }
+
+  public void testAsymmetricAlpha ()
+  {
+    int[][] counts = documentTopicCounts ();
+
+    int[] docLengthCounts = new int[MAX_LENGTH + 1];
+    int[][] topicDocCounts = new int[NUM_TOPICS][MAX_LENGTH + 1];
+    double[] expected = new double[NUM_TOPICS];
+    for (int doc = 0; doc < NUM_DOCS; doc++) {
+      docLengthCounts[length (counts[doc])]++;
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        topicDocCounts[topic][counts[doc][topic]]++;
+      }
+    }
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      expected[topic] = 0.2 + 0.1 * topic;
+    }
+    double expectedSum = Dirichlet.learnParameters (expected, topicDocCounts, docLengthCounts, 1.001, 1.0, 1);
+
+    ParallelTopicModel single = optimize (counts, false, 1);
+    ParallelTopicModel multiple = optimize (counts, false, 3);
+
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      assertEquals (expected[topic], single.alpha[topic], 1e-12 * expected[topic]);
+      assertEquals (single.alpha[topic], multiple.alpha[topic], 0.0);
+    }
+    assertEquals (expectedSum, single.alphaSum, 1e-12 * expectedSum);
+    assertEquals (single.alphaSum, multiple.alphaSum, 0.0);
+  }
+
+  public void testSymmetricAlpha ()
+  {
+    int[][] counts = documentTopicCounts ();
+
+    int[] docLengthCounts = new int[MAX_LENGTH + 1];
+    int[] summedCounts = new int[MAX_LENGTH + 1];
+    for (int doc = 0; doc < NUM_DOCS; doc++) {
+      docLengthCounts[length (counts[doc])]++;
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        summedCounts[counts[doc][topic]]++;
+      }
+    }
+    double expectedSum = Dirichlet.learnSymmetricConcentration (summedCounts, docLengthCounts, NUM_TOPICS, 4.0);
+
+    ParallelTopicModel single = optimize (counts, true, 1);
+    ParallelTopicModel multiple = optimize (counts, true, 3);
+
+    assertEquals (expectedSum, single.alphaSum, 1e-12 * expectedSum);
+    assertEquals (single.alphaSum, multiple.alphaSum, 0.0);
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      assertEquals (expectedSum / NUM_TOPICS, single.alpha[topic], 1e-12);
+      assertEquals (single.alpha[topic], multiple.alpha[topic], 0.0);
+    }
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    junit.textui.TestRunner.run (suite ());
+  }
+
+}
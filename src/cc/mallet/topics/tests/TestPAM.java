@@ -0,0 +1,166 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.Random;
+
+import cc.mallet.topics.HierarchicalPAM;
+import cc.mallet.topics.PAM4L;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.InstanceList;
+import cc.mallet.util.FastRandoms;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the counts of the Pachinko allocation models agree with
+ *  their topic assignments after training on one or several threads.
+ */
+public class TestPAM extends TestCase {
+
+  private static final int NUM_SUPER_TOPICS = 3;
+  private static final int NUM_SUB_TOPICS = 5;
+
+  public TestPAM (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestPAM.class);
+  }
+
+  private static InstanceList corpus ()
+  {
+    return SyntheticCorpus.generate (90, 30, 5, 25, new Random (11));
+  }
+
+  private static void assertArrayEquals (String message, int[] expected, int[] actual)
+  {
+    assertEquals (message, expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals (message + " [" + i + "]", expected[i], actual[i]);
+    }
+  }
+
+  public void testPAM4LCounts ()
+  {
+    InstanceList instances = corpus ();
+    int numTypes = instances.getDataAlphabet ().size ();
+    int[] threadCounts = { 1, 3 };
+
+    for (int i = 0; i < threadCounts.length; i++) {
+      PAM4L pam = new PAM4L (NUM_SUPER_TOPICS, NUM_SUB_TOPICS);
+      pam.setNumThreads (threadCounts[i]);
+      pam.estimate (instances, 20, 10, 0, 0, null, new FastRandoms (5));
+
+      int[][] typeSubTopicCounts = new int[numTypes][NUM_SUB_TOPICS];
+      int[] tokensPerSubTopic = new int[NUM_SUB_TOPICS];
+      int[] tokensPerSuperTopic = new int[NUM_SUPER_TOPICS];
+      int[][] tokensPerSuperSubTopic = new int[NUM_SUPER_TOPICS][NUM_SUB_TOPICS];
+      for (int doc = 0; doc < instances.size (); doc++) {
+        FeatureSequence fs = (FeatureSequence) instances.get (doc).getData ();
+        int[] superTopics = pam.getSuperTopics ()[doc];
+        int[] subTopics = pam.getSubTopics ()[doc];
+        assertEquals (fs.getLength (), superTopics.length);
+        for (int position = 0; position < superTopics.length; position++) {
+          typeSubTopicCounts[ fs.getIndexAtPosition (position) ][ subTopics[position] ]++;
+          tokensPerSubTopic[ subTopics[position] ]++;
+          tokensPerSuperTopic[ superTopics[position] ]++;
+          tokensPerSuperSubTopic[ superTopics[position] ][ subTopics[position] ]++;
+        }
+      }
+
+      String threads = threadCounts[i] + " threads: ";
+      for (int type = 0; type < numTypes; type++) {
+        assertArrayEquals (threads + "type " + type, typeSubTopicCounts[type], pam.getTypeSubTopicCounts ()[type]);
+      }
+      assertArrayEquals (threads + "sub-topic totals", tokensPerSubTopic, pam.getTokensPerSubTopic ());
+      assertArrayEquals (threads + "super-topic totals", tokensPerSuperTopic, pam.getTokensPerSuperTopic ());
+      for (int superTopic = 0; superTopic < NUM_SUPER_TOPICS; superTopic++) {
+        assertArrayEquals (threads + "super-topic " + superTopic,
+                           tokensPerSuperSubTopic[superTopic], pam.getTokensPerSuperSubTopic ()[superTopic]);
+      }
+    }
+  }
+
+  public void testHierarchicalPAMCounts ()
+  {
+    InstanceList instances = corpus ();
+    int numTypes = instances.getDataAlphabet ().size ();
+    int numTopics = 1 + NUM_SUPER_TOPICS + NUM_SUB_TOPICS;
+    int[] threadCounts = { 1, 3 };
+
+    for (int i = 0; i < threadCounts.length; i++) {
+      HierarchicalPAM pam = new HierarchicalPAM (NUM_SUPER_TOPICS, NUM_SUB_TOPICS, 1.0, 1.0);
+      pam.setNumThreads (threadCounts[i]);
+      pam.estimate (instances, null, 20, 0, 0, 0, null, new FastRandoms (5));
+
+      // The root is super-topic NUM_SUPER_TOPICS, and a token at a
+      //  super-topic has sub-topic NUM_SUB_TOPICS.
+      int[][] typeTopicCounts = new int[numTypes][numTopics];
+      int[] tokensPerTopic = new int[numTopics];
+      int[] tokensPerSuperTopic = new int[NUM_SUPER_TOPICS + 1];
+      int[][] tokensPerSuperSubTopic = new int[NUM_SUPER_TOPICS + 1][NUM_SUB_TOPICS + 1];
+      int[] superTopicDocumentFrequencies = new int[NUM_SUPER_TOPICS + 1];
+      int[][] superSubTopicDocumentFrequencies = new int[NUM_SUPER_TOPICS + 1][NUM_SUB_TOPICS + 1];
+
+      for (int doc = 0; doc < instances.size (); doc++) {
+        FeatureSequence fs = (FeatureSequence) instances.get (doc).getData ();
+        int[] superTopics = pam.getSuperTopics ()[doc];
+        int[] subTopics = pam.getSubTopics ()[doc];
+        int[][] docCounts = new int[NUM_SUPER_TOPICS + 1][NUM_SUB_TOPICS + 1];
+        for (int position = 0; position < superTopics.length; position++) {
+          int superTopic = superTopics[position];
+          int subTopic = subTopics[position];
+          int topic = (superTopic == NUM_SUPER_TOPICS) ? 0 :
+            (subTopic == NUM_SUB_TOPICS) ? 1 + superTopic : 1 + NUM_SUPER_TOPICS + subTopic;
+          typeTopicCounts[ fs.getIndexAtPosition (position) ][topic]++;
+          tokensPerTopic[topic]++;
+          tokensPerSuperTopic[superTopic]++;
+          tokensPerSuperSubTopic[superTopic][subTopic]++;
+          docCounts[superTopic][subTopic]++;
+        }
+        for (int superTopic = 0; superTopic <= NUM_SUPER_TOPICS; superTopic++) {
+          int total = 0;
+          for (int subTopic = 0; subTopic <= NUM_SUB_TOPICS; subTopic++) {
+            total += docCounts[superTopic][subTopic];
+            if (superTopic < NUM_SUPER_TOPICS && docCounts[superTopic][subTopic] > 0) {
+              superSubTopicDocumentFrequencies[superTopic][subTopic]++;
+            }
+          }
+          if (total > 0) {
+            superTopicDocumentFrequencies[superTopic]++;
+          }
+        }
+      }
+
+      String threads = threadCounts[i] + " threads: ";
+      for (int type = 0; type < numTypes; type++) {
+        assertArrayEquals (threads + "type " + type, typeTopicCounts[type], pam.getTypeTopicCounts ()[type]);
+      }
+      assertArrayEquals (threads + "topic totals", tokensPerTopic, pam.getTokensPerTopic ());
+      assertArrayEquals (threads + "super-topic totals", tokensPerSuperTopic, pam.getTokensPerSuperTopic ());
+      assertArrayEquals (threads + "super-topic document frequencies",
+                         superTopicDocumentFrequencies, pam.getSuperTopicDocumentFrequencies ());
+      for (int superTopic = 0; superTopic <= NUM_SUPER_TOPICS; superTopic++) {
+        assertArrayEquals (threads + "super-topic " + superTopic,
+                           tokensPerSuperSubTopic[superTopic], pam.getTokensPerSuperSubTopic ()[superTopic]);
+        assertArrayEquals (threads + "document frequencies of super-topic " + superTopic,
+                           superSubTopicDocumentFrequencies[superTopic],
+                           pam.getSuperSubTopicDocumentFrequencies ()[superTopic]);
+      }
+    }
+  }
+
+  public static void main (String[] args)
+  {
+    junit.textui.TestRunner.run (suite ());
+  }
+}
@@ -0,0 +1,155 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.File;
+import java.util.Random;
+
+import cc.mallet.topics.PolylingualTopicModel;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.LabelSequence;
+import cc.mallet.util.FastRandoms;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the counts of the polylingual topic model after training on one
+ *  or several threads, and the inferencers it writes.
+ */
+public class TestPolylingualTopicModel extends TestCase {
+
+  private static final int NUM_TOPICS = 7;
+  private static final int NUM_LANGUAGES = 3;
+  private static final int NUM_DOCS = 80;
+
+  public TestPolylingualTopicModel (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestPolylingualTopicModel.class);
+  }
+
+  private static InstanceList[] corpus ()
+  {
+    InstanceList[] languages = new InstanceList[NUM_LANGUAGES];
+    for (int language = 0; language < NUM_LANGUAGES; language++) {
+      languages[language] =
+        SyntheticCorpus.generate (NUM_DOCS, 20 + 10 * language, 5, 20, new Random (language));
+    }
+    return languages;
+  }
+
+  private static PolylingualTopicModel train (InstanceList[] languages, int numThreads) throws Exception
+  {
+    PolylingualTopicModel model = new PolylingualTopicModel (NUM_TOPICS, 5.0, new FastRandoms (4));
+    model.setNumThreads (numThreads);
+    model.setNumIterations (30);
+    model.setBurninPeriod (5);
+    model.setOptimizeInterval (10);
+    model.setTopicDisplay (0, 5);
+    model.addInstances (languages);
+    model.estimate ();
+    return model;
+  }
+
+  public void testCountsMatchAssignments () throws Exception
+  {
+    InstanceList[] languages = corpus ();
+    int[] threadCounts = { 1, 2 };
+
+    for (int i = 0; i < threadCounts.length; i++) {
+      PolylingualTopicModel model = train (languages, threadCounts[i]);
+      int topicMask = model.getTopicMask ();
+      int topicBits = model.getTopicBits ();
+
+      for (int language = 0; language < NUM_LANGUAGES; language++) {
+        int numTypes = languages[language].getDataAlphabet ().size ();
+        int[][] expected = new int[numTypes][NUM_TOPICS];
+        int[] expectedTotals = new int[NUM_TOPICS];
+        for (PolylingualTopicModel.TopicAssignment document : model.getData ()) {
+          FeatureSequence tokens = (FeatureSequence) document.instances[language].getData ();
+          LabelSequence topics = document.topicSequences[language];
+          assertEquals (tokens.getLength (), topics.getLength ());
+          for (int position = 0; position < tokens.getLength (); position++) {
+            expected[ tokens.getIndexAtPosition (position) ][ topics.getIndexAtPosition (position) ]++;
+            expectedTotals[ topics.getIndexAtPosition (position) ]++;
+          }
+        }
+
+        String where = threadCounts[i] + " threads, language " + language;
+        int[][] typeTopicCounts = model.getTypeTopicCounts (language);
+        for (int type = 0; type < numTypes; type++) {
+          int[] actual = new int[NUM_TOPICS];
+          int previous = Integer.MAX_VALUE;
+          for (int index = 0; index < typeTopicCounts[type].length; index++) {
+            int count = typeTopicCounts[type][index] >> topicBits;
+            // Entries are in descending order of count, and zero after the last
+            assertTrue (where + ", type " + type + " out of order", count <= previous);
+            if (count == 0) {
+              assertEquals (0, typeTopicCounts[type][index]);
+            }
+            else {
+              actual[ typeTopicCounts[type][index] & topicMask ] += count;
+            }
+            previous = count;
+          }
+          for (int topic = 0; topic < NUM_TOPICS; topic++) {
+            assertEquals (where + ", type " + type + ", topic " + topic,
+                          expected[type][topic], actual[topic]);
+          }
+        }
+        for (int topic = 0; topic < NUM_TOPICS; topic++) {
+          assertEquals (where + ", total of topic " + topic,
+                        expectedTotals[topic], model.getTokensPerTopic (language)[topic]);
+        }
+      }
+    }
+  }
+
+  public void testWriteInferencers () throws Exception
+  {
+    InstanceList[] languages = corpus ();
+    PolylingualTopicModel model = train (languages, 1);
+
+    File prefix = File.createTempFile ("polylingual", ".inferencer");
+    prefix.deleteOnExit ();
+    model.writeInferencers (prefix.getPath ());
+
+    for (int language = 0; language < NUM_LANGUAGES; language++) {
+      File file = new File (prefix.getPath () + "." + language);
+      file.deleteOnExit ();
+      assertTrue (file.exists ());
+
+      TopicInferencer read = TopicInferencer.read (file);
+      TopicInferencer direct = model.getInferencer (language);
+      read.setRandomSeed (1);
+      direct.setRandomSeed (1);
+      for (int doc = 0; doc < 5; doc++) {
+        double[] readTopics = read.getSampledDistribution (languages[language].get (doc), 20, 1, 5);
+        double[] directTopics = direct.getSampledDistribution (languages[language].get (doc), 20, 1, 5);
+        assertEquals (NUM_TOPICS, readTopics.length);
+        double sum = 0.0;
+        for (int topic = 0; topic < NUM_TOPICS; topic++) {
+          assertEquals (directTopics[topic], readTopics[topic], 0.0);
+          sum += readTopics[topic];
+        }
+        assertEquals (1.0, sum, 1e-9);
+      }
+    }
+  }
+
+  public static void main (String[] args)
+  {
+    junit.textui.TestRunner.run (suite ());
+  }
+}
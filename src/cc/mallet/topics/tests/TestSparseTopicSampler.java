@@ -0,0 +1,239 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.Arrays;
+
+import cc.mallet.topics.SparseTopicSampler;
+import cc.mallet.util.Randoms;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Compares the sparse sampling kernel against dense calculations of the
+ *  same topic weights.
+ */
+public class TestSparseTopicSampler extends TestCase {
+
+  private static final int NUM_TOPICS = 6;
+  private static final int NUM_TYPES = 4;
+  private static final double BETA = 0.1;
+  private static final double BETA_SUM = BETA * NUM_TYPES;
+
+  private double[] alpha;
+  private int[][] counts; // dense reference, indexed by <type, topic>
+  private int[] tokensPerTopic;
+  private SparseTopicSampler sampler;
+
+  public TestSparseTopicSampler (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestSparseTopicSampler.class);
+  }
+
+  protected void setUp ()
+  {
+    alpha = new double[] { 0.1, 0.2, 0.3, 0.4, 0.5, 0.6 };
+    counts = new int[][] {
+      { 5, 0, 0, 2, 0, 0 },
+      { 0, 3, 0, 0, 0, 1 },
+      { 1, 1, 1, 1, 1, 1 },
+      { 0, 0, 0, 0, 0, 0 } };
+    tokensPerTopic = new int[NUM_TOPICS];
+    for (int type = 0; type < NUM_TYPES; type++) {
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        tokensPerTopic[topic] += counts[type][topic];
+      }
+    }
+
+    sampler = new SparseTopicSampler (NUM_TOPICS, NUM_TYPES, alpha, BETA, BETA_SUM, tokensPerTopic);
+    for (int type = 0; type < NUM_TYPES; type++) {
+      sampler.setTypeTopicCounts (type, counts[type]);
+    }
+  }
+
+  private double[] denseWeights (int type, double[] prior, int[] docCounts)
+  {
+    double[] weights = new double[NUM_TOPICS];
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      weights[topic] = (prior[topic] + docCounts[topic]) *
+        (BETA + counts[type][topic]) / (BETA_SUM + tokensPerTopic[topic]);
+    }
+    return weights;
+  }
+
+  private static double sum (double[] values)
+  {
+    double total = 0.0;
+    for (int i = 0; i < values.length; i++) {
+      total += values[i];
+    }
+    return total;
+  }
+
+  public void testPackedCounts ()
+  {
+    for (int type = 0; type < NUM_TYPES; type++) {
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        assertEquals (counts[type][topic], sampler.getTypeTopicCount (type, topic));
+      }
+    }
+    int[] row = sampler.getTypeTopicCounts ()[0];
+    assertEquals (5, row[0] >> sampler.getTopicBits ());
+    assertEquals (0, row[0] & sampler.getTopicMask ());
+  }
+
+  public void testWeightsMatchDense ()
+  {
+    int[] docTopics = { 0, 0, 3, 5 };
+    int[] docCounts = new int[NUM_TOPICS];
+    for (int i = 0; i < docTopics.length; i++) {
+      docCounts[docTopics[i]]++;
+    }
+
+    sampler.startDocument (docTopics, docTopics.length);
+    for (int type = 0; type < NUM_TYPES; type++) {
+      assertEquals (sum (denseWeights (type, alpha, docCounts)), sampler.getWeightSum (type), 1e-12);
+    }
+
+    // Move a token of type 0 from topic 0 to topic 4
+    sampler.removeToken (0, 0);
+    counts[0][0]--;
+    docCounts[0]--;
+    sampler.addToken (0, 4);
+    counts[0][4]++;
+    docCounts[4]++;
+    assertEquals (5, tokensPerTopic[0]);
+    assertEquals (2, tokensPerTopic[4]);
+
+    for (int type = 0; type < NUM_TYPES; type++) {
+      assertEquals (sum (denseWeights (type, alpha, docCounts)), sampler.getWeightSum (type), 1e-12);
+    }
+    sampler.finishDocument ();
+
+    double[] noDocument = denseWeights (1, alpha, new int[NUM_TOPICS]);
+    assertEquals (sum (noDocument), sampler.getWeightSum (1), 1e-12);
+  }
+
+  public void testDocumentPrior ()
+  {
+    double[] theta = { 0.5, 0.0, 0.0, 0.25, 0.25, 0.0 };
+    sampler.startDocument (theta);
+
+    // Only the type/topic counts change under a fixed prior
+    sampler.removeTypeTopic (1, 1);
+    counts[1][1]--;
+    sampler.addTypeTopic (1, 3);
+    counts[1][3]++;
+
+    int[] noDocument = new int[NUM_TOPICS];
+    for (int type = 0; type < NUM_TYPES; type++) {
+      assertEquals (sum (denseWeights (type, theta, noDocument)), sampler.getWeightSum (type), 1e-12);
+    }
+
+    Randoms random = new Randoms (1);
+    for (int i = 0; i < 1000; i++) {
+      int topic = sampler.sampleTopic (2, random);
+      assertTrue ("topic " + topic + " has zero prior", theta[topic] > 0);
+    }
+
+    sampler.finishDocument ();
+    assertEquals (sum (denseWeights (0, alpha, noDocument)), sampler.getWeightSum (0), 1e-12);
+  }
+
+  public void testSampleDistribution ()
+  {
+    int[] docTopics = { 1, 1, 2, 4, 4, 4 };
+    int[] docCounts = new int[NUM_TOPICS];
+    for (int i = 0; i < docTopics.length; i++) {
+      docCounts[docTopics[i]]++;
+    }
+    sampler.startDocument (docTopics, docTopics.length);
+
+    for (int type = 0; type < NUM_TYPES; type++) {
+      double[] weights = denseWeights (type, alpha, docCounts);
+      double total = sum (weights);
+
+      Randoms random = new Randoms (type + 1);
+      int numSamples = 100000;
+      int[] sampled = new int[NUM_TOPICS];
+      for (int i = 0; i < numSamples; i++) {
+        sampled[sampler.sampleTopic (type, random)]++;
+      }
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        assertEquals ("type " + type + " topic " + topic,
+                      weights[topic] / total, (double) sampled[topic] / numSamples, 0.01);
+      }
+    }
+    sampler.finishDocument ();
+  }
+
+  public void testRandomUpdatesKeepRowsSorted ()
+  {
+    Randoms random = new Randoms (42);
+    int[] docTopics = new int[20];
+    int[] docTypes = new int[20];
+    for (int position = 0; position < docTopics.length; position++) {
+      docTypes[position] = random.nextInt (NUM_TYPES);
+      docTopics[position] = random.nextInt (NUM_TOPICS);
+      sampler.addTypeTopic (docTypes[position], docTopics[position]);
+      counts[docTypes[position]][docTopics[position]]++;
+    }
+
+    for (int iteration = 0; iteration < 50; iteration++) {
+      sampler.startDocument (docTopics, docTopics.length);
+      for (int position = 0; position < docTopics.length; position++) {
+        int type = docTypes[position];
+        sampler.removeToken (type, docTopics[position]);
+        counts[type][docTopics[position]]--;
+        docTopics[position] = sampler.sampleTopic (type, random);
+        sampler.addToken (type, docTopics[position]);
+        counts[type][docTopics[position]]++;
+      }
+      sampler.finishDocument ();
+    }
+
+    int[] totals = new int[NUM_TOPICS];
+    for (int type = 0; type < NUM_TYPES; type++) {
+      int[] row = sampler.getTypeTopicCounts ()[type];
+      for (int i = 1; i < row.length; i++) {
+        assertTrue ("row " + type + " not sorted", row[i - 1] >= row[i]);
+      }
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        assertEquals (counts[type][topic], sampler.getTypeTopicCount (type, topic));
+        totals[topic] += counts[type][topic];
+      }
+    }
+    assertTrue (Arrays.equals (totals, tokensPerTopic));
+
+    // The incrementally maintained buckets agree with a fresh calculation
+    double before = sampler.getWeightSum (0);
+    sampler.resetSmoothing ();
+    assertEquals (sampler.getWeightSum (0), before, 1e-12);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestSparseTopicSampler (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) TestSparseTopicSampler.suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
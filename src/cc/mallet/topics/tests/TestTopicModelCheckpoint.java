@@ -0,0 +1,171 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.topics.TopicModelCheckpoint;
+import cc.mallet.types.InstanceList;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that a checkpoint written and read back restores the same
+ *  state, and that sampling resumed from a checkpoint repeats the
+ *  run that wrote it.
+ */
+public class TestTopicModelCheckpoint extends TestCase {
+
+  public TestTopicModelCheckpoint (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestTopicModelCheckpoint.class);
+  }
+
+  private static InstanceList corpus ()
+  {
+    return SyntheticCorpus.generate (60, 40, 5, 30, new Random (2));
+  }
+
+  private static ParallelTopicModel model (InstanceList instances, int numTopics, int numThreads,
+                                           int numIterations) throws Exception
+  {
+    ParallelTopicModel model = new ParallelTopicModel (numTopics, 5.0, 0.01);
+    model.setRandomSeed (1);
+    model.setNumThreads (numThreads);
+    model.setNumIterations (numIterations);
+    model.setBurninPeriod (5);
+    model.setOptimizeInterval (5);
+    model.setTopicDisplay (0, 5);
+    model.addInstances (instances);
+    return model;
+  }
+
+  private static int[][] assignments (ParallelTopicModel model)
+  {
+    int[][] topics = new int[model.getData ().size ()][];
+    for (int doc = 0; doc < topics.length; doc++) {
+      TopicAssignment document = model.getData ().get (doc);
+      topics[doc] = Arrays.copyOf (document.topicSequence.getFeatures (),
+                                   document.topicSequence.getLength ());
+    }
+    return topics;
+  }
+
+  private static void assertSameState (String message, ParallelTopicModel expected, ParallelTopicModel actual)
+  {
+    int[][] expectedTopics = assignments (expected);
+    int[][] actualTopics = assignments (actual);
+    for (int doc = 0; doc < expectedTopics.length; doc++) {
+      assertTrue (message + " document " + doc, Arrays.equals (expectedTopics[doc], actualTopics[doc]));
+    }
+    for (int type = 0; type < expected.typeTopicCounts.length; type++) {
+      assertTrue (message + " type " + type,
+                  Arrays.equals (expected.typeTopicCounts[type], actual.typeTopicCounts[type]));
+    }
+    assertTrue (message + " totals", Arrays.equals (expected.tokensPerTopic, actual.tokensPerTopic));
+    assertTrue (message + " alpha", Arrays.equals (expected.alpha, actual.alpha));
+    assertEquals (message + " beta", expected.beta, actual.beta, 0.0);
+  }
+
+  public void testRoundTrip () throws Exception
+  {
+    InstanceList instances = corpus ();
+    // Topic counts whose bit widths do and do not divide 64
+    int[] topicCounts = { 3, 5, 7, 11, 33 };
+
+    for (int i = 0; i < topicCounts.length; i++) {
+      int numTopics = topicCounts[i];
+      ParallelTopicModel original = model (instances, numTopics, 1, 0);
+
+      // Leave some tokens unassigned, including runs that cross packed words
+      Random random = new Random (numTopics);
+      for (TopicAssignment document : original.getData ()) {
+        int[] topics = document.topicSequence.getFeatures ();
+        for (int position = 0; position < document.topicSequence.getLength (); position++) {
+          if (random.nextInt (4) == 0) {
+            topics[position] = ParallelTopicModel.UNASSIGNED_TOPIC;
+          }
+        }
+      }
+      original.buildInitialTypeTopicCounts ();
+      original.alpha[0] = 0.25;
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+      DataOutputStream out = new DataOutputStream (bytes);
+      TopicModelCheckpoint.take (original).write (out);
+      out.close ();
+
+      ParallelTopicModel restored = model (instances, numTopics, 1, 0);
+      TopicModelCheckpoint.read (new DataInputStream (new ByteArrayInputStream (bytes.toByteArray ())))
+        .restore (restored);
+      assertSameState (numTopics + " topics", original, restored);
+
+      File file = File.createTempFile ("checkpoint", ".bin");
+      try {
+        TopicModelCheckpoint.take (original).write (file);
+        ParallelTopicModel fromFile = model (instances, numTopics, 1, 0);
+        fromFile.resumeFromCheckpoint (file);
+        assertSameState (numTopics + " topics from file", original, fromFile);
+      } finally {
+        file.delete ();
+      }
+    }
+  }
+
+  public void testExactResume () throws Exception
+  {
+    InstanceList instances = corpus ();
+    int numTopics = 6;
+    int numIterations = 25;
+    int checkpointIteration = 12;
+    int[] threadCounts = { 1, 2 };
+
+    for (int i = 0; i < threadCounts.length; i++) {
+      int numThreads = threadCounts[i];
+
+      ParallelTopicModel full = model (instances, numTopics, numThreads, numIterations);
+      full.estimate ();
+
+      File prefix = File.createTempFile ("checkpoint", "");
+      File checkpointFile = new File (prefix.getPath () + '.' + checkpointIteration);
+      try {
+        ParallelTopicModel first = model (instances, numTopics, numThreads, checkpointIteration);
+        first.setCheckpoint (checkpointIteration, prefix.getPath ());
+        first.estimate ();
+
+        ParallelTopicModel resumed = model (instances, numTopics, numThreads, numIterations);
+        resumed.resumeFromCheckpoint (checkpointFile);
+        resumed.estimate ();
+
+        assertSameState (numThreads + " threads", full, resumed);
+      } finally {
+        prefix.delete ();
+        checkpointFile.delete ();
+      }
+    }
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    junit.textui.TestRunner.run (suite ());
+  }
+
+}
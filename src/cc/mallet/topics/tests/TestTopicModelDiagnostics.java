@@ -0,0 +1,176 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.topics.TopicModelDiagnostics;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.IDSorter;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.LabelSequence;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the co-document counts and coherence scores of the topic model
+ *  diagnostics against a direct count over the documents.
+ */
+public class TestTopicModelDiagnostics extends TestCase {
+
+  private static final int NUM_TOPICS = 6;
+  // More than some topics have words, so some positions stay empty
+  private static final int NUM_TOP_WORDS = 25;
+
+  public TestTopicModelDiagnostics (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestTopicModelDiagnostics.class);
+  }
+
+  public void testCountIntersection ()
+  {
+    assertEquals (0, TopicModelDiagnostics.countIntersection (new int[0], new int[0]));
+    assertEquals (0, TopicModelDiagnostics.countIntersection (new int[0], new int[] { 1, 2 }));
+    assertEquals (0, TopicModelDiagnostics.countIntersection (new int[] { 1, 3, 5 }, new int[] { 0, 2, 4, 6 }));
+    assertEquals (3, TopicModelDiagnostics.countIntersection (new int[] { 2, 4, 9 }, new int[] { 2, 4, 9 }));
+    assertEquals (2, TopicModelDiagnostics.countIntersection (new int[] { 0, 2, 4, 7, 9 }, new int[] { 1, 2, 3, 9 }));
+    assertEquals (1, TopicModelDiagnostics.countIntersection (new int[] { 5 }, new int[] { 1, 2, 3, 4, 5 }));
+  }
+
+  private static ParallelTopicModel train () throws Exception
+  {
+    InstanceList instances = SyntheticCorpus.generate (120, 30, 6, 25, new Random (3));
+    ParallelTopicModel model = new ParallelTopicModel (NUM_TOPICS, 3.0, 0.01);
+    model.setRandomSeed (5);
+    model.setNumIterations (50);
+    model.setTopicDisplay (0, 5);
+    model.addInstances (instances);
+    model.estimate ();
+    return model;
+  }
+
+  /** The top word indices of each topic, in the order the diagnostics use. */
+  private static int[][] topWords (ParallelTopicModel model)
+  {
+    ArrayList<TreeSet<IDSorter>> sortedWords = model.getSortedWords ();
+    int[][] topWords = new int[NUM_TOPICS][];
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      int limit = Math.min (NUM_TOP_WORDS, sortedWords.get (topic).size ());
+      topWords[topic] = new int[limit];
+      Iterator<IDSorter> iterator = sortedWords.get (topic).iterator ();
+      for (int i = 0; i < limit; i++) {
+        topWords[topic][i] = iterator.next ().getID ();
+      }
+    }
+    return topWords;
+  }
+
+  /** For each topic and pair of top words, the documents in which both are assigned to that topic. */
+  private static int[][][] bruteForceMatrices (ParallelTopicModel model, int[][] topWords)
+  {
+    int[][][] matrices = new int[NUM_TOPICS][NUM_TOP_WORDS][NUM_TOP_WORDS];
+    for (TopicAssignment document : model.getData ()) {
+      FeatureSequence tokens = (FeatureSequence) document.instance.getData ();
+      LabelSequence topics = document.topicSequence;
+
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        Set<Integer> present = new HashSet<Integer> ();
+        for (int position = 0; position < tokens.getLength (); position++) {
+          if (topics.getIndexAtPosition (position) == topic) {
+            present.add (tokens.getIndexAtPosition (position));
+          }
+        }
+
+        for (int i = 0; i < topWords[topic].length; i++) {
+          for (int j = 0; j < topWords[topic].length; j++) {
+            if (present.contains (topWords[topic][i]) && present.contains (topWords[topic][j])) {
+              matrices[topic][i][j]++;
+            }
+          }
+        }
+      }
+    }
+    return matrices;
+  }
+
+  public void testCodocumentCountsAndCoherence () throws Exception
+  {
+    ParallelTopicModel model = train ();
+    int[][] topWords = topWords (model);
+    int[][][] expected = bruteForceMatrices (model, topWords);
+
+    boolean someTopicIsShort = false;
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      if (topWords[topic].length < NUM_TOP_WORDS) { someTopicIsShort = true; }
+    }
+    assertTrue (someTopicIsShort);
+
+    int[] threadCounts = { 1, 3 };
+    double[][] firstWordScores = null;
+
+    for (int t = 0; t < threadCounts.length; t++) {
+      TopicModelDiagnostics diagnostics =
+        new TopicModelDiagnostics (model, NUM_TOP_WORDS, threadCounts[t], 1.0);
+
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        int[][] matrix = diagnostics.getCodocumentMatrix (topic);
+        for (int i = 0; i < NUM_TOP_WORDS; i++) {
+          for (int j = 0; j < NUM_TOP_WORDS; j++) {
+            assertEquals ("threads " + threadCounts[t] + " topic " + topic + " [" + i + "][" + j + "]",
+                          expected[topic][i][j], matrix[i][j]);
+          }
+        }
+      }
+
+      TopicModelDiagnostics.TopicScores coherence = diagnostics.getCoherence ();
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        int[][] matrix = expected[topic];
+        double topicScore = 0.0;
+        for (int row = 0; row < NUM_TOP_WORDS; row++) {
+          double minScore = 0.0;
+          for (int col = 0; col < row; col++) {
+            double score = Math.log ((matrix[row][col] + model.beta) / (matrix[col][col] + model.beta));
+            topicScore += score;
+            minScore = Math.min (minScore, score);
+          }
+          assertEquals (minScore, coherence.topicWordScores[topic][row], 1e-12);
+        }
+        assertEquals (topicScore, coherence.scores[topic], 1e-9);
+      }
+
+      if (firstWordScores == null) {
+        firstWordScores = coherence.topicWordScores;
+      }
+      else {
+        for (int topic = 0; topic < NUM_TOPICS; topic++) {
+          for (int row = 0; row < NUM_TOP_WORDS; row++) {
+            assertEquals (firstWordScores[topic][row], coherence.topicWordScores[topic][row], 0.0);
+          }
+        }
+      }
+    }
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    junit.textui.TestRunner.run (suite ());
+  }
+
+}
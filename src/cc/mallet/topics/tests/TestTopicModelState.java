@@ -0,0 +1,196 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://mallet.cs.umass.edu/
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import junit.framework.TestCase;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that a model initialized from a saved state, text or binary,
+ *  has the assignments and counts of the model that saved it.
+ */
+public class TestTopicModelState extends TestCase {
+
+  private static final int NUM_TOPICS = 7;
+
+  private File stateFile;
+
+  public TestTopicModelState (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestTopicModelState.class);
+  }
+
+  protected void setUp () throws Exception
+  {
+    stateFile = File.createTempFile ("state", ".gz");
+  }
+
+  protected void tearDown ()
+  {
+    stateFile.delete ();
+  }
+
+  /** Documents whose sources contain spaces, as file names may. */
+  private static InstanceList corpus ()
+  {
+    Random random = new Random (6);
+    Alphabet alphabet = SyntheticCorpus.alphabet (50);
+    InstanceList instances = new InstanceList (new Noop (alphabet, null));
+    for (int doc = 0; doc < 40; doc++) {
+      int length = 1 + random.nextInt (40);
+      String source = "file " + doc + "  with spaces.txt";
+      instances.add (new Instance (SyntheticCorpus.document (alphabet, 5, length, random),
+                                   null, "doc" + doc, source));
+    }
+    return instances;
+  }
+
+  private static ParallelTopicModel model (InstanceList instances, int seed)
+  {
+    ParallelTopicModel model = new ParallelTopicModel (NUM_TOPICS, 5.0, 0.01);
+    model.setRandomSeed (seed);
+    model.addInstances (instances);
+    return model;
+  }
+
+  private static void assertSameState (String message, ParallelTopicModel expected, ParallelTopicModel actual)
+  {
+    for (int doc = 0; doc < expected.getData ().size (); doc++) {
+      TopicAssignment expectedDocument = expected.getData ().get (doc);
+      TopicAssignment actualDocument = actual.getData ().get (doc);
+      int length = expectedDocument.topicSequence.getLength ();
+      assertTrue (message + " document " + doc,
+                  Arrays.equals (Arrays.copyOf (expectedDocument.topicSequence.getFeatures (), length),
+                                 Arrays.copyOf (actualDocument.topicSequence.getFeatures (), length)));
+    }
+    // The order of a type's non-zero counts may differ, but not the counts
+    for (int type = 0; type < expected.typeTopicCounts.length; type++) {
+      int[] expectedCounts = expected.typeTopicCounts[type].clone ();
+      int[] actualCounts = actual.typeTopicCounts[type].clone ();
+      Arrays.sort (expectedCounts);
+      Arrays.sort (actualCounts);
+      assertTrue (message + " type " + type, Arrays.equals (expectedCounts, actualCounts));
+    }
+    assertTrue (message + " totals", Arrays.equals (expected.tokensPerTopic, actual.tokensPerTopic));
+  }
+
+  private void writeText (String state) throws Exception
+  {
+    PrintStream out = new PrintStream (new GZIPOutputStream (new FileOutputStream (stateFile)));
+    out.print (state);
+    out.close ();
+  }
+
+  private static String textState (ParallelTopicModel model)
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+    PrintStream out = new PrintStream (bytes);
+    model.printState (out);
+    out.close ();
+    return bytes.toString ();
+  }
+
+  public void testTextStateAcrossBlocks () throws Exception
+  {
+    InstanceList instances = corpus ();
+    ParallelTopicModel original = model (instances, 1);
+    original.printState (stateFile);
+
+    // Blocks smaller than a line, a few lines, and the default
+    int[] chunkSizes = { 1, 17, 64, 1000, 1 << 20 };
+    int[] threadCounts = { 1, 3 };
+
+    for (int i = 0; i < chunkSizes.length; i++) {
+      for (int t = 0; t < threadCounts.length; t++) {
+        ParallelTopicModel restored = model (instances, 2);
+        restored.setNumThreads (threadCounts[t]);
+        restored.setStateChunkSize (chunkSizes[i]);
+        restored.initializeFromState (stateFile);
+        assertSameState ("block " + chunkSizes[i] + " threads " + threadCounts[t], original, restored);
+      }
+    }
+  }
+
+  public void testSourcesWithSpaces () throws Exception
+  {
+    InstanceList instances = corpus ();
+    ParallelTopicModel original = model (instances, 1);
+    String state = textState (original);
+    assertTrue (state.indexOf (" file 0  with spaces.txt ") > 0);
+
+    writeText (state);
+    ParallelTopicModel restored = model (instances, 2);
+    restored.initializeFromState (stateFile);
+    assertSameState ("spaces", original, restored);
+  }
+
+  public void testTokenCountMismatch () throws Exception
+  {
+    InstanceList instances = corpus ();
+    String state = textState (model (instances, 1));
+
+    // Drop the last token
+    String truncated = state.substring (0, state.lastIndexOf ('\n', state.length () - 2) + 1);
+    writeText (truncated);
+    ParallelTopicModel restored = model (instances, 2);
+    restored.setStateChunkSize (64);
+    try {
+      restored.initializeFromState (stateFile);
+      fail ("Expected a token count mismatch");
+    } catch (IllegalStateException e) {
+      assertTrue (e.getMessage (), e.getMessage ().indexOf ("do not match") >= 0);
+    }
+
+    // A state for a different corpus
+    writeText (textState (model (SyntheticCorpus.generate (40, 50, 5, 40, new Random (9)), 1)));
+    restored = model (instances, 2);
+    try {
+      restored.initializeFromState (stateFile);
+      fail ("Expected a mismatch with another corpus");
+    } catch (IllegalStateException e) {
+      assertTrue (e.getMessage (), e.getMessage ().indexOf ("do not match") >= 0);
+    }
+  }
+
+  public void testBinaryState () throws Exception
+  {
+    InstanceList instances = corpus ();
+    ParallelTopicModel original = model (instances, 1);
+    original.setBinaryState (true);
+    original.printState (stateFile);
+
+    ParallelTopicModel restored = model (instances, 2);
+    restored.initializeFromState (stateFile);
+    assertSameState ("binary", original, restored);
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    junit.textui.TestRunner.run (suite ());
+  }
+
+}
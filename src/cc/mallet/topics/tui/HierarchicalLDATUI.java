@@ -1,6 +1,7 @@
 package cc.mallet.topics.tui;
 
 import cc.mallet.util.CommandOption;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
 import cc.mallet.types.InstanceList;
 import cc.mallet.topics.HierarchicalLDA;
@@ -59,6 +60,11 @@ public class HierarchicalLDATUI {
 	static CommandOption.Double eta = new CommandOption.Double
 		(HierarchicalLDATUI.class, "eta", "DECIMAL", true, 0.1,
 		 "Eta parameter: smoothing over topic-word distributions", null);
+
+	static CommandOption.Integer numThreads = new CommandOption.Integer
+		(HierarchicalLDATUI.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for sampling.  With more than one, paths and levels " +
+		 "are sampled in parallel against counts that are merged once per iteration.", null);
 	
 	public static void main (String[] args) throws java.io.IOException {
 
@@ -93,14 +99,16 @@ public class HierarchicalLDATUI {
 		hlda.setTopicDisplay(showTopicsInterval.value(), topWords.value());
 		hlda.setProgressDisplay(showProgress.value());
 
+		hlda.setNumThreads(numThreads.value());
+
 		// Initialize random number generator
 
 		Randoms random = null;
 		if (randomSeed.value() == 0) {
-			random = new Randoms();
+			random = new FastRandoms();
 		}
 		else {
-			random = new Randoms(randomSeed.value());
+			random = new FastRandoms(randomSeed.value());
 		}
 
 		// Initialize and start the sampler
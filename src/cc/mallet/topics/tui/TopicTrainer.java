@@ -40,6 +40,12 @@ public class TopicTrainer {
 		 "The original input file must be included, using --input. " + 
 		 "By default this is null, indicating that no file will be read.", null);
 
+	static CommandOption.String inputCheckpointFilename = new CommandOption.String
+		(TopicTrainer.class, "input-checkpoint", "FILENAME", true, null,
+		 "The filename from which to read a binary checkpoint created by --output-checkpoint, " +
+		 "continuing from the iteration after it was written. The original input file must be included, using --input. " +
+		 "By default this is null, indicating that no file will be read.", null);
+
 	// Model output options
 
 	static CommandOption.String outputModelFilename = new CommandOption.String
@@ -57,11 +63,26 @@ public class TopicTrainer {
 		 "The number of iterations between writing the model (and its Gibbs sampling state) to a binary file.  " +
 		 "You must also set the --output-model to use this option, whose argument will be the prefix of the filenames.", null);
 
+	static CommandOption.Boolean binaryState = new CommandOption.Boolean
+		(TopicTrainer.class, "binary-state", "true|false", false, false,
+		 "Write the --output-state files in a binary format, which is much smaller and faster to write and read than gzipped text. " +
+		 "The --input-state option reads either format.", null);
+
     static CommandOption.Integer outputStateInterval = new CommandOption.Integer
         (TopicTrainer.class, "output-state-interval", "INTEGER", true, 0,
          "The number of iterations between writing the sampling state to a text file.  " +
          "You must also set the --output-state to use this option, whose argument will be the prefix of the filenames.", null);
 
+	static CommandOption.String checkpointFilename = new CommandOption.String
+		(TopicTrainer.class, "output-checkpoint", "FILENAME", true, null,
+		 "The prefix of the filenames in which to write binary checkpoints of the sampling state.  " +
+		 "By default this is null, indicating that no file will be written.", null);
+
+	static CommandOption.Integer checkpointInterval = new CommandOption.Integer
+		(TopicTrainer.class, "output-checkpoint-interval", "INTEGER", true, 0,
+		 "The number of iterations between writing checkpoints, which are written while sampling continues.  " +
+		 "You must also set the --output-checkpoint to use this option.", null);
+
 	// Tools
 
     static CommandOption.String inferencerFilename = new CommandOption.String
@@ -104,6 +125,11 @@ public class TopicTrainer {
          "The filename in which to write measures of topic quality, in XML format.  " +
 		 "By default this is null, indicating that no file will be written.", null);
 
+	static CommandOption.Double diagnosticsSampleRate = new CommandOption.Double
+		(TopicTrainer.class, "diagnostics-sample-rate", "DECIMAL", true, 1.0,
+		 "When writing measures of topic quality with --diagnostics-file, " +
+		 "estimate the scores that depend on documents from this fraction of the documents.", null);
+
 	static CommandOption.String topicReportXMLFile = new CommandOption.String
 		(TopicTrainer.class, "xml-topic-report", "FILENAME", true, null,
          "The filename in which to write the top words for each topic and any Dirichlet parameters in XML format.  " +
@@ -199,6 +225,9 @@ public class TopicTrainer {
 			if (inputStateFilename.value != null) {
 				logger.warning("The --input-state option is not compatible with --input-model.");
 			}
+			if (inputCheckpointFilename.value != null) {
+				logger.warning("The --input-checkpoint option is not compatible with --input-model.");
+			}
 			
 			try {
 				topicModel = ParallelTopicModel.read(new File(inputModelFilename.value));
@@ -242,9 +271,16 @@ public class TopicTrainer {
 			topicModel.addInstances(training);
 
 			if (inputStateFilename.value != null) {
+				// The state is parsed by this many threads
+				topicModel.setNumThreads(numThreads.value);
 				logger.info("Initializing from saved state.");
 				topicModel.initializeFromState(new File(inputStateFilename.value));
 			}
+
+			if (inputCheckpointFilename.value != null) {
+				logger.info("Resuming from checkpoint.");
+				topicModel.resumeFromCheckpoint(new File(inputCheckpointFilename.value));
+			}
 		}
 
 		topicModel.setTopicDisplay(showTopicsInterval.value, topWords.value);
@@ -254,10 +290,16 @@ public class TopicTrainer {
 		topicModel.setBurninPeriod(optimizeBurnIn.value);
 		topicModel.setSymmetricAlpha(useSymmetricAlpha.value);
 
+		topicModel.setBinaryState(binaryState.value);
+
 		if (outputStateInterval.value != 0) {
 			topicModel.setSaveState(outputStateInterval.value, stateFile.value);
 		}
 
+		if (checkpointInterval.value != 0) {
+			topicModel.setCheckpoint(checkpointInterval.value, checkpointFilename.value);
+		}
+
 		if (outputModelInterval.value != 0) {
 			topicModel.setSaveSerializedModel(outputModelInterval.value, outputModelFilename.value);
 		}
@@ -274,7 +316,9 @@ public class TopicTrainer {
 
 		if (diagnosticsFile.value != null) {
 			PrintWriter out = new PrintWriter(diagnosticsFile.value);
-			TopicModelDiagnostics diagnostics = new TopicModelDiagnostics(topicModel, topWords.value);
+			TopicModelDiagnostics diagnostics =
+				new TopicModelDiagnostics(topicModel, topWords.value,
+										  numThreads.value, diagnosticsSampleRate.value);
 			out.println(diagnostics.toXML());
 			out.close();
 		}
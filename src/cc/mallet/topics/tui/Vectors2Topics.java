@@ -8,6 +8,7 @@
 package cc.mallet.topics.tui;
 
 import cc.mallet.util.CommandOption;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
 import cc.mallet.types.InstanceList;
 import cc.mallet.types.FeatureSequence;
@@ -206,10 +207,11 @@ public class Vectors2Topics {
 			if (inputModelFilename.value != null)
 				throw new IllegalArgumentException ("--input-model not supported with --use-pam.");
 			PAM4L pam = new PAM4L(pamNumSupertopics.value, pamNumSubtopics.value);
+			pam.setNumThreads(numThreads.value);
 			pam.estimate (ilist, numIterations.value, /*optimizeModelInterval*/50,
 						  showTopicsInterval.value,
 						  outputModelInterval.value, outputModelFilename.value, 
-						  randomSeed.value == 0 ? new Randoms() : new Randoms(randomSeed.value));
+						  randomSeed.value == 0 ? new FastRandoms() : new FastRandoms(randomSeed.value));
 			pam.printTopWords(topWords.value, true);
 			if (stateFile.value != null)
 				pam.printState (new File(stateFile.value));
@@ -277,8 +279,6 @@ public class Vectors2Topics {
 			
 			PolylingualTopicModel topicModel = null;
 
-			int numLanguages = languageInputFiles.value.length;
-
 			InstanceList[] training = new InstanceList[ languageInputFiles.value.length ];
 			for (int i=0; i < training.length; i++) {
 				training[i] = InstanceList.load(new File(languageInputFiles.value[i]));
@@ -310,6 +310,7 @@ public class Vectors2Topics {
 			topicModel.setTopicDisplay(showTopicsInterval.value, topWords.value);
 
 			topicModel.setNumIterations(numIterations.value);
+			topicModel.setNumThreads(numThreads.value);
 			topicModel.setOptimizeInterval(optimizeInterval.value);
 			topicModel.setBurninPeriod(optimizeBurnIn.value);
 
@@ -339,14 +340,7 @@ public class Vectors2Topics {
 
             if (inferencerFilename.value != null) {
                 try {
-					for (int language = 0; language < numLanguages; language++) {
-
-						ObjectOutputStream oos =
-							new ObjectOutputStream(new FileOutputStream(inferencerFilename.value + "." + language));
-						oos.writeObject(topicModel.getInferencer(language));
-						oos.close();
-					}
-
+					topicModel.writeInferencers(inferencerFilename.value);
                 } catch (Exception e) {
                     System.err.println(e.getMessage());
                 }
@@ -0,0 +1,181 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.types;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * An immutable FeatureSequence that packs each feature index into just
+ * as many bits as the size of its Alphabet requires, rather than a full
+ * int.  A vocabulary of 50,000 words takes 16 bits per token, halving the
+ * memory of a corpus; a vocabulary of 200 takes 8.
+ * <p>
+ * Positions are still decoded in constant time, so samplers that walk
+ * through the tokens with {@link #getIndexAtPosition(int)} (such as
+ * ParallelTopicModel) work unchanged.  {@link #getFeatures()} returns a
+ * decoded copy, and {@link #add(int)} is not supported.
+ */
+public class CompressedFeatureSequence extends FeatureSequence implements Serializable
+{
+	private static final int[] NO_FEATURES = new int[0];
+
+	int bitsPerFeature;
+	long mask;
+	long[] packed;
+
+	public CompressedFeatureSequence (Alphabet dict, int[] features, int length)
+	{
+		super (dict, 0);
+		pack (features, length, bitsFor (dict, features, length));
+	}
+
+	public CompressedFeatureSequence (Alphabet dict, int[] features)
+	{
+		this (dict, features, features.length);
+	}
+
+	public CompressedFeatureSequence (FeatureSequence fs)
+	{
+		this (fs.getAlphabet (), fs.toFeatureIndexSequence ());
+	}
+
+	/** Returns the number of bits needed to store the largest index of
+	 * the alphabet, or of the features if they contain a larger one. */
+	private static int bitsFor (Alphabet dict, int[] features, int length)
+	{
+		int max = dict == null ? 0 : dict.size () - 1;
+		for (int i = 0; i < length; i++) {
+			if (features[i] < 0)
+				throw new IllegalArgumentException ("Negative feature index "+features[i]);
+			if (features[i] > max)
+				max = features[i];
+		}
+		return Math.max (1, 32 - Integer.numberOfLeadingZeros (max));
+	}
+
+	private void pack (int[] src, int len, int bits)
+	{
+		this.features = NO_FEATURES;
+		this.length = len;
+		this.bitsPerFeature = bits;
+		this.mask = (1L << bits) - 1;
+		this.packed = new long[(int) (((long) len * bits + 63) >>> 6)];
+		long bitPos = 0;
+		for (int i = 0; i < len; i++, bitPos += bits) {
+			int word = (int) (bitPos >>> 6);
+			int shift = (int) (bitPos & 63);
+			packed[word] |= ((long) src[i]) << shift;
+			if (shift + bits > 64)
+				packed[word + 1] |= ((long) src[i]) >>> (64 - shift);
+		}
+	}
+
+	public int getIndexAtPosition (int pos)
+	{
+		if (pos >= length)
+			throw new ArrayIndexOutOfBoundsException (pos);
+		long bitPos = (long) pos * bitsPerFeature;
+		int word = (int) (bitPos >>> 6);
+		int shift = (int) (bitPos & 63);
+		long value = packed[word] >>> shift;
+		if (shift + bitsPerFeature > 64)
+			value |= packed[word + 1] << (64 - shift);
+		return (int) (value & mask);
+	}
+
+	/** Returns a newly decoded array of the feature indices. */
+	public int[] getFeatures ()
+	{
+		return toFeatureIndexSequence ();
+	}
+
+	public int[] toFeatureIndexSequence ()
+	{
+		int[] feats = new int[length];
+		for (int i = 0; i < length; i++)
+			feats[i] = getIndexAtPosition (i);
+		return feats;
+	}
+
+	/** Returns the number of bits used by each feature index. */
+	public int getBitsPerFeature ()
+	{
+		return bitsPerFeature;
+	}
+
+	public Object getObjectAtPosition (int pos)
+	{
+		return dictionary.lookupObject (getIndexAtPosition (pos));
+	}
+
+	public Object get (int pos)
+	{
+		return dictionary.lookupObject (getIndexAtPosition (pos));
+	}
+
+	public String toString ()
+	{
+		return new FeatureSequence (dictionary, toFeatureIndexSequence ()).toString ();
+	}
+
+	public void add (int featureIndex)
+	{
+		throw new UnsupportedOperationException ("CompressedFeatureSequence is immutable");
+	}
+
+	public void add (Object key)
+	{
+		throw new UnsupportedOperationException ("CompressedFeatureSequence is immutable");
+	}
+
+	public void addFeatureWeightsTo (double[] weights)
+	{
+		for (int i = 0; i < length; i++)
+			weights[getIndexAtPosition (i)]++;
+	}
+
+	public void addFeatureWeightsTo (double[] weights, double scale)
+	{
+		for (int i = 0; i < length; i++)
+			weights[getIndexAtPosition (i)] += scale;
+	}
+
+	public void prune (double[] counts, Alphabet newAlphabet, int cutoff)
+	{
+		FeatureSequence fs = new FeatureSequence (dictionary, toFeatureIndexSequence ());
+		fs.prune (counts, newAlphabet, cutoff);
+		dictionary = newAlphabet;
+		pack (fs.features, fs.length, bitsFor (newAlphabet, fs.features, fs.length));
+	}
+
+	// Serialization
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt (CURRENT_SERIAL_VERSION);
+		out.writeInt (bitsPerFeature);
+		out.writeInt (packed.length);
+		for (int i = 0; i < packed.length; i++)
+			out.writeLong (packed[i]);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		int version = in.readInt ();
+		bitsPerFeature = in.readInt ();
+		mask = (1L << bitsPerFeature) - 1;
+		packed = new long[in.readInt ()];
+		for (int i = 0; i < packed.length; i++)
+			packed[i] = in.readLong ();
+	}
+
+}
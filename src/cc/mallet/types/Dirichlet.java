@@ -583,11 +583,8 @@ Bernoulli numbers. */
 			parametersSum += parameters[k];
 		}
 
-		double oldParametersK;
-		double currentDigamma;
 		double denominator;
 
-		int nonZeroLimit;
 		int[] nonZeroLimits = new int[observations.length];
 		Arrays.fill(nonZeroLimits, -1);
 
@@ -613,47 +610,67 @@ Bernoulli numbers. */
 
 		for (int iteration=0; iteration<numIterations; iteration++) {
 
-			// Calculate the denominator
-			denominator = 0;
-			currentDigamma = 0;
-
-			// Iterate over the histogram:
-			for (i=1; i<observationLengths.length; i++) {
-				currentDigamma += 1 / (parametersSum + i - 1);
-				denominator += observationLengths[i] * currentDigamma;
-			}
-
-			// Bayesian estimation Part I
-			denominator -= 1/scale;
+			denominator = fixedPointDenominator(observationLengths, parametersSum, scale);
 
 			// Calculate the individual parameters
 
 			parametersSum = 0;
 			
 			for (k=0; k<parameters.length; k++) {
+				parameters[k] = fixedPointUpdate(parameters[k], observations[k], nonZeroLimits[k],
+												 denominator, shape);
+				parametersSum += parameters[k];
+			}
+		}
 
-				// What's the largest non-zero element in the histogram?
-				nonZeroLimit = nonZeroLimits[k];
-
-				oldParametersK = parameters[k];
-				parameters[k] = 0;
-				currentDigamma = 0;
+		return parametersSum;
+	}
 
-				histogram = observations[k];
+	/**
+	 * The denominator shared by every parameter in one fixed-point iteration of
+	 * {@link #learnParameters(double[], int[][], int[], double, double, int)}.
+	 * Together with {@link #fixedPointUpdate}, this allows the parameters
+	 * to be updated independently, for example by several threads.
+	 *
+	 * @param parametersSum The sum of the parameters before the iteration
+	 */
+	public static double fixedPointDenominator(int[] observationLengths,
+											   double parametersSum, double scale) {
+		double denominator = 0;
+		double currentDigamma = 0;
+
+		// Iterate over the histogram:
+		for (int i=1; i<observationLengths.length; i++) {
+			currentDigamma += 1 / (parametersSum + i - 1);
+			denominator += observationLengths[i] * currentDigamma;
+		}
 
-				for (i=1; i <= nonZeroLimit; i++) {
-					currentDigamma += 1 / (oldParametersK + i - 1);
-					parameters[k] += histogram[i] * currentDigamma;
-				}
+		// Bayesian estimation Part I
+		denominator -= 1/scale;
 
-				// Bayesian estimation part II
-				parameters[k] = (oldParametersK * parameters[k] + shape) / denominator;
+		return denominator;
+	}
 
-				parametersSum += parameters[k];
-			}
+	/**
+	 * One fixed-point update of a single parameter.
+	 *
+	 * @param histogram The count histogram for this parameter
+	 * @param nonZeroLimit An index at or beyond the largest non-zero element of the histogram
+	 * @param denominator The value of {@link #fixedPointDenominator} for this iteration
+	 * @returns The new value of the parameter
+	 */
+	public static double fixedPointUpdate(double parameter, int[] histogram, int nonZeroLimit,
+										  double denominator, double shape) {
+		double numerator = 0;
+		double currentDigamma = 0;
+
+		for (int i=1; i <= nonZeroLimit; i++) {
+			currentDigamma += 1 / (parameter + i - 1);
+			numerator += histogram[i] * currentDigamma;
 		}
 
-		return parametersSum;
+		// Bayesian estimation part II
+		return (parameter * numerator + shape) / denominator;
 	}
 
 
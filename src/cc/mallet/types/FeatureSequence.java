@@ -79,7 +79,7 @@ public class FeatureSequence implements Sequence, Serializable, AlphabetCarrying
 
 	public final int size () { return length; }
 
-	public final int getIndexAtPosition (int pos)
+	public int getIndexAtPosition (int pos)
 	{
 		return features[pos];
 	}
@@ -284,6 +284,19 @@ public class FeatureVector extends SparseVector implements Serializable, Alphabe
     return new FeatureVector (newVocab, indices, values, size, size, true, true, false);
   }
 
+	/** Returns an equivalent binary vector, which shares the implicit value
+	 * 1.0 instead of storing a double per location, if this is a sparse
+	 * vector whose values are all 1.0.  Otherwise returns this vector. */
+	public FeatureVector compact ()
+	{
+		if (values == null || indices == null || getClass() != FeatureVector.class)
+			return this;
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != 1.0)
+				return this;
+		return new FeatureVector (dictionary, indices, null, indices.length, indices.length, false, false, false);
+	}
+
   // xxx We need to implement this in FeatureVector subclasses
 	public ConstantMatrix cloneMatrix ()
 	{
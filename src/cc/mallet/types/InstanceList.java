@@ -18,6 +18,7 @@ import java.io.ObjectOutputStream;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
@@ -67,7 +68,9 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
 {
 	private static Logger logger = MalletLogger.getLogger(InstanceList.class.getName());
 
-	HashMap<Instance, Double> instWeights = null;
+	/** Instance weights, aligned with list positions.  Null when every weight is 1.0;
+	 * otherwise it may be longer than the list, and entries past the end are 1.0. */
+	double[] instWeights = null;
   // This should never be set by a ClassifierTrainer, it should be used in conjunction with a Classifier's FeatureSelection
 	// Or perhaps it should be removed from here, and there should be a ClassifierTrainer.train(InstanceList, FeatureSelection) method.
 	FeatureSelection featureSelection = null;  
@@ -213,7 +216,7 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
 		if (instWeights == null)
 			ret.instWeights = null;
 		else
-			ret.instWeights = (HashMap<Instance,Double>) instWeights.clone();
+			ret.instWeights = instWeights.clone();
 		// Should we really be so shallow as to not make new copies of these following instance variables? -akm 1/2008
 		ret.featureSelection = featureSelection;
 		ret.perLabelFeatureSelection = perLabelFeatureSelection;
@@ -235,7 +238,7 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
 	{
 		InstanceList other = this.cloneEmpty();
 		for (int i = start; i < end; i++) {
-			other.add (get (i));
+			other.add (get (i), getInstanceWeight (i));
 		}
 		return other;
 	}
@@ -381,25 +384,17 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
 		if (!ret)
 			// If for some reason a subclass of InstanceList refuses to add this Instance, be sure not to do the rest. 
 			return ret; 
-		if (instanceWeight != 1.0) { // Default weight is 1.0 for everything not in the HashMap.
-			if (instWeights == null) 
-				instWeights = new HashMap<Instance,Double>();
-			else if (instWeights.get(instance) != null)
-				throw new IllegalArgumentException ("You cannot add the same instance twice to an InstanceList when it has non-1.0 weight.  "+
-						"Trying adding instance.shallowCopy() instead.");
-			instWeights.put(instance, instanceWeight);
-		}
+		if (instanceWeight != 1.0) // Default weight is 1.0 for every position not explicitly set.
+			setInstanceWeight (size() - 1, instanceWeight);
 		return ret;
 	}
 	
-	private void prepareToRemove (Instance instance) {
-		if (instWeights != null)
-			instWeights.remove(instance);
-	}
-  
+	/** Replaces the instance at <code>index</code>; the new instance gets weight 1.0. */
 	public Instance set (int index, Instance instance) {
-		prepareToRemove(get(index));
-		return super.set (index, instance);
+		Instance ret = super.set (index, instance);
+		if (instWeights != null && index < instWeights.length)
+			instWeights[index] = 1.0;
+		return ret;
   }
 	
   public void add (int index, Instance element) {
@@ -407,13 +402,20 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
   }
   
   public Instance remove (int index) {
-  	prepareToRemove (get(index));
-  	return super.remove(index);
+  	Instance ret = super.remove(index);
+  	if (instWeights != null && index < instWeights.length) {
+  		System.arraycopy (instWeights, index + 1, instWeights, index, instWeights.length - index - 1);
+  		instWeights[instWeights.length - 1] = 1.0;
+  	}
+  	return ret;
   }
   
   public boolean remove (Instance instance) {
-  	prepareToRemove (instance);
-  	return super.remove(instance);
+  	int index = indexOf (instance);
+  	if (index < 0)
+  		return false;
+  	remove (index);
+  	return true;
   }
   
   public boolean addAll (Collection<? extends Instance> instances) {
@@ -428,7 +430,7 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
   
   public void clear() {
   	super.clear();
-  	instWeights.clear();
+  	instWeights = null;
   	// But retain all other instance variables.
   }
   
@@ -505,7 +507,7 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
 	// A precursor to cloning subclasses of InstanceList 
 	protected InstanceList cloneEmptyInto (InstanceList ret)
 	{
-		ret.instWeights = null; // Don't copy these, because its empty! instWeights == null ? null : (HashMap<Instance,Double>) instWeights.clone();
+		ret.instWeights = null; // Don't copy these, because its empty!
 		// xxx Should the featureSelection and perLabel... be cloned?
 		// Note that RoostingTrainer currently depends on not cloning its splitting.
 		ret.featureSelection = this.featureSelection;
@@ -517,16 +519,28 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
 		return ret;
 	}
 
+	/** Shuffles the instances, keeping each instance's weight with it.
+	 * Uses the same sequence of swaps as {@link Collections#shuffle(List, java.util.Random)}. */
 	public void shuffle (java.util.Random r) {
-		Collections.shuffle (this, r);
+		for (int i = size(); i > 1; i--)
+			swap (i - 1, r.nextInt (i));
+	}
+
+	private void swap (int i, int j) {
+		Instance instance = get (i);
+		double weight = getInstanceWeight (i);
+		set (i, get (j));
+		setInstanceWeight (i, getInstanceWeight (j));
+		set (j, instance);
+		setInstanceWeight (j, weight);
 	}
 
 	/**
 	 * Shuffles the elements of this list among several smaller lists.
 	 * @param proportions A list of numbers (not necessarily summing to 1) which,
 	 * when normalized, correspond to the proportion of elements in each returned
-	 * sublist.  This method (and all the split methods) do not transfer the Instance
-	 * weights to the resulting InstanceLists.
+	 * sublist.  This method (and all the split methods) carry each Instance's
+	 * weight over to the resulting InstanceLists.
 	 * @param r The source of randomness to use in shuffling.
 	 * @return one <code>InstanceList</code> for each element of <code>proportions</code>
 	 */
@@ -562,7 +576,7 @@ public InstanceList[] splitInOrder (double[] proportions) {
 			// This gives a slight bias toward putting an extra instance in the last InstanceList.
 			while (i >= maxind[j] && j < ret.length) 
 				j++;
-			ret[j].add(this.get(i));
+			ret[j].add(this.get(i), this.getInstanceWeight(i));
 		}
 		return ret;
 	}
@@ -575,7 +589,7 @@ public InstanceList[] splitInOrder (double[] proportions) {
 		for (int num = 0; num < counts.length; num++){
 			ret[num] = cloneEmpty();
 			for (int i = 0; i < counts[num]; i++){
-				ret[num].add (get(idx));  // Transfer weights?
+				ret[num].add (get(idx), getInstanceWeight(idx));
 				idx++;
 			}
 		}
@@ -595,9 +609,9 @@ public InstanceList[] splitInOrder (double[] proportions) {
 		ret[1] = this.cloneEmpty();
 		for (int i = 0; i < this.size(); i++) {
 			if (i % m == 0)
-				ret[0].add (this.get(i));
+				ret[0].add (this.get(i), this.getInstanceWeight(i));
 			else
-				ret[1].add (this.get(i));
+				ret[1].add (this.get(i), this.getInstanceWeight(i));
 		}
 		return ret;
 	}
@@ -697,59 +711,47 @@ public InstanceList[] splitInOrder (double[] proportions) {
 		this.set(index, instance);
 	}
 
+	/** Returns the weight of the first occurrence of <code>instance</code> in this
+	 * list, or 1.0 if it is not in the list.  This searches the list; in loops
+	 * over the instances use {@link #getInstanceWeight(int)} instead. */
 	public double getInstanceWeight (Instance instance) {
-		if (instWeights != null) {
-			Double value = instWeights.get(instance);
-			if (value != null) {
-				return value;
-			}
-		}
-		return 1.0;
+		int index = indexOf (instance);
+		return index < 0 ? 1.0 : getInstanceWeight (index);
 	}
 
 	public double getInstanceWeight (int index) {
-		if (index > this.size()) {
+		if (index >= this.size()) {
 			throw new IllegalArgumentException("Index out of bounds: index="+index+" size="+this.size());
 		}
-
-		if (instWeights != null) {
-			Double value = instWeights.get(get(index));
-			if (value != null) {
-				return value;
-			}
-		}
-
-		return 1.0;
+		if (instWeights == null || index >= instWeights.length)
+			return 1.0;
+		return instWeights[index];
 	}
 
 	public void setInstanceWeight (int index, double weight) {
-		setInstanceWeight(get(index), weight);
+		if (index >= this.size()) {
+			throw new IllegalArgumentException("Index out of bounds: index="+index+" size="+this.size());
+		}
+		// Weights of 1.0 need no storage.
+		if (weight == 1.0 && (instWeights == null || index >= instWeights.length))
+			return;
+		if (instWeights == null) {
+			instWeights = new double[Math.max (size(), 10)];
+			Arrays.fill (instWeights, 1.0);
+		} else if (index >= instWeights.length) {
+			int oldLength = instWeights.length;
+			instWeights = Arrays.copyOf (instWeights, Math.max (size(), oldLength * 2));
+			Arrays.fill (instWeights, oldLength, instWeights.length, 1.0);
+		}
+		instWeights[index] = weight;
 	}
 
+	/** Sets the weight of the first occurrence of <code>instance</code> in this list. */
 	public void setInstanceWeight (Instance instance, double weight) {
-
-		// Weights of 1.0 are not explicitly stored in the hash.
-		if (weight == 1.0) {
-			// If the weights hash does not exist, we are done.
-			if (instWeights == null) { return; }
-
-			// Otherwise, see if there is a weight currently set.
-			Double value = instWeights.get(instance);
-
-			// If there is no value set or the value is 1.0, we're done.
-			if (value == null || value.doubleValue() == weight) { return; }
-
-			// Otherwise remove the value
-			instWeights.remove(instance);
-		}
-		else {
-			// Initialize the weights hash if it does not exist
-			if (instWeights == null) {
-				instWeights = new HashMap<Instance,Double> ();
-			}
-			// Add the new value, overriding any previous value
-			instWeights.put(instance, weight);
-		}
+		int index = indexOf (instance);
+		if (index < 0)
+			throw new IllegalArgumentException ("Instance is not in this InstanceList");
+		setInstanceWeight (index, weight);
 	}
 
 	public void setFeatureSelection (FeatureSelection selectedFeatures)
@@ -799,9 +801,13 @@ public InstanceList[] splitInOrder (double[] proportions) {
 	}
 
 	/** Constructs a new <code>InstanceList</code>, deserialized from <code>file</code>.  If the
-			string value of <code>file</code> is "-", then deserialize from {@link System.in}. */
+			string value of <code>file</code> is "-", then deserialize from {@link System.in}.
+			If <code>file</code> was written by {@link MappedInstanceList#save(InstanceList, File)},
+			it is mapped rather than deserialized. */
 	public static InstanceList load (File file)
 	{
+		if (MappedInstanceList.isMappedFile (file))
+			return MappedInstanceList.load (file);
 		try {
 			ObjectInputStream ois;
 			if (file.toString().equals("-"))
@@ -840,19 +846,32 @@ public InstanceList[] splitInOrder (double[] proportions) {
 	// Serialization of InstanceList
 
 	private static final long serialVersionUID = 1;
-	private static final int CURRENT_SERIAL_VERSION = 1;
+	private static final int CURRENT_SERIAL_VERSION = 2;
 
 	private void writeObject (ObjectOutputStream out) throws IOException {
-		int i, size;
 		out.writeInt (CURRENT_SERIAL_VERSION);
-		out.writeObject(instWeights);
+		if (instWeights == null || instWeights.length == super.size())
+			out.writeObject(instWeights);
+		else
+			out.writeObject(Arrays.copyOf (instWeights, super.size()));
 		out.writeObject(pipe);
 	}
 
 	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
-		int i, size;
 		int version = in.readInt ();
-		instWeights = (HashMap<Instance,Double>) in.readObject();
+		if (version < 2) {
+			// Weights used to be kept in a HashMap keyed by Instance
+			HashMap<Instance,Double> weightMap = (HashMap<Instance,Double>) in.readObject();
+			instWeights = null;
+			if (weightMap != null && !weightMap.isEmpty()) {
+				instWeights = new double[super.size()];
+				for (int i = 0; i < instWeights.length; i++) {
+					Double weight = weightMap.get (super.get (i));
+					instWeights[i] = weight == null ? 1.0 : weight;
+				}
+			}
+		} else
+			instWeights = (double[]) in.readObject();
 		pipe = (Pipe) in.readObject();
 	}
 
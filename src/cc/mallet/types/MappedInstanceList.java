@@ -0,0 +1,656 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+http://www.cs.umass.edu/~mccallum/mallet
+This software is provided under the terms of the Common Public License,
+version 1.0, as published by http://www.opensource.org.  For further
+information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.types;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.pipe.Pipe;
+
+/**
+      A read-only InstanceList backed by a memory-mapped, columnar
+      binary file.  Opening the file reads only the header, the pipe
+      and the alphabets; each Instance is decoded from the mapped
+      columns when it is requested with <code>get</code>, so the list
+      costs almost no heap and opens in time independent of its size.
+      <p>
+      The file holds one column per field, concatenated over all
+      instances: instance offsets, feature indices, optional feature
+      values (omitted when every vector is binary), label ids, optional
+      instance weights and instance names, preceded by a Java-serialized
+      section with the pipe and alphabets.  Data must be FeatureVector,
+      FeatureSequence or FeatureVectorSequence, and targets Label,
+      LabelSequence or null.  Instance sources are not stored, and names
+      are stored as strings.
+      <p>
+      Write a file with {@link #save(InstanceList, File)}.
+      {@link InstanceList#load(File)} recognizes the format, so every
+      command that loads vectors can read it directly.  Splitting or
+      cloning the list copies the decoded instances into ordinary
+      InstanceLists.
+
+      @see InstanceList
+ */
+
+public class MappedInstanceList extends InstanceList
+{
+	/** "MALLETCV" */
+	static final long MAGIC = 0x4D414C4C45544356L;
+	private static final int FORMAT_VERSION = 0;
+
+	private static final int DATA_FEATURE_VECTOR = 0;
+	private static final int DATA_FEATURE_SEQUENCE = 1;
+	private static final int DATA_FEATURE_VECTOR_SEQUENCE = 2;
+
+	private static final int TARGET_NONE = 0;
+	private static final int TARGET_LABEL = 1;
+	private static final int TARGET_LABEL_SEQUENCE = 2;
+
+	// Column numbers
+	private static final int META = 0;
+	private static final int INSTANCE_OFFSETS = 1;  // long[n+1], into VECTOR_OFFSETS or INDICES
+	private static final int VECTOR_OFFSETS = 2;    // long[p+1], into INDICES; sequences only
+	private static final int INDICES = 3;           // int[]
+	private static final int VALUES = 4;            // double[], parallel to INDICES
+	private static final int TARGET_OFFSETS = 5;    // long[n+1], into TARGETS; label sequences only
+	private static final int TARGETS = 6;           // int[]
+	private static final int WEIGHTS = 7;           // double[n]
+	private static final int NAME_OFFSETS = 8;      // long[n+1], into NAMES
+	private static final int NAMES = 9;             // UTF-8 bytes
+	private static final int NUM_COLUMNS = 10;
+
+	private static final int HEADER_BYTES = 32 + NUM_COLUMNS * 16;
+
+	File file;
+	int numInstances;
+	int dataKind;
+	int targetKind;
+	Column[] columns;
+
+	private MappedInstanceList (Pipe pipe)
+	{
+		super (pipe, 0);
+	}
+
+	// WRITING
+
+	/** Writes <code>ilist</code> to <code>file</code> in the columnar format. */
+	public static void save (InstanceList ilist, File file) throws IOException
+	{
+		if (file.toString ().equals ("-"))
+			throw new IllegalArgumentException ("MappedInstanceList cannot be written to standard output");
+		int n = ilist.size ();
+		int dataKind = -1, targetKind = TARGET_NONE;
+		long numVectors = 0, numIndices = 0, numTargets = 0, nameBytes = 0;
+		boolean hasValues = false, hasWeights = false, hasNames = false;
+
+		for (int i = 0; i < n; i++) {
+			Instance inst = ilist.get (i);
+			Object data = inst.getData ();
+			int kind = dataKindOf (data);
+			if (dataKind == -1) dataKind = kind;
+			else if (kind != dataKind)
+				throw new IllegalArgumentException ("Instance "+i+" has data of "+data.getClass ()+", unlike earlier instances");
+			if (kind == DATA_FEATURE_VECTOR) {
+				FeatureVector fv = (FeatureVector) data;
+				numIndices += fv.numLocations ();
+				hasValues |= !isBinary (fv);
+			} else if (kind == DATA_FEATURE_SEQUENCE) {
+				numIndices += ((FeatureSequence) data).getLength ();
+			} else {
+				FeatureVectorSequence fvs = (FeatureVectorSequence) data;
+				numVectors += fvs.size ();
+				for (int j = 0; j < fvs.size (); j++) {
+					numIndices += fvs.get (j).numLocations ();
+					hasValues |= !isBinary (fvs.get (j));
+				}
+			}
+			Object target = inst.getTarget ();
+			if (target instanceof LabelSequence) {
+				if (targetKind == TARGET_LABEL) throw new IllegalArgumentException ("Mixed Label and LabelSequence targets");
+				targetKind = TARGET_LABEL_SEQUENCE;
+				numTargets += ((LabelSequence) target).size ();
+			} else if (target instanceof Label) {
+				if (targetKind == TARGET_LABEL_SEQUENCE) throw new IllegalArgumentException ("Mixed Label and LabelSequence targets");
+				targetKind = TARGET_LABEL;
+			} else if (target != null)
+				throw new IllegalArgumentException ("Cannot store targets of "+target.getClass ());
+			hasWeights |= ilist.getInstanceWeight (i) != 1.0;
+			if (inst.getName () != null) {
+				hasNames = true;
+				nameBytes += utf8 (inst.getName ()).length;
+			}
+		}
+		if (dataKind == -1) dataKind = DATA_FEATURE_VECTOR;
+		if (targetKind == TARGET_LABEL) numTargets = n;
+
+		ByteArrayOutputStream metaBytes = new ByteArrayOutputStream ();
+		ObjectOutputStream oos = new ObjectOutputStream (metaBytes);
+		oos.writeObject (ilist.getPipe ());
+		oos.writeObject (ilist.getDataAlphabet ());
+		oos.writeObject (ilist.getTargetAlphabet ());
+		oos.close ();
+
+		long[] lengths = new long[NUM_COLUMNS];
+		lengths[META] = metaBytes.size ();
+		lengths[INSTANCE_OFFSETS] = 8L * (n + 1);
+		if (dataKind == DATA_FEATURE_VECTOR_SEQUENCE)
+			lengths[VECTOR_OFFSETS] = 8L * (numVectors + 1);
+		lengths[INDICES] = 4L * numIndices;
+		if (hasValues)
+			lengths[VALUES] = 8L * numIndices;
+		if (targetKind == TARGET_LABEL_SEQUENCE)
+			lengths[TARGET_OFFSETS] = 8L * (n + 1);
+		lengths[TARGETS] = 4L * numTargets;
+		if (hasWeights)
+			lengths[WEIGHTS] = 8L * n;
+		if (hasNames) {
+			lengths[NAME_OFFSETS] = 8L * (n + 1);
+			lengths[NAMES] = nameBytes;
+		}
+		long[] offsets = new long[NUM_COLUMNS];
+		long pos = HEADER_BYTES;
+		for (int c = 0; c < NUM_COLUMNS; c++) {
+			offsets[c] = pos;
+			pos = align (pos + lengths[c]);
+		}
+
+		Writer w = new Writer (file);
+		try {
+			w.out.writeLong (MAGIC);
+			w.out.writeInt (FORMAT_VERSION);
+			w.out.writeInt (dataKind);
+			w.out.writeInt (targetKind);
+			w.out.writeInt (n);
+			w.out.writeInt (NUM_COLUMNS);
+			w.out.writeInt (0);
+			for (int c = 0; c < NUM_COLUMNS; c++) {
+				w.out.writeLong (offsets[c]);
+				w.out.writeLong (lengths[c]);
+			}
+			w.pos = HEADER_BYTES;
+
+			w.seek (offsets[META]);
+			metaBytes.writeTo (w.out);
+			w.pos += metaBytes.size ();
+
+			// Offsets of each instance into the next column down
+			w.seek (offsets[INSTANCE_OFFSETS]);
+			long off = 0;
+			w.writeLong (0);
+			for (int i = 0; i < n; i++) {
+				Object data = ilist.get (i).getData ();
+				if (dataKind == DATA_FEATURE_VECTOR) off += ((FeatureVector) data).numLocations ();
+				else if (dataKind == DATA_FEATURE_SEQUENCE) off += ((FeatureSequence) data).getLength ();
+				else off += ((FeatureVectorSequence) data).size ();
+				w.writeLong (off);
+			}
+
+			if (dataKind == DATA_FEATURE_VECTOR_SEQUENCE) {
+				w.seek (offsets[VECTOR_OFFSETS]);
+				off = 0;
+				w.writeLong (0);
+				for (int i = 0; i < n; i++) {
+					FeatureVectorSequence fvs = (FeatureVectorSequence) ilist.get (i).getData ();
+					for (int j = 0; j < fvs.size (); j++) {
+						off += fvs.get (j).numLocations ();
+						w.writeLong (off);
+					}
+				}
+			}
+
+			w.seek (offsets[INDICES]);
+			for (int i = 0; i < n; i++) {
+				Object data = ilist.get (i).getData ();
+				if (dataKind == DATA_FEATURE_SEQUENCE) {
+					FeatureSequence fs = (FeatureSequence) data;
+					for (int j = 0; j < fs.getLength (); j++)
+						w.writeInt (fs.getIndexAtPosition (j));
+				} else if (dataKind == DATA_FEATURE_VECTOR)
+					writeIndices (w, (FeatureVector) data);
+				else {
+					FeatureVectorSequence fvs = (FeatureVectorSequence) data;
+					for (int j = 0; j < fvs.size (); j++)
+						writeIndices (w, fvs.get (j));
+				}
+			}
+
+			if (hasValues) {
+				w.seek (offsets[VALUES]);
+				for (int i = 0; i < n; i++) {
+					Object data = ilist.get (i).getData ();
+					if (dataKind == DATA_FEATURE_VECTOR)
+						writeValues (w, (FeatureVector) data);
+					else {
+						FeatureVectorSequence fvs = (FeatureVectorSequence) data;
+						for (int j = 0; j < fvs.size (); j++)
+							writeValues (w, fvs.get (j));
+					}
+				}
+			}
+
+			if (targetKind == TARGET_LABEL_SEQUENCE) {
+				w.seek (offsets[TARGET_OFFSETS]);
+				off = 0;
+				w.writeLong (0);
+				for (int i = 0; i < n; i++) {
+					Object target = ilist.get (i).getTarget ();
+					if (target != null) off += ((LabelSequence) target).size ();
+					w.writeLong (off);
+				}
+			}
+
+			w.seek (offsets[TARGETS]);
+			for (int i = 0; i < n; i++) {
+				Object target = ilist.get (i).getTarget ();
+				if (targetKind == TARGET_LABEL)
+					w.writeInt (target == null ? -1 : ((Label) target).getIndex ());
+				else if (targetKind == TARGET_LABEL_SEQUENCE && target != null) {
+					LabelSequence ls = (LabelSequence) target;
+					for (int j = 0; j < ls.size (); j++)
+						w.writeInt (ls.getIndexAtPosition (j));
+				}
+			}
+
+			if (hasWeights) {
+				w.seek (offsets[WEIGHTS]);
+				for (int i = 0; i < n; i++)
+					w.writeDouble (ilist.getInstanceWeight (i));
+			}
+
+			if (hasNames) {
+				w.seek (offsets[NAME_OFFSETS]);
+				off = 0;
+				w.writeLong (0);
+				for (int i = 0; i < n; i++) {
+					Object name = ilist.get (i).getName ();
+					if (name != null) off += utf8 (name).length;
+					w.writeLong (off);
+				}
+				w.seek (offsets[NAMES]);
+				for (int i = 0; i < n; i++) {
+					Object name = ilist.get (i).getName ();
+					if (name != null) {
+						byte[] b = utf8 (name);
+						w.out.write (b);
+						w.pos += b.length;
+					}
+				}
+			}
+			w.seek (pos);
+		} finally {
+			w.out.close ();
+		}
+	}
+
+	private static int dataKindOf (Object data)
+	{
+		if (data instanceof FeatureVector) return DATA_FEATURE_VECTOR;
+		if (data instanceof FeatureSequence) return DATA_FEATURE_SEQUENCE;
+		if (data instanceof FeatureVectorSequence) return DATA_FEATURE_VECTOR_SEQUENCE;
+		throw new IllegalArgumentException ("Cannot store data of "+(data == null ? null : data.getClass ()));
+	}
+
+	private static boolean isBinary (FeatureVector fv)
+	{
+		if (fv.values == null) return true;
+		for (int loc = 0; loc < fv.numLocations (); loc++)
+			if (fv.valueAtLocation (loc) != 1.0) return false;
+		return true;
+	}
+
+	private static void writeIndices (Writer w, FeatureVector fv) throws IOException
+	{
+		for (int loc = 0; loc < fv.numLocations (); loc++)
+			w.writeInt (fv.indexAtLocation (loc));
+	}
+
+	private static void writeValues (Writer w, FeatureVector fv) throws IOException
+	{
+		for (int loc = 0; loc < fv.numLocations (); loc++)
+			w.writeDouble (fv.valueAtLocation (loc));
+	}
+
+	private static byte[] utf8 (Object o)
+	{
+		try {
+			return o.toString ().getBytes ("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException (e);
+		}
+	}
+
+	private static long align (long pos)
+	{
+		return (pos + 7) & ~7L;
+	}
+
+	private static class Writer
+	{
+		DataOutputStream out;
+		long pos;
+
+		Writer (File file) throws IOException
+		{
+			out = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (file), 1 << 16));
+		}
+
+		void seek (long target) throws IOException
+		{
+			assert (target >= pos);
+			while (pos < target) { out.writeByte (0); pos++; }
+		}
+
+		void writeInt (int v) throws IOException { out.writeInt (v); pos += 4; }
+		void writeLong (long v) throws IOException { out.writeLong (v); pos += 8; }
+		void writeDouble (double v) throws IOException { out.writeDouble (v); pos += 8; }
+	}
+
+	// READING
+
+	/** Returns true if <code>file</code> begins with the columnar format's magic number. */
+	public static boolean isMappedFile (File file)
+	{
+		if (!file.isFile () || file.length () < HEADER_BYTES)
+			return false;
+		try {
+			DataInputStream in = new DataInputStream (new FileInputStream (file));
+			try {
+				return in.readLong () == MAGIC;
+			} finally {
+				in.close ();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** Maps <code>file</code>, which must have been written by {@link #save(InstanceList, File)}. */
+	public static MappedInstanceList load (File file)
+	{
+		try {
+			return open (file);
+		} catch (Exception e) {
+			e.printStackTrace ();
+			throw new IllegalArgumentException ("Couldn't read MappedInstanceList from file "+file);
+		}
+	}
+
+	private static MappedInstanceList open (File file) throws IOException, ClassNotFoundException
+	{
+		RandomAccessFile raf = new RandomAccessFile (file, "r");
+		try {
+			FileChannel channel = raf.getChannel ();
+			MappedByteBuffer header = channel.map (FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (header.getLong (0) != MAGIC)
+				throw new IOException (file+" is not a MappedInstanceList file");
+			int version = header.getInt (8);
+			if (version > FORMAT_VERSION)
+				throw new IOException ("Unknown MappedInstanceList format version "+version);
+			int dataKind = header.getInt (12);
+			int targetKind = header.getInt (16);
+			int n = header.getInt (20);
+			Column[] columns = new Column[NUM_COLUMNS];
+			for (int c = 0; c < NUM_COLUMNS; c++)
+				columns[c] = new Column (channel, header.getLong (32 + 16 * c), header.getLong (40 + 16 * c));
+
+			byte[] meta = new byte[(int) columns[META].length];
+			columns[META].getBytes (0, meta);
+			ObjectInputStream ois = new ObjectInputStream (new ByteArrayInputStream (meta));
+			Pipe pipe = (Pipe) ois.readObject ();
+			Alphabet dataAlphabet = (Alphabet) ois.readObject ();
+			Alphabet targetAlphabet = (Alphabet) ois.readObject ();
+			ois.close ();
+			if (pipe == null)
+				pipe = new Noop (dataAlphabet, targetAlphabet);
+
+			MappedInstanceList ret = new MappedInstanceList (pipe);
+			ret.file = file;
+			ret.numInstances = n;
+			ret.dataKind = dataKind;
+			ret.targetKind = targetKind;
+			ret.columns = columns;
+			ret.dataAlphabet = dataAlphabet;
+			ret.targetAlphabet = targetAlphabet;
+			ret.dataClass = dataKind == DATA_FEATURE_VECTOR ? FeatureVector.class
+				: dataKind == DATA_FEATURE_SEQUENCE ? FeatureSequence.class : FeatureVectorSequence.class;
+			if (targetKind == TARGET_LABEL) ret.targetClass = Label.class;
+			else if (targetKind == TARGET_LABEL_SEQUENCE) ret.targetClass = LabelSequence.class;
+			if (columns[WEIGHTS].length > 0) {
+				ret.instWeights = new double[n];
+				for (int i = 0; i < n; i++)
+					ret.instWeights[i] = columns[WEIGHTS].getDouble (i);
+			}
+			// The mappings remain valid after the channel is closed.
+			return ret;
+		} finally {
+			raf.close ();
+		}
+	}
+
+	/** The file this list is mapped from. */
+	public File getFile () { return file; }
+
+	public int size () { return numInstances; }
+
+	public boolean isEmpty () { return numInstances == 0; }
+
+	/** Decodes the <code>Instance</code> at the specified index from the mapped file. */
+	public Instance get (int index)
+	{
+		if (index < 0 || index >= numInstances)
+			throw new IndexOutOfBoundsException ("Index: "+index+", Size: "+numInstances);
+		Column offsets = columns[INSTANCE_OFFSETS];
+		long start = offsets.getLong (index);
+		long end = offsets.getLong (index + 1);
+
+		Object data;
+		if (dataKind == DATA_FEATURE_SEQUENCE) {
+			int len = (int) (end - start);
+			FeatureSequence fs = new FeatureSequence (dataAlphabet, len);
+			columns[INDICES].getInts (start, fs.features, len);
+			fs.length = len;
+			data = fs;
+		} else if (dataKind == DATA_FEATURE_VECTOR)
+			data = vectorAt (start, end);
+		else {
+			Column vectorOffsets = columns[VECTOR_OFFSETS];
+			FeatureVector[] vecs = new FeatureVector[(int) (end - start)];
+			for (int j = 0; j < vecs.length; j++)
+				vecs[j] = vectorAt (vectorOffsets.getLong (start + j), vectorOffsets.getLong (start + j + 1));
+			data = vecs.length > 0 ? new FeatureVectorSequence (vecs) : new FeatureVectorSequence (dataAlphabet, new TokenSequence ());
+		}
+
+		Object target = null;
+		if (targetKind == TARGET_LABEL) {
+			int li = columns[TARGETS].getInt (index);
+			if (li >= 0)
+				target = ((LabelAlphabet) targetAlphabet).lookupLabel (li);
+		} else if (targetKind == TARGET_LABEL_SEQUENCE) {
+			long ts = columns[TARGET_OFFSETS].getLong (index);
+			int len = (int) (columns[TARGET_OFFSETS].getLong (index + 1) - ts);
+			int[] labels = new int[len];
+			columns[TARGETS].getInts (ts, labels, len);
+			target = new LabelSequence ((LabelAlphabet) targetAlphabet, labels);
+		}
+
+		Object name = null;
+		if (columns[NAME_OFFSETS].length > 0) {
+			long ns = columns[NAME_OFFSETS].getLong (index);
+			byte[] b = new byte[(int) (columns[NAME_OFFSETS].getLong (index + 1) - ns)];
+			columns[NAMES].getBytes (ns, b);
+			try {
+				name = new String (b, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException (e);
+			}
+		}
+
+		Instance inst = new Instance (data, target, name, null);
+		inst.lock ();
+		return inst;
+	}
+
+	private FeatureVector vectorAt (long start, long end)
+	{
+		int len = (int) (end - start);
+		int[] indices = new int[len];
+		columns[INDICES].getInts (start, indices, len);
+		double[] values = null;
+		if (columns[VALUES].length > 0) {
+			values = new double[len];
+			columns[VALUES].getDoubles (start, values, len);
+		}
+		return new FeatureVector (dataAlphabet, indices, values, len, len, false, false, false);
+	}
+
+	public Iterator<Instance> iterator ()
+	{
+		return new Iterator<Instance> () {
+			int next = 0;
+			public boolean hasNext () { return next < numInstances; }
+			public Instance next () {
+				if (next >= numInstances) throw new NoSuchElementException ();
+				return get (next++);
+			}
+			public void remove () { throw new UnsupportedOperationException (); }
+		};
+	}
+
+	public InstanceList shallowClone ()
+	{
+		InstanceList ret = cloneEmpty ();
+		for (int i = 0; i < numInstances; i++)
+			ret.add (get (i), getInstanceWeight (i));
+		return ret;
+	}
+
+	public InstanceList cloneEmpty ()
+	{
+		return cloneEmptyInto (new InstanceList (pipe));
+	}
+
+	public boolean add (Instance instance)
+	{
+		throw new UnsupportedOperationException ("MappedInstanceList is read-only; add to shallowClone() instead.");
+	}
+
+	public Instance set (int index, Instance instance)
+	{
+		throw new UnsupportedOperationException ("MappedInstanceList is read-only.");
+	}
+
+	public Instance remove (int index)
+	{
+		throw new UnsupportedOperationException ("MappedInstanceList is read-only.");
+	}
+
+	public boolean remove (Instance instance)
+	{
+		throw new UnsupportedOperationException ("MappedInstanceList is read-only.");
+	}
+
+	public void clear ()
+	{
+		throw new UnsupportedOperationException ("MappedInstanceList is read-only.");
+	}
+
+	public void shuffle (java.util.Random r)
+	{
+		throw new UnsupportedOperationException ("MappedInstanceList is read-only; shuffle shallowClone() instead.");
+	}
+
+	/** A contiguous region of the file, mapped in segments of at most 1GB. */
+	private static class Column
+	{
+		private static final int SEGMENT_SHIFT = 30;
+		private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+		long length;
+		MappedByteBuffer[] segments;
+
+		Column (FileChannel channel, long offset, long length) throws IOException
+		{
+			this.length = length;
+			int numSegments = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+			segments = new MappedByteBuffer[numSegments];
+			for (int s = 0; s < numSegments; s++) {
+				long segStart = (long) s << SEGMENT_SHIFT;
+				segments[s] = channel.map (FileChannel.MapMode.READ_ONLY, offset + segStart,
+				                           Math.min (1L << SEGMENT_SHIFT, length - segStart));
+			}
+		}
+
+		// Elements never straddle segments, since segments are a multiple of 8 bytes.
+		final int getInt (long i)
+		{
+			long pos = i << 2;
+			return segments[(int) (pos >>> SEGMENT_SHIFT)].getInt ((int) (pos & SEGMENT_MASK));
+		}
+
+		final long getLong (long i)
+		{
+			long pos = i << 3;
+			return segments[(int) (pos >>> SEGMENT_SHIFT)].getLong ((int) (pos & SEGMENT_MASK));
+		}
+
+		final double getDouble (long i)
+		{
+			long pos = i << 3;
+			return segments[(int) (pos >>> SEGMENT_SHIFT)].getDouble ((int) (pos & SEGMENT_MASK));
+		}
+
+		void getInts (long start, int[] dst, int len)
+		{
+			for (int j = 0; j < len; j++)
+				dst[j] = getInt (start + j);
+		}
+
+		void getDoubles (long start, double[] dst, int len)
+		{
+			for (int j = 0; j < len; j++)
+				dst[j] = getDouble (start + j);
+		}
+
+		void getBytes (long start, byte[] dst)
+		{
+			for (int j = 0; j < dst.length; j++) {
+				long pos = start + j;
+				dst[j] = segments[(int) (pos >>> SEGMENT_SHIFT)].get ((int) (pos & SEGMENT_MASK));
+			}
+		}
+	}
+
+	// Serialization of MappedInstanceList
+
+	private static final long serialVersionUID = 1;
+
+	/** Serializes as an ordinary, fully decoded InstanceList. */
+	private Object writeReplace () throws ObjectStreamException
+	{
+		return shallowClone ();
+	}
+
+}
@@ -159,7 +159,8 @@ public class Matrixn extends DenseMatrix implements Cloneable {
 
   /**
    * Returns a one-dimensional array representation of the matrix.
-   *   Caller must not modify the return value.
+   *   This is the array that backs the matrix, not a copy, so changes
+   *   to it change the matrix.
    * @return An array of the values where index 0 is the major index, etc.
    */
   public double[] toArray () {
@@ -12,7 +12,6 @@ package cc.mallet.types;
 
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -101,17 +100,11 @@ public class MultiInstanceList extends InstanceList {
         this.lists = lists;
         this.offsets = new int[lists.length];
         
-        // build index offsets array and populate instance weights
+        // build index offsets array; instance weights stay in the underlying lists
         int offset = 0;
         for (int i = 0; i < lists.length; i++) {
             this.offsets[i] = offset;
             offset += lists[i].size ();
-            if (lists[i].instWeights != null) {
-                if (this.instWeights == null) {
-                    this.instWeights = new HashMap<Instance,Double> ();
-                }
-                this.instWeights.putAll (instWeights);
-            }
         }
     }
     
@@ -310,9 +303,13 @@ public class MultiInstanceList extends InstanceList {
     }
 
     //@Override
-    public void setInstanceWeight (Instance instance, double weight) {
-        super.setInstanceWeight (instance, weight);
-        int index = indexOf (instance);
+    public double getInstanceWeight (int index) {
+        int i = getOffsetIndex (index);
+        return this.lists[i].getInstanceWeight (index - this.offsets[i]);
+    }
+
+    //@Override
+    public void setInstanceWeight (int index, double weight) {
         int i = getOffsetIndex (index);
         this.lists[i].setInstanceWeight (index - this.offsets[i], weight);
     }
@@ -10,6 +10,14 @@ information, see the file `LICENSE' included with this distribution. */
 
 package cc.mallet.types;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -17,8 +25,15 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.rmi.dgc.VMID;
-import java.util.BitSet;
-import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import cc.mallet.pipe.Noop;
 import cc.mallet.pipe.Pipe;
@@ -31,8 +46,7 @@ import cc.mallet.types.MatrixOps;
 
 /**
       An InstanceList which avoids OutOfMemoryErrors by saving Instances
-      to disk when there is not enough memory to create a new
-      Instance. It implements a fixed-size paging scheme, where each page
+      to disk. It implements a fixed-size paging scheme, where each page
       on disk stores <code>instancesPerPage</code> Instances. So, while
       the number of Instances per pages is constant, the size in bytes of
       each page may vary. Using this class instead of InstanceList means
@@ -44,7 +58,17 @@ import cc.mallet.types.MatrixOps;
       instances, then instances 0->(n/size()) are stored together on page
       1, instances (n/size)+1 -> 2*(n/size) are on page 2, ... etc. This
       way, pages adjacent in the <code>instances</code> list will usually
-      be in the same page.
+      be in the same page.  While page n is being read, a background
+      thread loads page n+1, so a sequential pass rarely waits on disk.
+
+      Resident pages are kept in least-recently-used order, and pages are
+      evicted when there are more than a maximum number of them or when
+      their estimated size exceeds a memory budget.  Only pages that have
+      changed since they were read are written back.  Pages are written
+      with a compact binary codec: feature indices are delta-coded
+      varints, integral feature values are varints, and labels are
+      alphabet indices.  Data and targets of other types fall back to
+      Java serialization.
 
       @see InstanceList
 
@@ -53,10 +77,20 @@ import cc.mallet.types.MatrixOps;
 
 public class PagedInstanceList extends InstanceList
 {
-    
-    private static final char TYPE_FEATURE_VECTOR       = 'F';
-    private static final char TYPE_LABEL                = 'L';
-    private static final char TYPE_OBJECT               = 'O';
+
+    private static final byte TYPE_NULL                 = 'N';
+    private static final byte TYPE_FEATURE_VECTOR       = 'F';
+    private static final byte TYPE_FEATURE_SEQUENCE     = 'S';
+    private static final byte TYPE_FEATURE_VECTOR_SEQUENCE = 'V';
+    private static final byte TYPE_LABEL                = 'L';
+    private static final byte TYPE_LABEL_SEQUENCE       = 'Q';
+    private static final byte TYPE_STRING               = 'T';
+    private static final byte TYPE_OBJECT               = 'O';
+
+    // Value encodings of a FeatureVector
+    private static final byte VALUES_BINARY             = 0;
+    private static final byte VALUES_INTEGRAL           = 1;
+    private static final byte VALUES_DOUBLE             = 2;
 
     /** number of instances to put in one page */
     int instancesPerPage;
@@ -64,60 +98,83 @@ public class PagedInstanceList extends InstanceList
     /** directory to store swap files */
     File swapDir;
 
-    /** array of page numbers that represent the in-memory pages */
-    int[] inMemoryPageIds;
-    
-    /** array of instance lists that represent the in-memory pages */
-    InstanceList[] inMemoryPages;
+    /** maximum number of pages to keep in memory */
+    int maxPages;
+
+    /** maximum estimated bytes of instance data to keep in memory */
+    long memoryBudget = Long.MAX_VALUE;
+
+    /** in-memory pages by page number, least recently used first */
+    LinkedHashMap<Integer,Page> inMemoryPages = new LinkedHashMap<Integer,Page> (16, 0.75f, true);
+
+    /** estimated bytes used by the in-memory pages */
+    long residentBytes = 0;
 
-    /**  dirty.get(i) == true if in-memory bin i is dirty */
-    BitSet dirty = new BitSet();
-    
     /** Total number of instances in list, including those swapped out */
     int size = 0;
 
     /** recommend garbage collection after every swap out? */
-    boolean collectGarbage = true;
+    boolean collectGarbage = false;
+
+    /** load the following page in the background on every swap-in? */
+    boolean prefetch = true;
+
+    /** pages being loaded by the prefetcher */
+    transient HashMap<Integer,Future<Page>> prefetching = new HashMap<Integer,Future<Page>> ();
+
+    transient ExecutorService prefetcher;
 
     /** Total number of swap-ins */
     int swapIns = 0;
 
-    /** Total time spent in swap-ins */
+    /** Total time spent in swap-ins, including waiting for the prefetcher */
     long swapInTime = 0;
-    
+
+    /** Number of swap-ins already loaded (or being loaded) by the prefetcher */
+    int prefetchHits = 0;
+
     /** Total number of swap-outs */
     int swapOuts = 0;
 
-    /** Total time spent in swap-ins */
+    /** Total time spent in swap-outs */
     long swapOutTime = 0;
-    
+
     /** uniquely identifies this InstanceList. Used in creating
      * serialized page name for swap files. */
     VMID id = new VMID();
-    
+
     /** Avoids creating a new noop pipe for each page */
     Pipe noopPipe;
 
+    static class Page {
+        int id;
+        InstanceList instances;
+        long bytes;
+        boolean dirty;
+
+        Page (int id, InstanceList instances, long bytes) {
+            this.id = id;
+            this.instances = instances;
+            this.bytes = bytes;
+        }
+    }
+
     // CONSTRUCTORS
 
     /** Creates a PagedInstanceList where "instancesPerPage" instances
-     * are swapped to disk in directory "swapDir" if the amount of free
-     * system memory drops below "minFreeMemory" bytes
+     * are swapped to disk in directory "swapDir" when more than
+     * "numPages" pages are in memory.
      * @param pipe instance pipe
      * @param numPages number of pages to keep in memory
      * @param instancesPerPage number of Instances to store in each page
      * @param swapDir where the pages on disk live.
      */
     public PagedInstanceList (Pipe pipe, int numPages, int instancesPerPage, File swapDir) {
-        super (pipe, numPages * instancesPerPage);
+        super (pipe, 0);
         this.instancesPerPage = instancesPerPage;
         this.swapDir = swapDir;
-        this.inMemoryPageIds = new int[numPages];
-        this.inMemoryPages = new InstanceList[numPages];
+        this.maxPages = numPages;
         this.noopPipe = new Noop(pipe.getDataAlphabet(), pipe.getTargetAlphabet());
-        for (int i = 0; i < numPages; i++) {
-            this.inMemoryPageIds[i] = -1;
-        }
 
         try {
             if (!swapDir.exists()) {
@@ -133,6 +190,15 @@ public class PagedInstanceList extends InstanceList
         this (pipe, numPages, instancesPerPage, new File ("."));
     }
 
+    /** Creates a PagedInstanceList that keeps as many pages of
+     * "instancesPerPage" instances in memory as fit in "memoryBudget"
+     * bytes (as estimated from the sizes of their arrays), swapping
+     * the rest to disk in directory "swapDir". */
+    public PagedInstanceList (Pipe pipe, int instancesPerPage, File swapDir, long memoryBudget) {
+        this (pipe, Integer.MAX_VALUE, instancesPerPage, swapDir);
+        this.memoryBudget = memoryBudget;
+    }
+
     // SPLITTING AND SAMPLING METHODS
 
     /** Shuffles elements of an array, taken from Collections.shuffle
@@ -177,23 +243,23 @@ public class PagedInstanceList extends InstanceList
         MatrixOps.normalize(maxind);
         for (int i = 0; i < maxind.length; i++) {
             ret[i] = this.cloneEmpty();  // Note that we are passing on featureSelection here.
-            if (i > 0) 
+            if (i > 0)
                 maxind[i] += maxind[i-1];
         }
-        for (int i = 0; i < maxind.length; i++) { 
+        for (int i = 0; i < maxind.length; i++) {
             // Fill maxind[] with the highest instance index to go in each corresponding returned InstanceList
             maxind[i] = Math.rint (maxind[i] * size);
         }
         for (int i = 0, j = 0; i < size; i++) {
             // This gives a slight bias toward putting an extra instance in the last InstanceList.
-            while (i >= maxind[j] && j < ret.length) 
+            while (i >= maxind[j] && j < ret.length)
                 j++;
             splits[shuffled[i]] = j;
         }
 
         for (int i = 0; i < size; i++) {
             //logger.info ("adding instance " + i + " to split ilist " + splits[i]);
-            ret[splits[i]].add(this.get(i));
+            ret[splits[i]].add(this.get(i), this.getInstanceWeight(i));
         }
 
         return ret;
@@ -208,7 +274,11 @@ public class PagedInstanceList extends InstanceList
     private File getFileForPage (int page) {
         return new File (swapDir, id + "." + page);
     }
-    
+
+    private int numPages () {
+        return (this.size + this.instancesPerPage - 1) / this.instancesPerPage;
+    }
+
     /** Gets the page for the specified instance index, swapping in if necessary
      * @param index Instance index to get page for
      * @param dirty If true mark page as dirty
@@ -219,87 +289,130 @@ public class PagedInstanceList extends InstanceList
             throw new IndexOutOfBoundsException (
                     "Index: " + index + ", Size: "+ this.size);
         }
-        
+
         return swapIn (index / this.instancesPerPage, dirty);
     }
-    
+
     /** Swaps in the specified page
      * @param pageId Page to swap in
      * @param dirty If true mark page as dirty
      * @return The page that was just swapped in */
     private InstanceList swapIn (int pageId, boolean dirty) {
-        int bin = pageId % this.inMemoryPages.length;
-        if (this.inMemoryPageIds[bin] != pageId) {
-            swapOut (this.inMemoryPageIds[bin]);
-
+        Page page = this.inMemoryPages.get (pageId);
+        if (page == null) {
             long startTime = System.currentTimeMillis ();
 
-            File pageFile = getFileForPage (pageId);
-            ObjectInputStream in = null;
+            Future<Page> pending = this.prefetching.remove (pageId);
             try {
-                in = new ObjectInputStream (new FileInputStream (pageFile));
-                InstanceList page = deserializePage(in);
-                
-                this.inMemoryPageIds[bin] = pageId;
-                this.inMemoryPages[bin] = page;
-            } catch (Exception e) {
-                System.err.println (e);
-                System.exit (-1);
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (Exception e) {
-                        System.err.println (e);
-                        System.exit (-1);
-                    }
+                if (pending != null) {
+                    page = pending.get ();
+                    this.prefetchHits++;
+                } else {
+                    page = readPage (pageId);
                 }
+            } catch (Exception e) {
+                throw new IllegalStateException ("Couldn't read page " + pageId + " from " + getFileForPage (pageId), e);
             }
-            
+            makeResident (page);
+
             this.swapIns++;
             this.swapInTime += System.currentTimeMillis () - startTime;
+
+            if (this.prefetch)
+                startPrefetch (pageId + 1);
         }
-        
+
         if (dirty) {
-            this.dirty.set (bin);
+            page.dirty = true;
+        }
+
+        return page.instances;
+    }
+
+    /** Adds a page to the in-memory pages, evicting the least
+     * recently used pages until the limits are respected. */
+    private void makeResident (Page page) {
+        this.inMemoryPages.put (page.id, page);
+        this.residentBytes += page.bytes;
+        evictFor (page);
+    }
+
+    /** Swaps out least recently used pages other than <code>page</code>
+     * until the page and memory limits are respected. */
+    private void evictFor (Page page) {
+        Iterator<Page> lru = this.inMemoryPages.values ().iterator ();
+        while (lru.hasNext ()
+               && (this.inMemoryPages.size () > this.maxPages || this.residentBytes > this.memoryBudget)) {
+            Page victim = lru.next ();
+            if (victim == page)
+                break;  // Always keep the page being used
+            lru.remove ();
+            this.residentBytes -= victim.bytes;
+            swapOut (victim);
         }
+    }
 
-        return this.inMemoryPages[bin];
+    /** Starts loading the specified page in the background, if it
+     * exists, is not in memory and is not already being loaded. */
+    private void startPrefetch (final int pageId) {
+        if (pageId >= numPages () || this.inMemoryPages.containsKey (pageId)
+            || this.prefetching.containsKey (pageId))
+            return;
+        if (!getFileForPage (pageId).exists ())
+            return;
+        if (this.prefetcher == null) {
+            this.prefetcher = Executors.newSingleThreadExecutor (new ThreadFactory () {
+                public Thread newThread (Runnable r) {
+                    Thread t = new Thread (r, "PagedInstanceList prefetcher");
+                    t.setDaemon (true);
+                    return t;
+                }
+            });
+        }
+        this.prefetching.put (pageId, this.prefetcher.submit (new Callable<Page> () {
+            public Page call () throws Exception {
+                return readPage (pageId);
+            }
+        }));
     }
-    
-    /** Swaps out the page in the specified bin if it is dirty
-     * @param pageId Page to swap out
+
+    /** Reads a page from its swap file. Called from the prefetcher thread too,
+     * so it only uses state that does not change after construction. */
+    private Page readPage (int pageId) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream (new BufferedInputStream (
+                new FileInputStream (getFileForPage (pageId)), 1 << 16));
+        try {
+            return deserializePage (pageId, in);
+        } finally {
+            in.close ();
+        }
+    }
+
+    /** Writes a page to disk if it is dirty
+     * @param page Page to swap out
      */
-    private void swapOut (int pageId) {
-        int bin = pageId % this.inMemoryPages.length;
-        if (pageId != -1 && this.dirty.get (bin)) {
+    private void swapOut (Page page) {
+        if (page.dirty) {
             long startTime = System.currentTimeMillis ();
-            File pageFile = getFileForPage (pageId);
-            ObjectOutputStream out = null;
+            File pageFile = getFileForPage (page.id);
+            DataOutputStream out = null;
             try {
-                out = new ObjectOutputStream (new FileOutputStream (pageFile));
-                InstanceList page = this.inMemoryPages[bin];
-                this.inMemoryPageIds[bin] = -1;
-                this.inMemoryPages[bin] = null;
-
-                serializePage(out, page);
-
-                this.dirty.set(bin, false);
-            } catch (Exception e) {
-                System.err.println (e);
-                System.exit (-1);
+                out = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (pageFile), 1 << 16));
+                serializePage(out, page.instances);
+                page.dirty = false;
+            } catch (IOException e) {
+                throw new IllegalStateException ("Couldn't write page " + page.id + " to " + pageFile, e);
             } finally {
                 if (out != null) {
                     try {
                         out.close ();
                     }
-                    catch (Exception e) {
-                        System.err.println (e);
-                        System.exit (-1);
+                    catch (IOException e) {
+                        throw new IllegalStateException ("Couldn't write page " + page.id + " to " + pageFile, e);
                     }
                 }
             }
-            
+
             if (this.collectGarbage) {
                 System.gc();
             }
@@ -310,29 +423,33 @@ public class PagedInstanceList extends InstanceList
     }
 
     // ACCESSORS
-    
+
     /** Appends the instance to this list. Note that since memory for
      * the Instance has already been allocated, no check is made to
      * catch OutOfMemoryError.
      * @return <code>true</code> if successful
      */
     public boolean add (Instance instance) {
-        InstanceList page;
+        InstanceList pageList;
         if (this.size % this.instancesPerPage == 0) {
-            // this is the start of a new page, swap out the one in this pages
-            // spot and create a new one
+            // this is the start of a new page
             int pageId = this.size / this.instancesPerPage;
-            int bin = pageId % this.inMemoryPages.length;
-            swapOut (this.inMemoryPageIds[bin]);
-            page = new InstanceList (this.noopPipe);
-            this.inMemoryPageIds[bin] = pageId;
-            this.inMemoryPages[bin] = page;
+            Page page = new Page (pageId, new InstanceList (this.noopPipe), 0);
+            page.dirty = true;
+            makeResident (page);
+            pageList = page.instances;
         } else {
-            page = getPageForIndex (this.size, true);
+            pageList = getPageForIndex (this.size, true);
         }
-        boolean ret = page.add (instance);
+        boolean ret = pageList.add (instance);
         if (ret) {
+            Page page = this.inMemoryPages.get (this.size / this.instancesPerPage);
+            long bytes = estimateBytes (instance);
+            page.bytes += bytes;
+            this.residentBytes += bytes;
             this.size++;
+            if (this.residentBytes > this.memoryBudget)
+                evictFor (page);
         }
         return ret;
     }
@@ -353,46 +470,102 @@ public class PagedInstanceList extends InstanceList
         return page.set (index % this.instancesPerPage, instance);
     }
 
+    /** Instance weights are kept in the pages, so they are written back with them. */
+    public double getInstanceWeight (int index) {
+        InstanceList page = getPageForIndex (index, false);
+        return page.getInstanceWeight (index % this.instancesPerPage);
+    }
+
+    public void setInstanceWeight (int index, double weight) {
+        InstanceList page = getPageForIndex (index, true);
+        page.setInstanceWeight (index % this.instancesPerPage, weight);
+    }
+
+    public Iterator<Instance> iterator () {
+        return new Iterator<Instance> () {
+            int next = 0;
+            public boolean hasNext () { return next < size; }
+            public Instance next () {
+                if (next >= size) throw new NoSuchElementException ();
+                return get (next++);
+            }
+            public void remove () { throw new UnsupportedOperationException (); }
+        };
+    }
+
+    public boolean isEmpty () {
+        return this.size == 0;
+    }
+
     public boolean getCollectGarbage () {
         return this.collectGarbage;
     }
-    
+
     public void setCollectGarbage (boolean b) {
         this.collectGarbage = b;
-    
+
+    }
+
+    public boolean getPrefetch () {
+        return this.prefetch;
+    }
+
+    /** If true (the default), reading a page from disk starts loading
+     * the following page in a background thread. */
+    public void setPrefetch (boolean b) {
+        this.prefetch = b;
+    }
+
+    public long getMemoryBudget () {
+        return this.memoryBudget;
+    }
+
+    /** Sets the maximum estimated bytes of instances to keep in memory. */
+    public void setMemoryBudget (long bytes) {
+        this.memoryBudget = bytes;
     }
 
     public InstanceList shallowClone () {
         InstanceList ret = this.cloneEmpty ();
         for (int i = 0; i < this.size (); i++) {
-            ret.add (get (i));
+            ret.add (get (i), getInstanceWeight (i));
         }
         return ret;
     }
 
     public InstanceList cloneEmpty () {
-        return super.cloneEmptyInto (new PagedInstanceList (
+        PagedInstanceList ret = new PagedInstanceList (
                 this.pipe,
-                this.inMemoryPages.length,
+                this.maxPages,
                 this.instancesPerPage,
-                this.swapDir)); 
+                this.swapDir);
+        ret.memoryBudget = this.memoryBudget;
+        ret.prefetch = this.prefetch;
+        ret.collectGarbage = this.collectGarbage;
+        return super.cloneEmptyInto (ret);
     }
 
     public void clear () {
-        int numPages = this.size / this.instancesPerPage;
-        for (int i = 0; i <= numPages; i++) {
-            getFileForPage (i).delete ();
+        for (Future<Page> pending : this.prefetching.values ()) {
+            try {
+                pending.get ();
+            } catch (Exception e) {
+                // The page is being discarded anyway
+            }
         }
-        for (int i = 0; i < this.inMemoryPages.length; i++) {
-            this.inMemoryPages[i] = null;
-            this.inMemoryPageIds[i] = -1;
+        this.prefetching.clear ();
+        int numPages = numPages ();
+        for (int i = 0; i < numPages; i++) {
+            getFileForPage (i).delete ();
         }
+        this.inMemoryPages.clear ();
+        this.residentBytes = 0;
         this.size = 0;
         this.swapIns = 0;
         this.swapInTime = 0;
+        this.prefetchHits = 0;
         this.swapOuts = 0;
         this.swapOutTime = 0;
-        this.dirty.clear ();
         super.clear ();
     }
 
@@ -404,6 +577,11 @@ public class PagedInstanceList extends InstanceList
         return this.swapInTime;
     }
 
+    /** Returns how many swap-ins were served by the background prefetcher. */
+    public int getPrefetchHits () {
+        return this.prefetchHits;
+    }
+
     public int getSwapOuts () {
         return this.swapOuts;
     }
@@ -412,115 +590,296 @@ public class PagedInstanceList extends InstanceList
         return this.swapOutTime;
     }
 
+    /** Returns the estimated bytes of the instances now in memory. */
+    public long getResidentBytes () {
+        return this.residentBytes;
+    }
+
     public int size () {
         return this.size;
     }
-    
+
+    // CODEC
+
+    /** Rough heap size of an instance's arrays and objects, used for the memory budget. */
+    private static long estimateBytes (Instance inst) {
+        return 48 + estimateBytes (inst.getData ()) + estimateBytes (inst.getTarget ())
+            + estimateBytes (inst.getName ()) + estimateBytes (inst.getSource ());
+    }
+
+    private static long estimateBytes (Object obj) {
+        if (obj == null || obj instanceof Label)
+            return 0;
+        if (obj instanceof FeatureVector) {
+            FeatureVector fv = (FeatureVector) obj;
+            return 64 + 4L * fv.numLocations () + (fv.values == null ? 0 : 8L * fv.numLocations ());
+        }
+        if (obj instanceof FeatureSequence)
+            return 40 + 4L * ((FeatureSequence) obj).getLength ();
+        if (obj instanceof FeatureVectorSequence) {
+            FeatureVectorSequence fvs = (FeatureVectorSequence) obj;
+            long bytes = 32 + 8L * fvs.size ();
+            for (int i = 0; i < fvs.size (); i++)
+                bytes += estimateBytes (fvs.get (i));
+            return bytes;
+        }
+        if (obj instanceof String)
+            return 40 + 2L * ((String) obj).length ();
+        return 64;
+    }
+
+    static void writeVarInt (DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte (v);
+    }
+
+    static int readVarInt (DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte ();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+    }
+
+    /** Zig-zag encodes a signed delta so small negative values stay short. */
+    private static void writeDelta (DataOutput out, int delta) throws IOException {
+        writeVarInt (out, (delta << 1) ^ (delta >> 31));
+    }
+
+    private static int readDelta (DataInput in) throws IOException {
+        int v = readVarInt (in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeFeatureVector (DataOutput out, FeatureVector fv) throws IOException {
+        int n = fv.numLocations ();
+        writeVarInt (out, n);
+        byte valueType = VALUES_BINARY;
+        if (fv.values != null) {
+            valueType = VALUES_INTEGRAL;
+            for (int loc = 0; loc < n; loc++) {
+                double v = fv.values[loc];
+                if (v < 0 || v > Integer.MAX_VALUE || v != Math.floor (v)) {
+                    valueType = VALUES_DOUBLE;
+                    break;
+                }
+            }
+        }
+        out.writeByte (valueType);
+        int prev = 0;
+        for (int loc = 0; loc < n; loc++) {
+            int index = fv.indexAtLocation (loc);
+            writeDelta (out, index - prev);
+            prev = index;
+        }
+        if (valueType == VALUES_INTEGRAL)
+            for (int loc = 0; loc < n; loc++)
+                writeVarInt (out, (int) fv.values[loc]);
+        else if (valueType == VALUES_DOUBLE)
+            for (int loc = 0; loc < n; loc++)
+                out.writeDouble (fv.values[loc]);
+    }
+
+    private FeatureVector readFeatureVector (DataInput in) throws IOException {
+        int n = readVarInt (in);
+        byte valueType = in.readByte ();
+        int[] indices = new int[n];
+        int prev = 0;
+        for (int loc = 0; loc < n; loc++) {
+            prev += readDelta (in);
+            indices[loc] = prev;
+        }
+        double[] values = null;
+        if (valueType == VALUES_INTEGRAL) {
+            values = new double[n];
+            for (int loc = 0; loc < n; loc++)
+                values[loc] = readVarInt (in);
+        } else if (valueType == VALUES_DOUBLE) {
+            values = new double[n];
+            for (int loc = 0; loc < n; loc++)
+                values[loc] = in.readDouble ();
+        }
+        return new FeatureVector (getDataAlphabet (), indices, values, n, n, false, false, false);
+    }
+
+    private static void writeIndexSequence (DataOutput out, FeatureSequence fs) throws IOException {
+        int n = fs.getLength ();
+        writeVarInt (out, n);
+        for (int i = 0; i < n; i++)
+            writeVarInt (out, fs.getIndexAtPosition (i));
+    }
+
+    private static int[] readIndexSequence (DataInput in) throws IOException {
+        int[] indices = new int[readVarInt (in)];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = readVarInt (in);
+        return indices;
+    }
+
     /** Serializes a single object without metadata
      * @param out
      * @param object
-     * @throws IOException 
+     * @throws IOException
      */
-    private void serializeObject (ObjectOutputStream out, Object obj)
+    private void serializeObject (DataOutput out, Object obj)
     throws IOException {
-        if (obj instanceof FeatureVector) {
-            FeatureVector features = (FeatureVector) obj;
-            out.writeChar (TYPE_FEATURE_VECTOR);
-            out.writeObject (features.getIndices ());
-            out.writeObject (features.getValues ());
-        }
-        else if (obj instanceof Label) {
-                out.writeChar (TYPE_LABEL);
-                out.writeObject (((Label) obj).toString ());
+        if (obj == null) {
+            out.writeByte (TYPE_NULL);
+        } else if (obj.getClass () == FeatureVector.class) {
+            out.writeByte (TYPE_FEATURE_VECTOR);
+            writeFeatureVector (out, (FeatureVector) obj);
+        } else if (obj.getClass () == FeatureSequence.class) {
+            out.writeByte (TYPE_FEATURE_SEQUENCE);
+            writeIndexSequence (out, (FeatureSequence) obj);
+        } else if (obj.getClass () == LabelSequence.class) {
+            out.writeByte (TYPE_LABEL_SEQUENCE);
+            writeIndexSequence (out, (LabelSequence) obj);
+        } else if (obj.getClass () == FeatureVectorSequence.class
+                   && allPlainFeatureVectors ((FeatureVectorSequence) obj)) {
+            FeatureVectorSequence fvs = (FeatureVectorSequence) obj;
+            out.writeByte (TYPE_FEATURE_VECTOR_SEQUENCE);
+            writeVarInt (out, fvs.size ());
+            for (int i = 0; i < fvs.size (); i++)
+                writeFeatureVector (out, fvs.get (i));
+        } else if (obj instanceof Label
+                   && ((Label) obj).getLabelAlphabet () == getTargetAlphabet ()) {
+            out.writeByte (TYPE_LABEL);
+            writeVarInt (out, ((Label) obj).getIndex ());
+        } else if (obj instanceof String) {
+            out.writeByte (TYPE_STRING);
+            byte[] utf8 = ((String) obj).getBytes ("UTF-8");
+            writeVarInt (out, utf8.length);
+            out.write (utf8);
         } else {
-            out.writeChar (TYPE_OBJECT);
-            out.writeObject (obj);
+            out.writeByte (TYPE_OBJECT);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+            ObjectOutputStream oos = new ObjectOutputStream (bytes);
+            oos.writeObject (obj);
+            oos.close ();
+            writeVarInt (out, bytes.size ());
+            out.write (bytes.toByteArray ());
         }
     }
 
+    private static boolean allPlainFeatureVectors (FeatureVectorSequence fvs) {
+        for (int i = 0; i < fvs.size (); i++)
+            if (fvs.get (i).getClass () != FeatureVector.class)
+                return false;
+        return true;
+    }
+
     /** Serialize a page without metadata. This attempts to serialize the
      * minimum amount needed to restore the page, leaving out redundant data
      * such as pipes and dictionaries.
-     * @param out Object output stream
+     * @param out Data output stream
      * @param page
-     * @throws IOException 
+     * @throws IOException
      */
-    private void serializePage (ObjectOutputStream out, InstanceList page)
+    private void serializePage (DataOutput out, InstanceList page)
     throws IOException {
-        out.writeInt (page.size ());
-        for (Instance inst : page) {
+        writeVarInt (out, page.size ());
+        for (int i = 0; i < page.size (); i++) {
+            Instance inst = page.get (i);
             serializeObject (out, inst.getData ());
             serializeObject (out, inst.getTarget ());
-            out.writeObject (inst.getName ());
-            out.writeObject (inst.getSource ());
-            if (this.instWeights != null) {
-                Double weight = this.instWeights.get (inst);
-                if (weight != null) {
-                    out.writeDouble (this.instWeights.get (inst));
-                } else {
-                    out.writeDouble (1.0);
-                }
-            } else {
-                out.writeDouble (1.0);
-            }
+            serializeObject (out, inst.getName ());
+            serializeObject (out, inst.getSource ());
+            out.writeDouble (page.getInstanceWeight (i));
         }
     }
-    
+
     /** Deserialize an object serialized using
-     * {@link #serializeObject(ObjectOutputStream, Object)}.
-     * @throws IOException 
-     * @throws ClassNotFoundException 
+     * {@link #serializeObject(DataOutput, Object)}.
+     * @throws IOException
+     * @throws ClassNotFoundException
      */
-    private Object deserializeObject (ObjectInputStream in)
+    private Object deserializeObject (DataInput in)
     throws IOException, ClassNotFoundException {
-        char type = in.readChar ();
+        byte type = in.readByte ();
         Object obj;
-        
+
         switch (type) {
+        case TYPE_NULL:
+            obj = null;
+            break;
         case TYPE_LABEL:
             LabelAlphabet ldict = (LabelAlphabet) getTargetAlphabet ();
-            String name = (String) in.readObject ();
-            obj = ldict.lookupLabel (name);
+            obj = ldict.lookupLabel (readVarInt (in));
             break;
         case TYPE_FEATURE_VECTOR:
-            int[] indices = (int[]) in.readObject ();
-            double[] values = (double[]) in.readObject ();
-            obj = new FeatureVector(getDataAlphabet (), indices, values);
+            obj = readFeatureVector (in);
+            break;
+        case TYPE_FEATURE_SEQUENCE: {
+            int[] indices = readIndexSequence (in);
+            FeatureSequence fs = new FeatureSequence (getDataAlphabet (), 0);
+            fs.features = indices;
+            fs.length = indices.length;
+            obj = fs;
+            break;
+        }
+        case TYPE_LABEL_SEQUENCE:
+            obj = new LabelSequence ((LabelAlphabet) getTargetAlphabet (), readIndexSequence (in));
+            break;
+        case TYPE_FEATURE_VECTOR_SEQUENCE: {
+            FeatureVector[] vecs = new FeatureVector[readVarInt (in)];
+            for (int i = 0; i < vecs.length; i++)
+                vecs[i] = readFeatureVector (in);
+            obj = new FeatureVectorSequence (vecs);
+            break;
+        }
+        case TYPE_STRING: {
+            byte[] utf8 = new byte[readVarInt (in)];
+            in.readFully (utf8);
+            obj = new String (utf8, "UTF-8");
             break;
-        case TYPE_OBJECT:
-            obj = in.readObject ();
+        }
+        case TYPE_OBJECT: {
+            byte[] bytes = new byte[readVarInt (in)];
+            in.readFully (bytes);
+            ObjectInputStream ois = new ObjectInputStream (new ByteArrayInputStream (bytes));
+            obj = ois.readObject ();
+            ois.close ();
             break;
+        }
         default:
             throw new IOException ("Unknown object type " + type);
         }
-        
+
         return obj;
     }
-    
+
     /** Deserialize a page. This restores a page serialized using
-     * {@link #serializePage(ObjectOutputStream, InstanceList)}.
-     * @param in Object input stream
+     * {@link #serializePage(DataOutput, InstanceList)}.
+     * @param in Data input stream
      * @return New page
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    private InstanceList deserializePage(ObjectInputStream in)
+    private Page deserializePage(int pageId, DataInput in)
     throws IOException, ClassNotFoundException {
         InstanceList page = new InstanceList(noopPipe);
-        int size = in.readInt();
-        
+        int size = readVarInt(in);
+        long bytes = 0;
+
         for (int i = 0; i < size; i++) {
             Object data = deserializeObject (in);
             Object target = deserializeObject (in);
-            Object name = in.readObject ();
-            Object source = in.readObject ();
+            Object name = deserializeObject (in);
+            Object source = deserializeObject (in);
             double weight = in.readDouble ();
-            page.add (new Instance (data, target, name, source), weight);
+            Instance inst = new Instance (data, target, name, source);
+            page.add (inst, weight);
+            bytes += estimateBytes (inst);
         }
-        
-        return page;
+
+        return new Page (pageId, page, bytes);
     }
-    
+
     /** Constructs a new <code>InstanceList</code>, deserialized from
      * <code>file</code>.  If the string value of <code>file</code> is
      * "-", then deserialize from {@link System.in}. */
@@ -543,7 +902,7 @@ public class PagedInstanceList extends InstanceList
     // Serialization of PagedInstanceList
 
     private static final long serialVersionUID = 1;
-    private static final int CURRENT_SERIAL_VERSION = 1;
+    private static final int CURRENT_SERIAL_VERSION = 2;
 
     private void writeObject (ObjectOutputStream out) throws IOException {
         out.writeInt (CURRENT_SERIAL_VERSION);
@@ -552,26 +911,45 @@ public class PagedInstanceList extends InstanceList
         // memory attributes
         out.writeInt (this.instancesPerPage);
         out.writeObject (this.swapDir);
-        out.writeObject(this.inMemoryPageIds);
-        out.writeObject (this.dirty);
-        
-        for (int i = 0; i < this.inMemoryPages.length; i++) {
-            serializePage(out, this.inMemoryPages[i]);
+        out.writeInt (this.maxPages);
+        out.writeLong (this.memoryBudget);
+        out.writeInt (this.size);
+        out.writeBoolean (this.prefetch);
+
+        out.writeInt (this.inMemoryPages.size ());
+        for (Page page : this.inMemoryPages.values ()) {
+            out.writeInt (page.id);
+            out.writeBoolean (page.dirty);
+            serializePage(out, page.instances);
         }
     }
 
     private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+        int version = in.readInt ();
         this.id = (VMID) in.readObject ();
         this.pipe = (Pipe) in.readObject();
+        this.noopPipe = new Noop(pipe.getDataAlphabet(), pipe.getTargetAlphabet());
+        this.dataAlphabet = pipe.getDataAlphabet ();
+        this.targetAlphabet = pipe.getTargetAlphabet ();
         // memory attributes
         this.instancesPerPage = in.readInt ();
         this.swapDir = (File) in.readObject ();
-        this.inMemoryPageIds = (int[]) in.readObject();
-        this.dirty = (BitSet) in.readObject ();
-        
-        this.inMemoryPages = new InstanceList[this.inMemoryPageIds.length];
-        for (int i = 0; i < this.inMemoryPageIds.length; i++) {
-            this.inMemoryPages[i] = deserializePage(in);
+        this.maxPages = in.readInt ();
+        this.memoryBudget = in.readLong ();
+        this.size = in.readInt ();
+        this.prefetch = in.readBoolean ();
+        this.prefetching = new HashMap<Integer,Future<Page>> ();
+
+        this.inMemoryPages = new LinkedHashMap<Integer,Page> (16, 0.75f, true);
+        this.residentBytes = 0;
+        int numResident = in.readInt ();
+        for (int i = 0; i < numResident; i++) {
+            int pageId = in.readInt ();
+            boolean dirty = in.readBoolean ();
+            Page page = deserializePage (pageId, in);
+            page.dirty = dirty;
+            this.inMemoryPages.put (pageId, page);
+            this.residentBytes += page.bytes;
         }
     }
 }
@@ -0,0 +1,95 @@
+/* Copyright (C) 2003 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.types.tests;
+
+import java.util.Random;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.CompressedFeatureSequence;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVector;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class TestCompressedFeatureSequence extends TestCase {
+
+  public TestCompressedFeatureSequence (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestCompressedFeatureSequence.class);
+  }
+
+  private static Alphabet dictOfSize (int size)
+  {
+    Alphabet ret = new Alphabet ();
+    for (int i = 0; i < size; i++)
+      ret.lookupIndex ("feature"+i);
+    return ret;
+  }
+
+  public void testRandomSequences ()
+  {
+    Random r = new Random (1);
+    int[] sizes = { 1, 2, 200, 256, 257, 50000, 70000, 1 << 20 };
+    for (int si = 0; si < sizes.length; si++) {
+      Alphabet dict = dictOfSize (sizes[si]);
+      int[] features = new int[r.nextInt (500) + 1];
+      for (int i = 0; i < features.length; i++)
+        features[i] = r.nextInt (sizes[si]);
+      FeatureSequence fs = new FeatureSequence (dict, features);
+      CompressedFeatureSequence cfs = new CompressedFeatureSequence (fs);
+      assertEquals (fs.getLength (), cfs.getLength ());
+      for (int i = 0; i < features.length; i++)
+        assertEquals (features[i], cfs.getIndexAtPosition (i));
+      assertEquals (fs.toString (), cfs.toString ());
+      assertTrue (cfs.getBitsPerFeature () <= 21);
+    }
+  }
+
+  public void testFeatureVectorAndSerialization () throws Exception
+  {
+    Alphabet dict = dictOfSize (1000);
+    CompressedFeatureSequence cfs = new CompressedFeatureSequence (dict, new int[] { 999, 3, 3, 512, 0 });
+    assertEquals (10, cfs.getBitsPerFeature ());
+
+    FeatureVector fv = new FeatureVector (cfs);
+    assertEquals (2.0, fv.value (3), 0.0);
+    assertEquals (4, fv.numLocations ());
+
+    CompressedFeatureSequence copy = (CompressedFeatureSequence) TestSerializable.cloneViaSerialization (cfs);
+    assertEquals (5, copy.getLength ());
+    assertEquals (512, copy.getIndexAtPosition (3));
+    assertEquals ("feature999", copy.getObjectAtPosition (0));
+
+    FeatureVector binary = new FeatureVector (dict, new int[] { 1, 5 }, new double[] { 1.0, 1.0 }).compact ();
+    assertTrue (binary.isBinary ());
+    assertEquals (1.0, binary.value (5), 0.0);
+    FeatureVector counts = new FeatureVector (dict, new int[] { 1, 5 }, new double[] { 1.0, 2.0 });
+    assertSame (counts, counts.compact ());
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestCompressedFeatureSequence (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
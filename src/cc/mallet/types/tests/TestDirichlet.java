@@ -0,0 +1,138 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.types.tests;
+
+import java.util.Random;
+
+import cc.mallet.types.Dirichlet;
+import junit.framework.*;
+
+public class TestDirichlet extends TestCase
+{
+	public TestDirichlet (String name)
+	{
+		super (name);
+	}
+
+	/** The fixed point iteration of learnParameters, written out in one piece. */
+	private static double referenceLearnParameters (double[] parameters, int[][] observations,
+	                                                int[] observationLengths,
+	                                                double shape, double scale, int numIterations)
+	{
+		double parametersSum = 0;
+		for (int k = 0; k < parameters.length; k++)
+			parametersSum += parameters[k];
+
+		for (int iteration = 0; iteration < numIterations; iteration++) {
+			double denominator = 0;
+			double currentDigamma = 0;
+			for (int i = 1; i < observationLengths.length; i++) {
+				currentDigamma += 1 / (parametersSum + i - 1);
+				denominator += observationLengths[i] * currentDigamma;
+			}
+			denominator -= 1 / scale;
+
+			parametersSum = 0;
+			for (int k = 0; k < parameters.length; k++) {
+				double oldParameter = parameters[k];
+				double numerator = 0;
+				currentDigamma = 0;
+				for (int i = 1; i < observations[k].length; i++) {
+					currentDigamma += 1 / (oldParameter + i - 1);
+					numerator += observations[k][i] * currentDigamma;
+				}
+				parameters[k] = (oldParameter * numerator + shape) / denominator;
+				parametersSum += parameters[k];
+			}
+		}
+		return parametersSum;
+	}
+
+	/** Random histograms of the number of tokens of each of <code>numTopics</code> topics in each of <code>numDocs</code> documents. */
+	private static int[][] topicHistograms (int numTopics, int numDocs, int maxLength, int[] lengthHistogram, Random r)
+	{
+		int[][] histograms = new int[numTopics][maxLength + 1];
+		for (int doc = 0; doc < numDocs; doc++) {
+			int length = 1 + r.nextInt (maxLength);
+			lengthHistogram[length]++;
+			int[] counts = new int[numTopics];
+			for (int i = 0; i < length; i++)
+				counts[r.nextInt (1 + r.nextInt (numTopics))]++;
+			for (int topic = 0; topic < numTopics; topic++)
+				histograms[topic][counts[topic]]++;
+		}
+		return histograms;
+	}
+
+	public void testLearnParametersMatchesReference ()
+	{
+		Random r = new Random (7);
+		int numTopics = 12, maxLength = 60;
+		int[] lengths = new int[maxLength + 1];
+		int[][] observations = topicHistograms (numTopics, 300, maxLength, lengths, r);
+
+		int[] iterationCounts = { 1, 5, 200 };
+		for (int n = 0; n < iterationCounts.length; n++) {
+			double[] expected = new double[numTopics];
+			double[] actual = new double[numTopics];
+			for (int topic = 0; topic < numTopics; topic++)
+				expected[topic] = actual[topic] = 0.1 + topic * 0.05;
+
+			double expectedSum = referenceLearnParameters (expected, observations, lengths, 1.001, 1.0, iterationCounts[n]);
+			double actualSum = Dirichlet.learnParameters (actual, observations, lengths, 1.001, 1.0, iterationCounts[n]);
+
+			assertEquals (expectedSum, actualSum, 1e-12 * expectedSum);
+			for (int topic = 0; topic < numTopics; topic++)
+				assertEquals (expected[topic], actual[topic], 1e-12 * expected[topic]);
+		}
+	}
+
+	public void testSplitUpdateMatchesLearnParameters ()
+	{
+		Random r = new Random (8);
+		int numTopics = 9, maxLength = 40;
+		int[] lengths = new int[maxLength + 1];
+		int[][] observations = topicHistograms (numTopics, 200, maxLength, lengths, r);
+
+		double[] expected = new double[numTopics];
+		double[] actual = new double[numTopics];
+		double sum = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			expected[topic] = actual[topic] = 0.5 / (topic + 1);
+			sum += actual[topic];
+		}
+		Dirichlet.learnParameters (expected, observations, lengths, 1.001, 1.0, 3);
+
+		// The same iterations, with the parameters updated in reverse order
+		//  and the non-zero limits at the end of the histograms
+		for (int iteration = 0; iteration < 3; iteration++) {
+			double denominator = Dirichlet.fixedPointDenominator (lengths, sum, 1.0);
+			sum = 0;
+			for (int topic = numTopics - 1; topic >= 0; topic--) {
+				actual[topic] = Dirichlet.fixedPointUpdate (actual[topic], observations[topic], maxLength,
+				                                            denominator, 1.001);
+			}
+			for (int topic = 0; topic < numTopics; topic++)
+				sum += actual[topic];
+		}
+
+		for (int topic = 0; topic < numTopics; topic++)
+			assertEquals (expected[topic], actual[topic], 1e-12 * expected[topic]);
+	}
+
+	public static Test suite ()
+	{
+		return new TestSuite (TestDirichlet.class);
+	}
+
+	public static void main (String[] args)
+	{
+		junit.textui.TestRunner.run (suite());
+	}
+
+}
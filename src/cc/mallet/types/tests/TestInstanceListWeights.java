@@ -35,4 +35,54 @@ public class TestInstanceListWeights {
 		assertEquals("#6", instances.getInstanceWeight(1), 5.0, 0.0);
 	}
 
-}
\ No newline at end of file
+	@Test
+		public void weightsFollowInstances() throws Exception {
+
+		InstanceList instances = new InstanceList(new Noop());
+		for (int i = 0; i < 20; i++) {
+			instances.add(new Instance("test" + i, null, null, null), i);
+		}
+
+		// Removing shifts the weights with their instances
+		instances.remove(0);
+		instances.remove(instances.get(3));
+		assertEquals(18, instances.size());
+		for (int i = 0; i < instances.size(); i++) {
+			assertEquals("test" + (int) instances.getInstanceWeight(i), instances.get(i).getData());
+		}
+
+		instances.shuffle(new java.util.Random(1));
+		for (int i = 0; i < instances.size(); i++) {
+			assertEquals("test" + (int) instances.getInstanceWeight(i), instances.get(i).getData());
+		}
+
+		InstanceList[] split = instances.split(new java.util.Random(2), new double[] {0.5, 0.5});
+		for (InstanceList list : split) {
+			for (int i = 0; i < list.size(); i++) {
+				assertEquals("test" + (int) list.getInstanceWeight(i), list.get(i).getData());
+			}
+		}
+
+		InstanceList sub = instances.subList(5, 10);
+		for (int i = 0; i < sub.size(); i++) {
+			assertEquals(instances.getInstanceWeight(i + 5), sub.getInstanceWeight(i), 0.0);
+		}
+
+		// The same instance may now be added twice with different weights
+		Instance instance = instances.get(0);
+		instances.add(instance, 100.0);
+		assertEquals(100.0, instances.getInstanceWeight(instances.size() - 1), 0.0);
+		assertEquals(instance.getData(), "test" + (int) instances.getInstanceWeight(0));
+
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes);
+		out.writeObject(instances);
+		out.close();
+		InstanceList copy = (InstanceList) new java.io.ObjectInputStream(
+				new java.io.ByteArrayInputStream(bytes.toByteArray())).readObject();
+		for (int i = 0; i < instances.size(); i++) {
+			assertEquals(instances.getInstanceWeight(i), copy.getInstanceWeight(i), 0.0);
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package cc.mallet.types.tests;
+
+import java.io.File;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import cc.mallet.types.*;
+import cc.mallet.pipe.*;
+
+public class TestMappedInstanceList {
+
+	private static File roundTrip (InstanceList instances) throws Exception {
+		File file = File.createTempFile("mapped", ".vectors");
+		file.deleteOnExit();
+		MappedInstanceList.save(instances, file);
+		return file;
+	}
+
+	@Test
+		public void featureVectors() throws Exception {
+		Alphabet features = new Alphabet();
+		LabelAlphabet labels = new LabelAlphabet();
+		for (int i = 0; i < 10; i++) features.lookupIndex("f" + i);
+		InstanceList instances = new InstanceList(new Noop(features, labels));
+		instances.add(new Instance(new FeatureVector(features, new int[] {1, 4, 7}, new double[] {1.0, 2.5, 3.0}),
+		                           labels.lookupLabel("a"), "first", null), 2.0);
+		instances.add(new Instance(new FeatureVector(features, new int[] {0, 9}),
+		                           labels.lookupLabel("b"), null, null));
+		instances.add(new Instance(new FeatureVector(features, new int[0], new double[0]),
+		                           labels.lookupLabel("a"), "third", null));
+
+		InstanceList mapped = InstanceList.load(roundTrip(instances));
+		assertTrue(mapped instanceof MappedInstanceList);
+		assertEquals(3, mapped.size());
+		int n = 0;
+		for (Instance inst : mapped) {
+			FeatureVector expected = (FeatureVector) instances.get(n).getData();
+			FeatureVector actual = (FeatureVector) inst.getData();
+			assertEquals(expected.numLocations(), actual.numLocations());
+			for (int loc = 0; loc < expected.numLocations(); loc++) {
+				assertEquals(expected.indexAtLocation(loc), actual.indexAtLocation(loc));
+				assertEquals(expected.valueAtLocation(loc), actual.valueAtLocation(loc), 0.0);
+			}
+			assertEquals(instances.get(n).getTarget().toString(), inst.getTarget().toString());
+			assertEquals(instances.getInstanceWeight(n), mapped.getInstanceWeight(n), 0.0);
+			n++;
+		}
+		assertEquals(3, n);
+		assertEquals("first", mapped.get(0).getName());
+		assertEquals(10, mapped.getDataAlphabet().size());
+
+		// Splitting copies into ordinary lists
+		InstanceList[] split = mapped.split(new java.util.Random(1), new double[] {0.5, 0.5});
+		assertEquals(3, split[0].size() + split[1].size());
+	}
+
+	@Test
+		public void featureSequences() throws Exception {
+		Alphabet features = new Alphabet();
+		for (int i = 0; i < 4; i++) features.lookupIndex("w" + i);
+		InstanceList instances = new InstanceList(new Noop(features, null));
+		instances.add(new Instance(new FeatureSequence(features, new int[] {0, 1, 0, 2}), null, null, null));
+		instances.add(new Instance(new FeatureSequence(features, new int[] {3}), null, null, null));
+
+		InstanceList mapped = InstanceList.load(roundTrip(instances));
+		FeatureSequence fs = (FeatureSequence) mapped.get(0).getData();
+		assertEquals(4, fs.getLength());
+		assertEquals(2, fs.getIndexAtPosition(3));
+		assertEquals(3, ((FeatureSequence) mapped.get(1).getData()).getIndexAtPosition(0));
+		assertNull(mapped.get(1).getTarget());
+	}
+
+	@Test
+		public void featureVectorSequences() throws Exception {
+		Alphabet features = new Alphabet();
+		LabelAlphabet labels = new LabelAlphabet();
+		for (int i = 0; i < 5; i++) features.lookupIndex("f" + i);
+		InstanceList instances = new InstanceList(new Noop(features, labels));
+		FeatureVectorSequence fvs = new FeatureVectorSequence(new FeatureVector[] {
+				new FeatureVector(features, new int[] {0, 2}),
+				new FeatureVector(features, new int[] {4})});
+		LabelSequence ls = new LabelSequence(labels, new int[] {
+				labels.lookupIndex("O"), labels.lookupIndex("B")});
+		instances.add(new Instance(fvs, ls, null, null));
+
+		InstanceList mapped = InstanceList.load(roundTrip(instances));
+		FeatureVectorSequence actual = (FeatureVectorSequence) mapped.get(0).getData();
+		assertEquals(2, actual.size());
+		assertEquals(2, actual.get(0).indexAtLocation(1));
+		assertEquals(4, actual.get(1).indexAtLocation(0));
+		LabelSequence actualLabels = (LabelSequence) mapped.get(0).getTarget();
+		assertEquals("B", actualLabels.getLabelAtPosition(1).toString());
+	}
+
+}
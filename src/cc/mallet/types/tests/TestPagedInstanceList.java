@@ -6,6 +6,15 @@
    information, see the file `LICENSE' included with this distribution. */
 package cc.mallet.types.tests;
 
+import java.io.File;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.types.PagedInstanceList;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -85,6 +94,81 @@ public class TestPagedInstanceList extends TestCase {
 //    return testAcc;
 //  }
 
+  public void testPagingRoundTrip () throws Exception
+  {
+    Alphabet features = new Alphabet ();
+    LabelAlphabet labels = new LabelAlphabet ();
+    for (int i = 0; i < 1000; i++)
+      features.lookupIndex ("feature"+i);
+    labels.lookupIndex ("class0");
+    labels.lookupIndex ("class1");
+
+    File swapDir = File.createTempFile ("paged", "");
+    swapDir.delete ();
+    PagedInstanceList ilist = new PagedInstanceList (new Noop (features, labels), 2, 10, swapDir);
+    for (int i = 0; i < 95; i++) {
+      Object data;
+      if (i % 2 == 0)
+        data = new FeatureVector (features, new int[] { i, i + 7, 999 - i }, new double[] { 1, 2.5, i });
+      else
+        data = new FeatureSequence (features, new int[] { i, 0, i });
+      ilist.add (new Instance (data, labels.lookupLabel (i % 2), "name"+i, null));
+    }
+    assertEquals (95, ilist.size ());
+    assertTrue (ilist.getSwapOuts () > 0);
+
+    // Modify an instance on a swapped-out page; it must be written back
+    ilist.set (3, new Instance (new FeatureSequence (features, new int[] { 42 }), labels.lookupLabel (1), "changed", null));
+
+    for (int pass = 0; pass < 2; pass++) {
+      int i = 0;
+      for (Instance inst : ilist) {
+        if (i == 3) {
+          assertEquals ("changed", inst.getName ());
+          assertEquals (42, ((FeatureSequence) inst.getData ()).getIndexAtPosition (0));
+        } else if (i % 2 == 0) {
+          FeatureVector fv = (FeatureVector) inst.getData ();
+          assertEquals (3, fv.numLocations ());
+          assertEquals (2.5, fv.value (i + 7), 0.0);
+          assertEquals ((double) i, fv.value (999 - i), 0.0);
+        } else {
+          FeatureSequence fs = (FeatureSequence) inst.getData ();
+          assertEquals (3, fs.getLength ());
+          assertEquals (i, fs.getIndexAtPosition (2));
+        }
+        if (i != 3)
+          assertEquals ("name"+i, inst.getName ());
+        assertEquals ("class"+(i % 2), inst.getTarget ().toString ());
+        i++;
+      }
+      assertEquals (95, i);
+    }
+    assertTrue (ilist.getSwapIns () > 0);
+    ilist.clear ();
+    swapDir.delete ();
+  }
+
+  public void testMemoryBudget () throws Exception
+  {
+    Alphabet features = new Alphabet ();
+    for (int i = 0; i < 100; i++)
+      features.lookupIndex ("feature"+i);
+    File swapDir = File.createTempFile ("paged", "");
+    swapDir.delete ();
+    PagedInstanceList ilist = new PagedInstanceList (new Noop (features, null), 5, swapDir, 4000);
+    int[] indices = new int[100];
+    for (int i = 0; i < indices.length; i++)
+      indices[i] = i;
+    for (int i = 0; i < 50; i++)
+      ilist.add (new Instance (new FeatureVector (features, indices), null, null, null));
+    assertTrue (ilist.getSwapOuts () > 0);
+    assertTrue (ilist.getResidentBytes () <= 4000 + 2560);
+    for (int i = 0; i < 50; i++)
+      assertEquals (100, ((FeatureVector) ilist.get (i).getData ()).numLocations ());
+    ilist.clear ();
+    swapDir.delete ();
+  }
+
   public static void main (String[] args)
   {
     TestSuite theSuite;
@@ -0,0 +1,219 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.io.*;
+import java.util.regex.Pattern;
+
+import gnu.trove.TLongHashSet;
+
+/**
+ * A lexer that finds tokens with a {@link RegexAutomaton} in a single
+ *  left-to-right pass over the input.  At each position the longest
+ *  prefix matched by any of the token patterns becomes the next token;
+ *  characters that start no match are skipped.
+ * <p>
+ * For a single pattern built from classes and greedy loops, such as
+ *  {@link CharSequenceLexer#LEX_ALPHA} or
+ *  {@link CharSequenceLexer#LEX_NONWHITESPACE_CLASSES}, the tokens are
+ *  the same as CharSequenceLexer's.  Where java.util.regex would prefer an
+ *  earlier, shorter alternative, this lexer takes the longest match.
+ * <p>
+ * Finding the longest match may read past the end of a token.  Each
+ *  (automaton state, offset) pair reached after the last accepting state
+ *  of a scan is remembered as a dead end, so later scans that reach it
+ *  stop at once, and every such pair is read at most once per input
+ *  (Reps, "Maximal-munch tokenization in linear time", 1998).
+ */
+public class AutomatonLexer implements Lexer, Serializable
+{
+	RegexAutomaton automaton;
+	CharSequence input;
+	int position;
+	int start = -1, end = -1;
+	String matchText;
+	boolean matchTextFresh;
+
+	// (state, offset) pairs from which no pattern can accept, keyed by failureKey
+	transient TLongHashSet failures;
+	// The pairs visited since the last accepting state of the current scan
+	transient long[] pending = new long[16];
+
+	public AutomatonLexer (RegexAutomaton automaton)
+	{
+		this.automaton = automaton;
+		setCharSequence (null);
+	}
+
+	public AutomatonLexer (Pattern[] tokenPatterns)
+	{
+		this (new RegexAutomaton (tokenPatterns));
+	}
+
+	public AutomatonLexer (Pattern tokenPattern)
+	{
+		this (new Pattern[] { tokenPattern });
+	}
+
+	public AutomatonLexer ()
+	{
+		this (CharSequenceLexer.LEX_ALPHA);
+	}
+
+	public void setCharSequence (CharSequence input)
+	{
+		this.input = input;
+		this.position = 0;
+		this.matchText = null;
+		this.matchTextFresh = false;
+		this.failures = null;
+	}
+
+	public CharSequence getCharSequence ()
+	{
+		return input;
+	}
+
+	public RegexAutomaton getAutomaton ()
+	{
+		return automaton;
+	}
+
+	public int getStartOffset ()
+	{
+		if (matchText == null)
+			return -1;
+		return start;
+	}
+
+	public int getEndOffset ()
+	{
+		if (matchText == null)
+			return -1;
+		return end;
+	}
+
+	public String getTokenString ()
+	{
+		return matchText;
+	}
+
+	/** Returns the indices of the token patterns that match the current token exactly. */
+	public int[] getMatchingPatterns ()
+	{
+		if (matchText == null)
+			return null;
+		return automaton.matchingPatterns (input, start, end);
+	}
+
+
+	// Iterator interface methods
+
+	private long failureKey (int state, int offset)
+	{
+		return (long) state * (input.length () + 1) + offset;
+	}
+
+	/**
+	 * Like {@link RegexAutomaton#longestMatchEnd}, but stops at pairs
+	 *  already known to be dead ends and records the new ones.
+	 */
+	private int longestMatchEnd (int from)
+	{
+		if (failures == null)
+			failures = new TLongHashSet ();
+		if (pending == null)
+			pending = new long[16];
+
+		int length = input.length ();
+		int state = automaton.startState ();
+		int matchEnd = -1;
+		int numPending = 0;
+		for (int i = from; i < length; i++) {
+			state = automaton.step (state, input.charAt (i));
+			if (state == RegexAutomaton.DEAD)
+				break;
+			long key = failureKey (state, i + 1);
+			if (failures.contains (key))
+				break;
+			if (automaton.isAccepting (state)) {
+				matchEnd = i + 1;
+				numPending = 0;
+			}
+			else {
+				if (numPending == pending.length) {
+					long[] grown = new long[pending.length * 2];
+					System.arraycopy (pending, 0, grown, 0, numPending);
+					pending = grown;
+				}
+				pending[numPending++] = key;
+			}
+		}
+		// Nothing after the last accepting state led to another one
+		for (int p = 0; p < numPending; p++)
+			failures.add (pending[p]);
+		return matchEnd;
+	}
+
+	private void updateMatchText ()
+	{
+		matchText = null;
+		if (input != null) {
+			int length = input.length ();
+			while (position < length) {
+				int e = longestMatchEnd (position);
+				if (e > position) {
+					start = position;
+					end = e;
+					position = e;
+					matchText = input.subSequence (start, end).toString ();
+					break;
+				}
+				position++;
+			}
+		}
+		matchTextFresh = true;
+	}
+
+	public boolean hasNext ()
+	{
+		if (! matchTextFresh)
+			updateMatchText ();
+		return (matchText != null);
+	}
+
+	public Object next ()
+	{
+		if (! matchTextFresh)
+			updateMatchText ();
+		matchTextFresh = false;
+		return matchText;
+	}
+
+	public void remove ()
+	{
+		throw new UnsupportedOperationException ();
+	}
+
+	// Serialization
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt (CURRENT_SERIAL_VERSION);
+		out.writeObject (automaton);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		int version = in.readInt ();
+		automaton = (RegexAutomaton) in.readObject ();
+		setCharSequence (null);
+	}
+
+}
@@ -0,0 +1,255 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A {@link Randoms} whose underlying generator is xoshiro256** (Blackman
+ * and Vigna), seeded through SplitMix64, in place of the linear
+ * congruential generator of <tt>java.util.Random</tt>.  It has a period of
+ * 2^256-1 and passes the usual statistical test suites.
+ * <p>
+ * Unlike <tt>java.util.Random</tt>, it is not thread-safe: there is no
+ * atomic update of the seed and nothing is synchronized, so each thread
+ * should have its own instance.  {@link #split} gives such instances:
+ * streams that are reproducible from the original seed and do not overlap.
+ * <p>
+ * All the distributions of {@link Randoms} (nextGamma, nextDirichlet,
+ * nextDiscrete, ...) are available, drawing on this generator.
+ */
+public class FastRandoms extends Randoms {
+	private static final long serialVersionUID = 1;
+
+	// No initializers: java.util.Random's constructor calls setSeed before
+	// they would run, and they would overwrite the state it sets.
+	private long s0, s1, s2, s3;
+	private double nextGaussian;
+	private boolean haveNextGaussian;
+
+	public FastRandoms (long seed) {
+		super ();
+		setSeed (seed);
+	}
+
+	public FastRandoms () {
+		super ();
+	}
+
+	/** Sets the state of the generator from SEED, by SplitMix64. */
+	public void setSeed (long seed) {
+		long x = seed;
+		x += 0x9E3779B97F4A7C15L; s0 = mix64 (x);
+		x += 0x9E3779B97F4A7C15L; s1 = mix64 (x);
+		x += 0x9E3779B97F4A7C15L; s2 = mix64 (x);
+		x += 0x9E3779B97F4A7C15L; s3 = mix64 (x);
+		haveNextGaussian = false;
+	}
+
+	private static long mix64 (long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	public long nextLong () {
+		long result = Long.rotateLeft (s1 * 5, 7) * 9;
+		long t = s1 << 17;
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft (s3, 45);
+		return result;
+	}
+
+	protected int next (int bits) {
+		return (int) (nextLong () >>> (64 - bits));
+	}
+
+	public int nextInt () {
+		return (int) (nextLong () >>> 32);
+	}
+
+	/** Returns an integer uniformly drawn from 0 (inclusive) to n (exclusive). */
+	public int nextInt (int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException ("n must be positive: " + n);
+		// Lemire's multiply-and-reject, which rarely needs a second draw
+		long m = (nextLong () >>> 32) * n;
+		if ((m & 0xFFFFFFFFL) < n) {
+			long threshold = (0x100000000L - n) % n;
+			while ((m & 0xFFFFFFFFL) < threshold)
+				m = (nextLong () >>> 32) * n;
+		}
+		return (int) (m >>> 32);
+	}
+
+	public double nextDouble () {
+		return (nextLong () >>> 11) * 0x1.0p-53;
+	}
+
+	public float nextFloat () {
+		return (nextLong () >>> 40) * 0x1.0p-24f;
+	}
+
+	public boolean nextBoolean () {
+		return nextLong () < 0;
+	}
+
+	public double nextUniform () {
+		return (nextLong () >>> 11) * 0x1.0p-53;
+	}
+
+	/** Return a random double drawn from a Gaussian distribution with mean 0 and variance 1. */
+	public double nextGaussian () {
+		if (haveNextGaussian) {
+			haveNextGaussian = false;
+			return nextGaussian;
+		}
+		// Box-Muller, as in Randoms, but 1-u keeps the logarithm finite
+		double v1 = 1.0 - nextUniform (), v2 = nextUniform ();
+		double r = Math.sqrt (-2 * Math.log (v1));
+		nextGaussian = r * Math.sin (2 * Math.PI * v2);
+		haveNextGaussian = true;
+		return r * Math.cos (2 * Math.PI * v2);
+	}
+
+	/**
+	 * Returns a generator that continues this one's current stream, and
+	 * moves this one 2^128 draws ahead, so that the two do not overlap unless
+	 * one of them draws 2^128 numbers.  Splitting a generator k times
+	 * gives the same k streams whenever it starts from the same seed.
+	 */
+	public FastRandoms split () {
+		FastRandoms copy = new FastRandoms (0);
+		copy.s0 = s0; copy.s1 = s1; copy.s2 = s2; copy.s3 = s3;
+		jump ();
+		return copy;
+	}
+
+	private static final long[] JUMP = {
+		0x180EC6D33CFD0ABAL, 0xD5A61266F0C9392CL,
+		0xA9582618E03FC9AAL, 0x39ABDC4529B1661CL };
+
+	/** Advances the generator by 2^128 draws. */
+	public void jump () {
+		long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+		for (int i = 0; i < JUMP.length; i++)
+			for (int b = 0; b < 64; b++) {
+				if ((JUMP[i] & (1L << b)) != 0) {
+					t0 ^= s0; t1 ^= s1; t2 ^= s2; t3 ^= s3;
+				}
+				nextLong ();
+			}
+		s0 = t0; s1 = t1; s2 = t2; s3 = t3;
+		haveNextGaussian = false;
+	}
+
+	/**
+	 * Writes the state of the generator, from which {@link #readState}
+	 * continues the same stream.
+	 */
+	public void writeState (DataOutput out) throws IOException {
+		out.writeLong (s0);
+		out.writeLong (s1);
+		out.writeLong (s2);
+		out.writeLong (s3);
+		out.writeBoolean (haveNextGaussian);
+		out.writeDouble (nextGaussian);
+	}
+
+	/** Sets the state of the generator to one written by {@link #writeState}. */
+	public void readState (DataInput in) throws IOException {
+		s0 = in.readLong ();
+		s1 = in.readLong ();
+		s2 = in.readLong ();
+		s3 = in.readLong ();
+		haveNextGaussian = in.readBoolean ();
+		nextGaussian = in.readDouble ();
+	}
+
+	/**
+	 * Times draws from Randoms and FastRandoms, alone and with several
+	 * threads sharing one Randoms or each having a split FastRandoms.
+	 * Usage: FastRandoms [numThreads]
+	 */
+	public static void main (String[] args) {
+		int numThreads = (args.length > 0) ? Integer.parseInt (args[0]) : 4;
+		double[] weights = new double[50];
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = 1.0 / (i + 1);
+		double sum = 0;
+		for (double w : weights)
+			sum += w;
+		for (int pass = 0; pass < 2; pass++) {
+			for (int fast = 0; fast < 2; fast++) {
+				Randoms r = (fast == 1) ? new FastRandoms (1) : new Randoms (1);
+				String name = (fast == 1) ? "FastRandoms" : "Randoms";
+				int n = 20000000;
+				long start = System.nanoTime ();
+				double check = 0;
+				for (int i = 0; i < n; i++)
+					check += r.nextUniform ();
+				report (pass, name + ".nextUniform", start, n, check);
+				start = System.nanoTime ();
+				for (int i = 0; i < n; i++)
+					check += r.nextInt (1000);
+				report (pass, name + ".nextInt(1000)", start, n, check);
+				start = System.nanoTime ();
+				for (int i = 0; i < n / 10; i++)
+					check += r.nextDiscrete (weights, sum);
+				report (pass, name + ".nextDiscrete(50)", start, n / 10, check);
+				start = System.nanoTime ();
+				for (int i = 0; i < n / 10; i++)
+					check += r.nextGamma (0.5);
+				report (pass, name + ".nextGamma(0.5)", start, n / 10, check);
+				start = System.nanoTime ();
+				for (int i = 0; i < n / 10; i++)
+					check += r.nextGaussian ();
+				report (pass, name + ".nextGaussian", start, n / 10, check);
+
+				// Threads drawing from one shared Randoms, or from their own streams
+				final int perThread = n / numThreads;
+				Thread[] threads = new Thread[numThreads];
+				final Randoms shared = r;
+				final FastRandoms master = new FastRandoms (2);
+				final boolean split = (fast == 1);
+				for (int t = 0; t < numThreads; t++) {
+					final Randoms mine = split ? master.split () : shared;
+					threads[t] = new Thread () {
+						public void run () {
+							double c = 0;
+							for (int i = 0; i < perThread; i++)
+								c += mine.nextUniform ();
+							if (c < 0) System.out.println (c);
+						}
+					};
+				}
+				start = System.nanoTime ();
+				for (Thread t : threads) t.start ();
+				try {
+					for (Thread t : threads) t.join ();
+				} catch (InterruptedException e) {
+					return;
+				}
+				report (pass, name + (split ? ", split per thread" : ", shared by threads")
+						+ " (" + numThreads + " threads)", start, perThread * (long) numThreads, 0);
+			}
+		}
+	}
+
+	private static void report (int pass, String name, long start, long draws, double check) {
+		// The first pass only warms up the JIT
+		if (pass == 0) return;
+		System.out.println (name + ": " + ((System.nanoTime () - start) / (double) draws) + " ns per draw");
+	}
+}
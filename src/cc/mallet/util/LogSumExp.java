@@ -0,0 +1,186 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.util.Arrays;
+
+/**
+ * Sums of many numbers in log space, shifted by their maximum.
+ * <p>
+ * Adding up n log-space numbers with the two-argument
+ *  {@link Maths#sumLogProb(double,double)} costs n calls each to Math.exp and
+ *  Math.log, and a branch on every pair.  Here the numbers are collected
+ *  first; then one pass finds their maximum, a second adds up exp(x - max)
+ *  with no branches, and a single log finishes.  An {@link Accumulator} does
+ *  this for many sums at once, such as all the states of a lattice column.
+ * <p>
+ * Optionally the exponentials are computed by {@link #exp(double)}, a table
+ *  lookup and a short polynomial, rather than Math.exp.  Its relative error
+ *  is below 1e-13, well under the precision that lattice weights need.
+ *  Each sum or Accumulator chooses this for itself; the default is Math.exp.
+ */
+public class LogSumExp {
+
+  private static final int TABLE_BITS = 10;
+  private static final int TABLE_SIZE = 1 << TABLE_BITS;
+  private static final double[] POW2_TABLE = new double [TABLE_SIZE];
+  private static final double LOG2E = 1.0 / Math.log (2);
+  private static final double LN2 = Math.log (2);
+
+  static {
+    for (int i = 0; i < TABLE_SIZE; i++) {
+      POW2_TABLE[i] = Math.pow (2, i / (double) TABLE_SIZE);
+    }
+  }
+
+  /**
+   * Returns an approximation of <tt>Math.exp(x)</tt> for <tt>x &lt;= 0</tt>,
+   *  with relative error below 1e-13.  Values of x below about -708, whose
+   *  exponentials are subnormal, give 0.
+   */
+  public static double exp (double x)
+  {
+    if (x >= 0) return Math.exp (x);
+    double y = x * LOG2E;
+    if (y < -1022) return 0;
+    // y = k + f, with integer k and 0 <= f < 1; 2^f = table[i] * e^r, with r tiny
+    int k = (int) Math.floor (y);
+    double f = y - k;
+    int i = (int) (f * TABLE_SIZE);
+    double r = (f - i / (double) TABLE_SIZE) * LN2;
+    double er = 1 + r * (1 + r * (0.5 + r * (1.0 / 6)));
+    return POW2_TABLE[i] * er * Double.longBitsToDouble ((long) (k + 1023) << 52);
+  }
+
+  private static double expShifted (double x, boolean approx)
+  {
+    return approx ? exp (x) : Math.exp (x);
+  }
+
+  /**
+   * Returns <tt>log (sum_i exp (vals[i]))</tt> over the first N values, or
+   *  negative infinity if N is 0 or all are negative infinity.
+   */
+  public static double sum (double[] vals, int n)
+  {
+    return sum (vals, n, false);
+  }
+
+  /**
+   * Returns <tt>log (sum_i exp (vals[i]))</tt> over the first N values,
+   *  using the approximate {@link #exp(double)} if APPROXIMATE is true.
+   */
+  public static double sum (double[] vals, int n, boolean approximate)
+  {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < n; i++) {
+      if (vals[i] > max) max = vals[i];
+    }
+    if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY) return max;
+
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += expShifted (vals[i] - max, approximate);
+    }
+    return max + Math.log (sum);
+  }
+
+  /**
+   * Collects log-space terms for a fixed number of sums, such as the
+   *  incoming weights of each destination state in a lattice column, and
+   *  then computes all the sums together.
+   */
+  public static class Accumulator {
+    private final int numSums;
+    private final boolean approximate;
+    private double[] vals;
+    private int[] idxs;
+    private int n;
+    private final double[] max;
+    private final double[] sums;
+
+    public Accumulator (int numSums)
+    {
+      this (numSums, false);
+    }
+
+    /**
+     * Creates an accumulator for NUMSUMS sums, which uses the approximate
+     *  {@link LogSumExp#exp(double)} if APPROXIMATE is true.
+     */
+    public Accumulator (int numSums, boolean approximate)
+    {
+      this.numSums = numSums;
+      this.approximate = approximate;
+      vals = new double [Math.max (16, 4 * numSums)];
+      idxs = new int [vals.length];
+      max = new double [numSums];
+      sums = new double [numSums];
+    }
+
+    /** Removes all terms. */
+    public void clear () { n = 0; }
+
+    /** Returns the number of terms added since the last clear. */
+    public int size () { return n; }
+
+    /** Adds term VAL to sum IDX. */
+    public void add (int idx, double val)
+    {
+      if (n == vals.length) {
+        vals = Arrays.copyOf (vals, 2 * n);
+        idxs = Arrays.copyOf (idxs, 2 * n);
+      }
+      vals[n] = val;
+      idxs[n] = idx;
+      n++;
+    }
+
+    /** Adds term VAL to a single sum, for use with {@link #sum()}. */
+    public void add (double val) { add (0, val); }
+
+    /** Returns the log-space sum of all terms, whatever their index. */
+    public double sum ()
+    {
+      return LogSumExp.sum (vals, n, approximate);
+    }
+
+    /**
+     * Sets <tt>out[j]</tt> to the log-space sum of <tt>out[j]</tt> and all
+     *  terms added with index j, for every j.
+     */
+    public void sumInto (double[] out)
+    {
+      for (int j = 0; j < numSums; j++) {
+        max[j] = out[j];
+        sums[j] = 0;
+      }
+      for (int i = 0; i < n; i++) {
+        if (vals[i] > max[idxs[i]]) max[idxs[i]] = vals[i];
+      }
+
+      for (int j = 0; j < numSums; j++) {
+        if (out[j] != Double.NEGATIVE_INFINITY && max[j] != Double.POSITIVE_INFINITY)
+          sums[j] = expShifted (out[j] - max[j], approximate);
+      }
+      for (int i = 0; i < n; i++) {
+        double m = max[idxs[i]];
+        if (m != Double.NEGATIVE_INFINITY && m != Double.POSITIVE_INFINITY)
+          sums[idxs[i]] += expShifted (vals[i] - m, approximate);
+      }
+
+      for (int j = 0; j < numSums; j++) {
+        if (max[j] != Double.NEGATIVE_INFINITY && max[j] != Double.POSITIVE_INFINITY)
+          out[j] = max[j] + Math.log (sums[j]);
+        else
+          out[j] = max[j];
+      }
+    }
+  }
+
+}
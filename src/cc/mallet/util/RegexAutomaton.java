@@ -0,0 +1,663 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import gnu.trove.TIntArrayList;
+
+/**
+ * A deterministic finite automaton compiled from the union of several
+ *  regular expressions.  Running a string through the automaton once
+ *  reports every pattern that matches it, so the cost of testing a token
+ *  against many regex features no longer grows with the number of features.
+ * <p>
+ * Patterns are written in <tt>java.util.regex</tt> syntax, and each
+ *  character class (<tt>[...]</tt>, <tt>\p{..}</tt>, <tt>\w</tt>, <tt>.</tt>
+ *  and so on) is evaluated by <tt>java.util.regex</tt> itself, so class
+ *  semantics are identical.  Only the regular subset of the syntax is
+ *  supported: alternation, grouping, the greedy or reluctant quantifiers
+ *  <tt>* + ? {n} {n,} {n,m}</tt> and character classes.  Anchors,
+ *  back-references, lookaround, possessive quantifiers and inline flags
+ *  cause an IllegalArgumentException, as do the COMMENTS, LITERAL and
+ *  CANON_EQ flags.  Characters are UTF-16 code units.
+ * <p>
+ * The automaton is built eagerly, so after construction it is immutable
+ *  and may be shared between threads.
+ *
+ * @see AutomatonLexer
+ */
+public class RegexAutomaton implements Serializable
+{
+	/** The state returned by {@link #step} when no pattern can match any more. */
+	public static final int DEAD = -1;
+
+	private static final int MAX_DFA_STATES = 20000;
+	private static final int[] NO_PATTERNS = new int[0];
+
+	Pattern[] patterns;
+
+	// char -> equivalence class of characters that no pattern distinguishes
+	transient char[] charClass;
+	transient int numCharClasses;
+	// transitions[state * numCharClasses + charClass]
+	transient int[] transitions;
+	transient int[][] accepts;
+	transient int numStates;
+
+	public RegexAutomaton (Pattern[] patterns)
+	{
+		this.patterns = (Pattern[]) patterns.clone ();
+		compile ();
+	}
+
+	public RegexAutomaton (String[] regexes)
+	{
+		this (compileAll (regexes));
+	}
+
+	private static Pattern[] compileAll (String[] regexes)
+	{
+		Pattern[] ret = new Pattern[regexes.length];
+		for (int i = 0; i < regexes.length; i++)
+			ret[i] = Pattern.compile (regexes[i]);
+		return ret;
+	}
+
+	public int numPatterns () { return patterns.length; }
+
+	public Pattern getPattern (int i) { return patterns[i]; }
+
+	public int numStates () { return numStates; }
+
+	public int startState () { return 0; }
+
+	/** Returns the state reached from <tt>state</tt> on <tt>c</tt>, or {@link #DEAD}. */
+	public final int step (int state, char c)
+	{
+		return transitions[state * numCharClasses + charClass[c]];
+	}
+
+	public final boolean isAccepting (int state)
+	{
+		return accepts[state].length > 0;
+	}
+
+	/** Returns the sorted indices of the patterns accepted in <tt>state</tt>.  Do not modify the array. */
+	public final int[] acceptedPatterns (int state)
+	{
+		return accepts[state];
+	}
+
+	/**
+	 * Returns the sorted indices of every pattern that matches the whole of
+	 *  <tt>s</tt>, exactly as <tt>getPattern(i).matcher(s).matches()</tt> would.
+	 *  Do not modify the returned array.
+	 */
+	public int[] matchingPatterns (CharSequence s)
+	{
+		return matchingPatterns (s, 0, s.length ());
+	}
+
+	/** Like {@link #matchingPatterns(CharSequence)}, restricted to <tt>s[start,end)</tt>. */
+	public int[] matchingPatterns (CharSequence s, int start, int end)
+	{
+		int state = 0;
+		for (int i = start; i < end; i++) {
+			state = transitions[state * numCharClasses + charClass[s.charAt (i)]];
+			if (state == DEAD)
+				return NO_PATTERNS;
+		}
+		return accepts[state];
+	}
+
+	/**
+	 * Returns the end offset of the longest prefix of <tt>s[start..]</tt> that
+	 *  some pattern matches, or -1 if there is none.  Empty matches are ignored.
+	 */
+	public int longestMatchEnd (CharSequence s, int start)
+	{
+		int state = 0;
+		int end = -1;
+		int length = s.length ();
+		for (int i = start; i < length; i++) {
+			state = transitions[state * numCharClasses + charClass[s.charAt (i)]];
+			if (state == DEAD)
+				break;
+			if (accepts[state].length > 0)
+				end = i + 1;
+		}
+		return end;
+	}
+
+
+	// Compilation
+
+	// NFA node kinds
+	private static final int NFA_EPSILON = 0;
+	private static final int NFA_CLASS = 1;
+	private static final int NFA_MATCH = 2;
+
+	private void compile ()
+	{
+		for (int p = 0; p < patterns.length; p++) {
+			int flags = patterns[p].flags ();
+			if ((flags & (Pattern.COMMENTS | Pattern.LITERAL | Pattern.CANON_EQ)) != 0)
+				throw new IllegalArgumentException ("Unsupported flags in pattern "+patterns[p].pattern ());
+		}
+
+		ClassTable classes = new ClassTable ();
+		Nfa nfa = new Nfa ();
+		int start = nfa.addNode (NFA_EPSILON, -1);
+		for (int p = 0; p < patterns.length; p++) {
+			Parser parser = new Parser (patterns[p].pattern (), patterns[p].flags (), classes);
+			Node ast = parser.parse ();
+			int match = nfa.addNode (NFA_MATCH, p);
+			int entry = ast.build (nfa, match);
+			nfa.epsilon.get (start).add (entry);
+		}
+
+		// Partition the characters into classes that no atom distinguishes
+		int numAtoms = classes.sets.size ();
+		int[] partition = new int[65536];
+		int numParts = 1;
+		for (int a = 0; a < numAtoms; a++) {
+			BitSet set = classes.sets.get (a);
+			int[] renumber = new int[numParts * 2];
+			Arrays.fill (renumber, -1);
+			int next = 0;
+			for (int c = 0; c < 65536; c++) {
+				int key = partition[c] * 2 + (set.get (c) ? 1 : 0);
+				if (renumber[key] == -1)
+					renumber[key] = next++;
+				partition[c] = renumber[key];
+			}
+			numParts = next;
+		}
+		numCharClasses = numParts;
+		charClass = new char[65536];
+		int[] representative = new int[numParts];
+		Arrays.fill (representative, -1);
+		for (int c = 0; c < 65536; c++) {
+			charClass[c] = (char) partition[c];
+			if (representative[partition[c]] == -1)
+				representative[partition[c]] = c;
+		}
+		boolean[][] atomHas = new boolean[numAtoms][numParts];
+		for (int a = 0; a < numAtoms; a++) {
+			BitSet set = classes.sets.get (a);
+			for (int k = 0; k < numParts; k++)
+				atomHas[a][k] = set.get (representative[k]);
+		}
+
+		// Subset construction
+		ArrayList<int[]> dstates = new ArrayList<int[]> ();
+		HashMap<StateKey,Integer> index = new HashMap<StateKey,Integer> ();
+		TIntArrayList trans = new TIntArrayList ();
+		ArrayList<int[]> acc = new ArrayList<int[]> ();
+		int[] initial = nfa.closure (new int[] { start });
+		dstates.add (initial);
+		index.put (new StateKey (initial), 0);
+		for (int d = 0; d < dstates.size (); d++) {
+			int[] members = dstates.get (d);
+			acc.add (nfa.acceptsOf (members));
+			for (int k = 0; k < numParts; k++) {
+				TIntArrayList next = new TIntArrayList ();
+				for (int i = 0; i < members.length; i++) {
+					int n = members[i];
+					if (nfa.kind.get (n) == NFA_CLASS && atomHas[nfa.arg.get (n)][k])
+						next.add (nfa.out.get (n));
+				}
+				if (next.size () == 0) {
+					trans.add (DEAD);
+					continue;
+				}
+				int[] target = nfa.closure (next.toNativeArray ());
+				StateKey key = new StateKey (target);
+				Integer id = index.get (key);
+				if (id == null) {
+					id = dstates.size ();
+					if (id >= MAX_DFA_STATES)
+						throw new IllegalArgumentException ("Automaton exceeds "+MAX_DFA_STATES+" states");
+					dstates.add (target);
+					index.put (key, id);
+				}
+				trans.add (id);
+			}
+		}
+		numStates = dstates.size ();
+		transitions = trans.toNativeArray ();
+		accepts = (int[][]) acc.toArray (new int[numStates][]);
+	}
+
+	private static class StateKey
+	{
+		int[] members;
+		int hash;
+		StateKey (int[] members) { this.members = members; this.hash = Arrays.hashCode (members); }
+		public int hashCode () { return hash; }
+		public boolean equals (Object o) { return Arrays.equals (members, ((StateKey) o).members); }
+	}
+
+	// Thompson NFA: each node is an epsilon fan-out, a single character
+	// class followed by one out edge, or a match of some pattern.
+	private static class Nfa
+	{
+		TIntArrayList kind = new TIntArrayList ();
+		TIntArrayList arg = new TIntArrayList ();
+		TIntArrayList out = new TIntArrayList ();
+		ArrayList<TIntArrayList> epsilon = new ArrayList<TIntArrayList> ();
+
+		int addNode (int k, int a)
+		{
+			kind.add (k);
+			arg.add (a);
+			out.add (-1);
+			epsilon.add (new TIntArrayList ());
+			return kind.size () - 1;
+		}
+
+		int[] closure (int[] seeds)
+		{
+			BitSet seen = new BitSet ();
+			TIntArrayList stack = new TIntArrayList ();
+			for (int i = 0; i < seeds.length; i++)
+				if (!seen.get (seeds[i])) { seen.set (seeds[i]); stack.add (seeds[i]); }
+			while (stack.size () > 0) {
+				int n = stack.remove (stack.size () - 1);
+				TIntArrayList eps = epsilon.get (n);
+				for (int i = 0; i < eps.size (); i++) {
+					int m = eps.get (i);
+					if (!seen.get (m)) { seen.set (m); stack.add (m); }
+				}
+			}
+			// Only class and match nodes matter for the DFA state's identity
+			TIntArrayList ret = new TIntArrayList ();
+			for (int n = seen.nextSetBit (0); n >= 0; n = seen.nextSetBit (n + 1))
+				if (kind.get (n) != NFA_EPSILON)
+					ret.add (n);
+			return ret.toNativeArray ();
+		}
+
+		int[] acceptsOf (int[] members)
+		{
+			TIntArrayList ret = new TIntArrayList ();
+			for (int i = 0; i < members.length; i++)
+				if (kind.get (members[i]) == NFA_MATCH)
+					ret.add (arg.get (members[i]));
+			if (ret.size () == 0)
+				return NO_PATTERNS;
+			ret.sort ();
+			return ret.toNativeArray ();
+		}
+	}
+
+	// Interned character sets, one per distinct class expression
+	private static class ClassTable
+	{
+		ArrayList<BitSet> sets = new ArrayList<BitSet> ();
+		HashMap<String,Integer> ids = new HashMap<String,Integer> ();
+
+		int literal (char c, int flags)
+		{
+			if ((flags & Pattern.CASE_INSENSITIVE) != 0)
+				return expression (Pattern.quote (String.valueOf (c)), flags);
+			String key = "\u0000" + c;
+			Integer id = ids.get (key);
+			if (id == null) {
+				BitSet set = new BitSet (65536);
+				set.set (c);
+				id = add (key, set);
+			}
+			return id;
+		}
+
+		// Evaluate a single-character regex over every char.
+		int expression (String regex, int flags)
+		{
+			String key = flags + ":" + regex;
+			Integer id = ids.get (key);
+			if (id == null) {
+				Matcher m = Pattern.compile (regex, flags).matcher ("");
+				CharBuffer one = new CharBuffer ();
+				BitSet set = new BitSet (65536);
+				for (int c = 0; c < 65536; c++) {
+					one.c = (char) c;
+					if (m.reset (one).matches ())
+						set.set (c);
+				}
+				id = add (key, set);
+			}
+			return id;
+		}
+
+		private int add (String key, BitSet set)
+		{
+			int id = sets.size ();
+			sets.add (set);
+			ids.put (key, id);
+			return id;
+		}
+	}
+
+	private static class CharBuffer implements CharSequence
+	{
+		char c;
+		public int length () { return 1; }
+		public char charAt (int i) { return c; }
+		public CharSequence subSequence (int start, int end) { return String.valueOf (c).subSequence (start, end); }
+		public String toString () { return String.valueOf (c); }
+	}
+
+	// Parse tree
+	private static class Node
+	{
+		static final int CLASS = 0, CONCAT = 1, ALT = 2, REPEAT = 3, EMPTY = 4;
+		int type;
+		int atom;
+		Node left, right;
+		int min, max;  // max == -1 for unbounded
+
+		Node (int type) { this.type = type; }
+
+		// Adds this subexpression to nfa so that it continues to next; returns the entry node.
+		int build (Nfa nfa, int next)
+		{
+			switch (type) {
+			case EMPTY:
+				return next;
+			case CLASS: {
+				int n = nfa.addNode (NFA_CLASS, atom);
+				nfa.out.set (n, next);
+				return n;
+			}
+			case CONCAT:
+				return left.build (nfa, right.build (nfa, next));
+			case ALT: {
+				int n = nfa.addNode (NFA_EPSILON, -1);
+				nfa.epsilon.get (n).add (left.build (nfa, next));
+				nfa.epsilon.get (n).add (right.build (nfa, next));
+				return n;
+			}
+			case REPEAT: {
+				int entry = next;
+				if (max == -1) {
+					// loop: l -> body -> l, l -> next
+					int loop = nfa.addNode (NFA_EPSILON, -1);
+					nfa.epsilon.get (loop).add (left.build (nfa, loop));
+					nfa.epsilon.get (loop).add (next);
+					entry = loop;
+				} else {
+					for (int i = min; i < max; i++) {
+						int opt = nfa.addNode (NFA_EPSILON, -1);
+						nfa.epsilon.get (opt).add (left.build (nfa, entry));
+						nfa.epsilon.get (opt).add (next);
+						entry = opt;
+					}
+				}
+				for (int i = 0; i < min; i++)
+					entry = left.build (nfa, entry);
+				return entry;
+			}
+			default:
+				throw new IllegalStateException ();
+			}
+		}
+	}
+
+	private static class Parser
+	{
+		String re;
+		int pos;
+		int flags;
+		ClassTable classes;
+
+		Parser (String re, int flags, ClassTable classes)
+		{
+			this.re = re;
+			this.flags = flags;
+			this.classes = classes;
+		}
+
+		Node parse ()
+		{
+			Node n = parseAlternation ();
+			if (pos < re.length ())
+				throw error ("Unexpected '"+re.charAt (pos)+"'");
+			return n;
+		}
+
+		private IllegalArgumentException error (String msg)
+		{
+			return new IllegalArgumentException (msg+" at index "+pos+" in pattern "+re);
+		}
+
+		private Node parseAlternation ()
+		{
+			Node n = parseConcatenation ();
+			while (pos < re.length () && re.charAt (pos) == '|') {
+				pos++;
+				Node alt = new Node (Node.ALT);
+				alt.left = n;
+				alt.right = parseConcatenation ();
+				n = alt;
+			}
+			return n;
+		}
+
+		private Node parseConcatenation ()
+		{
+			Node n = new Node (Node.EMPTY);
+			while (pos < re.length () && re.charAt (pos) != '|' && re.charAt (pos) != ')') {
+				Node next = parseRepeat ();
+				if (n.type == Node.EMPTY)
+					n = next;
+				else {
+					Node cat = new Node (Node.CONCAT);
+					cat.left = n;
+					cat.right = next;
+					n = cat;
+				}
+			}
+			return n;
+		}
+
+		private Node parseRepeat ()
+		{
+			Node n = parseAtom ();
+			while (pos < re.length ()) {
+				char c = re.charAt (pos);
+				int min, max;
+				if (c == '*') { min = 0; max = -1; pos++; }
+				else if (c == '+') { min = 1; max = -1; pos++; }
+				else if (c == '?') { min = 0; max = 1; pos++; }
+				else if (c == '{') {
+					int close = re.indexOf ('}', pos);
+					if (close < 0) throw error ("Unclosed counted closure");
+					String body = re.substring (pos + 1, close);
+					int comma = body.indexOf (',');
+					try {
+						if (comma < 0)
+							min = max = Integer.parseInt (body.trim ());
+						else {
+							min = Integer.parseInt (body.substring (0, comma).trim ());
+							String hi = body.substring (comma + 1).trim ();
+							max = hi.length () == 0 ? -1 : Integer.parseInt (hi);
+						}
+					} catch (NumberFormatException e) {
+						throw error ("Bad counted closure");
+					}
+					pos = close + 1;
+				} else
+					break;
+				if (pos < re.length () && re.charAt (pos) == '+')
+					throw error ("Possessive quantifiers are not supported");
+				// A reluctant quantifier matches the same language
+				if (pos < re.length () && re.charAt (pos) == '?')
+					pos++;
+				Node rep = new Node (Node.REPEAT);
+				rep.left = n;
+				rep.min = min;
+				rep.max = max;
+				n = rep;
+			}
+			return n;
+		}
+
+		private Node classNode (int atom)
+		{
+			Node n = new Node (Node.CLASS);
+			n.atom = atom;
+			return n;
+		}
+
+		private Node parseAtom ()
+		{
+			char c = re.charAt (pos);
+			switch (c) {
+			case '(': {
+				pos++;
+				if (re.startsWith ("?:", pos))
+					pos += 2;
+				else if (pos < re.length () && re.charAt (pos) == '?')
+					throw error ("Lookaround and inline flags are not supported");
+				Node n = parseAlternation ();
+				if (pos >= re.length () || re.charAt (pos) != ')')
+					throw error ("Unclosed group");
+				pos++;
+				return n;
+			}
+			case '[': {
+				int end = bracketEnd (pos);
+				String expr = re.substring (pos, end);
+				pos = end;
+				return classNode (classes.expression (expr, flags));
+			}
+			case '.':
+				pos++;
+				return classNode (classes.expression (".", flags));
+			case '^': case '$':
+				throw error ("Anchors are not supported");
+			case '*': case '+': case '?': case '{':
+				throw error ("Dangling quantifier");
+			case '\\':
+				return parseEscape ();
+			default:
+				pos++;
+				return classNode (classes.literal (c, flags));
+			}
+		}
+
+		private Node parseEscape ()
+		{
+			int start = pos;
+			if (pos + 1 >= re.length ())
+				throw error ("Trailing backslash");
+			char c = re.charAt (pos + 1);
+			if (!Character.isLetterOrDigit (c)) {
+				pos += 2;
+				return classNode (classes.literal (c, flags));
+			}
+			if ("123456789bBAzZGQEkRXK".indexOf (c) >= 0)
+				throw error ("Unsupported escape \\"+c);
+			int end = start + 2;
+			if ((c == 'p' || c == 'P') && end < re.length () && re.charAt (end) == '{')
+				end = closing (end, '}');
+			else if (c == 'p' || c == 'P')
+				end++;
+			else if (c == 'x' && end < re.length () && re.charAt (end) == '{')
+				end = closing (end, '}');
+			else if (c == 'x')
+				end += 2;
+			else if (c == 'u')
+				end += 4;
+			else if (c == 'c')
+				end += 1;
+			else if (c == '0') {
+				while (end < re.length () && end < start + 5 && re.charAt (end) >= '0' && re.charAt (end) <= '7')
+					end++;
+			}
+			if (end > re.length ())
+				throw error ("Truncated escape");
+			pos = end;
+			return classNode (classes.expression (re.substring (start, end), flags));
+		}
+
+		private int closing (int from, char close)
+		{
+			int i = re.indexOf (close, from);
+			if (i < 0) throw error ("Missing '"+close+"'");
+			return i + 1;
+		}
+
+		// Returns the index just past the bracket expression starting at from.
+		private int bracketEnd (int from)
+		{
+			int depth = 0;
+			int i = from;
+			while (i < re.length ()) {
+				char c = re.charAt (i);
+				if (c == '\\') {
+					if (re.startsWith ("Q", i + 1)) {
+						int e = re.indexOf ("\\E", i + 2);
+						if (e < 0) throw error ("Unclosed \\Q");
+						i = e + 2;
+					} else
+						i += 2;
+					continue;
+				}
+				if (c == '[') {
+					depth++;
+					// A ']' right after the opening bracket (or its '^') is literal
+					i++;
+					if (i < re.length () && re.charAt (i) == '^') i++;
+					if (i < re.length () && re.charAt (i) == ']') i++;
+					continue;
+				}
+				if (c == ']' && --depth == 0)
+					return i + 1;
+				i++;
+			}
+			throw error ("Unclosed character class");
+		}
+	}
+
+
+	// Serialization
+	// The compiled tables are rebuilt from the patterns on deserialization.
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt (CURRENT_SERIAL_VERSION);
+		out.writeInt (patterns.length);
+		for (int i = 0; i < patterns.length; i++) {
+			out.writeObject (patterns[i].pattern ());
+			out.writeInt (patterns[i].flags ());
+		}
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		int version = in.readInt ();
+		int n = in.readInt ();
+		patterns = new Pattern[n];
+		for (int i = 0; i < n; i++) {
+			String p = (String) in.readObject ();
+			patterns[i] = Pattern.compile (p, in.readInt ());
+		}
+		compile ();
+	}
+
+}
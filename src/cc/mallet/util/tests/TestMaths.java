@@ -7,6 +7,7 @@
 package cc.mallet.util.tests;
 
 import cc.mallet.types.MatrixOps;
+import cc.mallet.util.LogSumExp;
 import cc.mallet.util.Maths;
 import junit.framework.*;
 
@@ -56,6 +57,75 @@ public class TestMaths extends TestCase {
 
   }
 
+  public void testLogSumExp ()
+  {
+    double[] logVals = { Math.log (53.0), Math.log (1.56e4), Double.NEGATIVE_INFINITY, -800, Math.log (1e-15) };
+    double lsum = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < logVals.length; i++) {
+      lsum = Maths.sumLogProb (lsum, logVals [i]);
+    }
+    assertEquals (lsum, LogSumExp.sum (logVals, logVals.length), 1e-12);
+    assertEquals (Double.NEGATIVE_INFINITY, LogSumExp.sum (logVals, 0), 0);
+
+    LogSumExp.Accumulator acc = new LogSumExp.Accumulator (3);
+    for (int i = 0; i < logVals.length; i++) {
+      acc.add (i % 2, logVals [i]);
+    }
+    double[] out = { Math.log (2.0), Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+    acc.sumInto (out);
+    assertEquals (Math.log (2.0 + 53.0 + 1e-15), out[0], 1e-12);
+    assertEquals (Math.log (1.56e4), out[1], 1e-12);
+    assertEquals (Double.NEGATIVE_INFINITY, out[2], 0);
+  }
+
+  public void testApproximateLogSumExp ()
+  {
+    java.util.Random r = new java.util.Random (3);
+    double[] vals = new double [50];
+    for (int i = 0; i < vals.length; i++) {
+      vals [i] = r.nextGaussian () * 20;
+    }
+    double exact = LogSumExp.sum (vals, vals.length);
+    assertEquals (exact, LogSumExp.sum (vals, vals.length, true), 1e-12);
+
+    LogSumExp.Accumulator approx = new LogSumExp.Accumulator (4, true);
+    LogSumExp.Accumulator plain = new LogSumExp.Accumulator (4);
+    for (int i = 0; i < vals.length; i++) {
+      approx.add (i % 4, vals [i]);
+      plain.add (i % 4, vals [i]);
+    }
+    double[] approxOut = new double [4];
+    double[] plainOut = new double [4];
+    java.util.Arrays.fill (approxOut, Double.NEGATIVE_INFINITY);
+    java.util.Arrays.fill (plainOut, Double.NEGATIVE_INFINITY);
+    approx.sumInto (approxOut);
+    plain.sumInto (plainOut);
+
+    // An approximate accumulator leaves the others exact
+    for (int j = 0; j < 4; j++) {
+      double[] group = new double [vals.length / 4 + 1];
+      int n = 0;
+      for (int i = j; i < vals.length; i += 4) group [n++] = vals [i];
+      assertEquals (LogSumExp.sum (group, n), plainOut [j], 0);
+      assertEquals (plainOut [j], approxOut [j], 1e-12);
+    }
+    assertEquals (exact, plain.sum (), 0);
+    assertEquals (exact, approx.sum (), 1e-12);
+  }
+
+  public void testApproximateExp ()
+  {
+    java.util.Random r = new java.util.Random (42);
+    for (int i = 0; i < 100000; i++) {
+      double x = -r.nextDouble () * 700;
+      double exact = Math.exp (x);
+      assertEquals (1.0, LogSumExp.exp (x) / exact, 1e-13);
+    }
+    assertEquals (1.0, LogSumExp.exp (0), 0);
+    assertEquals (0.0, LogSumExp.exp (-1000), 0);
+    assertEquals (0.0, LogSumExp.exp (Double.NEGATIVE_INFINITY), 0);
+  }
+
   public void testSubtractLogProb ()
   {
     double a = 0.9;
@@ -6,7 +6,14 @@
    information, see the file `LICENSE' included with this distribution. */
 package cc.mallet.util.tests;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import cc.mallet.types.MatrixOps;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
 import cc.mallet.util.Strings;
 import junit.framework.TestCase;
@@ -47,6 +54,72 @@ public class TestRandom extends TestCase {
 //    assertEquals (1.0, MatrixOps.stddev (vals), 0.01);
 //  }
 
+  public void testFastRandomsReproducible ()
+  {
+    FastRandoms r1 = new FastRandoms (42), r2 = new FastRandoms (42);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals (r1.nextLong (), r2.nextLong ());
+    }
+    assertEquals (r1.nextGaussian (), r2.nextGaussian (), 0);
+    r1.setSeed (42);
+    assertEquals (new FastRandoms (42).nextLong (), r1.nextLong ());
+  }
+
+  public void testFastRandomsSplit ()
+  {
+    FastRandoms master = new FastRandoms (7);
+    FastRandoms a = master.split (), b = master.split ();
+    FastRandoms again = new FastRandoms (7);
+    FastRandoms a2 = again.split (), b2 = again.split ();
+    int same = 0;
+    for (int i = 0; i < 1000; i++) {
+      long x = a.nextLong (), y = b.nextLong ();
+      assertEquals (x, a2.nextLong ());
+      assertEquals (y, b2.nextLong ());
+      if (x == y) same++;
+    }
+    assertEquals (0, same);
+  }
+
+  public void testFastRandomsState () throws IOException
+  {
+    FastRandoms r = new FastRandoms (3);
+    r.nextLong ();
+    r.nextGaussian ();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+    r.writeState (new DataOutputStream (bytes));
+
+    FastRandoms restored = new FastRandoms ();
+    restored.readState (new DataInputStream (new ByteArrayInputStream (bytes.toByteArray ())));
+    assertEquals (r.nextGaussian (), restored.nextGaussian (), 0);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals (r.nextLong (), restored.nextLong ());
+    }
+  }
+
+  public void testFastRandomsDistributions ()
+  {
+    FastRandoms r = new FastRandoms (1);
+    int size = 100000;
+    double[] uniform = new double [size], gaussian = new double [size], gamma = new double [size];
+    int[] counts = new int [7];
+    for (int i = 0; i < size; i++) {
+      uniform[i] = r.nextUniform ();
+      assertTrue (uniform[i] >= 0 && uniform[i] < 1);
+      gaussian[i] = r.nextGaussian ();
+      gamma[i] = r.nextGamma (3.0);
+      counts[r.nextInt (7)]++;
+    }
+    assertEquals (0.5, MatrixOps.mean (uniform), 0.01);
+    assertEquals (0.0, MatrixOps.mean (gaussian), 0.01);
+    assertEquals (1.0, MatrixOps.stddev (gaussian), 0.01);
+    assertEquals (3.0, MatrixOps.mean (gamma), 0.03);
+    for (int k = 0; k < counts.length; k++) {
+      assertEquals (1.0 / 7, counts[k] / (double) size, 0.005);
+    }
+    assertEquals (2, r.nextDiscrete (new double[] { 0, 0, 1 }));
+  }
+
   public static void main (String[] args) throws Throwable
   {
     TestSuite theSuite;
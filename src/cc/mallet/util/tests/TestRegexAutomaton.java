@@ -0,0 +1,179 @@
+/* Copyright (C) 2003 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.util.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import cc.mallet.util.AutomatonLexer;
+import cc.mallet.util.CharSequenceLexer;
+import cc.mallet.util.Randoms;
+import cc.mallet.util.RegexAutomaton;
+import junit.framework.*;
+
+public class TestRegexAutomaton extends TestCase {
+
+  // The token features of share.mccallum.ner.TUI and share.upenn.ner.NEPipes
+  private static final String[] FEATURES = {
+    "[\\p{Lu}].*", "[\\p{Lu}][\\p{Ll}]*", "[\\p{Lu}]+", "[A-Z][a-z]+[A-Z][A-Za-z]*",
+    ".*[0-9].*", "[0-9]+", "[-0-9]+[\\.,]+[0-9\\.,]+", "\\.\\.+", "[^\\.]+.*\\.",
+    "[\\p{Lu}\\p{Ll}\\p{Nd}]+-[\\p{Lu}\\p{Ll}\\p{Nd}]*", "[A-Z][A-Z\\.]*\\.[A-Z\\.]*",
+    "[,\\.;:?!()]", "[\"`']", "([A-Z]*)", "(.*[a-z].*[A-Z].*)", "([:;,.!?-])",
+    "(?:ab|a)(?:bc)?c{1,3}", "x{2}y{0,}z?", "[a-z&&[^aeiou]]+", "\\w+\\s\\d",
+  };
+
+  public TestRegexAutomaton (String name)
+  {
+    super (name);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestRegexAutomaton.class);
+  }
+
+  private static String randomToken (Randoms r)
+  {
+    String alphabet = "aAbBcxyzZ09.,-(): \"'";
+    int len = r.nextInt (8);
+    StringBuffer sb = new StringBuffer ();
+    for (int i = 0; i < len; i++)
+      sb.append (alphabet.charAt (r.nextInt (alphabet.length ())));
+    return sb.toString ();
+  }
+
+  public void testAgreesWithJavaRegex ()
+  {
+    RegexAutomaton automaton = new RegexAutomaton (FEATURES);
+    Pattern[] patterns = new Pattern[FEATURES.length];
+    for (int i = 0; i < FEATURES.length; i++)
+      patterns[i] = Pattern.compile (FEATURES[i]);
+
+    Randoms r = new Randoms (1);
+    for (int trial = 0; trial < 20000; trial++) {
+      String s = randomToken (r);
+      ArrayList expected = new ArrayList ();
+      for (int i = 0; i < patterns.length; i++)
+        if (patterns[i].matcher (s).matches ())
+          expected.add (new Integer (i));
+      int[] actual = automaton.matchingPatterns (s);
+      assertEquals ("On \""+s+"\"", expected.toString (), toList (actual).toString ());
+    }
+  }
+
+  public void testCaseInsensitive ()
+  {
+    RegexAutomaton automaton = new RegexAutomaton (new Pattern[] {
+      Pattern.compile ("ab+", Pattern.CASE_INSENSITIVE), Pattern.compile ("AB")
+    });
+    assertTrue (Arrays.equals (new int[] { 0, 1 }, automaton.matchingPatterns ("AB")));
+    assertTrue (Arrays.equals (new int[] { 0 }, automaton.matchingPatterns ("aBbB")));
+  }
+
+  public void testUnsupported ()
+  {
+    String[] bad = { "^a", "a$", "(a)\\1", "a(?=b)", "a*+", "\\bfoo" };
+    for (int i = 0; i < bad.length; i++) {
+      try {
+        new RegexAutomaton (new String[] { bad[i] });
+        fail ("Accepted "+bad[i]);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testLexerMatchesCharSequenceLexer ()
+  {
+    String text = "The 2 quick-brown foxes, 13 of them; jumped.  Over!";
+    CharSequenceLexer expected = new CharSequenceLexer (text, CharSequenceLexer.LEX_NONWHITESPACE_CLASSES);
+    AutomatonLexer actual = new AutomatonLexer (CharSequenceLexer.LEX_NONWHITESPACE_CLASSES);
+    actual.setCharSequence (text);
+    while (expected.hasNext ()) {
+      assertTrue (actual.hasNext ());
+      assertEquals (expected.next (), actual.next ());
+      assertEquals (expected.getStartOffset (), actual.getStartOffset ());
+      assertEquals (expected.getEndOffset (), actual.getEndOffset ());
+    }
+    assertFalse (actual.hasNext ());
+  }
+
+  public void testLexerAgreesWithLongestMatch ()
+  {
+    String[] patterns = { "a", "a*b", "(ab)*c", "[a-c]+d", "x+" };
+    RegexAutomaton automaton = new RegexAutomaton (patterns);
+    Randoms r = new Randoms (3);
+    for (int trial = 0; trial < 500; trial++) {
+      StringBuffer sb = new StringBuffer ();
+      int len = r.nextInt (60);
+      for (int i = 0; i < len; i++)
+        sb.append ("aabcdx ".charAt (r.nextInt (7)));
+      String text = sb.toString ();
+
+      AutomatonLexer lexer = new AutomatonLexer (automaton);
+      lexer.setCharSequence (text);
+      int position = 0;
+      while (position < text.length ()) {
+        int end = automaton.longestMatchEnd (text, position);
+        if (end > position) {
+          assertTrue (text, lexer.hasNext ());
+          assertEquals (text, text.substring (position, end), lexer.next ());
+          assertEquals (position, lexer.getStartOffset ());
+          position = end;
+        }
+        else {
+          position++;
+        }
+      }
+      assertFalse (text, lexer.hasNext ());
+    }
+  }
+
+  // Every token is "a", but each scan could run on to the end looking
+  //  for a "b"; without remembering dead ends this takes quadratic time.
+  public void testLexerLongRunWithoutMatch ()
+  {
+    int n = 200000;
+    StringBuffer sb = new StringBuffer (n);
+    for (int i = 0; i < n; i++)
+      sb.append ('a');
+
+    AutomatonLexer lexer = new AutomatonLexer (new Pattern[] { Pattern.compile ("a"), Pattern.compile ("a*b") });
+    lexer.setCharSequence (sb);
+    int count = 0;
+    while (lexer.hasNext ()) {
+      assertEquals ("a", lexer.next ());
+      count++;
+    }
+    assertEquals (n, count);
+  }
+
+  private static ArrayList toList (int[] vals)
+  {
+    ArrayList ret = new ArrayList ();
+    for (int i = 0; i < vals.length; i++)
+      ret.add (new Integer (vals[i]));
+    return ret;
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestRegexAutomaton (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}